@@ -0,0 +1,35 @@
+/**
+ * Copyright 2021 Unicon (R)
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.unicon.lti.config;
+
+import org.hibernate.cache.jcache.ConfigSettings;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.boot.autoconfigure.orm.jpa.HibernatePropertiesCustomizer;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import javax.cache.CacheManager;
+
+/**
+ * The Hibernate second level cache and the Spring caches (@Cacheable) share the JCache manager
+ * built from ehcache.xml, so there is only one set of regions and their statistics are all in the actuator metrics.
+ * When there is no JCache manager (spring.cache.type=none) Hibernate builds its own from hibernate.javax.cache.uri.
+ */
+@Configuration
+public class CacheConfig {
+
+    @Bean
+    public HibernatePropertiesCustomizer secondLevelCacheManagerCustomizer(ObjectProvider<CacheManager> cacheManager) {
+        return properties -> cacheManager.ifAvailable(manager -> properties.put(ConfigSettings.CACHE_MANAGER, manager));
+    }
+}
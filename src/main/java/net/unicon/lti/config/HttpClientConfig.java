@@ -0,0 +1,70 @@
+/**
+ * Copyright 2021 Unicon (R)
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.unicon.lti.config;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Primary;
+import org.springframework.http.client.ClientHttpRequestFactory;
+import org.springframework.http.client.JdkClientHttpRequestFactory;
+
+import java.net.http.HttpClient;
+import java.time.Duration;
+
+/**
+ * The HTTP client we use to talk with the platforms (tokens, AGS, NRPS, JWKS, registration).
+ * There is only one java.net.http.HttpClient for the whole application, so the connections to each platform
+ * host are kept alive in its pool and the TLS sessions are reused between calls instead of doing
+ * a new handshake every time.
+ * The JDK pool can be tuned with the jdk.httpclient.connectionPoolSize and jdk.httpclient.keepalive.timeout
+ * system properties.
+ * The responses are not buffered: the paged AGS and NRPS reads parse the body while it arrives.
+ * The platform JWKS are fetched during the launch, so they get their own (shorter) read timeout on the same client.
+ */
+@Configuration
+public class HttpClientConfig {
+
+    @Value("${lti13.http.connectTimeoutMillis:5000}")
+    private long connectTimeoutMillis;
+
+    @Value("${lti13.http.readTimeoutMillis:30000}")
+    private long readTimeoutMillis;
+
+    @Value("${lti13.jwks.readTimeoutMillis:5000}")
+    private long jwksReadTimeoutMillis;
+
+    @Bean
+    public HttpClient ltiHttpClient() {
+        return HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_1_1)
+                .connectTimeout(Duration.ofMillis(connectTimeoutMillis))
+                .followRedirects(HttpClient.Redirect.NORMAL)
+                .build();
+    }
+
+    @Bean
+    @Primary
+    public ClientHttpRequestFactory ltiClientHttpRequestFactory(HttpClient ltiHttpClient) {
+        JdkClientHttpRequestFactory requestFactory = new JdkClientHttpRequestFactory(ltiHttpClient);
+        requestFactory.setReadTimeout(Duration.ofMillis(readTimeoutMillis));
+        return requestFactory;
+    }
+
+    @Bean
+    public ClientHttpRequestFactory ltiJwksClientHttpRequestFactory(HttpClient ltiHttpClient) {
+        JdkClientHttpRequestFactory requestFactory = new JdkClientHttpRequestFactory(ltiHttpClient);
+        requestFactory.setReadTimeout(Duration.ofMillis(jwksReadTimeoutMillis));
+        return requestFactory;
+    }
+}
@@ -96,9 +96,11 @@ public class WebSecurityConfig {
     @Order(30) // VERY HIGH
     @Bean
     public SecurityFilterChain filterChain2(HttpSecurity http) throws Exception {
-        http.securityMatcher("/config/**");
+        http.securityMatcher("/config/**", "/actuator/**");
         return http.authorizeHttpRequests(authz -> authz
                         .requestMatchers("/config/**").authenticated()
+                        .requestMatchers("/actuator/health").permitAll()
+                        .requestMatchers("/actuator/**").hasRole("ADMIN")
 
                 )
                 .httpBasic(withDefaults())
@@ -16,6 +16,8 @@ package net.unicon.lti.controller.app;
 import io.jsonwebtoken.Claims;
 import io.jsonwebtoken.Jws;
 import net.unicon.lti.exceptions.BadTokenException;
+import net.unicon.lti.security.app.APIOAuthProviderProcessingFilter;
+import net.unicon.lti.service.app.APIDataService;
 import net.unicon.lti.service.app.APIJWTService;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.http.HttpStatus;
@@ -37,13 +39,23 @@ public class TokenController {
     @Autowired
     APIJWTService apijwtService;
 
+    @Autowired
+    APIDataService apiDataService;
+
     @SuppressWarnings("rawtypes")
     @RequestMapping(method = RequestMethod.POST, value = "/trade")
     public ResponseEntity getTimedToken(HttpServletRequest req) {
 
         //TODO, surely we want to do something more complicated here. Like read the previous token values and make the token similar
-        String token = apijwtService.extractJwtStringValue(req, true);
-        Jws<Claims> claims = apijwtService.validateToken(token);
+        //The API filter has already validated and redeemed the one use token, if not we do it here
+        Jws<Claims> claims = (Jws<Claims>) req.getAttribute(APIOAuthProviderProcessingFilter.ONE_USE_CLAIMS);
+        if (claims == null) {
+            String token = apijwtService.extractJwtStringValue(req, true);
+            claims = apijwtService.validateToken(token);
+            if ((Boolean) claims.getBody().get("oneUse") && !apiDataService.consumeOneUseToken(token)) {
+                return new ResponseEntity<>("One time token does not exist or has been already used", HttpStatus.UNAUTHORIZED);
+            }
+        }
         if ((Boolean)claims.getBody().get("oneUse")) {
             try {
                 return new ResponseEntity<>(apijwtService.buildJwt(false,
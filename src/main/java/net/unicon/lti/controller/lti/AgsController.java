@@ -20,13 +20,13 @@ import net.unicon.lti.model.LtiContextEntity;
 import net.unicon.lti.model.PlatformDeployment;
 import net.unicon.lti.model.ags.LineItem;
 import net.unicon.lti.model.ags.LineItems;
-import net.unicon.lti.model.ags.Results;
 import net.unicon.lti.model.ags.Score;
 import net.unicon.lti.model.oauth2.LTIToken;
 import net.unicon.lti.repository.LtiContextRepository;
 import net.unicon.lti.repository.PlatformDeploymentRepository;
 import net.unicon.lti.service.app.APIJWTService;
 import net.unicon.lti.service.lti.AdvantageAGSService;
+import net.unicon.lti.service.lti.ScoreOutboxService;
 import net.unicon.lti.utils.TextConstants;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -71,6 +71,9 @@ public class AgsController {
     @Autowired
     AdvantageAGSService advantageAGSServiceServiceImpl;
 
+    @Autowired
+    ScoreOutboxService scoreOutboxService;
+
     @RequestMapping(value = "/", method = RequestMethod.GET)
     public String agsGetLineItems(HttpServletRequest req, Principal principal, Model model) throws ConnectionException {
 
@@ -326,21 +329,19 @@ public class AgsController {
                     log.info(TextConstants.TOKEN + LTIToken.getAccess_token());
                     log.debug("RETRIEVING TOKEN FOR FETCHING ALL RESULTS:");
                     LTIToken resultsToken = advantageAGSServiceServiceImpl.getToken("results", platformDeployment.get());
-                    log.debug("RETRIEVING TOKEN FOR POSTING SCORE:");
-                    LTIToken scoresToken = advantageAGSServiceServiceImpl.getToken("scores", platformDeployment.get());
-                    log.debug("Scores Bearer Token: {}", scoresToken.getAccess_token());
 
 
                     // 2. Call the service
                     log.debug("CALLING GET SINGLE LINEITEM:");
                     LineItem lineItemsResult = advantageAGSServiceServiceImpl.getLineItem(LTIToken, resultsToken, context, id);
-                    log.debug("CALLING POST SCORE:");
-                    Results scoreResults = advantageAGSServiceServiceImpl.postScore(scoresToken, resultsToken, context, lineItemsResult.getId(), score);
-                    log.debug("CALLING GET SINGLE LINEITEM:");
-                    LineItem lineItemsResultNew = advantageAGSServiceServiceImpl.getLineItem(LTIToken, resultsToken, context, id);
+                    //The score goes to the outbox, the workers send it to the platform (and retry if it fails)
+                    // so it is not in the results yet. The page says it is queued instead.
+                    log.debug("QUEUING SCORE:");
+                    scoreOutboxService.enqueue(platformDeployment.get(), lineItemsResult.getId(), score);
 
                     // 3. update the model
-                    model.addAttribute(TextConstants.LINEITEMS, Collections.singletonList(lineItemsResultNew));
+                    model.addAttribute(TextConstants.LINEITEMS, Collections.singletonList(lineItemsResult));
+                    model.addAttribute(TextConstants.SCORE_QUEUED, true);
                     model.addAttribute(TextConstants.ADVANTAGE_TOKEN, req.getParameter(TextConstants.ADVANTAGE_TOKEN));
 
                 }
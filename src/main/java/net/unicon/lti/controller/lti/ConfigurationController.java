@@ -16,6 +16,8 @@ import lombok.extern.slf4j.Slf4j;
 import net.unicon.lti.model.PlatformDeployment;
 import net.unicon.lti.repository.PlatformDeploymentRepository;
 import net.unicon.lti.service.lti.LTIJWTService;
+import net.unicon.lti.service.lti.PlatformDeploymentRegistry;
+import net.unicon.lti.service.lti.PlatformJwksService;
 import net.unicon.lti.utils.TextConstants;
 import org.apache.commons.lang3.StringUtils;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -59,6 +61,12 @@ public class ConfigurationController {
     @Autowired
     PlatformDeploymentRepository platformDeploymentRepository;
 
+    @Autowired
+    PlatformDeploymentRegistry platformDeploymentRegistry;
+
+    @Autowired
+    PlatformJwksService platformJwksService;
+
     @Autowired
     LTIJWTService ltijwtService;
 
@@ -98,6 +106,9 @@ public class ConfigurationController {
             return new ResponseEntity("Unable to create. This platformDeployment already exists.", HttpStatus.CONFLICT);
         }
         PlatformDeployment platformDeploymentSaved = platformDeploymentRepository.save(platformDeployment);
+        platformDeploymentRegistry.invalidate();
+        //The endpoint may be shared with another deployment, its keys could have been cached before they changed
+        platformJwksService.invalidate(platformDeploymentSaved.getJwksEndpoint());
 
         return new ResponseEntity<>(platformDeploymentSaved, HttpStatus.CREATED);
     }
@@ -115,6 +126,7 @@ public class ConfigurationController {
         }
 
         PlatformDeployment platformDeploymentToChange = platformDeploymentSearchResult.get();
+        String previousJwksEndpoint = platformDeploymentToChange.getJwksEndpoint();
         platformDeploymentToChange.setoAuth2TokenUrl(platformDeployment.getoAuth2TokenUrl());
         platformDeploymentToChange.setClientId(platformDeployment.getClientId());
         platformDeploymentToChange.setDeploymentId(platformDeployment.getDeploymentId());
@@ -123,6 +135,9 @@ public class ConfigurationController {
         platformDeploymentToChange.setJwksEndpoint(platformDeployment.getJwksEndpoint());
 
         platformDeploymentRepository.saveAndFlush(platformDeploymentToChange);
+        platformDeploymentRegistry.invalidate();
+        platformJwksService.invalidate(previousJwksEndpoint);
+        platformJwksService.invalidate(platformDeploymentToChange.getJwksEndpoint());
         return new ResponseEntity<>(platformDeploymentToChange, HttpStatus.OK);
     }
 
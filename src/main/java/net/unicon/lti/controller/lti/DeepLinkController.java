@@ -63,7 +63,7 @@ public class DeepLinkController {
 
     @PostMapping({"/toJwt"})
     public ResponseEntity<Object> deepLinksToJwt(@RequestBody DeepLinkRequest deeplinksRequested) throws ConnectionException, GeneralSecurityException, IOException {
-        NonceState nonceState = nonceStateService.getNonce(deeplinksRequested.getNonce());
+        NonceState nonceState = nonceStateService.getNonceByStateHash(deeplinksRequested.getState_hash());
         ResponseEntity<Object> responseEntity = checkAccess(deeplinksRequested, nonceState);
 
         if (responseEntity != null) {
@@ -85,7 +85,7 @@ public class DeepLinkController {
 
     @PostMapping({"/deleteNonce"})
     public ResponseEntity<Object> deleteNonce(@RequestBody DeepLinkRequest deeplinksRequested) throws ConnectionException, GeneralSecurityException, IOException {
-        NonceState nonceState = nonceStateService.getNonce(deeplinksRequested.getNonce());
+        NonceState nonceState = nonceStateService.getNonceByStateHash(deeplinksRequested.getState_hash());
         ResponseEntity<Object> responseEntity = checkAccess(deeplinksRequested, nonceState);
         if (responseEntity != null) {
             return responseEntity;
@@ -109,7 +109,8 @@ public class DeepLinkController {
             return createErrorResponse("Nonce state not found", "Invalid nonce");
         }
 
-        if (!nonceState.getStateHash().equals(deeplinksRequested.getState_hash())){
+        // Found by the state, so it works with the stateless state too
+        if (!nonceState.getNonce().equals(deeplinksRequested.getNonce())){
             return createErrorResponse("State does not match", "Invalid State");
         }
 
@@ -13,67 +13,104 @@
 package net.unicon.lti.controller.lti;
 
 
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.hash.Hashing;
 import lombok.extern.slf4j.Slf4j;
-import net.unicon.lti.service.lti.LTIDataService;
-import net.unicon.lti.utils.TextConstants;
-import net.unicon.lti.utils.oauth.OAuthUtils;
+import net.unicon.lti.service.lti.KeyringService;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.context.annotation.Scope;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.CacheControl;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
 import org.springframework.stereotype.Controller;
-import org.springframework.ui.Model;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestMethod;
-import org.springframework.web.bind.annotation.ResponseBody;
 
-import jakarta.servlet.http.HttpServletRequest;
-import java.security.GeneralSecurityException;
 import java.security.interfaces.RSAPublicKey;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Base64;
-import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 /**
- * Serving the public key of the tool.
+ * Serving the public keys of the tool (active, next and retired).
+ * The platforms call this on every launch or token request they verify, so the JSON is built once per key set
+ * and served as bytes with an ETag: a platform sending If-None-Match gets a 304 without a body.
  */
 @Slf4j
 @Controller
-@Scope("session")
 @RequestMapping("/jwks")
 public class JWKController {
     @Autowired
-    LTIDataService ltiDataService;
+    KeyringService keyringService;
+
+    //Keep it shorter than the time the next key is published before it becomes the active one
+    @Value("${lti13.keyring.jwksMaxAgeSeconds:3600}")
+    private long maxAgeSeconds = 3600;
+
+    private volatile PublishedJwks publishedJwks;
 
     @RequestMapping(value = "/jwk", method = RequestMethod.GET, produces = "application/json;")
-    @ResponseBody
-    public Map<String, List<Map<String, Object>>> jwk(HttpServletRequest req, Model model) throws GeneralSecurityException {
-        Map<String, List<Map<String, Object>>> keys = new HashMap<>();
-        log.debug("Someone is calling the jwk endpoint!");
-        log.debug(req.getQueryString());
-        RSAPublicKey toolPublicKey = OAuthUtils.loadPublicKey(ltiDataService.getOwnPublicKey());
+    public ResponseEntity<byte[]> jwk() throws JsonProcessingException {
+        PublishedJwks jwks = getPublishedJwks();
+        //Spring answers 304 when the If-None-Match matches this ETag
+        return ResponseEntity.ok()
+                .contentType(MediaType.APPLICATION_JSON)
+                .eTag(jwks.etag)
+                .cacheControl(CacheControl.maxAge(maxAgeSeconds, TimeUnit.SECONDS).cachePublic())
+                .body(jwks.json);
+    }
 
-        // There is a .NET bug that affects D2L Brightspace making it such that it is not capable of reading
-        // the prefix byte (the 00 byte indicating it is a positive integer) that gets added to the modulus (n), so
-        // this byte must be removed for D2L to be able to use the JWKS endpoint.
-        // Sources:
-        // https://community.brightspace.com/s/article/LTI-Advantage-Developer-FAQ-s
-        // https://datatracker.ietf.org/doc/html/rfc7518#section-6.3.1.1
-        byte[] modulus = toolPublicKey.getModulus().toByteArray();
-        log.debug("Modulus Length: " + modulus.length);
-        byte[] modulusWithoutPrefix = Arrays.copyOfRange(modulus, 1, modulus.length);
+    private PublishedJwks getPublishedJwks() throws JsonProcessingException {
+        Map<String, RSAPublicKey> keys = keyringService.getPublishedKeys();
+        PublishedJwks jwks = publishedJwks;
+        //The keyring gives us a new map when the keys change
+        if (jwks == null || jwks.keys != keys) {
+            jwks = new PublishedJwks(keys, buildJwks(keys));
+            publishedJwks = jwks;
+            log.debug("JWKS built for the keys {}", keys.keySet());
+        }
+        return jwks;
+    }
 
-        Map<String, Object> values = new HashMap<>();
-        values.put("kty", toolPublicKey.getAlgorithm()); // getAlgorithm() returns kty not algorithm
-        values.put("kid", TextConstants.DEFAULT_KID);
-        values.put("n", Base64.getUrlEncoder().encodeToString(modulusWithoutPrefix));
-        values.put("e", Base64.getUrlEncoder().encodeToString(toolPublicKey.getPublicExponent().toByteArray()));
-        values.put("alg", "RS256");
-        values.put("use", "sig");
+    private static byte[] buildJwks(Map<String, RSAPublicKey> keys) throws JsonProcessingException {
         List<Map<String, Object>> valuesList = new ArrayList<>();
-        valuesList.add(values);
-        keys.put("keys", valuesList);
-        return keys;
+        for (Map.Entry<String, RSAPublicKey> key : keys.entrySet()) {
+            RSAPublicKey toolPublicKey = key.getValue();
+            // There is a .NET bug that affects D2L Brightspace making it such that it is not capable of reading
+            // the prefix byte (the 00 byte indicating it is a positive integer) that gets added to the modulus (n), so
+            // this byte must be removed for D2L to be able to use the JWKS endpoint.
+            // Sources:
+            // https://community.brightspace.com/s/article/LTI-Advantage-Developer-FAQ-s
+            // https://datatracker.ietf.org/doc/html/rfc7518#section-6.3.1.1
+            byte[] modulus = toolPublicKey.getModulus().toByteArray();
+            byte[] modulusWithoutPrefix = modulus[0] == 0 ? Arrays.copyOfRange(modulus, 1, modulus.length) : modulus;
+
+            Map<String, Object> values = new LinkedHashMap<>();
+            values.put("kty", toolPublicKey.getAlgorithm()); // getAlgorithm() returns kty not algorithm
+            values.put("kid", key.getKey());
+            values.put("n", Base64.getUrlEncoder().encodeToString(modulusWithoutPrefix));
+            values.put("e", Base64.getUrlEncoder().encodeToString(toolPublicKey.getPublicExponent().toByteArray()));
+            values.put("alg", "RS256");
+            values.put("use", "sig");
+            valuesList.add(values);
+        }
+        return new ObjectMapper().writeValueAsBytes(Map.of("keys", valuesList));
+    }
+
+    private static class PublishedJwks {
+        private final Map<String, RSAPublicKey> keys;
+        private final byte[] json;
+        private final String etag;
+
+        PublishedJwks(Map<String, RSAPublicKey> keys, byte[] json) {
+            this.keys = keys;
+            this.json = json;
+            this.etag = "\"" + Hashing.sha256().hashBytes(json) + "\"";
+        }
     }
 }
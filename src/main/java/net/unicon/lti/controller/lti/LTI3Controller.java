@@ -29,6 +29,7 @@ import net.unicon.lti.service.app.APIJWTService;
 import net.unicon.lti.service.lti.DeepLinkService;
 import net.unicon.lti.service.lti.LTIDataService;
 import net.unicon.lti.service.lti.LTIJWTService;
+import net.unicon.lti.service.lti.NonceStateService;
 import net.unicon.lti.utils.LtiStrings;
 import net.unicon.lti.utils.TextConstants;
 import net.unicon.lti.utils.lti.LTI3Request;
@@ -69,6 +70,9 @@ public class LTI3Controller {
     @Autowired
     LTIDataService ltiDataService;
 
+    @Autowired
+    NonceStateService nonceStateService;
+
     @Autowired
     DeepLinkService deepLinkService;
 
@@ -85,7 +89,7 @@ public class LTI3Controller {
         String id_token = req.getParameter("id_token");
 
 
-        NonceState nonceState = ltiDataService.getRepos().nonceStateRepository.findByStateHash(state);
+        NonceState nonceState = nonceStateService.getNonceByStateHash(state);
         if (nonceState != null) {
             Jws<Claims> stateClaims = ltijwtService.validateState(nonceState.getState());
             String nonce = stateClaims.getBody().getId();
@@ -117,7 +121,7 @@ public class LTI3Controller {
                 ltiDeploymentId = idtokenClains.getPayload().get("https://purl.imsglobal.org/spec/lti/claim/deployment_id").toString();
             }
 
-            List<PlatformDeployment> platformDeployment = ltiDataService.getRepos().platformDeploymentRepository.findByIssAndClientIdAndDeploymentId(iss, clientId, ltiDeploymentId);
+            List<PlatformDeployment> platformDeployment = ltiDataService.getPlatformDeployments().findByIssAndClientIdAndDeploymentId(iss, clientId, ltiDeploymentId);
             if (!platformDeployment.isEmpty()) {
                 model.addAttribute("oidc_authorization_uri", platformDeployment.get(0).getOidcEndpoint());
             } else {
@@ -174,7 +178,7 @@ public class LTI3Controller {
         }
 
         //We will use this link to find the content to display.
-        NonceState nonceState = ltiDataService.getRepos().nonceStateRepository.findByStateHash(state);
+        NonceState nonceState = nonceStateService.getNonceByStateHash(state);
 
         try {
             Jws<Claims> claims = ltijwtService.validateState(nonceState.getState());
@@ -193,9 +197,18 @@ public class LTI3Controller {
                 model.addAttribute(TextConstants.ERROR, "Invalid Deployment Id");
                 return TextConstants.LTI3ERROR;
             }
+            //The launch is accepted, the same id_token and state can't be used again. Deep linking still needs the state
+            // until the links are sent back, DeepLinkController.deleteNonce consumes it then.
+            boolean demoMode = ltiDataService.getDemoMode();
+            boolean deepLinkPage = demoMode && LtiStrings.LTI_MESSAGE_TYPE_DEEP_LINKING.equals(lti3Request.getLtiMessageType());
+            if (!deepLinkPage && !nonceStateService.consumeNonce(expected_nonce)) {
+                log.warn("The launch with the nonce {} was already used", expected_nonce);
+                model.addAttribute(TextConstants.ERROR, "This launch was already used");
+                return TextConstants.LTI3ERROR;
+            }
             //We add the request to the model so it can be displayed. But, in a real application, we would start
             // processing it here to generate the right answer.
-            if (ltiDataService.getDemoMode()) {
+            if (demoMode) {
                 model.addAttribute("lti3Request", lti3Request);
                 String link = lti3Request.getLtiTargetLinkUrl().substring(lti3Request.getLtiTargetLinkUrl().lastIndexOf("?link=") + 6);
                 if (StringUtils.isNotBlank(link)) {
@@ -224,7 +237,6 @@ public class LTI3Controller {
                     model.addAttribute("id_token", id_token);
                     return "lti3DeepLink";
                 }
-                ltiDataService.getRepos().nonceStateRepository.deleteById(expected_nonce);
                 return "lti3Result";
             } else {
                 String oneTimeToken = apiJWTService.buildJwt(
@@ -18,7 +18,7 @@ import io.jsonwebtoken.Jws;
 import net.unicon.lti.exceptions.ConnectionException;
 import net.unicon.lti.model.LtiContextEntity;
 import net.unicon.lti.model.PlatformDeployment;
-import net.unicon.lti.model.membership.CourseUsers;
+import net.unicon.lti.model.membership.CourseUser;
 import net.unicon.lti.model.oauth2.LTIToken;
 import net.unicon.lti.repository.LtiContextRepository;
 import net.unicon.lti.repository.PlatformDeploymentRepository;
@@ -32,10 +32,14 @@ import org.springframework.context.annotation.Scope;
 import org.springframework.stereotype.Controller;
 import org.springframework.ui.Model;
 import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.context.request.RequestAttributes;
+import org.springframework.web.context.request.RequestContextHolder;
 
 import jakarta.servlet.http.HttpServletRequest;
 import java.security.Principal;
+import java.util.Iterator;
 import java.util.Optional;
+import java.util.stream.Stream;
 
 /**
  * This LTI 3 redirect controller will retrieve the LTI3 requests and redirect them to the right page.
@@ -84,11 +88,15 @@ public class MembershipController {
                     // 1. Get the token
                     LTIToken LTIToken = advantageMembershipService.getToken(platformDeployment.get());
 
-                    // 2. Call the service
-                    CourseUsers courseUsers = advantageMembershipService.callMembershipService(LTIToken, context);
+                    // 2. Call the service. The users are read page by page while the page is rendered,
+                    // so a big roster is never fully in memory. The stream is closed once the request is done.
+                    Stream<CourseUser> courseUsers = advantageMembershipService.streamMembership(LTIToken, context);
+                    RequestContextHolder.currentRequestAttributes().registerDestructionCallback("membership", courseUsers::close, RequestAttributes.SCOPE_REQUEST);
+                    Iterator<CourseUser> users = courseUsers.iterator();
 
-                    // 3. update the model
-                    model.addAttribute("results", courseUsers.getCourseUserList());
+                    // 3. update the model. hasNext reads the first page here, so its errors are handled below
+                    model.addAttribute("noUsers", !users.hasNext());
+                    model.addAttribute("results", users);
                 }
             } catch (Exception ex){
                 model.addAttribute(TextConstants.NO_ADVANTAGE_TOKEN, true);
@@ -16,8 +16,10 @@ import com.google.common.hash.Hashing;
 import net.unicon.lti.model.PlatformDeployment;
 import net.unicon.lti.model.lti.dto.LoginInitiationDTO;
 import net.unicon.lti.model.lti.dto.NonceState;
-import net.unicon.lti.repository.PlatformDeploymentRepository;
+import net.unicon.lti.service.lti.InternalTokenService;
 import net.unicon.lti.service.lti.LTIDataService;
+import net.unicon.lti.service.lti.NonceStateService;
+import net.unicon.lti.service.lti.PlatformDeploymentRegistry;
 import net.unicon.lti.utils.TextConstants;
 import net.unicon.lti.utils.lti.LtiOidcUtils;
 import org.apache.commons.lang3.StringUtils;
@@ -63,11 +65,17 @@ public class OIDCController {
     static final Logger log = LoggerFactory.getLogger(OIDCController.class);
 
     @Autowired
-    PlatformDeploymentRepository platformDeploymentRepository;
+    PlatformDeploymentRegistry platformDeploymentRegistry;
 
     @Autowired
     LTIDataService ltiDataService;
 
+    @Autowired
+    InternalTokenService internalTokenService;
+
+    @Autowired
+    NonceStateService nonceStateService;
+
     @Value("${force.cookies:false}")
     String forceCookies;
 
@@ -96,13 +104,13 @@ public class OIDCController {
         // We search for the platformDeployment.
         // We will try all the options here (from more detailed to less), and we will deal with the error if there are more than one result.
         if (clientIdValue != null && deploymentIdValue != null) {
-            platformDeploymentList = platformDeploymentRepository.findByIssAndClientIdAndDeploymentId(loginInitiationDTO.getIss(), clientIdValue, deploymentIdValue);
+            platformDeploymentList = platformDeploymentRegistry.findByIssAndClientIdAndDeploymentId(loginInitiationDTO.getIss(), clientIdValue, deploymentIdValue);
         } else if (clientIdValue != null) {
-            platformDeploymentList = platformDeploymentRepository.findByIssAndClientId(loginInitiationDTO.getIss(), clientIdValue);
+            platformDeploymentList = platformDeploymentRegistry.findByIssAndClientId(loginInitiationDTO.getIss(), clientIdValue);
         } else if (deploymentIdValue != null) {
-            platformDeploymentList = platformDeploymentRepository.findByIssAndDeploymentId(loginInitiationDTO.getIss(), deploymentIdValue);
+            platformDeploymentList = platformDeploymentRegistry.findByIssAndDeploymentId(loginInitiationDTO.getIss(), deploymentIdValue);
         } else {
-            platformDeploymentList = platformDeploymentRepository.findByIss(loginInitiationDTO.getIss());
+            platformDeploymentList = platformDeploymentRegistry.findByIss(loginInitiationDTO.getIss());
         }
         // We deal with some possible errors
         if (platformDeploymentList.isEmpty()) {  //If we don't have configuration
@@ -202,16 +210,22 @@ public class OIDCController {
         authRequestMap.put("scope", OIDC_OPEN_ID);  //Always this value, as specified in the standard.
         // The state is something that we can create and add anything we want on it.
         // On this case, we have decided to create a JWT token with some information that we will use as additional security. But it is not mandatory.
-        String state = LtiOidcUtils.generateState(ltiDataService, authRequestMap, loginInitiationDTO, clientIdValue, deploymentIdValue, nonce);
-        String state_hash = Hashing.sha256()
-                .hashString(state, StandardCharsets.UTF_8)
-                .toString();
+        String state_hash;
+        if (nonceStateService.isStateless()) {
+            // Nothing is stored here, the state is an encrypted token with all we need, and it comes back with the launch.
+            state_hash = nonceStateService.createStatelessState(loginInitiationDTO, clientIdValue, deploymentIdValue, nonce);
+        } else {
+            String state = LtiOidcUtils.generateState(internalTokenService, authRequestMap, loginInitiationDTO, clientIdValue, deploymentIdValue, nonce);
+            state_hash = Hashing.sha256()
+                    .hashString(state, StandardCharsets.UTF_8)
+                    .toString();
+            // We store the state and nonce in the database, so we can check later if they are valid states and nonces.
+            NonceState nonceState = new NonceState(nonce, state_hash, state, loginInitiationDTO.getLtiStorageTarget());
+            nonceStateService.saveNonce(nonceState);
+        }
         authRequestMap.put("state", state_hash); //The state (hash) we use later to retrieve some useful information about the OIDC request.
         authRequestMap.put("oidcEndpoint", oidcEndpoint);  //We need this in the Thymeleaf template in case we decide to use the POST method. It is the endpoint where the LMS receives the OIDC requests
         authRequestMap.put("oidcEndpointComplete", generateCompleteUrl(authRequestMap));  //This generates the URL to use in case we decide to use the GET method
-        // We store the state and nonce in the database, so we can check later if they are valid states and nonces.
-        NonceState nonceState = new NonceState(nonce, state_hash, state, loginInitiationDTO.getLtiStorageTarget());
-        ltiDataService.getRepos().nonceStateRepository.save(nonceState);
 
         return authRequestMap;
     }
@@ -34,8 +34,7 @@ import org.springframework.http.HttpEntity;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpMethod;
 import org.springframework.http.ResponseEntity;
-import org.springframework.http.client.BufferingClientHttpRequestFactory;
-import org.springframework.http.client.SimpleClientHttpRequestFactory;
+import org.springframework.http.client.ClientHttpRequestFactory;
 import org.springframework.stereotype.Controller;
 import org.springframework.ui.Model;
 import org.springframework.web.bind.annotation.RequestMapping;
@@ -76,6 +75,9 @@ public class RegistrationController {
     @Autowired
     RegistrationService registrationService;
 
+    @Autowired
+    ClientHttpRequestFactory ltiClientHttpRequestFactory;
+
     private RestTemplate restTemplate;
 
     @Value("${application.url}")
@@ -116,7 +118,7 @@ public class RegistrationController {
 
         try {
             // We are going to create the call the openidconfiguration endpoint,
-            restTemplate = restTemplate == null ? new RestTemplate(new BufferingClientHttpRequestFactory(new SimpleClientHttpRequestFactory())) : restTemplate;
+            restTemplate = restTemplate == null ? new RestTemplate(ltiClientHttpRequestFactory) : restTemplate;
 
             //The URL to get the course contents is stored in the context (in our database) because it came
             // from the platform when we created the link to the context, and we saved it then.
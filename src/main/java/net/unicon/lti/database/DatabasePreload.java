@@ -17,6 +17,7 @@ import net.unicon.lti.model.LtiUserEntity;
 import net.unicon.lti.model.PlatformDeployment;
 import net.unicon.lti.repository.LtiUserRepository;
 import net.unicon.lti.repository.PlatformDeploymentRepository;
+import net.unicon.lti.service.lti.PlatformDeploymentRegistry;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -48,6 +49,9 @@ public class DatabasePreload {
     @SuppressWarnings({"SpringJavaAutowiredMembersInspection", "SpringJavaAutowiringInspection"})
     PlatformDeploymentRepository platformDeploymentRepository;
 
+    @Autowired
+    PlatformDeploymentRegistry platformDeploymentRegistry;
+
     @Autowired
     PlatformDeploymentResourceService platformDeploymentResources;
 
@@ -71,6 +75,7 @@ public class DatabasePreload {
             log.info("Storing: " + deploymentPlatform.getKeyId() + " : " + deploymentPlatform.getIss());
             platformDeploymentRepository.save(deploymentPlatform);
         }
+        platformDeploymentRegistry.invalidate();
 
         Set<LtiUserEntity> users = ltiUserEntityResourceService.getResources(LtiUserEntity.class);
         for (LtiUserEntity user : users) {
@@ -0,0 +1,175 @@
+/**
+ * Copyright 2021 Unicon (R)
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.unicon.lti.database;
+
+import liquibase.change.custom.CustomTaskChange;
+import liquibase.database.Database;
+import liquibase.database.jvm.JdbcConnection;
+import liquibase.exception.CustomChangeException;
+import liquibase.exception.DatabaseException;
+import liquibase.exception.SetupException;
+import liquibase.exception.ValidationErrors;
+import liquibase.resource.ResourceAccessor;
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * Liquibase change that leaves a single row for each value of some columns, so a unique constraint can be added on them.
+ * The oldest row (lowest id) of each group is kept, the rows that point to the others (references, as table.column)
+ * are moved to it and then the others are deleted. Rows with a null in those columns are left alone, the unique
+ * constraint doesn't apply to them either.
+ * It commits after each batch of groups, so if it stops, running it again continues with the groups left.
+ */
+public class DuplicateRowsMergeChange implements CustomTaskChange {
+
+    static final Logger log = LoggerFactory.getLogger(DuplicateRowsMergeChange.class);
+
+    private String tableName;
+    private String idColumn;
+    private String uniqueColumns;
+    private String references;
+    private int batchSize = 100;
+
+    @Override
+    public void execute(Database database) throws CustomChangeException {
+        JdbcConnection connection = (JdbcConnection) database.getConnection();
+        List<String> columns = split(uniqueColumns);
+        String notNull = columns.stream().map(column -> column + " IS NOT NULL").collect(Collectors.joining(" AND "));
+        String groups = "SELECT MIN(" + idColumn + "), " + String.join(", ", columns) + " FROM " + tableName
+                + " WHERE " + notNull + " GROUP BY " + String.join(", ", columns) + " HAVING COUNT(*) > 1";
+        String duplicates = "SELECT " + idColumn + " FROM " + tableName + " WHERE "
+                + columns.stream().map(column -> column + " = ?").collect(Collectors.joining(" AND "))
+                + " AND " + idColumn + " <> ?";
+        String delete = "DELETE FROM " + tableName + " WHERE " + idColumn + " = ?";
+        List<String> moves = new ArrayList<>();
+        for (String reference : split(references)) {
+            String referenceColumn = StringUtils.substringAfter(reference, ".");
+            moves.add("UPDATE " + StringUtils.substringBefore(reference, ".") + " SET " + referenceColumn + " = ? WHERE " + referenceColumn + " = ?");
+        }
+        long merged = 0;
+        try {
+            //Duplicates are rare, the groups fit in memory
+            List<Object[]> duplicateGroups = new ArrayList<>();
+            try (PreparedStatement groupsStatement = connection.prepareStatement(groups);
+                 ResultSet resultSet = groupsStatement.executeQuery()) {
+                while (resultSet.next()) {
+                    Object[] group = new Object[columns.size() + 1];
+                    for (int i = 0; i < group.length; i++) {
+                        group[i] = resultSet.getObject(i + 1);
+                    }
+                    duplicateGroups.add(group);
+                }
+            }
+            int pending = 0;
+            for (Object[] group : duplicateGroups) {
+                long survivor = ((Number) group[0]).longValue();
+                for (long duplicate : duplicatesOf(connection, duplicates, group)) {
+                    for (String move : moves) {
+                        try (PreparedStatement moveStatement = connection.prepareStatement(move)) {
+                            moveStatement.setLong(1, survivor);
+                            moveStatement.setLong(2, duplicate);
+                            moveStatement.executeUpdate();
+                        }
+                    }
+                    try (PreparedStatement deleteStatement = connection.prepareStatement(delete)) {
+                        deleteStatement.setLong(1, duplicate);
+                        deleteStatement.executeUpdate();
+                    }
+                    merged++;
+                }
+                if (++pending >= batchSize) {
+                    connection.commit();
+                    pending = 0;
+                }
+            }
+            connection.commit();
+        } catch (SQLException | DatabaseException e) {
+            throw new CustomChangeException("Error merging the duplicated rows of " + tableName, e);
+        }
+        log.info("Merged {} duplicated rows of {} on ({})", merged, tableName, uniqueColumns);
+    }
+
+    private List<Long> duplicatesOf(JdbcConnection connection, String duplicates, Object[] group) throws DatabaseException, SQLException {
+        List<Long> ids = new ArrayList<>();
+        try (PreparedStatement statement = connection.prepareStatement(duplicates)) {
+            for (int i = 1; i < group.length; i++) {
+                statement.setObject(i, group[i]);
+            }
+            statement.setObject(group.length, group[0]);
+            try (ResultSet resultSet = statement.executeQuery()) {
+                while (resultSet.next()) {
+                    ids.add(resultSet.getLong(1));
+                }
+            }
+        }
+        return ids;
+    }
+
+    private static List<String> split(String columns) {
+        return Arrays.stream(StringUtils.split(StringUtils.defaultString(columns), ','))
+                .map(String::trim)
+                .filter(StringUtils::isNotEmpty)
+                .collect(Collectors.toList());
+    }
+
+    @Override
+    public String getConfirmationMessage() {
+        return "Duplicated rows of " + tableName + " merged";
+    }
+
+    @Override
+    public void setUp() throws SetupException {
+    }
+
+    @Override
+    public void setFileOpener(ResourceAccessor resourceAccessor) {
+    }
+
+    @Override
+    public ValidationErrors validate(Database database) {
+        ValidationErrors errors = new ValidationErrors();
+        errors.checkRequiredField("tableName", tableName);
+        errors.checkRequiredField("idColumn", idColumn);
+        errors.checkRequiredField("uniqueColumns", uniqueColumns);
+        return errors;
+    }
+
+    public void setTableName(String tableName) {
+        this.tableName = tableName;
+    }
+
+    public void setIdColumn(String idColumn) {
+        this.idColumn = idColumn;
+    }
+
+    public void setUniqueColumns(String uniqueColumns) {
+        this.uniqueColumns = uniqueColumns;
+    }
+
+    public void setReferences(String references) {
+        this.references = references;
+    }
+
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+}
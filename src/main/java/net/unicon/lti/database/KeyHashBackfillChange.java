@@ -0,0 +1,124 @@
+/**
+ * Copyright 2021 Unicon (R)
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.unicon.lti.database;
+
+import liquibase.change.custom.CustomTaskChange;
+import liquibase.database.Database;
+import liquibase.database.jvm.JdbcConnection;
+import liquibase.exception.CustomChangeException;
+import liquibase.exception.DatabaseException;
+import liquibase.exception.SetupException;
+import liquibase.exception.ValidationErrors;
+import liquibase.resource.ResourceAccessor;
+import net.unicon.lti.utils.KeyDigests;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * Liquibase change that fills a hash column with the SHA-256 of a (long) key column.
+ * It goes through the table in batches by primary key and commits after each one, so it doesn't hold
+ * a huge transaction on big tables (lti_user) and, if it stops, running it again continues where it was.
+ */
+public class KeyHashBackfillChange implements CustomTaskChange {
+
+    static final Logger log = LoggerFactory.getLogger(KeyHashBackfillChange.class);
+
+    private String tableName;
+    private String idColumn;
+    private String keyColumn;
+    private String hashColumn;
+    private int batchSize = 1000;
+
+    @Override
+    public void execute(Database database) throws CustomChangeException {
+        JdbcConnection connection = (JdbcConnection) database.getConnection();
+        String select = "SELECT " + idColumn + ", " + keyColumn + " FROM " + tableName
+                + " WHERE " + hashColumn + " IS NULL AND " + idColumn + " > ? ORDER BY " + idColumn;
+        String update = "UPDATE " + tableName + " SET " + hashColumn + " = ? WHERE " + idColumn + " = ?";
+        long lastId = -1;
+        long updated = 0;
+        try (PreparedStatement selectStatement = connection.prepareStatement(select);
+             PreparedStatement updateStatement = connection.prepareStatement(update)) {
+            selectStatement.setMaxRows(batchSize);
+            while (true) {
+                int rows = 0;
+                selectStatement.setLong(1, lastId);
+                try (ResultSet resultSet = selectStatement.executeQuery()) {
+                    while (resultSet.next()) {
+                        lastId = resultSet.getLong(1);
+                        updateStatement.setString(1, KeyDigests.sha256(resultSet.getString(2)));
+                        updateStatement.setLong(2, lastId);
+                        updateStatement.addBatch();
+                        rows++;
+                    }
+                }
+                if (rows == 0) {
+                    break;
+                }
+                updateStatement.executeBatch();
+                connection.commit();
+                updated += rows;
+            }
+        } catch (SQLException | DatabaseException e) {
+            throw new CustomChangeException("Error filling " + tableName + "." + hashColumn, e);
+        }
+        log.info("Filled {}.{} in {} rows", tableName, hashColumn, updated);
+    }
+
+    @Override
+    public String getConfirmationMessage() {
+        return tableName + "." + hashColumn + " filled";
+    }
+
+    @Override
+    public void setUp() throws SetupException {
+    }
+
+    @Override
+    public void setFileOpener(ResourceAccessor resourceAccessor) {
+    }
+
+    @Override
+    public ValidationErrors validate(Database database) {
+        ValidationErrors errors = new ValidationErrors();
+        errors.checkRequiredField("tableName", tableName);
+        errors.checkRequiredField("idColumn", idColumn);
+        errors.checkRequiredField("keyColumn", keyColumn);
+        errors.checkRequiredField("hashColumn", hashColumn);
+        return errors;
+    }
+
+    public void setTableName(String tableName) {
+        this.tableName = tableName;
+    }
+
+    public void setIdColumn(String idColumn) {
+        this.idColumn = idColumn;
+    }
+
+    public void setKeyColumn(String keyColumn) {
+        this.keyColumn = keyColumn;
+    }
+
+    public void setHashColumn(String hashColumn) {
+        this.hashColumn = hashColumn;
+    }
+
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+}
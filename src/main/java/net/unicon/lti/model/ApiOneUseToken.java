@@ -12,6 +12,7 @@
  */
 package net.unicon.lti.model;
 
+import net.unicon.lti.utils.KeyDigests;
 import org.apache.commons.lang3.StringUtils;
 
 import jakarta.persistence.Column;
@@ -20,10 +21,12 @@ import jakarta.persistence.GeneratedValue;
 import jakarta.persistence.GenerationType;
 import jakarta.persistence.Id;
 import jakarta.persistence.Table;
+import jakarta.persistence.UniqueConstraint;
 import java.util.Objects;
 
 @Entity
-@Table(name = "api_one_use_token")
+//Named as the Liquibase constraint, so ddl-auto=update doesn't add a second unique index on the column
+@Table(name = "api_one_use_token", uniqueConstraints = @UniqueConstraint(name = "UC_API_ONE_USE_TOKEN_HASH", columnNames = "token_hash"))
 public class ApiOneUseToken extends BaseEntity {
 
     @Id
@@ -31,8 +34,9 @@ public class ApiOneUseToken extends BaseEntity {
     @Column(name = "token_id", nullable = false)
     private long tokenId;
 
-    @Column(name = "token", nullable = false, length = 4096)
-    private String token;
+    //We only keep the SHA-256 of the token (hex), it is enough to find it and it is useless if the table leaks
+    @Column(name = "token_hash", nullable = false, length = 64)
+    private String tokenHash;
 
     protected ApiOneUseToken() {
     }
@@ -42,7 +46,11 @@ public class ApiOneUseToken extends BaseEntity {
      */
     public ApiOneUseToken(String token) {
         if (!StringUtils.isNotBlank(token)) throw new AssertionError();
-        this.token = token;
+        this.tokenHash = hash(token);
+    }
+
+    public static String hash(String token) {
+        return KeyDigests.sha256(token);
     }
 
     public long getTokenId() {
@@ -53,12 +61,12 @@ public class ApiOneUseToken extends BaseEntity {
         this.tokenId = tokenId;
     }
 
-    public String getToken() {
-        return token;
+    public String getTokenHash() {
+        return tokenHash;
     }
 
-    public void setToken(String token) {
-        this.token = token;
+    public void setTokenHash(String tokenHash) {
+        this.tokenHash = tokenHash;
     }
 
     @Override
@@ -66,12 +74,12 @@ public class ApiOneUseToken extends BaseEntity {
         if (this == o) return true;
         if (o == null || getClass() != o.getClass()) return false;
         ApiOneUseToken that = (ApiOneUseToken) o;
-        return Objects.equals(token, that.token);
+        return Objects.equals(tokenHash, that.tokenHash);
     }
 
     @Override
     public int hashCode() {
-        return 31 * (token != null ? token.hashCode() : 0);
+        return 31 * (tokenHash != null ? tokenHash.hashCode() : 0);
     }
 
 }
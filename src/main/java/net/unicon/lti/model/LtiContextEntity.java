@@ -12,9 +12,13 @@
  */
 package net.unicon.lti.model;
 
+import net.unicon.lti.utils.KeyDigests;
 import org.apache.commons.lang3.StringUtils;
+import org.hibernate.annotations.Cache;
+import org.hibernate.annotations.CacheConcurrencyStrategy;
 
 import jakarta.persistence.Basic;
+import jakarta.persistence.Cacheable;
 import jakarta.persistence.Column;
 import jakarta.persistence.Entity;
 import jakarta.persistence.FetchType;
@@ -29,6 +33,8 @@ import jakarta.persistence.Table;
 import java.util.Objects;
 import java.util.Set;
 
+@Cacheable
+@Cache(usage = CacheConcurrencyStrategy.READ_WRITE)
 @Entity
 @Table(name = "lti_context")
 public class LtiContextEntity extends BaseEntity {
@@ -39,6 +45,10 @@ public class LtiContextEntity extends BaseEntity {
     @Basic
     @Column(name = "context_key", nullable = false, length = 4096)
     private String contextKey;
+    //SHA-256 of the context_key, that is the one indexed (with the key_id) and used to find the context
+    @Basic
+    @Column(name = "context_key_hash", nullable = false, length = 64)
+    private String contextKeyHash;
     @Basic
     @Column(name = "title", length = 4096)
     private String title;
@@ -48,6 +58,10 @@ public class LtiContextEntity extends BaseEntity {
     @Basic
     @Column(name = "lineitems", length = 4096)
     private String lineitems;
+    //SHA-256 of the launch claims stored in this context, if a launch sends the same ones there is nothing to update
+    @Basic
+    @Column(name = "claims_digest", length = 64)
+    private String claimsDigest;
     @Lob
     @Column(name = "json")
     private String json;
@@ -71,6 +85,7 @@ public class LtiContextEntity extends BaseEntity {
         if (!StringUtils.isNotBlank(contextKey)) throw new AssertionError();
         if (platformDeployment == null) throw new AssertionError();
         this.contextKey = contextKey;
+        this.contextKeyHash = KeyDigests.sha256(contextKey);
         this.platformDeployment = platformDeployment;
         this.title = title;
         this.json = json;
@@ -80,6 +95,7 @@ public class LtiContextEntity extends BaseEntity {
         if (!StringUtils.isNotBlank(contextKey)) throw new AssertionError();
         if (platformDeployment == null) throw new AssertionError();
         this.contextKey = contextKey;
+        this.contextKeyHash = KeyDigests.sha256(contextKey);
         this.platformDeployment = platformDeployment;
         this.title = title;
         this.context_memberships_url = context_memberships_url;
@@ -101,6 +117,19 @@ public class LtiContextEntity extends BaseEntity {
 
     public void setContextKey(String contextKey) {
         this.contextKey = contextKey;
+        this.contextKeyHash = KeyDigests.sha256(contextKey);
+    }
+
+    public String getContextKeyHash() {
+        return contextKeyHash;
+    }
+
+    public String getClaimsDigest() {
+        return claimsDigest;
+    }
+
+    public void setClaimsDigest(String claimsDigest) {
+        this.claimsDigest = claimsDigest;
     }
 
     public String getTitle() {
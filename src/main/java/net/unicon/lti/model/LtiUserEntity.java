@@ -12,6 +12,7 @@
  */
 package net.unicon.lti.model;
 
+import net.unicon.lti.utils.KeyDigests;
 import org.apache.commons.lang3.StringUtils;
 
 import jakarta.persistence.Basic;
@@ -41,6 +42,10 @@ public class LtiUserEntity extends BaseEntity {
     @Basic
     @Column(name = "user_key", nullable = false, length = 4096)
     private String userKey;
+    //SHA-256 of the user_key, that is the one indexed (with the key_id) and used to find the user
+    @Basic
+    @Column(name = "user_key_hash", nullable = false, length = 64)
+    private String userKeyHash;
     @Basic
     @Column(name = "lms_user_id")
     private String lmsUserId;
@@ -65,6 +70,10 @@ public class LtiUserEntity extends BaseEntity {
     @Basic
     @Column(name = "login_at")
     private Timestamp loginAt;
+    //SHA-256 of the launch claims stored in this user, if a launch sends the same ones there is nothing to update
+    @Basic
+    @Column(name = "claims_digest", length = 64)
+    private String claimsDigest;
 
     @OneToMany(mappedBy = "user", fetch = FetchType.LAZY)
     private Set<LtiResultEntity> results;
@@ -89,6 +98,7 @@ public class LtiUserEntity extends BaseEntity {
             this.platformDeployment = platformDeployment1;
         }
         this.userKey = userKey;
+        this.userKeyHash = KeyDigests.sha256(userKey);
         this.loginAt = new Timestamp(loginAt.getTime());
     }
 
@@ -114,6 +124,19 @@ public class LtiUserEntity extends BaseEntity {
 
     public void setUserKey(String userKey) {
         this.userKey = userKey;
+        this.userKeyHash = KeyDigests.sha256(userKey);
+    }
+
+    public String getUserKeyHash() {
+        return userKeyHash;
+    }
+
+    public String getClaimsDigest() {
+        return claimsDigest;
+    }
+
+    public void setClaimsDigest(String claimsDigest) {
+        this.claimsDigest = claimsDigest;
     }
 
     public String getDisplayName() {
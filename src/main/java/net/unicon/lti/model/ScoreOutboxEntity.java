@@ -0,0 +1,172 @@
+/**
+ * Copyright 2021 Unicon (R)
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.unicon.lti.model;
+
+import org.apache.commons.lang3.StringUtils;
+
+import jakarta.persistence.Column;
+import jakarta.persistence.Entity;
+import jakarta.persistence.GeneratedValue;
+import jakarta.persistence.GenerationType;
+import jakarta.persistence.Id;
+import jakarta.persistence.Lob;
+import jakarta.persistence.Table;
+import java.sql.Timestamp;
+import java.util.Objects;
+
+/**
+ * A score waiting to be sent to the platform. Scores are written here and sent by the ScoreOutboxService workers,
+ * so a platform that is down or slow doesn't lose the grade nor block the request that produced it.
+ */
+@Entity
+@Table(name = "score_outbox")
+public class ScoreOutboxEntity extends BaseEntity {
+
+    public static final String PENDING = "PENDING";
+    public static final String IN_PROGRESS = "IN_PROGRESS";
+    public static final String FAILED = "FAILED";
+
+    @Id
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    @Column(name = "score_outbox_id", nullable = false)
+    private long scoreOutboxId;
+
+    @Column(name = "key_id", nullable = false)
+    private long keyId;
+
+    @Column(name = "line_item_id", nullable = false, length = 700)
+    private String lineItemId;
+
+    @Lob
+    @Column(name = "score", nullable = false)
+    private String score;
+
+    @Column(name = "status", nullable = false, length = 16)
+    private String status;
+
+    @Column(name = "attempts", nullable = false)
+    private int attempts;
+
+    @Column(name = "next_attempt_at", nullable = false)
+    private Timestamp nextAttemptAt;
+
+    @Column(name = "claimed_at")
+    private Timestamp claimedAt;
+
+    @Column(name = "last_error", length = 1024)
+    private String lastError;
+
+    protected ScoreOutboxEntity() {
+    }
+
+    /**
+     * @param keyId      the platform deployment the score goes to
+     * @param lineItemId the line item url
+     * @param score      the score, as the JSON we will send
+     */
+    public ScoreOutboxEntity(long keyId, String lineItemId, String score) {
+        if (StringUtils.isBlank(lineItemId)) throw new AssertionError();
+        if (StringUtils.isBlank(score)) throw new AssertionError();
+        this.keyId = keyId;
+        this.lineItemId = lineItemId;
+        this.score = score;
+        this.status = PENDING;
+        this.nextAttemptAt = new Timestamp(System.currentTimeMillis());
+    }
+
+    public long getScoreOutboxId() {
+        return scoreOutboxId;
+    }
+
+    public void setScoreOutboxId(long scoreOutboxId) {
+        this.scoreOutboxId = scoreOutboxId;
+    }
+
+    public long getKeyId() {
+        return keyId;
+    }
+
+    public void setKeyId(long keyId) {
+        this.keyId = keyId;
+    }
+
+    public String getLineItemId() {
+        return lineItemId;
+    }
+
+    public void setLineItemId(String lineItemId) {
+        this.lineItemId = lineItemId;
+    }
+
+    public String getScore() {
+        return score;
+    }
+
+    public void setScore(String score) {
+        this.score = score;
+    }
+
+    public String getStatus() {
+        return status;
+    }
+
+    public void setStatus(String status) {
+        this.status = status;
+    }
+
+    public int getAttempts() {
+        return attempts;
+    }
+
+    public void setAttempts(int attempts) {
+        this.attempts = attempts;
+    }
+
+    public Timestamp getNextAttemptAt() {
+        return nextAttemptAt;
+    }
+
+    public void setNextAttemptAt(Timestamp nextAttemptAt) {
+        this.nextAttemptAt = nextAttemptAt;
+    }
+
+    public Timestamp getClaimedAt() {
+        return claimedAt;
+    }
+
+    public void setClaimedAt(Timestamp claimedAt) {
+        this.claimedAt = claimedAt;
+    }
+
+    public String getLastError() {
+        return lastError;
+    }
+
+    public void setLastError(String lastError) {
+        this.lastError = lastError;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        ScoreOutboxEntity that = (ScoreOutboxEntity) o;
+        return scoreOutboxId == that.scoreOutboxId;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(scoreOutboxId);
+    }
+
+}
@@ -39,6 +39,10 @@ public class NonceState extends BaseEntity {
     @Column(name = "lti_storage_target")
     private String ltiStorageTarget;
 
+    //Time slot the nonce was created in, old slots are deleted in small chunks (see JpaNonceStateStore)
+    @Column(name = "expiry_bucket", nullable = false)
+    private long expiryBucket;
+
 
     protected NonceState() {
     }
@@ -88,6 +92,14 @@ public class NonceState extends BaseEntity {
         this.ltiStorageTarget = ltiStorageTarget;
     }
 
+    public long getExpiryBucket() {
+        return expiryBucket;
+    }
+
+    public void setExpiryBucket(long expiryBucket) {
+        this.expiryBucket = expiryBucket;
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
@@ -57,6 +57,12 @@ public class AllRepositories {
     @Autowired
     public NonceStateRepository nonceStateRepository;
 
+    @Autowired
+    public ScoreOutboxRepository scoreOutboxRepository;
+
+    @Autowired
+    public LtiUpsertRepository upserts;
+
     @PersistenceContext
     public EntityManager entityManager;
 
@@ -14,6 +14,9 @@ package net.unicon.lti.repository;
 
 import net.unicon.lti.model.ApiOneUseToken;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
 import org.springframework.transaction.annotation.Transactional;
 
 import java.util.Date;
@@ -21,7 +24,11 @@ import java.util.Date;
 @Transactional
 public interface ApiOneUseTokenRepository extends JpaRepository<ApiOneUseToken, String> {
 
-    ApiOneUseToken findByToken(String token);
+    //One statement: only one request can get a 1 back for the same token
+    @Modifying
+    @Query("delete from ApiOneUseToken t where t.tokenHash = :tokenHash")
+    int deleteByTokenHash(@Param("tokenHash") String tokenHash);
+
     //TODO, decide when we want to delete those.
     @Transactional
     void deleteByCreatedAtBefore(Date expiryDate);
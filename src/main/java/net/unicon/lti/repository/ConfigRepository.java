@@ -12,9 +12,13 @@
  */
 package net.unicon.lti.repository;
 
+import jakarta.persistence.QueryHint;
 import net.unicon.lti.model.ConfigEntity;
+import org.hibernate.jpa.HibernateHints;
+import org.springframework.cache.annotation.CacheEvict;
 import org.springframework.cache.annotation.Cacheable;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.QueryHints;
 import org.springframework.transaction.annotation.Transactional;
 
 /**
@@ -27,6 +31,7 @@ public interface ConfigRepository extends JpaRepository<ConfigEntity, Long> {
      * @param name the config name (e.g. app.config)
      * @return the count of config items with this exact name
      */
+    @QueryHints(@QueryHint(name = HibernateHints.HINT_CACHEABLE, value = "true"))
     int countByName(String name);
 
     /**
@@ -34,5 +39,15 @@ public interface ConfigRepository extends JpaRepository<ConfigEntity, Long> {
      * @return the config item (or null if none found)
      */
     @Cacheable(value = "configs", key = "#name")
+    @QueryHints(@QueryHint(name = HibernateHints.HINT_CACHEABLE, value = "true"))
     ConfigEntity findByName(String name);
+
+    //So findByName doesn't keep returning the old value until the entry expires
+    @Override
+    @CacheEvict(value = "configs", key = "#p0.name")
+    <S extends ConfigEntity> S save(S entity);
+
+    @Override
+    @CacheEvict(value = "configs", key = "#p0.name")
+    void delete(ConfigEntity entity);
 }
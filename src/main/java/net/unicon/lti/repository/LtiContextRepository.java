@@ -14,6 +14,7 @@ package net.unicon.lti.repository;
 
 import net.unicon.lti.model.LtiContextEntity;
 import net.unicon.lti.model.PlatformDeployment;
+import net.unicon.lti.utils.KeyDigests;
 import org.springframework.data.jpa.repository.JpaRepository;
 import org.springframework.transaction.annotation.Transactional;
 
@@ -25,11 +26,18 @@ import java.util.List;
 @Transactional
 public interface LtiContextRepository extends JpaRepository<LtiContextEntity, Long> {
 
-    LtiContextEntity findByContextKey(String key);
+    //Goes through the (key_id, context_key_hash) unique index, the context_key itself is too long to be indexed
+    default LtiContextEntity findByContextKeyAndPlatformDeployment(String contextKey, PlatformDeployment platformDeployment) {
+        return findByContextKeyHashAndPlatformDeployment(KeyDigests.sha256(contextKey), platformDeployment);
+    }
 
-    LtiContextEntity findByContextKeyAndPlatformDeployment(String contextKey, PlatformDeployment platformDeployment);
+    LtiContextEntity findByContextKeyHashAndPlatformDeployment(String contextKeyHash, PlatformDeployment platformDeployment);
 
     List<LtiContextEntity> findByPlatformDeployment(PlatformDeployment platformDeployment);
 
-    int deleteByContextKeyAndPlatformDeployment(String contextKey, PlatformDeployment platformDeployment);
+    default int deleteByContextKeyAndPlatformDeployment(String contextKey, PlatformDeployment platformDeployment) {
+        return deleteByContextKeyHashAndPlatformDeployment(KeyDigests.sha256(contextKey), platformDeployment);
+    }
+
+    int deleteByContextKeyHashAndPlatformDeployment(String contextKeyHash, PlatformDeployment platformDeployment);
 }
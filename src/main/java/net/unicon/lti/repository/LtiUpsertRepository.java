@@ -0,0 +1,183 @@
+/**
+ * Copyright 2021 Unicon (R)
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.unicon.lti.repository;
+
+import net.unicon.lti.model.LtiContextEntity;
+import net.unicon.lti.model.PlatformDeployment;
+import org.hibernate.Cache;
+import org.hibernate.SessionFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jdbc.core.ConnectionCallback;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.support.GeneratedKeyHolder;
+import org.springframework.jdbc.support.KeyHolder;
+import org.springframework.stereotype.Repository;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.persistence.EntityManagerFactory;
+import jakarta.persistence.PersistenceUnit;
+import java.sql.PreparedStatement;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.List;
+
+/**
+ * Inserts or updates the context, user and membership of a launch with one statement each, by their unique keys:
+ * (key_id, context_key_hash), (key_id, user_key_hash) and (context_id, user_id).
+ * Concurrent first launches for the same user don't fail on duplicate keys, the last one just updates the row.
+ * MySQL uses INSERT ... ON DUPLICATE KEY UPDATE, H2 (tests and local runs) a MERGE ... USING.
+ * Must be called inside the JPA transaction, JdbcTemplate uses the same connection.
+ * Hibernate doesn't see these writes, so the cached context (second level cache) is evicted here.
+ */
+@Repository
+public class LtiUpsertRepository {
+
+    static final Logger log = LoggerFactory.getLogger(LtiUpsertRepository.class);
+
+    //LAST_INSERT_ID(id) makes MySQL return the id of the existing row as the generated key when it updates it
+    private static final String MYSQL_CONTEXT = "INSERT INTO lti_context (key_id, context_key, context_key_hash, title, context_memberships_url, lineitems, claims_digest, created_at, updated_at, entity_version) "
+            + "VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, 0) "
+            + "ON DUPLICATE KEY UPDATE context_id = LAST_INSERT_ID(context_id), title = VALUES(title), context_memberships_url = VALUES(context_memberships_url), "
+            + "lineitems = VALUES(lineitems), claims_digest = VALUES(claims_digest), updated_at = VALUES(updated_at), entity_version = COALESCE(entity_version, 0) + 1";
+
+    private static final String H2_CONTEXT = "SELECT context_id, entity_version FROM FINAL TABLE (MERGE INTO lti_context t USING (VALUES (CAST(? AS BIGINT), "
+            + "CAST(? AS VARCHAR(4096)), CAST(? AS VARCHAR(64)), CAST(? AS VARCHAR(4096)), CAST(? AS VARCHAR(4096)), CAST(? AS VARCHAR(4096)), CAST(? AS VARCHAR(64)), "
+            + "CAST(? AS TIMESTAMP), CAST(? AS TIMESTAMP))) s(key_id, context_key, context_key_hash, title, context_memberships_url, lineitems, claims_digest, created_at, updated_at) "
+            + "ON t.key_id = s.key_id AND t.context_key_hash = s.context_key_hash "
+            + "WHEN MATCHED THEN UPDATE SET title = s.title, context_memberships_url = s.context_memberships_url, lineitems = s.lineitems, "
+            + "claims_digest = s.claims_digest, updated_at = s.updated_at, entity_version = COALESCE(t.entity_version, 0) + 1 "
+            + "WHEN NOT MATCHED THEN INSERT (key_id, context_key, context_key_hash, title, context_memberships_url, lineitems, claims_digest, created_at, updated_at, entity_version) "
+            + "VALUES (s.key_id, s.context_key, s.context_key_hash, s.title, s.context_memberships_url, s.lineitems, s.claims_digest, s.created_at, s.updated_at, 0))";
+
+    //The user claims we don't receive keep the value we had
+    private static final String MYSQL_USER = "INSERT INTO lti_user (key_id, user_key, user_key_hash, displayname, email, lms_user_id, claims_digest, login_at, created_at, updated_at, entity_version) "
+            + "VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, 0) "
+            + "ON DUPLICATE KEY UPDATE user_id = LAST_INSERT_ID(user_id), displayname = COALESCE(VALUES(displayname), displayname), email = COALESCE(VALUES(email), email), "
+            + "lms_user_id = COALESCE(VALUES(lms_user_id), lms_user_id), claims_digest = VALUES(claims_digest), updated_at = VALUES(updated_at), entity_version = COALESCE(entity_version, 0) + 1";
+
+    private static final String H2_USER = "SELECT user_id, entity_version FROM FINAL TABLE (MERGE INTO lti_user t USING (VALUES (CAST(? AS BIGINT), "
+            + "CAST(? AS VARCHAR(4096)), CAST(? AS VARCHAR(64)), CAST(? AS VARCHAR(4096)), CAST(? AS VARCHAR(255)), CAST(? AS VARCHAR(255)), CAST(? AS VARCHAR(64)), "
+            + "CAST(? AS TIMESTAMP), CAST(? AS TIMESTAMP), CAST(? AS TIMESTAMP))) s(key_id, user_key, user_key_hash, displayname, email, lms_user_id, claims_digest, login_at, created_at, updated_at) "
+            + "ON t.key_id = s.key_id AND t.user_key_hash = s.user_key_hash "
+            + "WHEN MATCHED THEN UPDATE SET displayname = COALESCE(s.displayname, t.displayname), email = COALESCE(s.email, t.email), "
+            + "lms_user_id = COALESCE(s.lms_user_id, t.lms_user_id), claims_digest = s.claims_digest, updated_at = s.updated_at, entity_version = COALESCE(t.entity_version, 0) + 1 "
+            + "WHEN NOT MATCHED THEN INSERT (key_id, user_key, user_key_hash, displayname, email, lms_user_id, claims_digest, login_at, created_at, updated_at, entity_version) "
+            + "VALUES (s.key_id, s.user_key, s.user_key_hash, s.displayname, s.email, s.lms_user_id, s.claims_digest, s.login_at, s.created_at, s.updated_at, 0))";
+
+    private static final String MYSQL_MEMBERSHIP = "INSERT INTO lti_membership (context_id, user_id, role, created_at, updated_at, entity_version) "
+            + "VALUES (?, ?, ?, ?, ?, 0) "
+            + "ON DUPLICATE KEY UPDATE membership_id = LAST_INSERT_ID(membership_id), role = VALUES(role), updated_at = VALUES(updated_at), entity_version = COALESCE(entity_version, 0) + 1";
+
+    private static final String H2_MEMBERSHIP = "SELECT membership_id, entity_version FROM FINAL TABLE (MERGE INTO lti_membership t USING (VALUES (CAST(? AS BIGINT), "
+            + "CAST(? AS BIGINT), CAST(? AS INTEGER), CAST(? AS TIMESTAMP), CAST(? AS TIMESTAMP))) s(context_id, user_id, role, created_at, updated_at) "
+            + "ON t.context_id = s.context_id AND t.user_id = s.user_id "
+            + "WHEN MATCHED THEN UPDATE SET role = s.role, updated_at = s.updated_at, entity_version = COALESCE(t.entity_version, 0) + 1 "
+            + "WHEN NOT MATCHED THEN INSERT (context_id, user_id, role, created_at, updated_at, entity_version) "
+            + "VALUES (s.context_id, s.user_id, s.role, s.created_at, s.updated_at, 0))";
+
+    @Autowired
+    JdbcTemplate jdbcTemplate;
+
+    @PersistenceUnit
+    EntityManagerFactory entityManagerFactory;
+
+    private boolean h2;
+
+    @PostConstruct
+    public void init() {
+        String database = jdbcTemplate.execute((ConnectionCallback<String>) connection -> connection.getMetaData().getDatabaseProductName());
+        h2 = "H2".equalsIgnoreCase(database);
+        log.debug("Launch upserts will use the {} syntax ({})", h2 ? "H2" : "MySQL", database);
+    }
+
+    public Upserted upsertContext(long keyId, String contextKey, String contextKeyHash, String title, String contextMembershipsUrl,
+                                  String lineItems, String claimsDigest) {
+        Timestamp now = new Timestamp(System.currentTimeMillis());
+        Upserted context = upsert(h2 ? H2_CONTEXT : MYSQL_CONTEXT, keyId, contextKey, contextKeyHash, title, contextMembershipsUrl, lineItems, claimsDigest, now, now);
+        evictContext(keyId, context);
+        return context;
+    }
+
+    public Upserted upsertUser(long keyId, String userKey, String userKeyHash, String displayName, String email,
+                               String lmsUserId, String claimsDigest) {
+        Timestamp now = new Timestamp(System.currentTimeMillis());
+        return upsert(h2 ? H2_USER : MYSQL_USER, keyId, userKey, userKeyHash, displayName, email, lmsUserId, claimsDigest, now, now, now);
+    }
+
+    public Upserted upsertMembership(long contextId, long userId, int role) {
+        Timestamp now = new Timestamp(System.currentTimeMillis());
+        return upsert(h2 ? H2_MEMBERSHIP : MYSQL_MEMBERSHIP, contextId, userId, role, now, now);
+    }
+
+    private Upserted upsert(String sql, Object... params) {
+        if (h2) {
+            //FINAL TABLE gives us the row as it is after the merge, a new row still has the version 0
+            List<Upserted> rows = jdbcTemplate.query(sql, (rs, rowNum) -> new Upserted(rs.getLong(1), rs.getInt(2) == 0), params);
+            return rows.get(0);
+        }
+        //MySQL says 1 row affected for an insert and 2 for an update
+        KeyHolder keys = new GeneratedKeyHolder();
+        int affected = jdbcTemplate.update(connection -> {
+            PreparedStatement statement = connection.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS);
+            for (int i = 0; i < params.length; i++) {
+                statement.setObject(i + 1, params[i]);
+            }
+            return statement;
+        }, keys);
+        //The driver can return more than one key for an update, the first one is the row id
+        Number id = (Number) keys.getKeyList().get(0).values().iterator().next();
+        return new Upserted(id.longValue(), affected == 1);
+    }
+
+    //Again after the commit, another request could have cached the old row while our transaction was open
+    private void evictContext(long keyId, Upserted context) {
+        Cache cache = entityManagerFactory.unwrap(SessionFactory.class).getCache();
+        Runnable evict = () -> {
+            cache.evictEntityData(LtiContextEntity.class, context.getId());
+            if (context.isInserted()) {
+                cache.evictCollectionData(PlatformDeployment.class.getName() + ".contexts", keyId);
+            }
+        };
+        evict.run();
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    evict.run();
+                }
+            });
+        }
+    }
+
+    public static class Upserted {
+        private final long id;
+        private final boolean inserted;
+
+        public Upserted(long id, boolean inserted) {
+            this.id = id;
+            this.inserted = inserted;
+        }
+
+        public long getId() {
+            return id;
+        }
+
+        public boolean isInserted() {
+            return inserted;
+        }
+    }
+}
@@ -14,21 +14,29 @@ package net.unicon.lti.repository;
 
 import net.unicon.lti.model.LtiUserEntity;
 import net.unicon.lti.model.PlatformDeployment;
+import net.unicon.lti.utils.KeyDigests;
 import org.springframework.data.jpa.repository.JpaRepository;
 import org.springframework.transaction.annotation.Transactional;
 
 @Transactional
 public interface LtiUserRepository extends JpaRepository<LtiUserEntity, Long> {
 
-    LtiUserEntity findByUserKeyAndPlatformDeployment(String linkKey, PlatformDeployment platformDeployment);
+    //Goes through the (key_id, user_key_hash) unique index, the user_key itself is too long to be indexed
+    default LtiUserEntity findByUserKeyAndPlatformDeployment(String userKey, PlatformDeployment platformDeployment) {
+        return findByUserKeyHashAndPlatformDeployment(KeyDigests.sha256(userKey), platformDeployment);
+    }
 
-    LtiUserEntity findByUserKeyAndPlatformDeployment_KeyId(String userKey, long keyId);
+    LtiUserEntity findByUserKeyHashAndPlatformDeployment(String userKeyHash, PlatformDeployment platformDeployment);
+
+    default LtiUserEntity findByUserKeyAndPlatformDeployment_KeyId(String userKey, long keyId) {
+        return findByUserKeyHashAndPlatformDeployment_KeyId(KeyDigests.sha256(userKey), keyId);
+    }
+
+    LtiUserEntity findByUserKeyHashAndPlatformDeployment_KeyId(String userKeyHash, long keyId);
 
     LtiUserEntity findByUserIdAndPlatformDeployment_KeyId(long userId, long keyId);
 
     LtiUserEntity findByUserId(long userId);
 
-    LtiUserEntity findByUserKey(String userKey);
-
 
 }
@@ -13,10 +13,16 @@
 package net.unicon.lti.repository;
 
 import net.unicon.lti.model.lti.dto.NonceState;
+import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
 import org.springframework.transaction.annotation.Transactional;
 
-import java.util.Date;
+import java.sql.Timestamp;
+import java.util.Collection;
+import java.util.List;
 
 @Transactional
 public interface NonceStateRepository extends JpaRepository<NonceState, String> {
@@ -27,11 +33,28 @@ public interface NonceStateRepository extends JpaRepository<NonceState, String>
     Boolean existsByNonce(String nonce);
 
 
+    //A single delete statement, so only one caller gets 1
+    @Modifying
     @Transactional
-    void deleteByNonce(String nonce);
+    @Query("delete from NonceState n where n.nonce = :nonce")
+    int deleteByNonce(@Param("nonce") String nonce);
 
+    //Plain insert without reading the row first, the primary key makes the second insert of a nonce fail
+    @Modifying
     @Transactional
-    void deleteByCreatedAtBefore(Date expiryDate);
+    @Query(value = "insert into nonce_state (nonce, state_hash, state, lti_storage_target, expiry_bucket, created_at, updated_at, entity_version)" +
+            " values (:nonce, :stateHash, :state, :ltiStorageTarget, :expiryBucket, :now, :now, 0)", nativeQuery = true)
+    int insert(@Param("nonce") String nonce, @Param("stateHash") String stateHash, @Param("state") String state,
+               @Param("ltiStorageTarget") String ltiStorageTarget, @Param("expiryBucket") long expiryBucket, @Param("now") Timestamp now);
 
+    //Plain read through the expiry_bucket index, it doesn't lock anything
+    @Query("select n.nonce from NonceState n where n.expiryBucket < :bucket")
+    List<String> findNoncesInBucketsBefore(@Param("bucket") long bucket, Pageable pageable);
+
+    //Deletes by primary key so only these rows are locked, new nonces can still be inserted
+    @Modifying
+    @Transactional
+    @Query("delete from NonceState n where n.nonce in :nonces")
+    int deleteByNonceIn(@Param("nonces") Collection<String> nonces);
 
 }
@@ -14,8 +14,10 @@ package net.unicon.lti.repository;
 
 import net.unicon.lti.model.PlatformDeployment;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Query;
 import org.springframework.transaction.annotation.Transactional;
 
+import java.sql.Timestamp;
 import java.util.List;
 
 @Transactional
@@ -32,4 +34,16 @@ public interface PlatformDeploymentRepository extends JpaRepository<PlatformDepl
     List<PlatformDeployment> findByIssAndDeploymentId(String iss, String deploymentId);
 
     List<PlatformDeployment> findByIssAndClientIdAndDeploymentId(String iss, String clientId, String deploymentId);
-}
+
+    //Changes when a deployment is added, updated or removed. The registry polls it to know when to reload.
+    @Query("select count(p) as count, coalesce(sum(p.version), 0) as versions, max(p.updatedAt) as lastUpdate from PlatformDeployment p")
+    DeploymentsVersion findDeploymentsVersion();
+
+    interface DeploymentsVersion {
+        long getCount();
+
+        long getVersions();
+
+        Timestamp getLastUpdate();
+    }
+}
\ No newline at end of file
@@ -0,0 +1,64 @@
+/**
+ * Copyright 2021 Unicon (R)
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.unicon.lti.repository;
+
+import net.unicon.lti.model.ScoreOutboxEntity;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.sql.Timestamp;
+import java.util.Collection;
+import java.util.List;
+
+@Transactional
+public interface ScoreOutboxRepository extends JpaRepository<ScoreOutboxEntity, Long> {
+
+    //Deployments with scores ready to be sent, each one is read on its own (findDue) so a burst of one can't delay the others.
+    @Query("select distinct o.keyId from ScoreOutboxEntity o where o.status = 'PENDING' and o.nextAttemptAt <= :now")
+    List<Long> findDueKeyIds(@Param("now") Timestamp now);
+
+    //Scores of a deployment ready to be sent. A score is only ready when there is nothing older still waiting for the same line item,
+    // so the platform always gets the scores of a line item in the order we got them.
+    @Query("select o from ScoreOutboxEntity o where o.keyId = :keyId and o.status = 'PENDING' and o.nextAttemptAt <= :now" +
+            " and not exists (select p from ScoreOutboxEntity p where p.lineItemId = o.lineItemId" +
+            " and p.scoreOutboxId < o.scoreOutboxId and p.status <> 'FAILED')" +
+            " order by o.scoreOutboxId")
+    List<ScoreOutboxEntity> findDue(@Param("keyId") long keyId, @Param("now") Timestamp now, Pageable pageable);
+
+    long countByStatusIn(Collection<String> statuses);
+
+    //Only one worker (in any instance of the tool) can claim a score.
+    @Modifying
+    @Query("update ScoreOutboxEntity o set o.status = 'IN_PROGRESS', o.claimedAt = :now where o.scoreOutboxId = :id and o.status = 'PENDING'")
+    int claim(@Param("id") long id, @Param("now") Timestamp now);
+
+    @Modifying
+    @Query("update ScoreOutboxEntity o set o.status = 'PENDING', o.attempts = :attempts, o.nextAttemptAt = :nextAttemptAt," +
+            " o.lastError = :lastError, o.claimedAt = null where o.scoreOutboxId = :id")
+    int retryLater(@Param("id") long id, @Param("attempts") int attempts, @Param("nextAttemptAt") Timestamp nextAttemptAt,
+                   @Param("lastError") String lastError);
+
+    @Modifying
+    @Query("update ScoreOutboxEntity o set o.status = 'FAILED', o.attempts = :attempts, o.lastError = :lastError," +
+            " o.claimedAt = null where o.scoreOutboxId = :id")
+    int markFailed(@Param("id") long id, @Param("attempts") int attempts, @Param("lastError") String lastError);
+
+    //Scores claimed by a worker that died (restart, crash) go back to the queue.
+    @Modifying
+    @Query("update ScoreOutboxEntity o set o.status = 'PENDING', o.claimedAt = null where o.status = 'IN_PROGRESS' and o.claimedAt < :claimedBefore")
+    int releaseStaleClaims(@Param("claimedBefore") Timestamp claimedBefore);
+}
@@ -43,6 +43,8 @@ public class APIOAuthProviderProcessingFilter extends GenericFilterBean {
     private static final String JWT_REQUEST_HEADER_NAME = "Authorization";
     private static final String JWT_BEARER_TYPE = "Bearer";
     private static final String QUERY_PARAM_NAME = "token";
+    //Claims of the one use token already redeemed by this filter, so the controllers don't redeem it again
+    public static final String ONE_USE_CLAIMS = APIOAuthProviderProcessingFilter.class.getName() + ".oneUseClaims";
     private final boolean allowQueryParam;
 
     static final Logger log = LoggerFactory.getLogger(APIOAuthProviderProcessingFilter.class);
@@ -91,10 +93,11 @@ public class APIOAuthProviderProcessingFilter extends GenericFilterBean {
                         }
                         //TODO add here any other checks we want to perform.
                         if ((Boolean) tokenClaims.getBody().get("oneUse")) {
-                            boolean exists = apiDataService.findAndDeleteOneUseToken(token);
+                            boolean exists = apiDataService.consumeOneUseToken(token);
                             if (!exists) {
                                 throw new IllegalStateException("OneUse token does not exists or has been already used");
                             }
+                            servletRequest.setAttribute(ONE_USE_CLAIMS, tokenClaims);
                         }
                     }
                 }
@@ -69,7 +69,7 @@ public class LTI3OAuthProviderProcessingFilter extends GenericFilterBean {
             HttpServletRequest httpServletRequest = (HttpServletRequest) servletRequest;
             String state = httpServletRequest.getParameter("state");
 
-            NonceState nonceState = ltiDataService.getRepos().nonceStateRepository.findByStateHash(state);
+            NonceState nonceState = ltiDataService.getNonceStates().getNonceByStateHash(state);
             if (nonceState != null) {
                 Jws<Claims> stateClaims = ltijwtService.validateState(nonceState.getState());
                 String nonce = stateClaims.getBody().getId();
@@ -90,7 +90,7 @@ public class LTI3OAuthProviderProcessingFilterStateNonceChecked extends GenericF
             String expectedStateHash = httpServletRequest.getParameter("expected_state");
             String nonce = httpServletRequest.getParameter("nonce");
             String expectedNonce = httpServletRequest.getParameter("expected_nonce");
-            NonceState nonceState = ltiDataService.getRepos().nonceStateRepository.findByStateHash(expectedStateHash);
+            NonceState nonceState = ltiDataService.getNonceStates().getNonceByStateHash(expectedStateHash);
             if (nonceState == null) {
                 throw new IllegalStateException("LTI request doesn't contains the expected state");
             }
@@ -111,8 +111,8 @@ public class LTI3OAuthProviderProcessingFilterStateNonceChecked extends GenericF
                     throw new IllegalStateException("LTI expected nonce does not match the nonce in the state");
                 }
                 //check if nonce is in the database
-                if (ltiDataService.getRepos().nonceStateRepository.existsByNonce(nonce)) {
-                    NonceState nonceState2 = ltiDataService.getRepos().nonceStateRepository.findByNonce(nonce);
+                NonceState nonceState2 = ltiDataService.getNonceStates().getNonce(nonce);
+                if (nonceState2 != null) {
                     if (!nonceState2.getStateHash().equals(stateHash)){
                         throw new IllegalStateException("LTI request doesn't contains the expected state/nonce");
                     }
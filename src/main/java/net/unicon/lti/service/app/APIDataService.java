@@ -7,7 +7,8 @@ public interface APIDataService {
 
     void addOneUseToken(String token);
 
-    boolean findAndDeleteOneUseToken(String token);
+    //True only for the first call with a token that was added and not cleaned yet
+    boolean consumeOneUseToken(String token);
 
     void cleanOldTokens();
 }
@@ -5,4 +5,8 @@ public interface ScheduledService {
     void deleteOldTokens();
 
     void deleteOldNonces();
+
+    void sendPendingScores();
+
+    void checkPlatformDeployments();
 }
@@ -48,14 +48,8 @@ public class APIDataServiceImpl implements APIDataService {
     }
 
     @Override
-    public boolean findAndDeleteOneUseToken(String token){
-        ApiOneUseToken apiOneUseToken = repos.apiOneUseTokenRepository.findByToken(token);
-        if (apiOneUseToken!=null){
-            repos.apiOneUseTokenRepository.delete(apiOneUseToken);
-            return true;
-        } else {
-            return false;
-        }
+    public boolean consumeOneUseToken(String token){
+        return repos.apiOneUseTokenRepository.deleteByTokenHash(ApiOneUseToken.hash(token)) == 1;
     }
 
     @Override
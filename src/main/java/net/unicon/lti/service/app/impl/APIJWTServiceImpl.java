@@ -12,44 +12,48 @@
  */
 package net.unicon.lti.service.app.impl;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.google.common.collect.Iterables;
 import io.jsonwebtoken.Claims;
 import io.jsonwebtoken.Header;
 import io.jsonwebtoken.Jws;
-import io.jsonwebtoken.JwsHeader;
 import io.jsonwebtoken.Jwt;
 import io.jsonwebtoken.JwtBuilder;
+import io.jsonwebtoken.JwtParser;
+import io.jsonwebtoken.JwtParserBuilder;
 import io.jsonwebtoken.Jwts;
-import io.jsonwebtoken.SignatureAlgorithm;
-import io.jsonwebtoken.SigningKeyResolverAdapter;
 import net.unicon.lti.exceptions.BadTokenException;
 import net.unicon.lti.model.oauth2.Roles;
 import net.unicon.lti.model.oauth2.SecuredInfo;
 import net.unicon.lti.service.app.APIDataService;
 import net.unicon.lti.service.app.APIJWTService;
+import net.unicon.lti.utils.KeyDigests;
 import net.unicon.lti.utils.lti.LTI3Request;
-import net.unicon.lti.utils.oauth.OAuthUtils;
+import net.unicon.lti.service.lti.InternalTokenService;
 import net.unicon.lti.service.lti.LTIDataService;
-import net.unicon.lti.utils.TextConstants;
 import org.apache.commons.lang3.time.DateUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 import org.springframework.util.MultiValueMap;
 import org.apache.commons.lang3.StringUtils;
 import org.springframework.web.util.UriComponentsBuilder;
 
+import jakarta.annotation.PostConstruct;
 import jakarta.servlet.http.HttpServletRequest;
 import java.io.IOException;
 import java.security.GeneralSecurityException;
-import java.security.Key;
 import java.security.PublicKey;
 import java.sql.Timestamp;
 import java.time.LocalDateTime;
 import java.util.Date;
 import java.util.List;
+import java.util.Objects;
 import java.util.UUID;
+import java.util.concurrent.TimeUnit;
 
 /**
  * This manages all the data processing for the LTIRequest (and for LTI in general)
@@ -66,12 +70,41 @@ public class APIJWTServiceImpl implements APIJWTService {
     @Autowired
     APIDataService apiDataService;
 
+    @Autowired
+    InternalTokenService internalTokenService;
+
     private static final String JWT_REQUEST_HEADER_NAME = "Authorization";
     private static final String JWT_BEARER_TYPE = "Bearer";
     private static final String QUERY_PARAM_NAME = "token";
+    private static final String API_TOKEN_ISSUER = "ISSUER";
 
     String error;
 
+    //Our tokens last one hour, an entry never outlives the exp of its token anyway
+    @Value("${lti13.api.verifiedTokens.ttlSeconds:3600}")
+    private long verifiedTokensTtlSeconds = 3600;
+
+    @Value("${lti13.api.verifiedTokens.maxEntries:10000}")
+    private long verifiedTokensMaxEntries = 10000;
+
+    //Our tokens are checked by the other instances too, their clocks can be a bit off
+    @Value("${lti13.jwt.allowedClockSkewSeconds:5}")
+    private long allowedClockSkewSeconds = 5;
+
+    //Built once, a JwtParser is immutable and thread safe
+    private volatile ApiTokenParser apiTokenParser;
+
+    //SHA-256 of the token -> claims we already verified, so the same bearer token is not verified (RSA) again and again
+    private Cache<String, VerifiedToken> verifiedTokens;
+
+    @PostConstruct
+    public void init() {
+        verifiedTokens = CacheBuilder.newBuilder()
+                .expireAfterWrite(verifiedTokensTtlSeconds, TimeUnit.SECONDS)
+                .maximumSize(verifiedTokensMaxEntries)
+                .build();
+    }
+
     /**
      * This will check that the state has been signed by us and retrieve the issuer private key.
      * We could add here other checks if we want (like the expiration of the state, nonce used only once, etc...)
@@ -79,26 +112,44 @@ public class APIJWTServiceImpl implements APIJWTService {
     //Here we could add other checks like expiration of the state (not implemented)
     @Override
     public Jws<Claims> validateToken(String token) {
-        return Jwts.parser().setSigningKeyResolver(new SigningKeyResolverAdapter() {
-            // This is done because each state is signed with a different key based on the issuer... so
-            // we don't know the key and we need to check it pre-extracting the claims and finding the kid
-            @Override
-            public Key resolveSigningKey(JwsHeader header, Claims claims) {
-                PublicKey toolPublicKey;
-                try {
-                    // We are dealing with RS256 encryption, so we have some Oauth utils to manage the keys and
-                    // convert them to keys from the string stored in DB. There are for sure other ways to manage this.
-                    toolPublicKey = OAuthUtils.loadPublicKey(ltiDataService.getOwnPublicKey());
-                } catch (GeneralSecurityException ex) {
-                    log.error("Error validating the state. Error generating the tool public key", ex);
-                    return null;
-                }
-                return toolPublicKey;
+        if (token == null) {
+            return verifyToken(null);
+        }
+        String tokenHash = KeyDigests.sha256(token);
+        VerifiedToken verified = verifiedTokens.getIfPresent(tokenHash);
+        if (verified != null) {
+            if (System.currentTimeMillis() < verified.expiresAt) {
+                return verified.claims;
             }
-        }).build().parseSignedClaims(token);
+            //Expired, the parser will tell the caller
+            verifiedTokens.invalidate(tokenHash);
+        }
+        Jws<Claims> claims = verifyToken(token);
+        Date expiration = claims.getPayload().getExpiration();
+        //The one use tokens must be redeemed every time, they are never served from here
+        if (expiration != null && !Boolean.TRUE.equals(claims.getPayload().get("oneUse"))) {
+            verifiedTokens.put(tokenHash, new VerifiedToken(claims, expiration.getTime()));
+        }
+        return claims;
+    }
+
+    private Jws<Claims> verifyToken(String token) {
+        return apiTokenParser().parser.parseSignedClaims(token);
         // If we are on this point, then the state signature has been validated. We can start other tasks now.
     }
 
+    //Built again if our url (the aud of the tokens) or our verification key changes
+    private ApiTokenParser apiTokenParser() {
+        String audience = ltiDataService.getLocalUrl();
+        PublicKey verificationKey = internalTokenService.getVerificationKey();
+        ApiTokenParser parser = apiTokenParser;
+        if (parser == null || !Objects.equals(parser.audience, audience) || parser.verificationKey != verificationKey) {
+            parser = new ApiTokenParser(internalTokenService, verificationKey, audience, allowedClockSkewSeconds);
+            apiTokenParser = parser;
+        }
+        return parser;
+    }
+
 
     @Override
     public Jwt<Header, Claims> unsecureToken(String token){
@@ -124,11 +175,9 @@ public class APIJWTServiceImpl implements APIJWTService {
             length = 300; //TODO, change this test value to 30
         }
         Date date = new Date();
-        Key toolPrivateKey = OAuthUtils.loadPrivateKey(ltiDataService.getOwnPrivateKey());
         JwtBuilder builder = Jwts.builder()
-                .setHeaderParam("kid", TextConstants.DEFAULT_KID)
                 .setHeaderParam("typ", "JWT")
-                .setIssuer("ISSUER")
+                .setIssuer(API_TOKEN_ISSUER)
                 .setSubject(userId) // The clientId
                 .setAudience(ltiDataService.getLocalUrl())  //We send here the authToken url.
                 .setExpiration(DateUtils.addSeconds(date, length)) //a java.util.Date
@@ -140,9 +189,8 @@ public class APIJWTServiceImpl implements APIJWTService {
                 .claim("userId", userId)  //This is an specific claim to ask for tokens.
                 .claim("roles", roles)
                 .claim("oneUse", oneUse)  //This is an specific claim to ask for tokens.
-                .claim("nonce", nonce)
-                .signWith(SignatureAlgorithm.RS256, toolPrivateKey);  //We sign it with our own private key. The platform has the public one.
-        String token = builder.compact();
+                .claim("nonce", nonce);
+        String token = internalTokenService.sign(builder);  //Only we read it, so it is signed with the internal tokens key.
         if (oneUse){
             apiDataService.addOneUseToken(token);
         }
@@ -174,9 +222,7 @@ public class APIJWTServiceImpl implements APIJWTService {
             throw new BadTokenException("Trying to refresh an one use token");
         }
         Date date = new Date();
-        Key toolPrivateKey = OAuthUtils.loadPrivateKey(ltiDataService.getOwnPrivateKey());
         JwtBuilder builder = Jwts.builder()
-                .setHeaderParam("kid", tokenClaims.getHeader().getKeyId())
                 .setHeaderParam("typ", "JWT")
                 .setIssuer(tokenClaims.getBody().getIssuer())
                 .setSubject(tokenClaims.getBody().getSubject()) // The clientId
@@ -190,9 +236,8 @@ public class APIJWTServiceImpl implements APIJWTService {
                 .claim("userId", tokenClaims.getBody().get("userId"))
                 .claim("roles", tokenClaims.getBody().get("roles"))
                 .claim("oneUse", false)
-                .claim("nonce", tokenClaims.getBody().get("nonce"))
-                .signWith(SignatureAlgorithm.RS256, toolPrivateKey);  //We sign it with our own private key. The platform has the public one.
-        String newToken = builder.compact();
+                .claim("nonce", tokenClaims.getBody().get("nonce"));
+        String newToken = internalTokenService.sign(builder);
         log.debug("Token Request: \n {} \n", newToken);
         return newToken;
     }
@@ -275,4 +320,32 @@ public class APIJWTServiceImpl implements APIJWTService {
         return rawHeaderValue.toLowerCase().startsWith(JWT_BEARER_TYPE.toLowerCase());
     }
 
+    private static class ApiTokenParser {
+        private final String audience;
+        private final PublicKey verificationKey;
+        private final JwtParser parser;
+
+        ApiTokenParser(InternalTokenService internalTokenService, PublicKey verificationKey, String audience, long allowedClockSkewSeconds) {
+            this.audience = audience;
+            this.verificationKey = verificationKey;
+            JwtParserBuilder builder = internalTokenService.parser(verificationKey)
+                    .requireIssuer(API_TOKEN_ISSUER)
+                    .clockSkewSeconds(allowedClockSkewSeconds);
+            if (audience != null) {
+                builder.requireAudience(audience);
+            }
+            this.parser = builder.build();
+        }
+    }
+
+    private static class VerifiedToken {
+        private final Jws<Claims> claims;
+        private final long expiresAt;
+
+        VerifiedToken(Jws<Claims> claims, long expiresAt) {
+            this.claims = claims;
+            this.expiresAt = expiresAt;
+        }
+    }
+
 }
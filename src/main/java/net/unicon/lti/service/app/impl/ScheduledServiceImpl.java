@@ -3,6 +3,8 @@ package net.unicon.lti.service.app.impl;
 import net.unicon.lti.service.app.APIDataService;
 import net.unicon.lti.service.app.ScheduledService;
 import net.unicon.lti.service.lti.NonceStateService;
+import net.unicon.lti.service.lti.PlatformDeploymentRegistry;
+import net.unicon.lti.service.lti.ScoreOutboxService;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -24,6 +26,12 @@ public class ScheduledServiceImpl implements ScheduledService {
     @Autowired
     NonceStateService nonceStateService;
 
+    @Autowired
+    ScoreOutboxService scoreOutboxService;
+
+    @Autowired
+    PlatformDeploymentRegistry platformDeploymentRegistry;
+
     @Override
     @Scheduled(cron = "${scheduled.deleteoldtokens.cron:0 0 1 * * ?}")  //Runs once a day
     public void deleteOldTokens(){
@@ -39,4 +47,16 @@ public class ScheduledServiceImpl implements ScheduledService {
         nonceStateService.deleteOldNonces();
         log.info("Deleting Old Nonces :: Ended - {} ", dateTimeFormatter.format(LocalDateTime.now()));
     }
+
+    @Override
+    @Scheduled(fixedDelayString = "${scheduled.sendscores.delay:1000}") //Runs every second after the previous run ends
+    public void sendPendingScores(){
+        scoreOutboxService.sendDueScores();
+    }
+
+    @Override
+    @Scheduled(fixedDelayString = "${scheduled.checkdeployments.delay:30000}") //Picks up the deployments saved in other instances
+    public void checkPlatformDeployments(){
+        platformDeploymentRegistry.checkVersion();
+    }
 }
\ No newline at end of file
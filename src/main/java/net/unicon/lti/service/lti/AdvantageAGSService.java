@@ -5,11 +5,14 @@ import net.unicon.lti.model.LtiContextEntity;
 import net.unicon.lti.model.PlatformDeployment;
 import net.unicon.lti.model.ags.LineItem;
 import net.unicon.lti.model.ags.LineItems;
+import net.unicon.lti.model.ags.Result;
 import net.unicon.lti.model.ags.Results;
 import net.unicon.lti.model.ags.Score;
 import net.unicon.lti.model.oauth2.LTIToken;
 import org.springframework.http.ResponseEntity;
 
+import java.util.stream.Stream;
+
 public interface AdvantageAGSService {
     //Asking for a token with the right scope.
     LTIToken getToken(String scope, PlatformDeployment platformDeployment) throws ConnectionException;
@@ -19,6 +22,9 @@ public interface AdvantageAGSService {
 
     LineItems getLineItems(LTIToken LTIToken, LtiContextEntity context, boolean results, LTIToken resultsToken) throws ConnectionException;
 
+    //Same lineitems but read lazily, page by page. Close the stream if you don't consume it until the end.
+    Stream<LineItem> streamLineItems(LTIToken LTIToken, LtiContextEntity context);
+
     boolean deleteLineItem(LTIToken LTIToken, LtiContextEntity context, String id) throws ConnectionException;
 
     LineItem putLineItem(LTIToken LTIToken, LtiContextEntity context, LineItem lineItem) throws ConnectionException;
@@ -29,6 +35,9 @@ public interface AdvantageAGSService {
 
     Results getResults(LTIToken LTITokenResults, LtiContextEntity context, String lineItemId) throws ConnectionException;
 
+    //Same results but read lazily, page by page. Close the stream if you don't consume it until the end.
+    Stream<Result> streamResults(LTIToken LTITokenResults, LtiContextEntity context, String lineItemId);
+
     Results postScore(LTIToken LTITokenScores, LTIToken LTITokenResults,LtiContextEntity context, String lineItemId, Score score) throws ConnectionException;
 
     ResponseEntity<Void> postScore(LTIToken LTITokenScores, String lineItemId, Score score) throws ConnectionException;
@@ -10,6 +10,8 @@ import org.springframework.http.HttpEntity;
 import org.springframework.http.HttpHeaders;
 import org.springframework.web.client.RestTemplate;
 
+import java.util.concurrent.Executor;
+
 public interface AdvantageConnectorHelper {
     HttpEntity createRequestEntity(String apiKey);
 
@@ -35,7 +37,17 @@ public interface AdvantageConnectorHelper {
     //The platformDeployment has the URL to ask for the token.
     LTIToken getToken(PlatformDeployment platformDeployment, String scope) throws ConnectionException;
 
+    //Forgets the cached token of that deployment and scope, so the next getToken asks the platform for a new one.
+    void invalidateToken(PlatformDeployment platformDeployment, String scope);
+
+    //Calls invalidateToken if the error (or one of its causes) is a 401 from the platform, it doesn't take the
+    // cached token anymore (revoked, or the platform restarted). Returns true if the token was invalidated.
+    boolean invalidateTokenIfRejected(PlatformDeployment platformDeployment, String scope, Throwable error);
+
     RestTemplate createRestTemplate();
 
     String nextPage(HttpHeaders headers);
+
+    //Shared pool where the next page of the AGS and NRPS calls is requested while the current one is used
+    Executor getPagePrefetchExecutor();
 }
@@ -3,13 +3,23 @@ package net.unicon.lti.service.lti;
 import net.unicon.lti.exceptions.ConnectionException;
 import net.unicon.lti.model.LtiContextEntity;
 import net.unicon.lti.model.PlatformDeployment;
+import net.unicon.lti.model.membership.CourseUser;
 import net.unicon.lti.model.membership.CourseUsers;
 import net.unicon.lti.model.oauth2.LTIToken;
 
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
 public interface AdvantageMembershipService {
     //Asking for a token with the right scope.
     LTIToken getToken(PlatformDeployment platformDeployment) throws ConnectionException;
 
     //Calling the membership service and getting a paginated result of users.
     CourseUsers callMembershipService(LTIToken LTIToken, LtiContextEntity context) throws ConnectionException;
+
+    //Same call, but every user is handed to the consumer as it is parsed instead of building the whole list (reads streamMembership).
+    void callMembershipService(LTIToken LTIToken, LtiContextEntity context, Consumer<CourseUser> consumer) throws ConnectionException;
+
+    //Same members but read lazily, each page parsed as it arrives. Close the stream if you don't consume it until the end.
+    Stream<CourseUser> streamMembership(LTIToken LTIToken, LtiContextEntity context);
 }
@@ -0,0 +1,31 @@
+package net.unicon.lti.service.lti;
+
+import io.jsonwebtoken.JwtBuilder;
+import io.jsonwebtoken.JwtParserBuilder;
+import io.jsonwebtoken.Locator;
+
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.security.PublicKey;
+
+/**
+ * Signs and verifies the tokens that only this tool reads (state, nonce state and API tokens).
+ * The tokens we send to the platforms are always RS256 with the keyring keys.
+ */
+public interface InternalTokenService {
+    //RS256, HS256 or ES256 (lti13.internalTokens.algorithm)
+    String getAlgorithm();
+
+    //Puts the kid in the header and signs with the active internal key
+    String sign(JwtBuilder builder) throws GeneralSecurityException;
+
+    //Finds the key of an internal token by its alg and kid, so one parser works for all our keys (and the rotated ones)
+    Locator<Key> getKeyLocator();
+
+    //The only key an internal token can be signed with, or null if there are several (rotated RSA keys, HMAC secrets, ES256 key)
+    PublicKey getVerificationKey();
+
+    //Parser that verifies with that key, or with the key locator when it is null.
+    //The parsers are cached, build them again when getVerificationKey() changes (keyring rotation).
+    JwtParserBuilder parser(PublicKey verificationKey);
+}
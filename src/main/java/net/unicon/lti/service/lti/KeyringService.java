@@ -0,0 +1,24 @@
+package net.unicon.lti.service.lti;
+
+import java.security.GeneralSecurityException;
+import java.security.PrivateKey;
+import java.security.interfaces.RSAPublicKey;
+import java.util.Map;
+
+public interface KeyringService {
+    //The kid we put in the header of everything we sign.
+    String getActiveKid();
+
+    PrivateKey getPrivateKey() throws GeneralSecurityException;
+
+    //Only the active key can sign, the next and retired keys are only published.
+    PrivateKey getPrivateKey(String kid) throws GeneralSecurityException;
+
+    RSAPublicKey getPublicKey() throws GeneralSecurityException;
+
+    //Returns null if we don't know that kid.
+    RSAPublicKey getPublicKey(String kid);
+
+    //kid -> public key of the keys in the JWKS (active, next and retired). A new map is returned after a rotation.
+    Map<String, RSAPublicKey> getPublishedKeys();
+}
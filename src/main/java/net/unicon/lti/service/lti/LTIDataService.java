@@ -12,6 +12,14 @@ import org.springframework.transaction.annotation.Transactional;
 public interface LTIDataService {
     AllRepositories getRepos();
 
+    KeyringService getKeyring();
+
+    PlatformJwksService getPlatformJwks();
+
+    NonceStateService getNonceStates();
+
+    PlatformDeploymentRegistry getPlatformDeployments();
+
     @Transactional
         //We check if we already have the information about this link in the database.
     void loadLTIDataFromDB(LTI3Request lti, String link);
@@ -1,14 +1,27 @@
 package net.unicon.lti.service.lti;
 
+import net.unicon.lti.model.lti.dto.LoginInitiationDTO;
 import net.unicon.lti.model.lti.dto.NonceState;
 
-import java.util.Date;
+import java.security.GeneralSecurityException;
 
 public interface NonceStateService {
     //Here we could add other checks like expiration of the state (not implemented)
     void deleteOldNonces();
 
+    NonceState saveNonce(NonceState nonceState);
+
+    //With stateless states it only finds the nonces whose state was opened before by getNonceByStateHash in the same instance
     NonceState getNonce(String nonce);
 
+    NonceState getNonceByStateHash(String stateHash);
+
     void deleteNonce(String nonce);
+
+    //Marks the nonce as used when the launch is accepted. Only one caller gets true, a replay of the same launch gets false.
+    boolean consumeNonce(String nonce);
+
+    boolean isStateless();
+
+    String createStatelessState(LoginInitiationDTO loginInitiationDTO, String clientId, String deploymentId, String nonce) throws GeneralSecurityException;
 }
@@ -0,0 +1,26 @@
+package net.unicon.lti.service.lti;
+
+import net.unicon.lti.model.lti.dto.NonceState;
+
+import java.util.Date;
+
+/**
+ * Where the nonces and states of the OIDC logins are kept until the launch arrives.
+ * lti13.nonces.store selects the implementation: jpa (default, the nonce_state table) or memory.
+ */
+public interface NonceStateStore {
+    NonceState save(NonceState nonceState);
+
+    NonceState findByNonce(String nonce);
+
+    NonceState findByStateHash(String stateHash);
+
+    //Stores the nonce only when it isn't there already. Of two concurrent calls for the same nonce only one gets true.
+    boolean saveIfAbsent(NonceState nonceState);
+
+    //True when this call removed the nonce, of two concurrent calls only one gets true
+    boolean deleteByNonce(String nonce);
+
+    //Removes the nonces created before the date
+    void deleteCreatedBefore(Date date);
+}
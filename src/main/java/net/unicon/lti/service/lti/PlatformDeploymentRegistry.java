@@ -0,0 +1,23 @@
+package net.unicon.lti.service.lti;
+
+import net.unicon.lti.model.PlatformDeployment;
+
+import java.util.List;
+
+public interface PlatformDeploymentRegistry {
+    //Same lookups as the PlatformDeploymentRepository, served from memory. Each call returns detached copies without
+    // their contexts, load the deployment from the PlatformDeploymentRepository to change it or to walk its contexts.
+    List<PlatformDeployment> findByIss(String iss);
+
+    List<PlatformDeployment> findByIssAndClientId(String iss, String clientId);
+
+    List<PlatformDeployment> findByIssAndDeploymentId(String iss, String deploymentId);
+
+    List<PlatformDeployment> findByIssAndClientIdAndDeploymentId(String iss, String clientId, String deploymentId);
+
+    //Call it after saving a deployment, the next lookup reloads them
+    void invalidate();
+
+    //Reloads if another instance changed the deployments
+    void checkVersion();
+}
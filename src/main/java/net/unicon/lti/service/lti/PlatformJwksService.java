@@ -0,0 +1,13 @@
+package net.unicon.lti.service.lti;
+
+import net.unicon.lti.model.PlatformDeployment;
+
+import java.security.PublicKey;
+
+public interface PlatformJwksService {
+    //Returns the platform public key for that kid, or null if the platform doesn't publish it.
+    PublicKey getPublicKey(PlatformDeployment platformDeployment, String kid);
+
+    //Forgets the keys cached for that endpoint, call it when a deployment using it is saved.
+    void invalidate(String jwksEndpoint);
+}
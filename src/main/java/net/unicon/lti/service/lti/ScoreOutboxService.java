@@ -0,0 +1,17 @@
+package net.unicon.lti.service.lti;
+
+import net.unicon.lti.exceptions.DataServiceException;
+import net.unicon.lti.model.PlatformDeployment;
+import net.unicon.lti.model.ScoreOutboxEntity;
+import net.unicon.lti.model.ags.Score;
+
+public interface ScoreOutboxService {
+    //Stores the score to be sent to the platform by the outbox workers. It doesn't call the platform.
+    ScoreOutboxEntity enqueue(PlatformDeployment platformDeployment, String lineItemId, Score score) throws DataServiceException;
+
+    //Hands the scores that are ready to the workers, that go on with the next ones of the same deployment. Returns how many this call handed.
+    int sendDueScores();
+
+    //Scores waiting to be sent (or being sent right now)
+    long getQueueDepth();
+}
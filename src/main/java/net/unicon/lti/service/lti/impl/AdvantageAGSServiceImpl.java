@@ -25,11 +25,15 @@ import net.unicon.lti.model.ags.Score;
 import net.unicon.lti.model.oauth2.LTIToken;
 import net.unicon.lti.service.lti.AdvantageAGSService;
 import net.unicon.lti.service.lti.AdvantageConnectorHelper;
+import net.unicon.lti.utils.AGSScope;
 import net.unicon.lti.utils.TextConstants;
+import net.unicon.lti.utils.lti.LinkHeaderPageIterator;
+import jakarta.annotation.PreDestroy;
 import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.http.*;
 import org.springframework.stereotype.Service;
 import org.springframework.web.client.RestTemplate;
@@ -37,7 +41,22 @@ import org.springframework.web.client.RestTemplate;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
-import java.util.Objects;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 /**
  * This manages all the Membership call for the LTIRequest (and for LTI in general)
@@ -54,6 +73,22 @@ public class AdvantageAGSServiceImpl implements AdvantageAGSService {
 
     static final Logger log = LoggerFactory.getLogger(AdvantageAGSServiceImpl.class);
 
+    //Size of the pool used to get the results of the line items in parallel
+    @Value("${lti13.ags.resultsConcurrency:16}")
+    private int resultsConcurrency = 16;
+
+    //Max results calls in flight against the same platform
+    @Value("${lti13.ags.resultsPerPlatform:4}")
+    private int resultsPerPlatform = 4;
+
+    //Max time to fill the results of all the line items of a request
+    @Value("${lti13.ags.resultsTimeoutSeconds:60}")
+    private long resultsTimeoutSeconds = 60;
+
+    private final Map<String, Semaphore> platformPermits = new ConcurrentHashMap<>();
+
+    private ExecutorService resultsExecutor;
+
     //Asking for a token with the right scope.
     @Override
     public LTIToken getToken(String type, PlatformDeployment platformDeployment) throws ConnectionException {
@@ -78,45 +113,16 @@ public class AdvantageAGSServiceImpl implements AdvantageAGSService {
     @Override
     public LineItems getLineItems(LTIToken LTIToken, LtiContextEntity context, boolean results, LTIToken resultsToken) throws ConnectionException {
         LineItems lineItems = new LineItems();
-        log.debug(TextConstants.TOKEN + LTIToken.getAccess_token());
         try {
-            RestTemplate restTemplate = advantageConnectorHelper.createRestTemplate();
-            //We add the token in the request with this.
-            HttpEntity request = advantageConnectorHelper.createTokenizedRequestEntity(LTIToken, TextConstants.ALL_LINEITEMS_TYPE);
-            //The URL to get the course contents is stored in the context (in our database) because it came
-            // from the platform when we created the link to the context, and we saved it then.
-            final String GET_LINEITEMS = context.getLineitems();
-            log.debug("GET_LINEITEMS -  " + GET_LINEITEMS);
-            ResponseEntity<LineItem[]> lineItemsGetResponse = restTemplate.exchange(GET_LINEITEMS, HttpMethod.GET, request, LineItem[].class);
-            HttpStatusCode status = lineItemsGetResponse.getStatusCode();
-            if (status.is2xxSuccessful()) {
-                List<LineItem> lineItemsList = new ArrayList<>(Arrays.asList(Objects.requireNonNull(lineItemsGetResponse.getBody())));
-                //We deal here with pagination
-                log.debug("We have {} lineItems", lineItems.getLineItemList().size());
-                String nextPage = advantageConnectorHelper.nextPage(lineItemsGetResponse.getHeaders());
-                log.debug("We have next page: " + nextPage);
-                while (nextPage != null) {
-                    ResponseEntity<LineItem[]> responseForNextPage = restTemplate.exchange(nextPage, HttpMethod.GET,
-                            request, LineItem[].class);
-                    LineItem[] nextLineItemsList = responseForNextPage.getBody();
-                    //List<LineItem> nextLineItems = nextLineItemsList.getLineItemList();
-                    log.debug("We have {} lineitems in the next page", nextLineItemsList.length);
-                    lineItemsList.addAll(Arrays.asList(nextLineItemsList));
-                    nextPage = advantageConnectorHelper.nextPage(responseForNextPage.getHeaders());
-                }
-                lineItems.getLineItemList().addAll(lineItemsList);
-            } else {
-                String exceptionMsg = "Can't get the AGS";
-                log.error(exceptionMsg);
-                throw new ConnectionException(exceptionMsg);
+            try (Stream<LineItem> lineItemStream = streamLineItems(LTIToken, context)) {
+                lineItems.getLineItemList().addAll(lineItemStream.collect(Collectors.toList()));
             }
+            log.debug("We have {} lineItems", lineItems.getLineItemList().size());
             if (results) {
-                for (LineItem lineItem : lineItems.getLineItemList()) {
-                    Results results1 = getResults(resultsToken, context, lineItem.getId());
-                    lineItem.setResults(results1);
-                }
+                fetchResultsInParallel(resultsToken, context, lineItems.getLineItemList());
             }
         } catch (Exception e) {
+            advantageConnectorHelper.invalidateTokenIfRejected(context.getPlatformDeployment(), AGSScope.AGS_LINEITEMS_SCOPE.getScope(), e);
             StringBuilder exceptionMsg = new StringBuilder();
             exceptionMsg.append("Can't get the AGS");
             log.error(exceptionMsg.toString(), e);
@@ -125,6 +131,113 @@ public class AdvantageAGSServiceImpl implements AdvantageAGSService {
         return lineItems;
     }
 
+    //Lazy version of getLineItems, the pages are requested while the stream is consumed.
+    // Close the stream if you don't consume it until the end.
+    @Override
+    public Stream<LineItem> streamLineItems(LTIToken LTIToken, LtiContextEntity context) {
+        log.debug(TextConstants.TOKEN + LTIToken.getAccess_token());
+        RestTemplate restTemplate = advantageConnectorHelper.createRestTemplate();
+        //We add the token in the request with this.
+        HttpEntity request = advantageConnectorHelper.createTokenizedRequestEntity(LTIToken, TextConstants.ALL_LINEITEMS_TYPE);
+        //The URL to get the course contents is stored in the context (in our database) because it came
+        // from the platform when we created the link to the context, and we saved it then.
+        final String GET_LINEITEMS = context.getLineitems();
+        log.debug("GET_LINEITEMS -  " + GET_LINEITEMS);
+        return LinkHeaderPageIterator.stream(restTemplate, GET_LINEITEMS, request, LineItem[].class, Arrays::asList,
+                advantageConnectorHelper::nextPage, advantageConnectorHelper.getPagePrefetchExecutor());
+    }
+
+    //Fills the results of each line item concurrently. The calls run in a shared pool and the number of calls in flight
+    // against the same platform is capped, so one big gradebook can't flood the platform or starve the other requests.
+    // A line item that fails is logged and left without results, the rest of the list is still returned.
+    // The whole fill is bounded by resultsTimeoutSeconds, the calls still running then are cancelled.
+    private void fetchResultsInParallel(LTIToken resultsToken, LtiContextEntity context, List<LineItem> lineItemList) throws InterruptedException {
+        Semaphore permits = platformPermits.computeIfAbsent(platformKey(context), key -> new Semaphore(resultsPerPlatform));
+        ExecutorService executor = getResultsExecutor();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(resultsTimeoutSeconds);
+        List<Future<Void>> futures = new ArrayList<>(lineItemList.size());
+        try {
+            for (LineItem lineItem : lineItemList) {
+                //The permit is taken here and not in the pool threads, so they never sit blocked waiting for a platform.
+                if (!permits.tryAcquire(deadline - System.nanoTime(), TimeUnit.NANOSECONDS)) {
+                    log.warn("Timed out getting the results of the lineitems, {} of {} were requested", futures.size(), lineItemList.size());
+                    return;
+                }
+                //A call that started gives the permit back when it really ends: the cancel only interrupts it, and a
+                // blocking read keeps going until the platform answers or the read timeout. done() gives it back
+                // for a call cancelled before it started. Whoever claims the task first releases, and only once.
+                AtomicBoolean claimed = new AtomicBoolean();
+                FutureTask<Void> task = new FutureTask<>(() -> {
+                    if (!claimed.compareAndSet(false, true)) {
+                        return null;
+                    }
+                    try {
+                        //The pages are read in this thread, a pool thread never waits on another pool
+                        lineItem.setResults(getResults(resultsToken, context, lineItem.getId(), null));
+                    } catch (Exception e) {
+                        log.warn("Can't get the results for the lineitem {}: {}", lineItem.getId(), e.getMessage());
+                    } finally {
+                        permits.release();
+                    }
+                    return null;
+                }) {
+                    @Override
+                    protected void done() {
+                        if (claimed.compareAndSet(false, true)) {
+                            permits.release();
+                        }
+                    }
+                };
+                try {
+                    executor.execute(task);
+                } catch (RejectedExecutionException e) {
+                    permits.release();
+                    throw e;
+                }
+                futures.add(task);
+            }
+            for (Future<Void> future : futures) {
+                future.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+            }
+        } catch (TimeoutException e) {
+            log.warn("Timed out after {}s getting the results of the lineitems, the pending ones are left without results", resultsTimeoutSeconds);
+        } catch (ExecutionException e) {
+            log.warn("Can't get the results of the lineitems", e.getCause());
+        } finally {
+            //Only the calls still running (or not started) are affected
+            for (Future<Void> future : futures) {
+                future.cancel(true);
+            }
+        }
+    }
+
+    private String platformKey(LtiContextEntity context) {
+        PlatformDeployment platformDeployment = context.getPlatformDeployment();
+        if (platformDeployment != null && platformDeployment.getIss() != null) {
+            return platformDeployment.getIss();
+        }
+        return StringUtils.defaultString(context.getLineitems());
+    }
+
+    private synchronized ExecutorService getResultsExecutor() {
+        if (resultsExecutor == null) {
+            AtomicInteger threadCount = new AtomicInteger();
+            resultsExecutor = Executors.newFixedThreadPool(resultsConcurrency, runnable -> {
+                Thread thread = new Thread(runnable, "lti-ags-results-" + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return resultsExecutor;
+    }
+
+    @PreDestroy
+    public synchronized void shutdown() {
+        if (resultsExecutor != null) {
+            resultsExecutor.shutdownNow();
+        }
+    }
+
     @Override
     public boolean deleteLineItem(LTIToken LTIToken, LtiContextEntity context, String id) throws ConnectionException {
         log.debug(TextConstants.TOKEN + LTIToken.getAccess_token());
@@ -147,6 +260,7 @@ public class AdvantageAGSServiceImpl implements AdvantageAGSService {
                 throw new ConnectionException(exceptionMsg);
             }
         } catch (Exception e) {
+            advantageConnectorHelper.invalidateTokenIfRejected(context.getPlatformDeployment(), AGSScope.AGS_LINEITEMS_SCOPE.getScope(), e);
             StringBuilder exceptionMsg = new StringBuilder();
             exceptionMsg.append("Can't delete the lineitem with id").append(id);
             log.error(exceptionMsg.toString(), e);
@@ -178,6 +292,7 @@ public class AdvantageAGSServiceImpl implements AdvantageAGSService {
                 throw new ConnectionException(exceptionMsg);
             }
         } catch (Exception e) {
+            advantageConnectorHelper.invalidateTokenIfRejected(context.getPlatformDeployment(), AGSScope.AGS_LINEITEMS_SCOPE.getScope(), e);
             StringBuilder exceptionMsg = new StringBuilder();
             exceptionMsg.append("Can't get put lineitem ").append(lineItem.getId());
             log.error(exceptionMsg.toString(), e);
@@ -219,6 +334,7 @@ public class AdvantageAGSServiceImpl implements AdvantageAGSService {
                 throw new ConnectionException(exceptionMsg);
             }
         } catch (Exception e) {
+            advantageConnectorHelper.invalidateTokenIfRejected(context.getPlatformDeployment(), AGSScope.AGS_LINEITEMS_SCOPE.getScope(), e);
             StringBuilder exceptionMsg = new StringBuilder();
             exceptionMsg.append("Can't get the lineitem ").append(id);
             log.error(exceptionMsg.toString(), e);
@@ -252,6 +368,7 @@ public class AdvantageAGSServiceImpl implements AdvantageAGSService {
                 throw new ConnectionException(exceptionMsg);
             }
         } catch (Exception e) {
+            advantageConnectorHelper.invalidateTokenIfRejected(context.getPlatformDeployment(), AGSScope.AGS_LINEITEMS_SCOPE.getScope(), e);
             StringBuilder exceptionMsg = new StringBuilder();
             exceptionMsg.append("Can't post lineitem");
             log.error(exceptionMsg.toString(), e);
@@ -262,48 +379,18 @@ public class AdvantageAGSServiceImpl implements AdvantageAGSService {
 
     @Override
     public Results getResults(LTIToken LTITokenResults, LtiContextEntity context, String lineItemId) throws ConnectionException {
+        return getResults(LTITokenResults, context, lineItemId, advantageConnectorHelper.getPagePrefetchExecutor());
+    }
+
+    private Results getResults(LTIToken LTITokenResults, LtiContextEntity context, String lineItemId, Executor prefetchExecutor) throws ConnectionException {
         Results results = new Results();
-        log.debug(TextConstants.TOKEN + LTITokenResults.getAccess_token());
         try {
-            RestTemplate restTemplate = advantageConnectorHelper.createRestTemplate();
-            //We add the token in the request with this.
-            HttpEntity request = advantageConnectorHelper.createTokenizedRequestEntity(LTITokenResults, TextConstants.RESULTS_TYPE);
-            //The URL to get the course contents is stored in the context (in our database) because it came
-            // from the platform when we created the link to the context, and we saved it then.
-            String getResultsUrl;
-            int lineItemsUrlQIdx = lineItemId.indexOf("?");
-            if (lineItemsUrlQIdx > 0) { // if Moodle
-                String params = lineItemId.substring(lineItemsUrlQIdx);
-                getResultsUrl = lineItemId.substring(0, lineItemsUrlQIdx) + "/results" + params;
-            } else {
-                getResultsUrl = lineItemId + "/results";
-            }
-            log.debug("getResultsUrl -  " + getResultsUrl  + "/" + lineItemId + "/results");
-            ResponseEntity<Result[]> resultsGetResponse = restTemplate.exchange(getResultsUrl, HttpMethod.GET, request, Result[].class);
-            HttpStatusCode status = resultsGetResponse.getStatusCode();
-            if (status.is2xxSuccessful()) {
-                List<Result> resultList = new ArrayList<>(Arrays.asList(Objects.requireNonNull(resultsGetResponse.getBody())));
-                //We deal here with pagination
-                log.debug("We have {} results", results.getResultList().size());
-                String nextPage = advantageConnectorHelper.nextPage(resultsGetResponse.getHeaders());
-                log.debug("We have next page: " + nextPage);
-                while (nextPage != null) {
-                    ResponseEntity<Results> responseForNextPage = restTemplate.exchange(nextPage, HttpMethod.GET,
-                            request, Results.class);
-                    Results nextResultsList = responseForNextPage.getBody();
-                    List<Result> nextResults = nextResultsList
-                            .getResultList();
-                    log.debug("We have {} results in the next page", nextResultsList.getResultList().size());
-                    resultList.addAll(nextResults);
-                    nextPage = advantageConnectorHelper.nextPage(responseForNextPage.getHeaders());
-                }
-                results.getResultList().addAll(resultList);
-            } else {
-                String exceptionMsg = "Can't get the AGS";
-                log.error(exceptionMsg);
-                throw new ConnectionException(exceptionMsg);
+            try (Stream<Result> resultStream = streamResults(LTITokenResults, context, lineItemId, prefetchExecutor)) {
+                results.getResultList().addAll(resultStream.collect(Collectors.toList()));
             }
+            log.debug("We have {} results", results.getResultList().size());
         } catch (Exception e) {
+            advantageConnectorHelper.invalidateTokenIfRejected(context.getPlatformDeployment(), AGSScope.AGS_RESULTS_SCOPE.getScope(), e);
             StringBuilder exceptionMsg = new StringBuilder();
             exceptionMsg.append("Can't get the AGS");
             log.error(exceptionMsg.toString(), e);
@@ -312,6 +399,31 @@ public class AdvantageAGSServiceImpl implements AdvantageAGSService {
         return results;
     }
 
+    //Lazy version of getResults, the pages are requested while the stream is consumed.
+    // Close the stream if you don't consume it until the end.
+    @Override
+    public Stream<Result> streamResults(LTIToken LTITokenResults, LtiContextEntity context, String lineItemId) {
+        return streamResults(LTITokenResults, context, lineItemId, advantageConnectorHelper.getPagePrefetchExecutor());
+    }
+
+    private Stream<Result> streamResults(LTIToken LTITokenResults, LtiContextEntity context, String lineItemId, Executor prefetchExecutor) {
+        log.debug(TextConstants.TOKEN + LTITokenResults.getAccess_token());
+        RestTemplate restTemplate = advantageConnectorHelper.createRestTemplate();
+        //We add the token in the request with this.
+        HttpEntity request = advantageConnectorHelper.createTokenizedRequestEntity(LTITokenResults, TextConstants.RESULTS_TYPE);
+        String getResultsUrl;
+        int lineItemsUrlQIdx = lineItemId.indexOf("?");
+        if (lineItemsUrlQIdx > 0) { // if Moodle
+            String params = lineItemId.substring(lineItemsUrlQIdx);
+            getResultsUrl = lineItemId.substring(0, lineItemsUrlQIdx) + "/results" + params;
+        } else {
+            getResultsUrl = lineItemId + "/results";
+        }
+        log.debug("getResultsUrl -  " + getResultsUrl);
+        return LinkHeaderPageIterator.stream(restTemplate, getResultsUrl, request, Result[].class, Arrays::asList,
+                advantageConnectorHelper::nextPage, prefetchExecutor);
+    }
+
     @Override
     public Results postScore(LTIToken lTITokenScores, LTIToken lTITokenResults, LtiContextEntity context, String lineItemId, Score score) throws ConnectionException {
         log.debug(TextConstants.TOKEN + lTITokenScores.getAccess_token());
@@ -341,6 +453,7 @@ public class AdvantageAGSServiceImpl implements AdvantageAGSService {
                 throw new ConnectionException(exceptionMsg);
             }
         } catch (Exception e) {
+            advantageConnectorHelper.invalidateTokenIfRejected(context.getPlatformDeployment(), AGSScope.AGS_SCORES_SCOPE.getScope(), e);
             StringBuilder exceptionMsg = new StringBuilder();
             exceptionMsg.append("Can't post scores");
             log.error(exceptionMsg.toString(), e);
@@ -23,26 +23,39 @@ import net.unicon.lti.service.lti.AdvantageConnectorHelper;
 import net.unicon.lti.service.lti.LTIJWTService;
 import net.unicon.lti.utils.TextConstants;
 import org.apache.commons.collections4.CollectionUtils;
+import org.apache.commons.lang3.ArrayUtils;
 import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.exception.ExceptionUtils;
 import org.json.JSONObject;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.http.*;
-import org.springframework.http.client.BufferingClientHttpRequestFactory;
-import org.springframework.http.client.SimpleClientHttpRequestFactory;
+import org.springframework.http.client.ClientHttpRequestFactory;
 import org.springframework.http.converter.json.MappingJackson2HttpMessageConverter;
 import org.springframework.stereotype.Service;
 import org.springframework.util.LinkedMultiValueMap;
 import org.springframework.util.MultiValueMap;
+import org.springframework.web.client.HttpClientErrorException;
 import org.springframework.web.client.RestTemplate;
 
+import jakarta.annotation.PreDestroy;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.net.URLDecoder;
 import java.security.GeneralSecurityException;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.springframework.http.MediaType.TEXT_HTML;
 
@@ -52,11 +65,48 @@ public class AdvantageConnectorHelperImpl implements AdvantageConnectorHelper {
     @Autowired
     LTIJWTService ltijwtService;
 
-    RestTemplate restTemplate;
+    @Autowired
+    ClientHttpRequestFactory ltiClientHttpRequestFactory;
+
+    // Only used for the token requests, see getTokenRestTemplate()
+    RestTemplate tokenRestTemplate;
 
     @Autowired
     private ExceptionMessageGenerator exceptionMessageGenerator;
 
+    //Start refreshing a cached token this many seconds before it expires
+    @Value("${lti13.tokens.refreshAheadSeconds:60}")
+    private long refreshAheadSeconds = 60;
+
+    //Stop using a cached token this many seconds before the platform says it expires
+    @Value("${lti13.tokens.expirySkewSeconds:10}")
+    private long expirySkewSeconds = 10;
+
+    //Longest lti13.tokens.clientAssertionReuseSeconds we honor, well inside the hour the assertion is valid
+    static final long MAX_CLIENT_ASSERTION_REUSE_SECONDS = 300;
+
+    //Every token request gets a new client assertion (and jti). Only the platforms (iss) listed here, that accept a jti
+    //more than once, reuse the one signed for the same deployment during this window (0 to never reuse it)
+    @Value("${lti13.tokens.clientAssertionReuseSeconds:30}")
+    private long clientAssertionReuseSeconds = 30;
+
+    @Value("${lti13.tokens.clientAssertionReuseIssuers:}")
+    private String[] clientAssertionReuseIssuers = new String[0];
+
+    private final Map<String, CachedToken> tokens = new ConcurrentHashMap<>();
+
+    private final Map<String, CachedClientAssertion> clientAssertions = new ConcurrentHashMap<>();
+
+    private final Map<String, CompletableFuture<LTIToken>> tokensInFlight = new ConcurrentHashMap<>();
+
+    private ExecutorService tokenRefreshExecutor;
+
+    //Threads used to prefetch the next page of the paginated AGS and NRPS calls
+    @Value("${lti13.paging.prefetchThreads:8}")
+    private int prefetchThreads = 8;
+
+    private ExecutorService pagePrefetchExecutor;
+
     static final Logger log = LoggerFactory.getLogger(AdvantageConnectorHelperImpl.class);
 
 
@@ -116,17 +166,145 @@ public class AdvantageConnectorHelperImpl implements AdvantageConnectorHelper {
 
     //Asking for a token. The scope will come in the scope parameter
     //The platformDeployment has the URL to ask for the token.
+    //Tokens are cached by platform deployment and scope until they are about to expire, and refreshed in the
+    //background a bit before that. Only one request per deployment and scope goes to the platform at a time.
     @Override
     public LTIToken getToken(PlatformDeployment platformDeployment, String scope) throws ConnectionException {
+        String cacheKey = platformDeployment.getKeyId() + "|" + scope;
+        long now = System.currentTimeMillis();
+        CachedToken cached = tokens.get(cacheKey);
+        if (cached != null && now < cached.expiresAt) {
+            if (now >= cached.refreshAt) {
+                refreshInBackground(cacheKey, platformDeployment, scope);
+            }
+            return cached.token;
+        }
+        return awaitToken(fetchToken(cacheKey, platformDeployment, scope));
+    }
+
+    @Override
+    public void invalidateToken(PlatformDeployment platformDeployment, String scope) {
+        String cacheKey = platformDeployment.getKeyId() + "|" + scope;
+        if (tokens.remove(cacheKey) != null) {
+            log.info("Dropped the cached token for {}", cacheKey);
+        }
+    }
+
+    @Override
+    public boolean invalidateTokenIfRejected(PlatformDeployment platformDeployment, String scope, Throwable error) {
+        if (platformDeployment == null || ExceptionUtils.indexOfType(error, HttpClientErrorException.Unauthorized.class) < 0) {
+            return false;
+        }
+        invalidateToken(platformDeployment, scope);
+        return true;
+    }
+
+    // Starts a request to the platform for that key, or joins the one already running.
+    private CompletableFuture<LTIToken> fetchToken(String cacheKey, PlatformDeployment platformDeployment, String scope) {
+        CompletableFuture<LTIToken> future = new CompletableFuture<>();
+        CompletableFuture<LTIToken> existing = tokensInFlight.putIfAbsent(cacheKey, future);
+        if (existing != null) {
+            return existing;
+        }
+        try {
+            LTIToken ltiToken = requestToken(platformDeployment, scope);
+            cacheToken(cacheKey, ltiToken);
+            future.complete(ltiToken);
+        } catch (ConnectionException | RuntimeException e) {
+            future.completeExceptionally(e);
+        } finally {
+            tokensInFlight.remove(cacheKey, future);
+        }
+        return future;
+    }
+
+    private void refreshInBackground(String cacheKey, PlatformDeployment platformDeployment, String scope) {
+        if (tokensInFlight.containsKey(cacheKey)) {
+            return;
+        }
+        try {
+            getTokenRefreshExecutor().execute(() -> {
+                if (fetchToken(cacheKey, platformDeployment, scope).isCompletedExceptionally()) {
+                    log.warn("Error refreshing the token for {} in the background, we will use the current one until it expires", cacheKey);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            log.debug("Token refresh for {} not scheduled", cacheKey);
+        }
+    }
+
+    private LTIToken awaitToken(CompletableFuture<LTIToken> future) throws ConnectionException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ConnectionException("Interrupted while getting the token");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof ConnectionException) {
+                throw (ConnectionException) e.getCause();
+            }
+            throw new ConnectionException(exceptionMessageGenerator.exceptionMessage("Can't get the token. Exception", (Exception) e.getCause()));
+        }
+    }
+
+    private void cacheToken(String cacheKey, LTIToken ltiToken) {
+        // If the platform doesn't tell us how long the token lives, we don't keep it.
+        if (ltiToken == null || ltiToken.getExpires_in() <= 0) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        long lifetime = ltiToken.getExpires_in() * 1000L;
+        long expiresAt = now + lifetime - Math.min(expirySkewSeconds * 1000L, lifetime / 2);
+        long refreshAt = expiresAt - Math.min(refreshAheadSeconds * 1000L, (expiresAt - now) / 2);
+        tokens.put(cacheKey, new CachedToken(ltiToken, refreshAt, expiresAt));
+    }
+
+    private synchronized ExecutorService getTokenRefreshExecutor() {
+        if (tokenRefreshExecutor == null) {
+            tokenRefreshExecutor = Executors.newFixedThreadPool(2, runnable -> {
+                Thread thread = new Thread(runnable, "lti-token-refresh");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return tokenRefreshExecutor;
+    }
+
+    @Override
+    public synchronized Executor getPagePrefetchExecutor() {
+        if (pagePrefetchExecutor == null) {
+            AtomicInteger threadCount = new AtomicInteger();
+            pagePrefetchExecutor = Executors.newFixedThreadPool(prefetchThreads, runnable -> {
+                Thread thread = new Thread(runnable, "lti-page-prefetch-" + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return pagePrefetchExecutor;
+    }
+
+    @PreDestroy
+    public synchronized void shutdown() {
+        if (tokenRefreshExecutor != null) {
+            tokenRefreshExecutor.shutdownNow();
+        }
+        if (pagePrefetchExecutor != null) {
+            pagePrefetchExecutor.shutdownNow();
+        }
+    }
+
+    private LTIToken requestToken(PlatformDeployment platformDeployment, String scope) throws ConnectionException {
         LTIToken ltiToken = null;
         ResponseEntity<LTIToken> reportPostResponse = null;
 
         try {
-            // We need a specific request for the token.
-            HttpEntity request = createTokenRequest(scope, platformDeployment);
+            // We need a specific request for the token. The same assertion is used if we have to try again with JSON,
+            // the platform rejected the first request so it didn't take its jti.
+            String clientAssertion = getClientAssertion(platformDeployment);
+            HttpEntity request = createTokenRequest(scope, clientAssertion);
             final String POST_TOKEN_URL = platformDeployment.getoAuth2TokenUrl();
             log.debug("POST_TOKEN_URL -  " + POST_TOKEN_URL);
-            reportPostResponse = postEntity(POST_TOKEN_URL, request, platformDeployment, scope);
+            reportPostResponse = postEntity(POST_TOKEN_URL, request, clientAssertion, scope);
         } catch (Exception e) {
             log.error("ERROR GETTING THE TOKEN", e);
             StringBuilder exceptionMsg = new StringBuilder();
@@ -153,28 +331,42 @@ public class AdvantageConnectorHelperImpl implements AdvantageConnectorHelper {
     }
 
 
-    private ResponseEntity<LTIToken> postEntity(String POST_TOKEN_URL, HttpEntity request, PlatformDeployment platformDeployment, String scope) throws GeneralSecurityException, IOException {
+    private ResponseEntity<LTIToken> postEntity(String POST_TOKEN_URL, HttpEntity request, String clientAssertion, String scope) {
         ResponseEntity<LTIToken> reportPostResponse;
-        restTemplate = restTemplate == null ? createRestTemplate() : restTemplate;
+        RestTemplate restTemplate = getTokenRestTemplate();
         try {
-            // Add response converter that supports Moodle's response type of text/html
-            MappingJackson2HttpMessageConverter converter = new MappingJackson2HttpMessageConverter();
-            converter.setSupportedMediaTypes(Arrays.asList(TEXT_HTML));
-            restTemplate.getMessageConverters().add(converter);
-
             reportPostResponse = restTemplate.postForEntity(POST_TOKEN_URL, request, LTIToken.class);
         } catch (Exception ex) {
             log.error("ERROR GETTING THE TOKEN", ex);
             log.error("Can't get the token. Exception. We will try again with a JSON Payload");
-            HttpEntity request2 = createTokenRequestJSON(scope, platformDeployment);
+            HttpEntity request2 = createTokenRequestJSON(scope, clientAssertion);
             reportPostResponse = restTemplate.
                     postForEntity(POST_TOKEN_URL, request2, LTIToken.class);
         }
         return reportPostResponse;
     }
 
+    // Signs the client assertion (see generateStateOrClientAssertionJWT). The platforms in clientAssertionReuseIssuers
+    // get the one signed for this deployment a few seconds ago, the token requests for several scopes usually come together.
+    private String getClientAssertion(PlatformDeployment platformDeployment) throws GeneralSecurityException, IOException {
+        if (clientAssertionReuseSeconds <= 0 || !ArrayUtils.contains(clientAssertionReuseIssuers, platformDeployment.getIss())) {
+            return ltijwtService.generateStateOrClientAssertionJWT(platformDeployment);
+        }
+        // Everything that goes in the assertion is in the key, so a changed deployment gets a new one
+        String cacheKey = platformDeployment.getKeyId() + "|" + platformDeployment.getClientId() + "|"
+                + platformDeployment.getoAuth2TokenUrl() + "|" + platformDeployment.getoAuth2TokenAud();
+        long now = System.currentTimeMillis();
+        CachedClientAssertion cached = clientAssertions.get(cacheKey);
+        if (cached != null && now < cached.reuseUntil) {
+            return cached.jwt;
+        }
+        String clientAssertion = ltijwtService.generateStateOrClientAssertionJWT(platformDeployment);
+        clientAssertions.put(cacheKey, new CachedClientAssertion(clientAssertion, now + Math.min(clientAssertionReuseSeconds, MAX_CLIENT_ASSERTION_REUSE_SECONDS) * 1000L));
+        return clientAssertion;
+    }
+
     // This is specific to request a token.
-    private HttpEntity createTokenRequest(String scope, PlatformDeployment platformDeployment) throws GeneralSecurityException, IOException {
+    private HttpEntity createTokenRequest(String scope, String clientAssertion) {
         HttpHeaders headers = new HttpHeaders();
         headers.setContentType(MediaType.APPLICATION_FORM_URLENCODED);
         MultiValueMap<String, String> map = new LinkedMultiValueMap<>();
@@ -182,14 +374,14 @@ public class AdvantageConnectorHelperImpl implements AdvantageConnectorHelper {
         // This is standard too
         map.add("client_assertion_type", "urn:ietf:params:oauth:client-assertion-type:jwt-bearer");
         //This is special (see the generateTokenRequestJWT method for more comments)
-        map.add("client_assertion", ltijwtService.generateStateOrClientAssertionJWT(platformDeployment));
+        map.add("client_assertion", clientAssertion);
         //We need to pass the scope of the token, meaning, the service we want to allow with this token.
         map.add("scope", scope);
         return new HttpEntity<>(map, headers);
     }
 
     // This is specific to request a token.
-    private HttpEntity createTokenRequestJSON(String scope, PlatformDeployment platformDeployment) throws GeneralSecurityException, IOException {
+    private HttpEntity createTokenRequestJSON(String scope, String clientAssertion) {
         HttpHeaders headers = new HttpHeaders();
         headers.setContentType(MediaType.APPLICATION_JSON);
         JSONObject parameterJson = new JSONObject();
@@ -198,16 +390,30 @@ public class AdvantageConnectorHelperImpl implements AdvantageConnectorHelper {
         // This is standard too
         parameterJson.put("client_assertion_type", "urn:ietf:params:oauth:client-assertion-type:jwt-bearer");
         //This is special (see the generateTokenRequestJWT method for more comments)
-        parameterJson.put("client_assertion", ltijwtService.generateStateOrClientAssertionJWT(platformDeployment));
+        parameterJson.put("client_assertion", clientAssertion);
         //We need to pass the scope of the token, meaning, the service we want to allow with this token.
         parameterJson.put("scope", scope);
         return new HttpEntity<>(parameterJson.toString(), headers);
     }
 
+    // The client for the platform token endpoints, configured only once.
+    // Some platforms (Moodle) answer the token request with a text/html content type, so this one
+    // also reads JSON from text/html responses.
+    public synchronized RestTemplate getTokenRestTemplate() {
+        if (tokenRestTemplate == null) {
+            RestTemplate restTemplate = createRestTemplate();
+            MappingJackson2HttpMessageConverter converter = new MappingJackson2HttpMessageConverter();
+            converter.setSupportedMediaTypes(Arrays.asList(TEXT_HTML));
+            restTemplate.getMessageConverters().add(converter);
+            tokenRestTemplate = restTemplate;
+        }
+        return tokenRestTemplate;
+    }
+
+    // The RestTemplate is cheap, the connections live in the shared (pooled) request factory.
     @Override
     public RestTemplate createRestTemplate() {
-        return new RestTemplate(
-                new BufferingClientHttpRequestFactory(new SimpleClientHttpRequestFactory()));
+        return new RestTemplate(ltiClientHttpRequestFactory);
     }
 
     @Override
@@ -236,4 +442,26 @@ public class AdvantageConnectorHelperImpl implements AdvantageConnectorHelper {
         }
         return null;
     }
-}
\ No newline at end of file
+
+    private static class CachedToken {
+        private final LTIToken token;
+        private final long refreshAt;
+        private final long expiresAt;
+
+        CachedToken(LTIToken token, long refreshAt, long expiresAt) {
+            this.token = token;
+            this.refreshAt = refreshAt;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private static class CachedClientAssertion {
+        private final String jwt;
+        private final long reuseUntil;
+
+        CachedClientAssertion(String jwt, long reuseUntil) {
+            this.jwt = jwt;
+            this.reuseUntil = reuseUntil;
+        }
+    }
+}
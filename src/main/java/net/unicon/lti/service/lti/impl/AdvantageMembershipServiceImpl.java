@@ -12,6 +12,7 @@
  */
 package net.unicon.lti.service.lti.impl;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
 import net.unicon.lti.exceptions.ConnectionException;
 import net.unicon.lti.exceptions.helper.ExceptionMessageGenerator;
 import net.unicon.lti.model.LtiContextEntity;
@@ -22,6 +23,7 @@ import net.unicon.lti.model.oauth2.LTIToken;
 import net.unicon.lti.service.lti.AdvantageConnectorHelper;
 import net.unicon.lti.service.lti.AdvantageMembershipService;
 import net.unicon.lti.utils.TextConstants;
+import net.unicon.lti.utils.lti.MembershipContainerIterator;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -29,9 +31,13 @@ import org.springframework.http.*;
 import org.springframework.stereotype.Service;
 import org.springframework.web.client.RestTemplate;
 
-import java.util.ArrayList;
-import java.util.List;
-import java.util.Objects;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /**
  * This manages all the Membership call for the LTIRequest (and for LTI in general)
@@ -48,63 +54,72 @@ public class AdvantageMembershipServiceImpl implements AdvantageMembershipServic
 
     static final Logger log = LoggerFactory.getLogger(AdvantageMembershipServiceImpl.class);
 
+    private static final String MEMBERSHIP_SCOPE = "https://purl.imsglobal.org/spec/lti-nrps/scope/contextmembership.readonly";
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
     //Asking for a token with the right scope.
     @Override
     public LTIToken getToken(PlatformDeployment platformDeployment) throws ConnectionException {
-        String scope = "https://purl.imsglobal.org/spec/lti-nrps/scope/contextmembership.readonly";
-        return advantageConnectorHelper.getToken(platformDeployment, scope);
+        return advantageConnectorHelper.getToken(platformDeployment, MEMBERSHIP_SCOPE);
     }
 
     //Calling the membership service and getting a paginated result of users.
     @Override
     public CourseUsers callMembershipService(LTIToken LTIToken, LtiContextEntity context) throws ConnectionException {
-        CourseUsers courseUsers;
-        log.debug(TextConstants.TOKEN + LTIToken.getAccess_token());
-        try {
-            RestTemplate restTemplate = advantageConnectorHelper.createRestTemplate();
-            //We add the token in the request with this.
-            HttpEntity request = advantageConnectorHelper.createTokenizedRequestEntity(LTIToken, "application/vnd.ims.lti-nrps.v2.membershipcontainer+json"); // Note: Schoology requires correct accept type
-            //The URL to get the course contents is stored in the context (in our database) because it came
-            // from the platform when we created the link to the context, and we saved it then.
-            final String GET_MEMBERSHIP = context.getContext_memberships_url();
-            log.debug("GET_MEMBERSHIP -  " + GET_MEMBERSHIP);
-            ResponseEntity<CourseUsers> membershipGetResponse = restTemplate.
-                    exchange(GET_MEMBERSHIP, HttpMethod.GET, request, CourseUsers.class);
-            ResponseEntity<String> membershipGetResponse2 = restTemplate.
-                    exchange(GET_MEMBERSHIP, HttpMethod.GET, request, String.class);
-            HttpStatusCode status = membershipGetResponse.getStatusCode();
-            if (status.is2xxSuccessful()) {
-                courseUsers = membershipGetResponse.getBody();
-                List<CourseUser> courseUserList = new ArrayList<>(Objects.requireNonNull(courseUsers).getCourseUserList());
-                //We deal here with pagination
-                log.debug("We have {} users", courseUsers.getCourseUserList().size());
-                String nextPage = advantageConnectorHelper.nextPage(membershipGetResponse.getHeaders());
-                log.debug("We have next page: " + nextPage);
-                while (nextPage != null) {
-                    ResponseEntity<CourseUsers> responseForNextPage = restTemplate.exchange(nextPage, HttpMethod.GET,
-                            request, CourseUsers.class);
-                    CourseUsers nextCourseList = responseForNextPage.getBody();
-                    List<CourseUser> nextCourseUsersList = Objects.requireNonNull(nextCourseList)
-                            .getCourseUserList();
-                    log.debug("We have {} users in the next page", nextCourseList.getCourseUserList().size());
-                    courseUserList.addAll(nextCourseUsersList);
-                    nextPage = advantageConnectorHelper.nextPage(responseForNextPage.getHeaders());
-                }
-                courseUsers = new CourseUsers();
-                courseUsers.getCourseUserList().addAll(courseUserList);
-            } else {
-                String exceptionMsg = "Can't get the membership";
-                log.error(exceptionMsg);
-                throw new ConnectionException(exceptionMsg);
-            }
+        CourseUsers courseUsers = new CourseUsers();
+        callMembershipService(LTIToken, context, courseUsers.getCourseUserList()::add);
+        return courseUsers;
+    }
+
+    //Calling the membership service and handing each user to the consumer as soon as it is read from the response.
+    // Same reading as streamMembership, no page is buffered in memory.
+    @Override
+    public void callMembershipService(LTIToken LTIToken, LtiContextEntity context, Consumer<CourseUser> consumer) throws ConnectionException {
+        try (Stream<CourseUser> members = streamMembership(LTIToken, context)) {
+            members.forEach(consumer);
         } catch (Exception e) {
             StringBuilder exceptionMsg = new StringBuilder();
             exceptionMsg.append("Can't get the membership");
             log.error(exceptionMsg.toString(), e);
             throw new ConnectionException(exceptionMessageGenerator.exceptionMessage(exceptionMsg.toString(), e));
         }
-        return courseUsers;
     }
 
+    //The pages are requested while the stream is consumed and each one is parsed as it arrives (MembershipContainerIterator),
+    // so neither a big page nor a big roster is ever fully in memory. Close the stream if you don't consume it until the end.
+    @Override
+    public Stream<CourseUser> streamMembership(LTIToken LTIToken, LtiContextEntity context) {
+        log.debug(TextConstants.TOKEN + LTIToken.getAccess_token());
+        RestTemplate restTemplate = advantageConnectorHelper.createRestTemplate();
+        //We add the token in the request with this.
+        HttpEntity request = advantageConnectorHelper.createTokenizedRequestEntity(LTIToken, "application/vnd.ims.lti-nrps.v2.membershipcontainer+json"); // Note: Schoology requires correct accept type
+        final String GET_MEMBERSHIP = context.getContext_memberships_url();
+        log.debug("GET_MEMBERSHIP -  " + GET_MEMBERSHIP);
+        MembershipContainerIterator iterator = new MembershipContainerIterator(restTemplate, GET_MEMBERSHIP, request.getHeaders(), objectMapper,
+                advantageConnectorHelper::nextPage, advantageConnectorHelper.getPagePrefetchExecutor());
+        //The pages are requested while the stream is consumed, so a rejected token shows up there and not in a catch of ours
+        Iterator<CourseUser> evictingIterator = new Iterator<CourseUser>() {
+            @Override
+            public boolean hasNext() {
+                try {
+                    return iterator.hasNext();
+                } catch (RuntimeException e) {
+                    advantageConnectorHelper.invalidateTokenIfRejected(context.getPlatformDeployment(), MEMBERSHIP_SCOPE, e);
+                    throw e;
+                }
+            }
+
+            @Override
+            public CourseUser next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return iterator.next();
+            }
+        };
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(evictingIterator, Spliterator.ORDERED | Spliterator.NONNULL), false)
+                .onClose(iterator::close);
+    }
 
 }
@@ -25,10 +25,9 @@ import net.unicon.lti.model.lti.dto.DeepLinkDTO;
 import net.unicon.lti.model.lti.dto.DeepLinkJWTDTO;
 import net.unicon.lti.repository.ToolLinkRepository;
 import net.unicon.lti.service.lti.DeepLinkService;
+import net.unicon.lti.service.lti.KeyringService;
 import net.unicon.lti.service.lti.LTIDataService;
 import net.unicon.lti.utils.LtiStrings;
-import net.unicon.lti.utils.TextConstants;
-import net.unicon.lti.utils.oauth.OAuthUtils;
 import org.apache.commons.lang3.time.DateUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -57,6 +56,9 @@ public class DeepLinkServiceImpl implements DeepLinkService {
     @Autowired
     LTIDataService ltiDataService;
 
+    @Autowired
+    KeyringService keyringService;
+
     @Autowired
     private ExceptionMessageGenerator exceptionMessageGenerator;
 
@@ -88,7 +90,8 @@ public class DeepLinkServiceImpl implements DeepLinkService {
     public DeepLinkJWTDTO generateDeepLinkJWT(List<String> deepLinkRequestIds, Jws<Claims> id_token) throws GeneralSecurityException, IOException {
 
         Date date = new Date();
-        Key toolPrivateKey = OAuthUtils.loadPrivateKey(ltiDataService.getOwnPrivateKey());
+        String kid = keyringService.getActiveKid();
+        Key toolPrivateKey = keyringService.getPrivateKey(kid);
         DeepLinkJWTDTO deepLinkJWTDTO = new DeepLinkJWTDTO();
 
         List<Map<String,Object>> jsonDeepLinks = createDeepLinksJSON(deepLinkRequestIds);
@@ -96,7 +99,7 @@ public class DeepLinkServiceImpl implements DeepLinkService {
 
         String jwt = Jwts.builder()
                 .setHeaderParam(LtiStrings.TYP, LtiStrings.JWT)
-                .setHeaderParam(LtiStrings.KID, TextConstants.DEFAULT_KID)
+                .setHeaderParam(LtiStrings.KID, kid)
                 .setHeaderParam(LtiStrings.ALG, LtiStrings.RS256)
                 .setIssuer(Iterables.getOnlyElement(id_token.getBody().getAudience()))//Client ID
                 .setAudience(id_token.getBody().getIssuer())
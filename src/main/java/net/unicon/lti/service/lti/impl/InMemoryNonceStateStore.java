@@ -0,0 +1,123 @@
+/**
+ * Copyright 2021 Unicon (R)
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.unicon.lti.service.lti.impl;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalListener;
+import jakarta.annotation.PostConstruct;
+import net.unicon.lti.model.lti.dto.NonceState;
+import net.unicon.lti.service.lti.NonceStateStore;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Service;
+
+import java.sql.Timestamp;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the nonces in memory, indexed by nonce and by state hash. Entries expire after lti13.nonces.ttlSeconds and
+ * the store never holds more than lti13.nonces.maxEntries (the oldest go first).
+ * The launch must arrive to the same instance that created the nonce, so use it with a single instance or sticky sessions.
+ */
+@Service
+@ConditionalOnProperty(name = "lti13.nonces.store", havingValue = "memory")
+public class InMemoryNonceStateStore implements NonceStateStore {
+
+    static final Logger log = LoggerFactory.getLogger(InMemoryNonceStateStore.class);
+
+    @Value("${lti13.nonces.ttlSeconds:3600}")
+    private long ttlSeconds = 3600;
+
+    @Value("${lti13.nonces.maxEntries:100000}")
+    private long maxEntries = 100000;
+
+    private Cache<String, NonceState> nonces;
+
+    //state hash -> nonce
+    private Cache<String, String> stateHashes;
+
+    @PostConstruct
+    public void init() {
+        stateHashes = CacheBuilder.newBuilder()
+                .expireAfterWrite(ttlSeconds, TimeUnit.SECONDS)
+                .maximumSize(maxEntries)
+                .build();
+        //When a nonce goes (expired, evicted or deleted) its state hash goes with it
+        RemovalListener<String, NonceState> removeStateHash = notification -> {
+            NonceState removed = notification.getValue();
+            if (removed != null) {
+                stateHashes.asMap().remove(removed.getStateHash(), removed.getNonce());
+            }
+        };
+        nonces = CacheBuilder.newBuilder()
+                .expireAfterWrite(ttlSeconds, TimeUnit.SECONDS)
+                .maximumSize(maxEntries)
+                .removalListener(removeStateHash)
+                .build();
+        log.info("Nonces will be kept in memory for {} seconds (max {} entries)", ttlSeconds, maxEntries);
+    }
+
+    @Override
+    public NonceState save(NonceState nonceState) {
+        if (nonceState.getCreatedAt() == null) {
+            nonceState.setCreatedAt(new Timestamp(System.currentTimeMillis()));
+        }
+        nonces.put(nonceState.getNonce(), nonceState);
+        stateHashes.put(nonceState.getStateHash(), nonceState.getNonce());
+        return nonceState;
+    }
+
+    @Override
+    public NonceState findByNonce(String nonce) {
+        return nonce != null ? nonces.getIfPresent(nonce) : null;
+    }
+
+    @Override
+    public NonceState findByStateHash(String stateHash) {
+        String nonce = stateHash != null ? stateHashes.getIfPresent(stateHash) : null;
+        return nonce != null ? nonces.getIfPresent(nonce) : null;
+    }
+
+    @Override
+    public boolean saveIfAbsent(NonceState nonceState) {
+        if (nonceState.getCreatedAt() == null) {
+            nonceState.setCreatedAt(new Timestamp(System.currentTimeMillis()));
+        }
+        if (nonces.asMap().putIfAbsent(nonceState.getNonce(), nonceState) != null) {
+            return false;
+        }
+        stateHashes.put(nonceState.getStateHash(), nonceState.getNonce());
+        return true;
+    }
+
+    @Override
+    public boolean deleteByNonce(String nonce) {
+        return nonce != null && nonces.asMap().remove(nonce) != null;
+    }
+
+    //The TTL already removes the old entries, this only makes the removal happen now.
+    @Override
+    public void deleteCreatedBefore(Date date) {
+        nonces.asMap().values().removeIf(nonceState -> nonceState.getCreatedAt().before(date));
+        nonces.cleanUp();
+        stateHashes.cleanUp();
+    }
+
+    long size() {
+        return nonces.size();
+    }
+}
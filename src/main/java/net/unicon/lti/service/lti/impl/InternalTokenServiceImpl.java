@@ -0,0 +1,212 @@
+/**
+ * Copyright 2021 Unicon (R)
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.unicon.lti.service.lti.impl;
+
+import io.jsonwebtoken.JwsHeader;
+import io.jsonwebtoken.JwtBuilder;
+import io.jsonwebtoken.JwtParserBuilder;
+import io.jsonwebtoken.Jwts;
+import io.jsonwebtoken.Locator;
+import io.jsonwebtoken.LocatorAdapter;
+import io.jsonwebtoken.UnsupportedJwtException;
+import io.jsonwebtoken.security.Keys;
+import jakarta.annotation.PostConstruct;
+import net.unicon.lti.service.lti.InternalTokenService;
+import net.unicon.lti.service.lti.KeyringService;
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.crypto.SecretKey;
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.security.KeyFactory;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.interfaces.RSAPublicKey;
+import java.security.spec.PKCS8EncodedKeySpec;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The state, the nonce state and the API tokens are only verified by this tool, so they don't need the RSA keys
+ * of the keyring. HS256 and ES256 are much cheaper to sign than RS256.
+ * Whatever the algorithm we sign with, we verify the tokens signed with any of our keys (by their alg and kid),
+ * so the tokens already issued keep working when the algorithm or the active secret changes.
+ * With HS256 and ES256 all the instances must share the same secrets or keys, the startup fails if they are missing or invalid.
+ */
+@Service
+public class InternalTokenServiceImpl implements InternalTokenService {
+
+    static final Logger log = LoggerFactory.getLogger(InternalTokenServiceImpl.class);
+
+    public static final String RS256 = "RS256";
+    public static final String HS256 = "HS256";
+    public static final String ES256 = "ES256";
+
+    @Autowired
+    KeyringService keyringService;
+
+    @Value("${lti13.internalTokens.algorithm:RS256}")
+    private String algorithm = RS256;
+
+    //kid:base64 secret (32 bytes or more) separated by commas. The first one signs, the others are only verified (rotation)
+    @Value("${lti13.internalTokens.hmacSecrets:}")
+    private String hmacSecrets;
+
+    //PKCS#8 and X.509 PEM of a P-256 key pair
+    @Value("${lti13.internalTokens.ecPrivateKey:}")
+    private String ecPrivateKey;
+
+    @Value("${lti13.internalTokens.ecPublicKey:}")
+    private String ecPublicKey;
+
+    @Value("${lti13.internalTokens.ecKid:internal-es256}")
+    private String ecKid = "internal-es256";
+
+    private final Map<String, SecretKey> secrets = new LinkedHashMap<>();
+
+    private String activeSecretKid;
+
+    private PrivateKey ecSigningKey;
+
+    private PublicKey ecVerificationKey;
+
+    private final Locator<Key> keyLocator = new LocatorAdapter<Key>() {
+        @Override
+        protected Key locate(JwsHeader header) {
+            String kid = header.getKeyId();
+            if (HS256.equals(header.getAlgorithm())) {
+                return kid != null ? secrets.get(kid) : null;
+            }
+            if (ES256.equals(header.getAlgorithm())) {
+                return ecKid.equals(kid) ? ecVerificationKey : null;
+            }
+            // Our own RSA public key, already parsed by the keyring.
+            Key toolPublicKey = keyringService.getPublicKey(kid);
+            if (toolPublicKey != null) {
+                return toolPublicKey;
+            }
+            try {
+                return keyringService.getPublicKey();
+            } catch (GeneralSecurityException ex) {
+                log.error("Error validating the token. Error generating the tool public key", ex);
+                throw new UnsupportedJwtException("Cannot verify JWS signature: the tool public key is not available", ex);
+            }
+        }
+    };
+
+    @PostConstruct
+    public void init() {
+        algorithm = StringUtils.upperCase(StringUtils.trim(algorithm));
+        if (!RS256.equals(algorithm) && !HS256.equals(algorithm) && !ES256.equals(algorithm)) {
+            throw new IllegalStateException("lti13.internalTokens.algorithm must be RS256, HS256 or ES256, not " + algorithm);
+        }
+        loadSecrets();
+        loadEcKeys();
+        log.info("The internal tokens (state, nonce state, API) are signed with {}", algorithm);
+    }
+
+    //A secret or key that is configured but can't be read fails the startup, even if it is only used to verify:
+    //ignoring it would reject the tokens signed with it without saying why
+    private void loadSecrets() {
+        for (String secret : StringUtils.split(StringUtils.defaultString(hmacSecrets), ',')) {
+            String kid = StringUtils.trim(StringUtils.substringBefore(secret, ":"));
+            try {
+                if (StringUtils.isEmpty(kid) || !secret.contains(":")) {
+                    throw new IllegalArgumentException("missing kid");
+                }
+                secrets.put(kid, Keys.hmacShaKeyFor(Base64.getDecoder().decode(StringUtils.trim(StringUtils.substringAfter(secret, ":")))));
+            } catch (RuntimeException ex) {
+                throw new IllegalStateException("lti13.internalTokens.hmacSecrets has an invalid secret " + kid + ", it must be kid:base64 of 32 bytes or more", ex);
+            }
+            if (activeSecretKid == null) {
+                activeSecretKid = kid;
+            }
+        }
+        if (HS256.equals(algorithm) && activeSecretKid == null) {
+            throw new IllegalStateException("lti13.internalTokens.hmacSecrets must be set to sign the internal tokens with HS256");
+        }
+    }
+
+    private void loadEcKeys() {
+        if (StringUtils.isNotBlank(ecPrivateKey) || StringUtils.isNotBlank(ecPublicKey)) {
+            if (StringUtils.isBlank(ecPrivateKey) || StringUtils.isBlank(ecPublicKey)) {
+                throw new IllegalStateException("lti13.internalTokens.ecPrivateKey and lti13.internalTokens.ecPublicKey must be set together");
+            }
+            try {
+                KeyFactory factory = KeyFactory.getInstance("EC");
+                ecSigningKey = factory.generatePrivate(new PKCS8EncodedKeySpec(pemContent(ecPrivateKey)));
+                ecVerificationKey = factory.generatePublic(new X509EncodedKeySpec(pemContent(ecPublicKey)));
+            } catch (GeneralSecurityException | IllegalArgumentException ex) {
+                throw new IllegalStateException("lti13.internalTokens.ecPrivateKey and lti13.internalTokens.ecPublicKey must be the PKCS#8 and X.509 PEM of a P-256 key pair", ex);
+            }
+        }
+        if (ES256.equals(algorithm) && ecSigningKey == null) {
+            throw new IllegalStateException("lti13.internalTokens.ecPrivateKey and lti13.internalTokens.ecPublicKey must be set to sign the internal tokens with ES256");
+        }
+    }
+
+    private static byte[] pemContent(String pem) {
+        return Base64.getDecoder().decode(pem.replace("\\n", "").replaceAll("-----[A-Z ]+-----", "").replaceAll("\\s", ""));
+    }
+
+    @Override
+    public String getAlgorithm() {
+        return algorithm;
+    }
+
+    @Override
+    public String sign(JwtBuilder builder) throws GeneralSecurityException {
+        if (HS256.equals(algorithm)) {
+            return builder.header().keyId(activeSecretKid).and()
+                    .signWith(secrets.get(activeSecretKid), Jwts.SIG.HS256)
+                    .compact();
+        }
+        if (ES256.equals(algorithm)) {
+            return builder.header().keyId(ecKid).and()
+                    .signWith(ecSigningKey, Jwts.SIG.ES256)
+                    .compact();
+        }
+        String kid = keyringService.getActiveKid();
+        return builder.header().keyId(kid).and()
+                .signWith(keyringService.getPrivateKey(kid), Jwts.SIG.RS256)
+                .compact();
+    }
+
+    @Override
+    public Locator<Key> getKeyLocator() {
+        return keyLocator;
+    }
+
+    @Override
+    public PublicKey getVerificationKey() {
+        // The RSA keys are always accepted (tokens signed before a switch to HS256 or ES256), so there is
+        // only one key when no secret or EC key is configured and the keyring publishes a single key.
+        if (!secrets.isEmpty() || ecVerificationKey != null) {
+            return null;
+        }
+        Map<String, RSAPublicKey> publishedKeys = keyringService.getPublishedKeys();
+        return publishedKeys.size() == 1 ? publishedKeys.values().iterator().next() : null;
+    }
+
+    @Override
+    public JwtParserBuilder parser(PublicKey verificationKey) {
+        return verificationKey != null ? Jwts.parser().verifyWith(verificationKey) : Jwts.parser().keyLocator(keyLocator);
+    }
+}
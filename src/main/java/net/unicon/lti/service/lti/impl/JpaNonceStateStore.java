@@ -0,0 +1,111 @@
+/**
+ * Copyright 2021 Unicon (R)
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.unicon.lti.service.lti.impl;
+
+import net.unicon.lti.model.lti.dto.NonceState;
+import net.unicon.lti.repository.NonceStateRepository;
+import net.unicon.lti.service.lti.NonceStateStore;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.stereotype.Service;
+
+import java.sql.Timestamp;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Keeps the nonces in the nonce_state table. Works with any number of instances of the tool.
+ * Every nonce is tagged with the time bucket it was created in. Expired buckets are found through
+ * the expiry_bucket index and deleted by primary key a few hundred rows at a time, so the cleanup
+ * never scans the table or holds locks that would make the launches wait.
+ */
+@Service
+@ConditionalOnProperty(name = "lti13.nonces.store", havingValue = "jpa", matchIfMissing = true)
+public class JpaNonceStateStore implements NonceStateStore {
+
+    static final Logger log = LoggerFactory.getLogger(JpaNonceStateStore.class);
+
+    @Autowired
+    NonceStateRepository nonceStateRepository;
+
+    @Value("${lti13.nonces.bucketSeconds:300}")
+    private long bucketSeconds = 300;
+
+    @Value("${lti13.nonces.deleteChunkSize:500}")
+    private int deleteChunkSize = 500;
+
+    @Override
+    public NonceState save(NonceState nonceState) {
+        nonceState.setExpiryBucket(bucketOf(System.currentTimeMillis()));
+        return nonceStateRepository.save(nonceState);
+    }
+
+    @Override
+    public NonceState findByNonce(String nonce) {
+        return nonceStateRepository.findByNonce(nonce);
+    }
+
+    @Override
+    public NonceState findByStateHash(String stateHash) {
+        return nonceStateRepository.findByStateHash(stateHash);
+    }
+
+    @Override
+    public boolean saveIfAbsent(NonceState nonceState) {
+        long now = System.currentTimeMillis();
+        nonceState.setExpiryBucket(bucketOf(now));
+        try {
+            nonceStateRepository.insert(nonceState.getNonce(), nonceState.getStateHash(), nonceState.getState(),
+                    nonceState.getLtiStorageTarget(), nonceState.getExpiryBucket(), new Timestamp(now));
+            return true;
+        } catch (DataIntegrityViolationException e) {
+            //Somebody (maybe in another instance) stored it first
+            log.debug("The nonce {} is already stored", nonceState.getNonce());
+            return false;
+        }
+    }
+
+    @Override
+    public boolean deleteByNonce(String nonce) {
+        return nonceStateRepository.deleteByNonce(nonce) > 0;
+    }
+
+    @Override
+    public void deleteCreatedBefore(Date date) {
+        //Only whole buckets are deleted, a nonce can live up to one bucket longer than asked
+        long bucket = bucketOf(date.getTime());
+        long deleted = 0;
+        while (true) {
+            List<String> nonces = nonceStateRepository.findNoncesInBucketsBefore(bucket, PageRequest.of(0, deleteChunkSize));
+            if (nonces.isEmpty()) {
+                break;
+            }
+            int count = nonceStateRepository.deleteByNonceIn(nonces);
+            deleted += count;
+            //Nothing deleted means another instance got there first, let it finish
+            if (count == 0 || nonces.size() < deleteChunkSize) {
+                break;
+            }
+        }
+        log.debug("Deleted {} nonces from buckets before {}", deleted, bucket);
+    }
+
+    long bucketOf(long millis) {
+        return millis / (bucketSeconds * 1000L);
+    }
+}
@@ -0,0 +1,142 @@
+/**
+ * Copyright 2021 Unicon (R)
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.unicon.lti.service.lti.impl;
+
+import jakarta.annotation.PostConstruct;
+import net.unicon.lti.service.lti.KeyringService;
+import net.unicon.lti.utils.TextConstants;
+import net.unicon.lti.utils.oauth.OAuthUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.security.GeneralSecurityException;
+import java.security.PrivateKey;
+import java.security.interfaces.RSAPublicKey;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Holds the tool's own keys already parsed, so we don't decode the PEM strings every time we sign or validate
+ * a JWT. The keys are loaded once at startup:
+ * - active: oidc.privatekey and oidc.publickey, the only one we sign with.
+ * - next: published in the JWKS before it becomes the active one, so the platforms already have it when we switch.
+ * - retired: old public keys, still published (and accepted) until the tokens signed with them expire.
+ * Rotating is a config change (next becomes active, active becomes retired) that can be rolled out instance by instance.
+ */
+@Service
+public class KeyringServiceImpl implements KeyringService {
+
+    static final Logger log = LoggerFactory.getLogger(KeyringServiceImpl.class);
+
+    @Value("${oidc.privatekey}")
+    private String ownPrivateKey;
+
+    @Value("${oidc.publickey}")
+    private String ownPublicKey;
+
+    @Value("${lti13.keyring.activeKid:" + TextConstants.DEFAULT_KID + "}")
+    private String activeKid = TextConstants.DEFAULT_KID;
+
+    @Value("${lti13.keyring.next.kid:}")
+    private String nextKid;
+
+    @Value("${lti13.keyring.next.publickey:}")
+    private String nextPublicKey;
+
+    //kid:public key (PEM or only its base64 content) separated by commas
+    @Value("${lti13.keyring.retired:}")
+    private String retiredKeys;
+
+    private volatile PrivateKey activePrivateKey;
+
+    //Active first, then next and retired. Replaced (never modified) when the keys are loaded again
+    private volatile Map<String, RSAPublicKey> publicKeys = Collections.emptyMap();
+
+    @PostConstruct
+    public void loadKeys() {
+        Map<String, RSAPublicKey> keys = new LinkedHashMap<>();
+        // If the keys are wrong we don't stop the application, but every JWT operation will fail (as it did before)
+        try {
+            activePrivateKey = OAuthUtils.loadPrivateKey(ownPrivateKey);
+        } catch (GeneralSecurityException | IllegalArgumentException | NullPointerException ex) {
+            activePrivateKey = null;
+            log.error("Error loading the tool private key", ex);
+        }
+        addPublicKey(keys, activeKid, ownPublicKey);
+        if (StringUtils.isNotBlank(nextKid)) {
+            addPublicKey(keys, nextKid, nextPublicKey);
+        }
+        for (String retired : StringUtils.split(StringUtils.defaultString(retiredKeys), ',')) {
+            addPublicKey(keys, StringUtils.trim(StringUtils.substringBefore(retired, ":")), StringUtils.trim(StringUtils.substringAfter(retired, ":")));
+        }
+        publicKeys = Collections.unmodifiableMap(keys);
+        log.info("Tool keys loaded, signing with {}, publishing {}", activeKid, publicKeys.keySet());
+    }
+
+    private void addPublicKey(Map<String, RSAPublicKey> keys, String kid, String publicKey) {
+        if (keys.containsKey(kid)) {
+            log.error("The tool key {} is configured twice, ignoring the second one", kid);
+            return;
+        }
+        try {
+            keys.put(kid, OAuthUtils.loadPublicKey(publicKey));
+        } catch (GeneralSecurityException | IllegalArgumentException | NullPointerException ex) {
+            log.error("Error loading the tool public key {}", kid, ex);
+        }
+    }
+
+    @Override
+    public String getActiveKid() {
+        return activeKid;
+    }
+
+    @Override
+    public PrivateKey getPrivateKey() throws GeneralSecurityException {
+        return getPrivateKey(activeKid);
+    }
+
+    @Override
+    public PrivateKey getPrivateKey(String kid) throws GeneralSecurityException {
+        PrivateKey privateKey = activeKid.equals(kid) ? activePrivateKey : null;
+        if (privateKey == null) {
+            throw new GeneralSecurityException("The tool private key " + kid + " is not available");
+        }
+        return privateKey;
+    }
+
+    @Override
+    public RSAPublicKey getPublicKey() throws GeneralSecurityException {
+        RSAPublicKey publicKey = publicKeys.get(activeKid);
+        if (publicKey == null) {
+            throw new GeneralSecurityException("The tool public key is not available");
+        }
+        return publicKey;
+    }
+
+    @Override
+    public RSAPublicKey getPublicKey(String kid) {
+        if (kid == null) {
+            return null;
+        }
+        return publicKeys.get(kid);
+    }
+
+    @Override
+    public Map<String, RSAPublicKey> getPublishedKeys() {
+        return publicKeys;
+    }
+}
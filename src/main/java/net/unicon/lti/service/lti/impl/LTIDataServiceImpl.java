@@ -15,7 +15,13 @@ package net.unicon.lti.service.lti.impl;
 import net.unicon.lti.exceptions.DataServiceException;
 import net.unicon.lti.model.*;
 import net.unicon.lti.repository.AllRepositories;
+import net.unicon.lti.repository.LtiUpsertRepository;
+import net.unicon.lti.service.lti.KeyringService;
 import net.unicon.lti.service.lti.LTIDataService;
+import net.unicon.lti.service.lti.NonceStateService;
+import net.unicon.lti.service.lti.PlatformDeploymentRegistry;
+import net.unicon.lti.service.lti.PlatformJwksService;
+import net.unicon.lti.utils.KeyDigests;
 import net.unicon.lti.utils.LtiStrings;
 import net.unicon.lti.utils.lti.LTI3Request;
 import org.slf4j.Logger;
@@ -27,6 +33,7 @@ import org.springframework.transaction.annotation.Transactional;
 
 import jakarta.persistence.Query;
 import java.util.List;
+import java.util.Objects;
 import java.util.Optional;
 
 /**
@@ -38,9 +45,30 @@ public class LTIDataServiceImpl implements LTIDataService {
 
     static final Logger log = LoggerFactory.getLogger(LTIDataServiceImpl.class);
 
+    //Everything we have about the launch in one query, see loadLTIDataFromDB. RepositoryQueryPlanTest checks its plan.
+    public static final String LOAD_LTI_DATA_QUERY = "SELECT k, c, l, m, u" +
+            " FROM PlatformDeployment k " +
+            "LEFT JOIN k.contexts c ON c.contextKeyHash = :context " + // LtiContextEntity, by the indexed hash of the key
+            "LEFT JOIN c.links l ON l.toolLink.toolLinkId = :link  AND l.ltiLinkId = : ltiLinkId " + // LtiLinkEntity
+            "LEFT JOIN c.memberships m " + // LtiMembershipEntity
+            "LEFT JOIN m.user u ON u.userKeyHash = :user " +
+            " WHERE k.clientId = :clientId AND k.deploymentId = :deploymentId AND k.iss = :iss AND (m IS NULL OR (m.context = c AND m.user = u))";
+
     @Autowired
     AllRepositories repos;
 
+    @Autowired
+    KeyringService keyring;
+
+    @Autowired
+    PlatformJwksService platformJwks;
+
+    @Autowired
+    NonceStateService nonceStates;
+
+    @Autowired
+    PlatformDeploymentRegistry platformDeployments;
+
     //This will be used to create the deep links. Needs to be in the application properties.
     @Value("${application.url}")
     private String localUrl;
@@ -64,6 +92,38 @@ public class LTIDataServiceImpl implements LTIDataService {
         return repos;
     }
 
+    /**
+     * The tool's own keys, already parsed
+     * @return the keyring
+     */
+    @Override
+    public KeyringService getKeyring() {
+        return keyring;
+    }
+
+    /**
+     * The platform public keys, cached by jwks endpoint
+     * @return the platform JWKS cache
+     */
+    @Override
+    public PlatformJwksService getPlatformJwks() {
+        return platformJwks;
+    }
+
+    @Override
+    public NonceStateService getNonceStates() {
+        return nonceStates;
+    }
+
+    /**
+     * The platform deployments, kept in memory for the launches
+     * @return the deployments registry
+     */
+    @Override
+    public PlatformDeploymentRegistry getPlatformDeployments() {
+        return platformDeployments;
+    }
+
     @Override
     @Transactional
     //We check if we already have the information about this link in the database.
@@ -79,21 +139,14 @@ public class LTIDataServiceImpl implements LTIDataService {
             link = lti.getLtiTargetLinkUrl().substring(lti.getLtiTargetLinkUrl().lastIndexOf("?link=") + 6);
         }
 
-        String sqlDeployment = "SELECT k, c, l, m, u" +
-                " FROM PlatformDeployment k " +
-                "LEFT JOIN k.contexts c ON c.contextKey = :context " + // LtiContextEntity
-                "LEFT JOIN c.links l ON l.toolLink.toolLinkId = :link  AND l.ltiLinkId = : ltiLinkId " + // LtiLinkEntity
-                "LEFT JOIN c.memberships m " + // LtiMembershipEntity
-                "LEFT JOIN m.user u ON u.userKey = :user " +
-                " WHERE k.clientId = :clientId AND k.deploymentId = :deploymentId AND k.iss = :iss AND (m IS NULL OR (m.context = c AND m.user = u))";
-        Query qDeployment = repos.entityManager.createQuery(sqlDeployment);
+        Query qDeployment = repos.entityManager.createQuery(LOAD_LTI_DATA_QUERY);
         qDeployment.setMaxResults(1);
         qDeployment.setParameter("clientId", lti.getAud());
         qDeployment.setParameter("deploymentId", lti.getLtiDeploymentId());
-        qDeployment.setParameter("context", lti.getLtiContextId());
+        qDeployment.setParameter("context", KeyDigests.sha256(lti.getLtiContextId()));
         qDeployment.setParameter("link", link);
         qDeployment.setParameter("ltiLinkId", lti.getLtiLinkId());
-        qDeployment.setParameter("user", lti.getSub());
+        qDeployment.setParameter("user", KeyDigests.sha256(lti.getSub()));
         qDeployment.setParameter("iss", lti.getIss());
 
         @SuppressWarnings("unchecked")
@@ -138,34 +191,36 @@ public class LTIDataServiceImpl implements LTIDataService {
         // For the next elements, we will check if we have it already in the lti object, and if not
         // we check if it exists in the database or not.
         // if exists we get it, if not we create it.
-        repos.entityManager.merge(lti.getKey());
+        // Existing rows are only written when the claims digest changed, a repeat launch with the same claims does no writes.
         int inserts = 0;
         int updates = 0;
-        if (lti.getContext() == null && lti.getLtiDeploymentId() != null) {
-            //Context is not in the lti request at this moment. Let's see if it exists:
-            LtiContextEntity ltiContextEntity = repos.contexts.findByContextKeyAndPlatformDeployment(lti.getLtiContextId(), platformDeployment);
-            if (ltiContextEntity == null) {
-                LtiContextEntity newContext = new LtiContextEntity(lti.getLtiContextId(), lti.getKey(), lti.getLtiContextTitle(), lti.getLtiNamesRoleServiceContextMembershipsUrl(), lti.getLtiEndpointLineItems(), null);
-                lti.setContext(repos.contexts.save(newContext));
+        String contextDigest = KeyDigests.sha256Of(lti.getLtiContextTitle(), lti.getLtiNamesRoleServiceContextMembershipsUrl(), lti.getLtiEndpointLineItems());
+        LtiContextEntity context = lti.getContext();
+        if ((context == null && lti.getLtiDeploymentId() != null && lti.getLtiContextId() != null) || (context != null && !contextDigest.equals(context.getClaimsDigest()))) {
+            //One statement inserts it or updates it, no matter if another launch inserted it meanwhile
+            String contextKey = context != null ? context.getContextKey() : lti.getLtiContextId();
+            LtiUpsertRepository.Upserted upserted = repos.upserts.upsertContext(platformDeployment.getKeyId(), contextKey, KeyDigests.sha256(contextKey),
+                    lti.getLtiContextTitle(), lti.getLtiNamesRoleServiceContextMembershipsUrl(), lti.getLtiEndpointLineItems(), contextDigest);
+            if (context == null) {
+                context = new LtiContextEntity(contextKey, lti.getKey(), lti.getLtiContextTitle(), null);
+            }
+            context.setContextId(upserted.getId());
+            context.setTitle(lti.getLtiContextTitle());
+            context.setContext_memberships_url(lti.getLtiNamesRoleServiceContextMembershipsUrl());
+            context.setLineitems(lti.getLtiEndpointLineItems());
+            context.setClaimsDigest(contextDigest);
+            markStored(context);
+            lti.setContext(context);
+            if (upserted.isInserted()) {
                 inserts++;
                 log.debug("LTIupdate: Inserted context id=" + lti.getLtiContextId());
             } else {
-                //Update values from the request.
-                ltiContextEntity.setTitle(lti.getLtiContextTitle());
-                ltiContextEntity.setContext_memberships_url(lti.getLtiNamesRoleServiceContextMembershipsUrl());
-                ltiContextEntity.setLineitems(lti.getLtiEndpointLineItems());
-                lti.setContext(ltiContextEntity);
-                repos.entityManager.merge(lti.getContext()); // reconnect object for this transaction
-                lti.setLtiContextId(lti.getContext().getContextKey());
-                log.debug("LTIupdate: Reconnected existing context id=" + lti.getLtiContextId());
+                updates++;
+                log.debug("LTIupdate: Updated context (id=" + context.getContextId() + ") title=" + lti.getLtiContextTitle());
             }
-        } else if (lti.getContext() != null) {
-            lti.getContext().setTitle(lti.getLtiContextTitle());
-            lti.getContext().setContext_memberships_url(lti.getLtiNamesRoleServiceContextMembershipsUrl());
-            lti.getContext().setLineitems(lti.getLtiEndpointLineItems());
-            lti.setContext(repos.entityManager.merge(lti.getContext())); // reconnect object for this transaction
+        }
+        if (lti.getContext() != null) {
             lti.setLtiContextId(lti.getContext().getContextKey());
-            log.debug("LTIupdate: Reconnected existing context id=" + lti.getLtiContextId());
         }
 
         //If we are getting a link in the url we do this, if not we skip it.
@@ -178,8 +233,8 @@ public class LTIDataServiceImpl implements LTIDataService {
                     existingLink = true;
                 }
             }
-            Optional<ToolLink> toolLink = repos.toolLinks.findById(link);
             if (!existingLink) { //Then we need to add it
+                Optional<ToolLink> toolLink = repos.toolLinks.findById(link);
                 if (toolLink.isPresent()) {
                     LtiLinkEntity newLink = new LtiLinkEntity(lti.getContext(), toolLink.get());
                     newLink.setLtiLinkId(lti.getLtiLinkId());
@@ -192,97 +247,67 @@ public class LTIDataServiceImpl implements LTIDataService {
             }
         }
 
-        if (lti.getUser() == null && lti.getSub() != null) {
-            LtiUserEntity ltiUserEntity = repos.users.findByUserKeyAndPlatformDeployment(lti.getSub(), platformDeployment);
-
-            if (ltiUserEntity == null) {
-                LtiUserEntity newUser = new LtiUserEntity(lti.getSub(), null, platformDeployment);
-                newUser.setDisplayName(lti.getLtiName());
-                newUser.setEmail(lti.getLtiEmail());
-                if (lti.getLtiCustom().containsKey("canvas_user_id")) {
-                    newUser.setLmsUserId(lti.getLtiCustom().get("canvas_user_id").toString());
-                }
-                lti.setUser(repos.users.save(newUser));
+        String lmsUserId = lti.getLtiCustom().get("canvas_user_id") != null ? lti.getLtiCustom().get("canvas_user_id").toString() : null;
+        String userDigest = KeyDigests.sha256Of(lti.getLtiName(), lti.getLtiEmail(), lmsUserId);
+        LtiUserEntity user = lti.getUser();
+        if ((user == null && lti.getSub() != null) || (user != null && !userDigest.equals(user.getClaimsDigest()))) {
+            String userKey = user != null ? user.getUserKey() : lti.getSub();
+            LtiUpsertRepository.Upserted upserted = repos.upserts.upsertUser(platformDeployment.getKeyId(), userKey, KeyDigests.sha256(userKey),
+                    lti.getLtiName(), lti.getLtiEmail(), lmsUserId, userDigest);
+            if (user == null) {
+                user = new LtiUserEntity(userKey, null, platformDeployment);
+            }
+            user.setUserId(upserted.getId());
+            //The claims we don't receive keep the value we had
+            if (lti.getLtiName() != null) {
+                user.setDisplayName(lti.getLtiName());
+            }
+            if (lti.getLtiEmail() != null) {
+                user.setEmail(lti.getLtiEmail());
+            }
+            if (lmsUserId != null) {
+                user.setLmsUserId(lmsUserId);
+            }
+            user.setClaimsDigest(userDigest);
+            markStored(user);
+            lti.setUser(user);
+            if (upserted.isInserted()) {
                 inserts++;
                 log.debug("LTIupdate: Inserted user id=" + lti.getSub());
             } else {
-                lti.setUser(ltiUserEntity);
-                repos.entityManager.merge(lti.getUser()); // reconnect object for this transaction
-                lti.setSub(lti.getUser().getUserKey());
-                lti.setLtiName(lti.getUser().getDisplayName());
-                lti.setLtiEmail(lti.getUser().getEmail());
-                log.debug("LTIupdate: Reconnected existing user id=" + lti.getSub());
+                updates++;
+                log.debug("LTIupdate: Updated lti.user (id=" + user.getUserKey() + ") name=" + lti.getLtiName() + ", email=" + lti.getLtiEmail());
             }
-        } else if (lti.getUser() != null) {
-            lti.setUser(repos.entityManager.merge(lti.getUser())); // reconnect object for this transaction
+        }
+        if (lti.getUser() != null) {
             lti.setSub(lti.getUser().getUserKey());
             lti.setLtiName(lti.getUser().getDisplayName());
             lti.setLtiEmail(lti.getUser().getEmail());
-            log.debug("LTIupdate: Reconnected existing user id=" + lti.getSub());
-        }
-
-
-        if (lti.getMembership() == null && lti.getContext() != null && lti.getUser() != null) {
-            LtiMembershipEntity ltiMembershipEntity = repos.members.findByUserAndContext(lti.getUser(), lti.getContext());
-            if (ltiMembershipEntity == null) {
-                int roleNum = lti.makeUserRoleNum(lti.getLtiRoles()); // NOTE: do not use userRoleNumber here, it may have been overridden
-                LtiMembershipEntity newMember = new LtiMembershipEntity(lti.getContext(), lti.getUser(), roleNum);
-                lti.setMembership(repos.members.save(newMember));
-                inserts++;
-                log.debug("LTIupdate: Inserted membership id=" + newMember.getMembershipId() + ", role=" + newMember.getRole() + ", user="
-                        + lti.getSub() + ", context=" + lti.getLtiContextId());
-            } else {
-                lti.setMembership(ltiMembershipEntity);
-                repos.entityManager.merge(lti.getMembership()); // reconnect object for this transaction
-                lti.setSub(lti.getUser().getUserKey());
-                lti.setLtiContextId(lti.getContext().getContextKey());
-                log.debug("LTIupdate: Reconnected existing membership id=" + lti.getMembership().getMembershipId());
-            }
-        } else if (lti.getMembership() != null) {
-            lti.setMembership(repos.entityManager.merge(lti.getMembership())); // reconnect object for this transaction
-            lti.setSub(lti.getUser().getUserKey());
-            lti.setLtiContextId(lti.getContext().getContextKey());
-            log.debug("LTIupdate: Reconnected existing membership id=" + lti.getMembership().getMembershipId());
-        }
-
-        // Next we handle updates to context_title, link_title, user_displayname, user_email, or role
-        LtiContextEntity context = lti.getContext();
-        if (lti.getLtiContextTitle() != null && context != null && !lti.getLtiContextTitle().equals(lti.getContext().getTitle())) {
-
-            context.setTitle(lti.getLtiContextTitle());
-            lti.setContext(repos.contexts.save(context));
-            updates++;
-            log.debug("LTIupdate: Updated context (id=" + lti.getContext().getContextId() + ") title=" + lti.getLtiContextTitle());
-        }
-
-        boolean userChanged = false;
-        LtiUserEntity user = lti.getUser();
-        if (lti.getLtiName() != null && user != null && !lti.getLtiName().equals(user.getDisplayName())) {
-            user.setDisplayName(lti.getLtiName());
-            userChanged = true;
-        }
-        if (lti.getLtiEmail() != null && user != null && !lti.getLtiEmail().equals(user.getEmail())) {
-            user.setEmail(lti.getLtiEmail());
-            userChanged = true;
-        }
-        if (lti.getLtiCustom().containsKey("canvas_user_id") && lti.getLtiCustom().get("canvas_user_id")!= null && user != null && !lti.getLtiCustom().get("canvas_user_id").toString().equals(user.getLmsUserId())) {
-            user.setLmsUserId(lti.getLtiCustom().get("canvas_user_id").toString());
-            userChanged = true;
-        }
-
-        if (userChanged) {
-            lti.setUser(repos.users.save(user));
-            updates++;
-            log.debug("LTIupdate: Updated lti.user (id=" + lti.getUser().getUserKey() + ") name=" + lti.getLtiName() + ", email=" + lti.getLtiEmail());
         }
 
+        //The role is the only claim we keep in the membership, it is compared as it is
         LtiMembershipEntity membership = lti.getMembership();
-        if (lti.getLtiRoles() != null && lti.getUserRoleNumber() != membership.getRole()) {
-            membership.setRole(lti.getUserRoleNumber());
-            lti.setMembership(repos.members.save(membership));
-            updates++;
-            log.debug("LTIupdate: Updated membership (id=" + lti.getMembership().getMembershipId() + ", user=" + lti.getSub() + ", context="
-                    + lti.getLtiContextId() + ") roles=" + lti.getLtiRoles() + ", role=" + lti.getUserRoleNumber());
+        if (lti.getContext() != null && lti.getUser() != null) {
+            int roleNum = lti.makeUserRoleNum(lti.getLtiRoles()); // NOTE: do not use userRoleNumber here, it may have been overridden
+            if (membership == null || (lti.getLtiRoles() != null && !Objects.equals(roleNum, membership.getRole()))) {
+                LtiUpsertRepository.Upserted upserted = repos.upserts.upsertMembership(lti.getContext().getContextId(), lti.getUser().getUserId(), roleNum);
+                if (membership == null) {
+                    membership = new LtiMembershipEntity(lti.getContext(), lti.getUser(), roleNum);
+                }
+                membership.setMembershipId(upserted.getId());
+                membership.setRole(roleNum);
+                markStored(membership);
+                lti.setMembership(membership);
+                if (upserted.isInserted()) {
+                    inserts++;
+                    log.debug("LTIupdate: Inserted membership id=" + membership.getMembershipId() + ", role=" + roleNum + ", user="
+                            + lti.getSub() + ", context=" + lti.getLtiContextId());
+                } else {
+                    updates++;
+                    log.debug("LTIupdate: Updated membership (id=" + membership.getMembershipId() + ", user=" + lti.getSub() + ", context="
+                            + lti.getLtiContextId() + ") roles=" + lti.getLtiRoles() + ", role=" + roleNum);
+                }
+            }
         }
 
         // need to recheck and see if we are complete now
@@ -301,6 +326,14 @@ public class LTIDataServiceImpl implements LTIDataService {
         return lti.getLoadingUpdates();
     }
 
+    //The upserted rows are not in the persistence context. A version tells Hibernate they exist when they are used
+    //as a reference (new links, queries), they are not saved again with it.
+    private static void markStored(BaseEntity entity) {
+        if (entity.getVersion() == null) {
+            entity.setVersion(0);
+        }
+    }
+
     @Override
     public LtiUserEntity findByUserKeyAndPlatformDeployment(String userKey, PlatformDeployment platformDeployment) {
         return repos.users.findByUserKeyAndPlatformDeployment(userKey,platformDeployment);
@@ -12,34 +12,32 @@
  */
 package net.unicon.lti.service.lti.impl;
 
-import com.nimbusds.jose.JOSEException;
-import com.nimbusds.jose.jwk.AsymmetricJWK;
-import com.nimbusds.jose.jwk.JWK;
-import com.nimbusds.jose.jwk.JWKSet;
 import io.jsonwebtoken.Claims;
 import io.jsonwebtoken.Jws;
 import io.jsonwebtoken.JwsHeader;
+import io.jsonwebtoken.JwtParser;
 import io.jsonwebtoken.Jwts;
 import io.jsonwebtoken.SignatureAlgorithm;
 import io.jsonwebtoken.SigningKeyResolverAdapter;
 import net.unicon.lti.model.PlatformDeployment;
+import net.unicon.lti.service.lti.InternalTokenService;
+import net.unicon.lti.service.lti.KeyringService;
 import net.unicon.lti.service.lti.LTIDataService;
 import net.unicon.lti.service.lti.LTIJWTService;
-import net.unicon.lti.utils.TextConstants;
-import net.unicon.lti.utils.oauth.OAuthUtils;
+import net.unicon.lti.service.lti.PlatformJwksService;
+import net.unicon.lti.utils.lti.LtiOidcUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.lang3.time.DateUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
 import java.io.IOException;
-import java.net.URL;
 import java.security.GeneralSecurityException;
 import java.security.Key;
 import java.security.PublicKey;
-import java.text.ParseException;
 import java.util.Date;
 import java.util.UUID;
 
@@ -55,61 +53,56 @@ public class LTIJWTServiceImpl implements LTIJWTService {
     @Autowired
     LTIDataService ltiDataService;
 
+    @Autowired
+    KeyringService keyringService;
+
+    @Autowired
+    InternalTokenService internalTokenService;
+
+    @Autowired
+    PlatformJwksService platformJwksService;
+
     String error;
 
+    private static final String OUR_OWN_TOOL = "Our own tool";
+
+    //Our tokens are checked by the other instances too, their clocks can be a bit off
+    @Value("${lti13.jwt.allowedClockSkewSeconds:5}")
+    private long allowedClockSkewSeconds = 5;
+
+    //Parsers for the tokens we sign ourselves, built once (a JwtParser is immutable and thread safe).
+    //They verify with our only key, or with the internal tokens key locator when we have several (built again after a rotation).
+    private volatile OwnTokenParsers ownTokenParsers;
+
     /**
-     * This will check that the state has been signed by us and retrieve the issuer private key.
-     * We could add here other checks if we want (like the expiration of the state, nonce used only once, etc...)
+     * This will check that the state has been signed by us (and has our iss).
+     * We could add here other checks if we want (like nonce used only once, etc...)
      */
-    //Here we could add other checks like expiration of the state (not implemented)
     @Override
     public Jws<Claims> validateState(String state) {
-        return Jwts.parser().setSigningKeyResolver(new SigningKeyResolverAdapter() {
-            // This is done because each state is signed with a different key based on the issuer... so
-            // we don't know the key and we need to check it pre-extracting the claims and finding the kid
-            @Override
-            public Key resolveSigningKey(JwsHeader header, Claims claims) {
-                PublicKey toolPublicKey;
-                try {
-                    // We are dealing with RS256 encryption, so we have some Oauth utils to manage the keys and
-                    // convert them to keys from the string stored in DB. There are for sure other ways to manage this.
-                    toolPublicKey = OAuthUtils.loadPublicKey(ltiDataService.getOwnPublicKey());
-                } catch (GeneralSecurityException ex) {
-                    log.error("Error validating the state. Error generating the tool public key", ex);
-                    return null;
-                }
-                return toolPublicKey;
-            }
-        }).build().parseSignedClaims(state);
+        return ownTokenParsers().state.parseSignedClaims(state);
         // If we are on this point, then the state signature has been validated. We can start other tasks now.
     }
 
     /**
-     * This will check that the nonce state token has been signed by us .
+     * This will check that the nonce state token has been signed by us (and has our iss and aud).
      */
-    //Here we could add other checks like expiration of the state (not implemented)
     @Override
     public Jws<Claims> validateNonceState(String nonceStateToken) {
-        return Jwts.parser().setSigningKeyResolver(new SigningKeyResolverAdapter() {
-            // This is done because each state is signed with a different key based on the issuer... so
-            // we don't know the key and we need to check it pre-extracting the claims and finding the kid
-            @Override
-            public Key resolveSigningKey(JwsHeader header, Claims claims) {
-                PublicKey toolPublicKey;
-                try {
-                    // We are dealing with RS256 encryption, so we have some Oauth utils to manage the keys and
-                    // convert them to keys from the string stored in DB. There are for sure other ways to manage this.
-                    toolPublicKey = OAuthUtils.loadPublicKey(ltiDataService.getOwnPublicKey());
-                } catch (GeneralSecurityException ex) {
-                    log.error("Error validating the state. Error generating the tool public key", ex);
-                    return null;
-                }
-                return toolPublicKey;
-            }
-        }).build().parseSignedClaims(nonceStateToken);
+        return ownTokenParsers().nonceState.parseSignedClaims(nonceStateToken);
         // If we are on this point, then the state signature has been validated. We can start other tasks now.
     }
 
+    private OwnTokenParsers ownTokenParsers() {
+        OwnTokenParsers parsers = ownTokenParsers;
+        PublicKey verificationKey = internalTokenService.getVerificationKey();
+        if (parsers == null || parsers.verificationKey != verificationKey) {
+            parsers = new OwnTokenParsers(internalTokenService, verificationKey, allowedClockSkewSeconds);
+            ownTokenParsers = parsers;
+        }
+        return parsers;
+    }
+
 
     /**
      * We will just check that it is a valid signed JWT from the issuer. The logic later will decide if we
@@ -130,28 +123,13 @@ public class LTIJWTServiceImpl implements LTIJWTService {
                 try {
                     // We are dealing with RS256 encryption, so we have some Oauth utils to manage the keys and
                     // convert them to keys from the string stored in DB. There are for sure other ways to manage this.
-                    platformDeployment = ltiDataService.getRepos().platformDeploymentRepository.findByIssAndClientId(claims.getIssuer(), clientId).get(0);
+                    platformDeployment = ltiDataService.getPlatformDeployments().findByIssAndClientId(claims.getIssuer(), clientId).get(0);
                 } catch (IndexOutOfBoundsException ex) {
                     log.error("Kid not found in header", ex);
                     return null;
                 }
-                // If the platform has a JWK Set endpoint... we try that.
-                if (StringUtils.isNoneEmpty(platformDeployment.getJwksEndpoint())) {
-                    try {
-                        JWKSet publicKeys = JWKSet.load(new URL(platformDeployment.getJwksEndpoint()));
-                        JWK jwk = publicKeys.getKeyByKeyId(header.getKeyId());
-                        return ((AsymmetricJWK) jwk).toPublicKey();
-                    } catch (JOSEException | ParseException | IOException ex) {
-                        log.error("Error getting the iss public key", ex);
-                        return null;
-                    } catch (NullPointerException ex) {
-                        log.error("Kid not found in header", ex);
-                        return null;
-                    }
-                } else { // If not, we get the key stored in our configuration
-                    log.error("The platform configuration must contain a valid JWKS");
-                    return null;
-                }
+                // The platform keys come from its JWK Set endpoint (cached).
+                return platformJwksService.getPublicKey(platformDeployment, header.getKeyId());
 
             }
         }).build().parseSignedClaims(jwt);
@@ -164,7 +142,8 @@ public class LTIJWTServiceImpl implements LTIJWTService {
     public String generateStateOrClientAssertionJWT(PlatformDeployment platformDeployment) throws GeneralSecurityException, IOException {
 
         Date date = new Date();
-        Key toolPrivateKey = OAuthUtils.loadPrivateKey(ltiDataService.getOwnPrivateKey());
+        String kid = keyringService.getActiveKid();
+        Key toolPrivateKey = keyringService.getPrivateKey(kid);
         String aud;
         //D2L needs a different aud, maybe others too
         if (!StringUtils.isEmpty(platformDeployment.getoAuth2TokenAud())) {
@@ -173,7 +152,7 @@ public class LTIJWTServiceImpl implements LTIJWTService {
             aud = platformDeployment.getoAuth2TokenUrl();
         }
         String state = Jwts.builder()
-                .setHeaderParam("kid", TextConstants.DEFAULT_KID)
+                .setHeaderParam("kid", kid)
                 .setHeaderParam("typ", "JWT")
                 .setIssuer(platformDeployment.getClientId())  // D2L needs the issuer to be the clientId
                 .setSubject(platformDeployment.getClientId()) // The clientId
@@ -195,22 +174,36 @@ public class LTIJWTServiceImpl implements LTIJWTService {
     public String generateStateNonceTokenJWT(String hash) throws GeneralSecurityException, IOException {
 
         Date date = new Date();
-        Key toolPrivateKey = OAuthUtils.loadPrivateKey(ltiDataService.getOwnPrivateKey());
-        String ourOwnTool = "Our own tool";
-        String state = Jwts.builder()
-                .setHeaderParam("kid", TextConstants.DEFAULT_KID)
+        String state = internalTokenService.sign(Jwts.builder()
                 .setHeaderParam("typ", "JWT")
-                .setIssuer(ourOwnTool)
-                .setSubject(ourOwnTool) // The clientId
-                .setAudience(ourOwnTool)  //We send here the authToken url.
+                .setIssuer(OUR_OWN_TOOL)
+                .setSubject(OUR_OWN_TOOL) // The clientId
+                .setAudience(OUR_OWN_TOOL)  //We send here the authToken url.
                 .setExpiration(DateUtils.addSeconds(date, 3600)) //a java.util.Date
                 .setNotBefore(date) //a java.util.Date
                 .setIssuedAt(date) // for example, now
-                .claim("expected_hash", hash)  //This is an specific claim to ask for tokens.
-                .signWith(SignatureAlgorithm.RS256, toolPrivateKey)  //We sign it with our own private key. The platform has the public one.
-                .compact();
+                .claim("expected_hash", hash));  //This is an specific claim to ask for tokens. Only we read it, so it is an internal token.
         log.debug("JWT State Nonce Hash: \n {} \n", state);
         return state;
     }
 
+    private static class OwnTokenParsers {
+        private final PublicKey verificationKey;
+        private final JwtParser state;
+        private final JwtParser nonceState;
+
+        OwnTokenParsers(InternalTokenService internalTokenService, PublicKey verificationKey, long allowedClockSkewSeconds) {
+            this.verificationKey = verificationKey;
+            this.state = internalTokenService.parser(verificationKey)
+                    .requireIssuer(LtiOidcUtils.STATE_ISSUER)
+                    .clockSkewSeconds(allowedClockSkewSeconds)
+                    .build();
+            this.nonceState = internalTokenService.parser(verificationKey)
+                    .requireIssuer(OUR_OWN_TOOL)
+                    .requireAudience(OUR_OWN_TOOL)
+                    .clockSkewSeconds(allowedClockSkewSeconds)
+                    .build();
+        }
+    }
+
 }
@@ -12,15 +12,31 @@
  */
 package net.unicon.lti.service.lti.impl;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import jakarta.annotation.PostConstruct;
+import net.unicon.lti.model.lti.dto.LoginInitiationDTO;
 import net.unicon.lti.model.lti.dto.NonceState;
-import net.unicon.lti.repository.NonceStateRepository;
+import net.unicon.lti.service.lti.InternalTokenService;
 import net.unicon.lti.service.lti.NonceStateService;
+import net.unicon.lti.service.lti.NonceStateStore;
+import net.unicon.lti.utils.lti.LtiOidcUtils;
+import net.unicon.lti.utils.lti.StateTokenCipher;
+import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
+import java.security.GeneralSecurityException;
+import java.util.Base64;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 
 /**
  * This manages all the data processing for the LTIRequest (and for LTI in general)
@@ -31,24 +47,158 @@ public class NonceStateServiceImpl implements NonceStateService {
 
     static final Logger log = LoggerFactory.getLogger(NonceStateServiceImpl.class);
 
+    //Marks a nonce that has been used when the state is stateless
+    static final String CONSUMED = "consumed";
+
+    @Autowired
+    NonceStateStore nonceStateStore;
+
     @Autowired
-    NonceStateRepository nonceStateRepository;
+    InternalTokenService internalTokenService;
+
+    //How long a nonce is valid after the OIDC login
+    @Value("${lti13.nonces.ttlSeconds:3600}")
+    private long ttlSeconds = 3600;
+
+    @Value("${lti13.nonces.maxEntries:100000}")
+    private long maxEntries = 100000;
+
+    //When true the state sent to the platform is an encrypted token with everything we need, and nothing is stored at login
+    @Value("${lti13.nonces.stateless:false}")
+    private boolean stateless = false;
+
+    //Base64 AES key (16, 24 or 32 bytes) for the stateless state. It must be the same in all the instances of the tool.
+    @Value("${lti13.nonces.stateKey:}")
+    private String stateKey;
+
+    private StateTokenCipher stateTokenCipher;
 
-    //TODO, add more methods here and remove code from the controllers or services that call the repo directly.
+    //Stateless states already opened in this instance, so the state JWT is only signed once per launch
+    private Cache<String, NonceState> openedStates;
+
+    @PostConstruct
+    public void init() {
+        if (!stateless) {
+            return;
+        }
+        //A random key would only work in this instance and until it restarts, so we don't start without a real one
+        if (StringUtils.isBlank(stateKey)) {
+            throw new IllegalStateException("lti13.nonces.stateless is true but lti13.nonces.stateKey is not set");
+        }
+        try {
+            stateTokenCipher = new StateTokenCipher(Base64.getDecoder().decode(StringUtils.trim(stateKey)));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalStateException("lti13.nonces.stateKey must be the base64 of a 16, 24 or 32 bytes AES key", e);
+        }
+        openedStates = CacheBuilder.newBuilder()
+                .expireAfterWrite(ttlSeconds, TimeUnit.SECONDS)
+                .maximumSize(maxEntries)
+                .build();
+    }
 
     @Override
     public void deleteOldNonces() {
-        Date thresholdDate = new Date(System.currentTimeMillis() - (60 * 60 * 1000));
-        nonceStateRepository.deleteByCreatedAtBefore(thresholdDate);
+        Date thresholdDate = new Date(System.currentTimeMillis() - ttlSeconds * 1000L);
+        nonceStateStore.deleteCreatedBefore(thresholdDate);
     }
 
+    @Override
+    public NonceState saveNonce(NonceState nonceState) {
+        return nonceStateStore.save(nonceState);
+    }
+
+    //In the stateless mode only the states opened in this instance (getNonceByStateHash) are found, nothing was stored
+    // at login. That is fine for the launch: the filters open the state and then check the nonce in the same request.
     @Override
     public NonceState getNonce(String nonce) {
-            return nonceStateRepository.findByNonce(nonce);
+        if (!stateless) {
+            return nonceStateStore.findByNonce(nonce);
+        }
+        if (nonce == null || isConsumed(nonce)) {
+            return null;
+        }
+        return openedStates.getIfPresent(nonce);
+    }
+
+    @Override
+    public NonceState getNonceByStateHash(String stateHash) {
+        if (!stateless) {
+            return nonceStateStore.findByStateHash(stateHash);
+        }
+        if (stateHash == null) {
+            return null;
+        }
+        Map<String, Object> values;
+        try {
+            values = stateTokenCipher.decrypt(stateHash);
+        } catch (GeneralSecurityException e) {
+            log.debug("Invalid stateless state: {}", e.getMessage());
+            return null;
+        }
+        String nonce = (String) values.get("n");
+        long expiresAt = ((Number) values.get("e")).longValue();
+        if (expiresAt < System.currentTimeMillis() || isConsumed(nonce)) {
+            return null;
+        }
+        try {
+            return openedStates.get(nonce, () -> openState(stateHash, values));
+        } catch (ExecutionException e) {
+            log.error("Error opening the stateless state", e.getCause());
+            return null;
+        }
     }
 
     @Override
     public void deleteNonce(String nonce) {
-        nonceStateRepository.deleteByNonce(nonce);
+        consumeNonce(nonce);
+    }
+
+    @Override
+    public boolean consumeNonce(String nonce) {
+        if (nonce == null) {
+            return false;
+        }
+        if (!stateless) {
+            return nonceStateStore.deleteByNonce(nonce);
+        }
+        //The token can't be revoked, so we remember the nonce as used until it expires (the old nonces cleanup removes it).
+        // The insert fails on the primary key when it is already there, so two replays can't both get through.
+        boolean consumed = nonceStateStore.saveIfAbsent(new NonceState(nonce, nonce, CONSUMED, null));
+        openedStates.invalidate(nonce);
+        return consumed;
+    }
+
+    @Override
+    public boolean isStateless() {
+        return stateless;
+    }
+
+    @Override
+    public String createStatelessState(LoginInitiationDTO loginInitiationDTO, String clientId, String deploymentId, String nonce) throws GeneralSecurityException {
+        //Short keys to keep the state small, it goes in the redirect URL
+        Map<String, Object> values = new HashMap<>();
+        values.put("n", nonce);
+        values.put("i", loginInitiationDTO.getIss());
+        values.put("u", loginInitiationDTO.getTargetLinkUri());
+        values.put("c", clientId);
+        values.put("d", deploymentId);
+        values.put("s", loginInitiationDTO.getLtiStorageTarget());
+        values.put("e", System.currentTimeMillis() + ttlSeconds * 1000L);
+        return stateTokenCipher.encrypt(values);
+    }
+
+    private boolean isConsumed(String nonce) {
+        return nonceStateStore.findByNonce(nonce) != null;
+    }
+
+    //Rebuilds the signed state we use in the stored mode, so the filters and controllers work the same in both modes
+    private NonceState openState(String stateToken, Map<String, Object> values) throws GeneralSecurityException {
+        String nonce = (String) values.get("n");
+        LoginInitiationDTO loginInitiationDTO = new LoginInitiationDTO();
+        loginInitiationDTO.setIss((String) values.get("i"));
+        loginInitiationDTO.setTargetLinkUri((String) values.get("u"));
+        String state = LtiOidcUtils.generateState(internalTokenService, Collections.singletonMap("nonce", nonce), loginInitiationDTO,
+                (String) values.get("c"), (String) values.get("d"), nonce);
+        return new NonceState(nonce, stateToken, state, (String) values.get("s"));
     }
 }
@@ -0,0 +1,147 @@
+/**
+ * Copyright 2021 Unicon (R)
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.unicon.lti.service.lti.impl;
+
+import com.google.common.collect.ImmutableListMultimap;
+import com.google.common.collect.Multimaps;
+import net.unicon.lti.model.PlatformDeployment;
+import net.unicon.lti.repository.PlatformDeploymentRepository;
+import net.unicon.lti.service.lti.PlatformDeploymentRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.domain.Sort;
+import org.springframework.stereotype.Service;
+
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Keeps all the platform deployments in memory, indexed by the keys we use during a launch.
+ * They change a few times a year, so the lookups don't need to go to the database.
+ * Writers call invalidate(), and the other instances notice the change on the scheduled version check.
+ * The lookups return copies of the loaded deployments, without their contexts (see PlatformDeploymentRegistry).
+ */
+@Service
+public class PlatformDeploymentRegistryImpl implements PlatformDeploymentRegistry {
+
+    static final Logger log = LoggerFactory.getLogger(PlatformDeploymentRegistryImpl.class);
+
+    @Autowired
+    PlatformDeploymentRepository platformDeploymentRepository;
+
+    private volatile Snapshot snapshot;
+
+    @Override
+    public List<PlatformDeployment> findByIss(String iss) {
+        return copies(snapshot().byIss.get(key(iss)));
+    }
+
+    @Override
+    public List<PlatformDeployment> findByIssAndClientId(String iss, String clientId) {
+        return copies(snapshot().byIssAndClientId.get(key(iss, clientId)));
+    }
+
+    @Override
+    public List<PlatformDeployment> findByIssAndDeploymentId(String iss, String deploymentId) {
+        return copies(snapshot().byIssAndDeploymentId.get(key(iss, deploymentId)));
+    }
+
+    @Override
+    public List<PlatformDeployment> findByIssAndClientIdAndDeploymentId(String iss, String clientId, String deploymentId) {
+        return copies(snapshot().byIssClientIdAndDeploymentId.get(key(iss, clientId, deploymentId)));
+    }
+
+    @Override
+    public void invalidate() {
+        snapshot = null;
+    }
+
+    @Override
+    public void checkVersion() {
+        Snapshot current = snapshot;
+        if (current != null && !current.version.equals(version())) {
+            log.info("Platform deployments changed, reloading them");
+            snapshot = null;
+        }
+    }
+
+    private Snapshot snapshot() {
+        Snapshot current = snapshot;
+        if (current == null) {
+            synchronized (this) {
+                current = snapshot;
+                if (current == null) {
+                    //The version is read first, if a save happens while loading we will just load again on the next check
+                    String version = version();
+                    current = new Snapshot(version, platformDeploymentRepository.findAll(Sort.by("keyId")));
+                    snapshot = current;
+                    log.debug("Loaded {} platform deployments", current.byIss.size());
+                }
+            }
+        }
+        return current;
+    }
+
+    private String version() {
+        PlatformDeploymentRepository.DeploymentsVersion version = platformDeploymentRepository.findDeploymentsVersion();
+        return version.getCount() + ":" + version.getVersions() + ":" + version.getLastUpdate();
+    }
+
+    //Every caller gets its own copies, changing one (or saving it) can't change what the other threads see.
+    // The contexts are not copied, they were never loaded outside a session anyway.
+    private static List<PlatformDeployment> copies(List<PlatformDeployment> deployments) {
+        return deployments.stream().map(PlatformDeploymentRegistryImpl::copy).toList();
+    }
+
+    private static PlatformDeployment copy(PlatformDeployment deployment) {
+        PlatformDeployment copy = new PlatformDeployment();
+        copy.setKeyId(deployment.getKeyId());
+        copy.setIss(deployment.getIss());
+        copy.setClientId(deployment.getClientId());
+        copy.setDeploymentId(deployment.getDeploymentId());
+        copy.setOidcEndpoint(deployment.getOidcEndpoint());
+        copy.setJwksEndpoint(deployment.getJwksEndpoint());
+        copy.setoAuth2TokenUrl(deployment.getoAuth2TokenUrl());
+        copy.setoAuth2TokenAud(deployment.getoAuth2TokenAud());
+        copy.setCreatedAt(deployment.getCreatedAt());
+        copy.setUpdatedAt(deployment.getUpdatedAt());
+        copy.setVersion(deployment.getVersion());
+        return copy;
+    }
+
+    //null is a valid deployment id, it must not match the "null" string
+    private static String key(String... values) {
+        StringBuilder key = new StringBuilder();
+        for (String value : values) {
+            key.append(value == null ? "\u0000" : value).append('\u0001');
+        }
+        return key.toString();
+    }
+
+    private static class Snapshot {
+        final String version;
+        final ImmutableListMultimap<String, PlatformDeployment> byIss;
+        final ImmutableListMultimap<String, PlatformDeployment> byIssAndClientId;
+        final ImmutableListMultimap<String, PlatformDeployment> byIssAndDeploymentId;
+        final ImmutableListMultimap<String, PlatformDeployment> byIssClientIdAndDeploymentId;
+
+        Snapshot(String version, List<PlatformDeployment> deployments) {
+            this.version = Objects.requireNonNull(version);
+            byIss = Multimaps.index(deployments, d -> key(d.getIss()));
+            byIssAndClientId = Multimaps.index(deployments, d -> key(d.getIss(), d.getClientId()));
+            byIssAndDeploymentId = Multimaps.index(deployments, d -> key(d.getIss(), d.getDeploymentId()));
+            byIssClientIdAndDeploymentId = Multimaps.index(deployments, d -> key(d.getIss(), d.getClientId(), d.getDeploymentId()));
+        }
+    }
+}
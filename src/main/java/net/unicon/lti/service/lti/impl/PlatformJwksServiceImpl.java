@@ -0,0 +1,206 @@
+/**
+ * Copyright 2021 Unicon (R)
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.unicon.lti.service.lti.impl;
+
+import com.nimbusds.jose.JOSEException;
+import com.nimbusds.jose.jwk.AsymmetricJWK;
+import com.nimbusds.jose.jwk.JWK;
+import com.nimbusds.jose.jwk.JWKSet;
+import net.unicon.lti.model.PlatformDeployment;
+import net.unicon.lti.service.lti.PlatformJwksService;
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.ResponseEntity;
+import org.springframework.http.client.ClientHttpRequestFactory;
+import org.springframework.stereotype.Service;
+import org.springframework.web.client.RestTemplate;
+
+import java.security.PublicKey;
+import java.text.ParseException;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Keeps the platform JWKS in memory so we don't call the platform on every id_token.
+ * The keys are cached by jwks endpoint for the max-age the platform sends (or the default TTL),
+ * refreshed when an unknown kid arrives (no more than once every minRefreshSeconds),
+ * and only one thread fetches a given endpoint at a time. If the platform is down we keep using the keys we have.
+ */
+@Service
+public class PlatformJwksServiceImpl implements PlatformJwksService {
+
+    static final Logger log = LoggerFactory.getLogger(PlatformJwksServiceImpl.class);
+
+    private static final Pattern MAX_AGE = Pattern.compile("max-age=(\\d+)");
+
+    //If the platform doesn't say anything in the Cache-Control header
+    @Value("${lti13.jwks.defaultTtlSeconds:3600}")
+    private long defaultTtlSeconds = 3600;
+
+    //Never trust a max-age bigger than this
+    @Value("${lti13.jwks.maxTtlSeconds:86400}")
+    private long maxTtlSeconds = 86400;
+
+    //Minimum time between two fetches of the same endpoint when we get a kid we don't know
+    @Value("${lti13.jwks.minRefreshSeconds:30}")
+    private long minRefreshSeconds = 30;
+
+    //Same pooled client as the other platform calls, with the lti13.jwks.readTimeoutMillis read timeout
+    @Autowired
+    @Qualifier("ltiJwksClientHttpRequestFactory")
+    ClientHttpRequestFactory ltiJwksClientHttpRequestFactory;
+
+    private RestTemplate restTemplate;
+
+    private final Map<String, CachedJwks> cache = new ConcurrentHashMap<>();
+
+    private final Map<String, CompletableFuture<CachedJwks>> inFlight = new ConcurrentHashMap<>();
+
+    @Override
+    public PublicKey getPublicKey(PlatformDeployment platformDeployment, String kid) {
+        String endpoint = platformDeployment.getJwksEndpoint();
+        if (StringUtils.isEmpty(endpoint)) {
+            log.error("The platform configuration must contain a valid JWKS");
+            return null;
+        }
+        if (kid == null) {
+            log.error("Kid not found in header");
+            return null;
+        }
+        long now = System.currentTimeMillis();
+        CachedJwks cached = cache.get(endpoint);
+        if (cached == null || cached.expiresAt <= now) {
+            cached = refresh(endpoint);
+        }
+        JWK jwk = cached != null ? cached.jwkSet.getKeyByKeyId(kid) : null;
+        if (jwk == null && cached != null && now - cached.checkedAt >= minRefreshSeconds * 1000) {
+            // The platform may have rotated its keys, so we ask again.
+            log.debug("Kid {} not found in the cached JWKS for {}, refreshing", kid, endpoint);
+            cached = refresh(endpoint);
+            jwk = cached != null ? cached.jwkSet.getKeyByKeyId(kid) : null;
+        }
+        if (jwk == null) {
+            log.error("Kid {} not found in the JWKS {}", kid, endpoint);
+            return null;
+        }
+        try {
+            return ((AsymmetricJWK) jwk).toPublicKey();
+        } catch (JOSEException | ClassCastException ex) {
+            log.error("Error getting the iss public key", ex);
+            return null;
+        }
+    }
+
+    @Override
+    public void invalidate(String jwksEndpoint) {
+        if (jwksEndpoint != null) {
+            cache.remove(jwksEndpoint);
+        }
+    }
+
+    /**
+     * Fetches the JWKS again. Concurrent calls for the same endpoint wait for the same fetch.
+     * If the fetch fails we return what we had (even if it is expired).
+     */
+    private CachedJwks refresh(String endpoint) {
+        CompletableFuture<CachedJwks> future = new CompletableFuture<>();
+        CompletableFuture<CachedJwks> existing = inFlight.putIfAbsent(endpoint, future);
+        if (existing != null) {
+            return await(existing, endpoint);
+        }
+        try {
+            CachedJwks fetched = fetch(endpoint);
+            cache.put(endpoint, fetched);
+            future.complete(fetched);
+            return fetched;
+        } catch (Exception ex) {
+            CachedJwks stale = cache.get(endpoint);
+            if (stale != null) {
+                log.warn("Error refreshing the JWKS from {}, using the keys we already have", endpoint, ex);
+                // Don't hammer a platform that is down, we will try again after minRefreshSeconds.
+                long now = System.currentTimeMillis();
+                stale = new CachedJwks(stale.jwkSet, now, now + minRefreshSeconds * 1000);
+                cache.put(endpoint, stale);
+            } else {
+                log.error("Error getting the JWKS from {}", endpoint, ex);
+            }
+            future.complete(stale);
+            return stale;
+        } finally {
+            inFlight.remove(endpoint, future);
+        }
+    }
+
+    private CachedJwks await(CompletableFuture<CachedJwks> future, String endpoint) {
+        try {
+            return future.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return cache.get(endpoint);
+        } catch (ExecutionException ex) {
+            return cache.get(endpoint);
+        }
+    }
+
+    private CachedJwks fetch(String endpoint) throws ParseException {
+        ResponseEntity<String> response = getRestTemplate().getForEntity(endpoint, String.class);
+        JWKSet jwkSet = JWKSet.parse(response.getBody());
+        long now = System.currentTimeMillis();
+        long ttl = ttlSeconds(response.getHeaders());
+        log.debug("JWKS from {} cached for {} seconds", endpoint, ttl);
+        return new CachedJwks(jwkSet, now, now + ttl * 1000);
+    }
+
+    long ttlSeconds(HttpHeaders headers) {
+        String cacheControl = headers != null ? headers.getCacheControl() : null;
+        if (cacheControl != null) {
+            if (cacheControl.contains("no-store") || cacheControl.contains("no-cache")) {
+                // We still keep it for the minimum refresh time, or we would call the platform on every launch.
+                return minRefreshSeconds;
+            }
+            Matcher matcher = MAX_AGE.matcher(cacheControl);
+            if (matcher.find()) {
+                return Math.max(minRefreshSeconds, Math.min(Long.parseLong(matcher.group(1)), maxTtlSeconds));
+            }
+        }
+        return defaultTtlSeconds;
+    }
+
+    private RestTemplate getRestTemplate() {
+        if (restTemplate == null) {
+            restTemplate = new RestTemplate(ltiJwksClientHttpRequestFactory);
+        }
+        return restTemplate;
+    }
+
+    private static class CachedJwks {
+        private final JWKSet jwkSet;
+        private final long checkedAt;
+        private final long expiresAt;
+
+        CachedJwks(JWKSet jwkSet, long checkedAt, long expiresAt) {
+            this.jwkSet = jwkSet;
+            this.checkedAt = checkedAt;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
@@ -22,12 +22,13 @@ import net.unicon.lti.model.lti.dto.PlatformRegistrationDTO;
 import net.unicon.lti.model.lti.dto.ToolConfigurationACKDTO;
 import net.unicon.lti.model.lti.dto.ToolRegistrationDTO;
 import net.unicon.lti.repository.PlatformDeploymentRepository;
+import net.unicon.lti.service.lti.PlatformDeploymentRegistry;
+import net.unicon.lti.service.lti.PlatformJwksService;
 import net.unicon.lti.service.lti.RegistrationService;
 import org.apache.commons.lang3.StringUtils;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.http.*;
-import org.springframework.http.client.BufferingClientHttpRequestFactory;
-import org.springframework.http.client.SimpleClientHttpRequestFactory;
+import org.springframework.http.client.ClientHttpRequestFactory;
 import org.springframework.stereotype.Service;
 import org.springframework.web.client.RestTemplate;
 import org.springframework.web.util.DefaultUriBuilderFactory;
@@ -45,6 +46,15 @@ public class RegistrationServiceImpl implements RegistrationService {
     @Autowired
     PlatformDeploymentRepository platformDeploymentRepository;
 
+    @Autowired
+    PlatformDeploymentRegistry platformDeploymentRegistry;
+
+    @Autowired
+    PlatformJwksService platformJwksService;
+
+    @Autowired
+    ClientHttpRequestFactory ltiClientHttpRequestFactory;
+
     private RestTemplate restTemplate;
 
     //Calling the registration service and getting a registration  result of users.
@@ -52,7 +62,7 @@ public class RegistrationServiceImpl implements RegistrationService {
     public ToolConfigurationACKDTO callDynamicRegistration(String token, ToolRegistrationDTO toolRegistrationDTO, String endpoint) throws ConnectionException {
         ToolConfigurationACKDTO answer;
         try {
-            restTemplate = restTemplate == null ? new RestTemplate(new BufferingClientHttpRequestFactory(new SimpleClientHttpRequestFactory())) : restTemplate;
+            restTemplate = restTemplate == null ? new RestTemplate(ltiClientHttpRequestFactory) : restTemplate;
             DefaultUriBuilderFactory defaultUriBuilderFactory = new DefaultUriBuilderFactory();
             defaultUriBuilderFactory.setEncodingMode(DefaultUriBuilderFactory.EncodingMode.NONE);
             restTemplate.setUriTemplateHandler(defaultUriBuilderFactory);
@@ -113,6 +123,9 @@ public class RegistrationServiceImpl implements RegistrationService {
             platformDeployment.setoAuth2TokenUrl(platformRegistrationDTO.getToken_endpoint());
             platformDeployment.setOidcEndpoint(platformRegistrationDTO.getAuthorization_endpoint());
             platformDeploymentRepository.save(platformDeployment);
+            platformDeploymentRegistry.invalidate();
+            //A platform registering again may have rotated the keys behind the same endpoint
+            platformJwksService.invalidate(platformDeployment.getJwksEndpoint());
         } catch (Exception e) {
             StringBuilder exceptionMsg = new StringBuilder();
             exceptionMsg.append("Problem during the registration. Not able to save the new configration");
@@ -0,0 +1,315 @@
+/**
+ * Copyright 2021 Unicon (R)
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.unicon.lti.service.lti.impl;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import net.unicon.lti.exceptions.DataServiceException;
+import net.unicon.lti.model.PlatformDeployment;
+import net.unicon.lti.model.ScoreOutboxEntity;
+import net.unicon.lti.model.ags.Score;
+import net.unicon.lti.model.oauth2.LTIToken;
+import net.unicon.lti.repository.PlatformDeploymentRepository;
+import net.unicon.lti.repository.ScoreOutboxRepository;
+import net.unicon.lti.service.lti.AdvantageAGSService;
+import net.unicon.lti.service.lti.AdvantageConnectorHelper;
+import net.unicon.lti.service.lti.ScoreOutboxService;
+import net.unicon.lti.utils.AGSScope;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.math.NumberUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Service;
+import org.springframework.web.client.HttpStatusCodeException;
+
+import java.sql.Timestamp;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Sends the scores stored in the score_outbox table to the platforms.
+ * The scheduler calls sendDueScores, that claims the scores that are ready and hands them to a pool of workers. A worker
+ * that finishes a score claims the next one of the same deployment, so the sending doesn't wait for the scheduler.
+ * Failed scores are retried with exponential backoff, each platform has a limit of scores in flight and it is paused
+ * when it answers 429, and a line item never gets a score before the older ones were sent (see ScoreOutboxRepository.findDue).
+ */
+@Service
+public class ScoreOutboxServiceImpl implements ScoreOutboxService {
+
+    static final Logger log = LoggerFactory.getLogger(ScoreOutboxServiceImpl.class);
+
+    private static final long DEPTH_COUNT_INTERVAL_MILLIS = 60000;
+
+    @Autowired
+    ScoreOutboxRepository scoreOutboxRepository;
+
+    @Autowired
+    PlatformDeploymentRepository platformDeploymentRepository;
+
+    @Autowired
+    AdvantageAGSService advantageAGSService;
+
+    @Autowired
+    AdvantageConnectorHelper advantageConnectorHelper;
+
+    @Autowired(required = false)
+    MeterRegistry meterRegistry;
+
+    //Threads sending the scores
+    @Value("${lti13.scores.workers:8}")
+    private int workers = 8;
+
+    //Max scores in flight against the same platform
+    @Value("${lti13.scores.perPlatform:4}")
+    private int perPlatform = 4;
+
+    //After this many attempts the score is marked as FAILED and left in the table
+    @Value("${lti13.scores.maxAttempts:10}")
+    private int maxAttempts = 10;
+
+    @Value("${lti13.scores.backoffSeconds:5}")
+    private long backoffSeconds = 5;
+
+    @Value("${lti13.scores.maxBackoffSeconds:3600}")
+    private long maxBackoffSeconds = 3600;
+
+    //A score claimed for longer than this is considered lost by its worker and goes back to the queue
+    @Value("${lti13.scores.claimTimeoutSeconds:300}")
+    private long claimTimeoutSeconds = 300;
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    private final Map<String, Semaphore> platformPermits = new ConcurrentHashMap<>();
+
+    private final Map<String, Long> platformPausedUntil = new ConcurrentHashMap<>();
+
+    private final AtomicLong queueDepth = new AtomicLong();
+
+    private volatile long depthCountedAt;
+
+    private ExecutorService workerExecutor;
+
+    @PostConstruct
+    public void registerMetrics() {
+        if (meterRegistry != null) {
+            Gauge.builder("lti.scores.outbox.depth", queueDepth, AtomicLong::get)
+                    .description("Scores waiting to be sent to the platforms")
+                    .register(meterRegistry);
+        }
+    }
+
+    @Override
+    public ScoreOutboxEntity enqueue(PlatformDeployment platformDeployment, String lineItemId, Score score) throws DataServiceException {
+        String json;
+        try {
+            json = objectMapper.writeValueAsString(score);
+        } catch (JsonProcessingException e) {
+            throw new DataServiceException("Can't serialize the score for the lineitem " + lineItemId);
+        }
+        ScoreOutboxEntity entry = scoreOutboxRepository.save(new ScoreOutboxEntity(platformDeployment.getKeyId(), lineItemId, json));
+        queueDepth.incrementAndGet();
+        log.debug("Score {} queued for the lineitem {}", entry.getScoreOutboxId(), lineItemId);
+        return entry;
+    }
+
+    @Override
+    public int sendDueScores() {
+        long now = System.currentTimeMillis();
+        int released = scoreOutboxRepository.releaseStaleClaims(new Timestamp(now - claimTimeoutSeconds * 1000L));
+        if (released > 0) {
+            log.warn("{} scores were claimed by a worker that never finished, they are back in the queue", released);
+        }
+        //Counting the whole outbox is not free, enqueue and send keep the gauge up to date in between
+        if (now - depthCountedAt >= DEPTH_COUNT_INTERVAL_MILLIS) {
+            queueDepth.set(scoreOutboxRepository.countByStatusIn(Arrays.asList(ScoreOutboxEntity.PENDING, ScoreOutboxEntity.IN_PROGRESS)));
+            depthCountedAt = now;
+        }
+        int handed = 0;
+        for (Long keyId : scoreOutboxRepository.findDueKeyIds(new Timestamp(now))) {
+            Optional<PlatformDeployment> platformDeployment = platformDeploymentRepository.findById(keyId);
+            if (platformDeployment.isEmpty()) {
+                log.error("There are scores for the deployment {} that doesn't exist anymore", keyId);
+                for (ScoreOutboxEntity entry : scoreOutboxRepository.findDue(keyId, new Timestamp(now), PageRequest.of(0, perPlatform))) {
+                    scoreOutboxRepository.markFailed(entry.getScoreOutboxId(), entry.getAttempts(), "Unknown platform deployment " + keyId);
+                }
+                continue;
+            }
+            handed += dispatch(platformDeployment.get());
+        }
+        log.debug("{} scores in the outbox, {} handed to the workers", queueDepth.get(), handed);
+        return handed;
+    }
+
+    //Hands the due scores of the deployment to the workers while its platform has free permits. Each worker that finishes
+    // calls it again, so the platform is kept at perPlatform scores in flight until there is nothing due, without waiting
+    // for the next run of the scheduler.
+    private int dispatch(PlatformDeployment platformDeployment) {
+        String platform = platformDeployment.getIss();
+        Semaphore permits = platformPermits.computeIfAbsent(platform, key -> new Semaphore(perPlatform));
+        int handed = 0;
+        while (!isPaused(platform) && permits.tryAcquire()) {
+            ScoreOutboxEntity entry = claimNext(platformDeployment.getKeyId());
+            if (entry == null) {
+                permits.release();
+                break;
+            }
+            try {
+                getWorkerExecutor().execute(() -> {
+                    try {
+                        send(entry, platformDeployment);
+                    } finally {
+                        permits.release();
+                    }
+                    try {
+                        dispatch(platformDeployment);
+                    } catch (RuntimeException e) {
+                        log.error("Can't read the next scores of the deployment {}, the next run will", platformDeployment.getKeyId(), e);
+                    }
+                });
+                handed++;
+            } catch (RejectedExecutionException e) {
+                permits.release();
+                scoreOutboxRepository.retryLater(entry.getScoreOutboxId(), entry.getAttempts(), new Timestamp(System.currentTimeMillis()), entry.getLastError());
+                break;
+            }
+        }
+        return handed;
+    }
+
+    private boolean isPaused(String platform) {
+        Long pausedUntil = platformPausedUntil.get(platform);
+        return pausedUntil != null && pausedUntil > System.currentTimeMillis();
+    }
+
+    //The oldest due score of the deployment we could claim, null if there is none
+    private ScoreOutboxEntity claimNext(long keyId) {
+        Timestamp now = new Timestamp(System.currentTimeMillis());
+        for (ScoreOutboxEntity entry : scoreOutboxRepository.findDue(keyId, now, PageRequest.of(0, perPlatform))) {
+            //Somebody else (another worker or instance of the tool) may have taken it
+            if (scoreOutboxRepository.claim(entry.getScoreOutboxId(), now) > 0) {
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public long getQueueDepth() {
+        return queueDepth.get();
+    }
+
+    private void send(ScoreOutboxEntity entry, PlatformDeployment platformDeployment) {
+        Score score;
+        try {
+            score = objectMapper.readValue(entry.getScore(), Score.class);
+        } catch (JsonProcessingException e) {
+            log.error("The score {} can't be read, it won't be sent", entry.getScoreOutboxId(), e);
+            scoreOutboxRepository.markFailed(entry.getScoreOutboxId(), entry.getAttempts() + 1, "Unreadable score");
+            return;
+        }
+        try {
+            LTIToken scoresToken = advantageAGSService.getToken("scores", platformDeployment);
+            advantageAGSService.postScore(scoresToken, entry.getLineItemId(), score);
+            scoreOutboxRepository.deleteById(entry.getScoreOutboxId());
+            queueDepth.decrementAndGet();
+            log.debug("Score {} sent to the lineitem {}", entry.getScoreOutboxId(), entry.getLineItemId());
+        } catch (HttpStatusCodeException e) {
+            if (e.getStatusCode().value() == HttpStatus.TOO_MANY_REQUESTS.value()) {
+                long retryAfter = retryAfterMillis(e.getResponseHeaders());
+                platformPausedUntil.put(platformDeployment.getIss(), System.currentTimeMillis() + retryAfter);
+                log.warn("The platform {} asked us to slow down, pausing its scores for {} ms", platformDeployment.getIss(), retryAfter);
+                retry(entry, retryAfter, e);
+            } else if (e.getStatusCode().is4xxClientError() && e.getStatusCode().value() != HttpStatus.REQUEST_TIMEOUT.value()
+                    && e.getStatusCode().value() != HttpStatus.UNAUTHORIZED.value()) {
+                //The platform won't take this score, sending it again will not help
+                log.error("The platform rejected the score {} for the lineitem {}: {}", entry.getScoreOutboxId(), entry.getLineItemId(), e.getStatusCode());
+                scoreOutboxRepository.markFailed(entry.getScoreOutboxId(), entry.getAttempts() + 1, error(e));
+            } else {
+                if (e.getStatusCode().value() == HttpStatus.UNAUTHORIZED.value()) {
+                    //The platform doesn't take the cached token anymore, the retry asks for a new one
+                    advantageConnectorHelper.invalidateToken(platformDeployment, AGSScope.AGS_SCORES_SCOPE.getScope());
+                }
+                retry(entry, 0, e);
+            }
+        } catch (Exception e) {
+            retry(entry, 0, e);
+        }
+    }
+
+    private void retry(ScoreOutboxEntity entry, long minDelayMillis, Exception e) {
+        int attempts = entry.getAttempts() + 1;
+        if (attempts >= maxAttempts) {
+            log.error("Giving up on the score {} for the lineitem {} after {} attempts", entry.getScoreOutboxId(), entry.getLineItemId(), attempts, e);
+            scoreOutboxRepository.markFailed(entry.getScoreOutboxId(), attempts, error(e));
+            return;
+        }
+        long delay = Math.max(minDelayMillis, backoffMillis(attempts));
+        log.warn("Can't send the score {} for the lineitem {} (attempt {}), retrying in {} ms: {}",
+                entry.getScoreOutboxId(), entry.getLineItemId(), attempts, delay, e.getMessage());
+        scoreOutboxRepository.retryLater(entry.getScoreOutboxId(), attempts, new Timestamp(System.currentTimeMillis() + delay), error(e));
+    }
+
+    //Exponential backoff with a bit of jitter, so the retries of a burst don't all come back at the same time.
+    long backoffMillis(int attempts) {
+        long delay = Math.min(maxBackoffSeconds * 1000L, backoffSeconds * 1000L << Math.min(attempts - 1, 30));
+        return delay + ThreadLocalRandom.current().nextLong(delay / 5 + 1);
+    }
+
+    private long retryAfterMillis(HttpHeaders headers) {
+        String retryAfter = headers != null ? headers.getFirst(HttpHeaders.RETRY_AFTER) : null;
+        long seconds = NumberUtils.toLong(StringUtils.trim(retryAfter), backoffSeconds);
+        return Math.min(maxBackoffSeconds, Math.max(1, seconds)) * 1000L;
+    }
+
+    private String error(Exception e) {
+        return StringUtils.abbreviate(e.getClass().getSimpleName() + ": " + e.getMessage(), 1024);
+    }
+
+    private synchronized ExecutorService getWorkerExecutor() {
+        if (workerExecutor == null) {
+            AtomicInteger threadCount = new AtomicInteger();
+            workerExecutor = Executors.newFixedThreadPool(workers, runnable -> {
+                Thread thread = new Thread(runnable, "lti-score-outbox-" + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return workerExecutor;
+    }
+
+    @PreDestroy
+    public synchronized void shutdown() {
+        if (workerExecutor != null) {
+            workerExecutor.shutdown();
+        }
+    }
+}
@@ -0,0 +1,45 @@
+/**
+ * Copyright 2021 Unicon (R)
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.unicon.lti.utils;
+
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The LTI keys (context id, user sub, tokens...) can be up to 4096 chars, too long to be indexed.
+ * We store and search by their SHA-256 instead (64 hex chars).
+ */
+public class KeyDigests {
+
+    private KeyDigests() {
+        throw new IllegalStateException("Utility class");
+    }
+
+    public static String sha256(String key) {
+        return key != null ? Hashing.sha256().hashString(key, StandardCharsets.UTF_8).toString() : null;
+    }
+
+    //SHA-256 of several values, used to know if the claims we store changed since the last launch
+    public static String sha256Of(String... values) {
+        Hasher hasher = Hashing.sha256().newHasher();
+        for (String value : values) {
+            //null and "" must give different digests
+            hasher.putBoolean(value != null);
+            hasher.putString(value != null ? value : "", StandardCharsets.UTF_8);
+            hasher.putChar('\u0000');
+        }
+        return hasher.hash().toString();
+    }
+}
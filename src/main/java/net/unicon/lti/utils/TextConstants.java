@@ -29,6 +29,7 @@ public class TextConstants {
     public static final String SINGLE = "single";
     public static final String RESULTS = "results";
     public static final String LINEITEMS = "lineitems";
+    public static final String SCORE_QUEUED = "scoreQueued";
     public static final String ERROR = "Error";
     public static final String HTML_CONTENT = "htmlContent";
     public static final String LTI3_SUFFIX = "/lti3";
@@ -17,10 +17,8 @@ import com.fasterxml.jackson.databind.ObjectMapper;
 import io.jsonwebtoken.Jwts;
 import io.jsonwebtoken.SignatureAlgorithm;
 import net.unicon.lti.model.PlatformDeployment;
-import net.unicon.lti.service.lti.LTIDataService;
+import net.unicon.lti.service.lti.KeyringService;
 import net.unicon.lti.utils.LtiStrings;
-import net.unicon.lti.utils.TextConstants;
-import net.unicon.lti.utils.oauth.OAuthUtils;
 import org.apache.commons.lang3.time.DateUtils;
 
 import java.io.IOException;
@@ -42,17 +40,19 @@ public class DeepLinkUtils {
     /**
      *
      */
-    public static Map<String, List<String>> generateDeepLinkJWT(LTIDataService ltiDataService, PlatformDeployment platformDeployment, LTI3Request lti3Request, String localUrl) throws GeneralSecurityException, IOException {
+    public static Map<String, List<String>> generateDeepLinkJWT(KeyringService keyringService, PlatformDeployment platformDeployment, LTI3Request lti3Request, String localUrl) throws GeneralSecurityException, IOException {
 
         Map<String, List<String>> deepLinkJwtMap = new TreeMap<>();
         Date date = new Date();
 
-        Key toolPrivateKey = OAuthUtils.loadPrivateKey(ltiDataService.getOwnPrivateKey());
+        String kid = keyringService.getActiveKid();
+
+        Key toolPrivateKey = keyringService.getPrivateKey(kid);
 
         // JWT 1:  Empty list of JSON
         String jwt1 = Jwts.builder()
                 .setHeaderParam(LtiStrings.TYP, LtiStrings.JWT)
-                .setHeaderParam(LtiStrings.KID, TextConstants.DEFAULT_KID)
+                .setHeaderParam(LtiStrings.KID, kid)
                 .setHeaderParam(LtiStrings.ALG, LtiStrings.RS256)
                 .setIssuer(platformDeployment.getClientId())  //Client ID
                 .setAudience(lti3Request.getIss())
@@ -77,7 +77,7 @@ public class DeepLinkUtils {
         List<Map<String, Object>> oneDeepLink = createOneDeepLinkWithGrades(localUrl);
         String jwt2 = Jwts.builder()
                 .setHeaderParam(LtiStrings.TYP, LtiStrings.JWT)
-                .setHeaderParam(LtiStrings.KID, TextConstants.DEFAULT_KID)
+                .setHeaderParam(LtiStrings.KID, kid)
                 .setHeaderParam(LtiStrings.ALG, LtiStrings.RS256)
                 .setIssuer(platformDeployment.getClientId())  //Client ID
                 .setAudience(lti3Request.getIss())
@@ -102,7 +102,7 @@ public class DeepLinkUtils {
         List<Map<String, Object>> oneDeepLinkNoLti = createOneDeepLinkNoLti();
         String jwt2b = Jwts.builder()
                 .setHeaderParam(LtiStrings.TYP, LtiStrings.JWT)
-                .setHeaderParam(LtiStrings.KID, TextConstants.DEFAULT_KID)
+                .setHeaderParam(LtiStrings.KID, kid)
                 .setHeaderParam(LtiStrings.ALG, LtiStrings.RS256)
                 .setIssuer(platformDeployment.getClientId())  //Client ID
                 .setAudience(lti3Request.getIss())
@@ -127,7 +127,7 @@ public class DeepLinkUtils {
         List<Map<String, Object>> oneDeepLinkNoLtiFile = createOneDeepLinkNoLtiFile(localUrl);
         String jwt2c = Jwts.builder()
                 .setHeaderParam(LtiStrings.TYP, LtiStrings.JWT)
-                .setHeaderParam(LtiStrings.KID, TextConstants.DEFAULT_KID)
+                .setHeaderParam(LtiStrings.KID, kid)
                 .setHeaderParam(LtiStrings.ALG, LtiStrings.RS256)
                 .setIssuer(platformDeployment.getClientId())  //Client ID
                 .setAudience(lti3Request.getIss())
@@ -152,7 +152,7 @@ public class DeepLinkUtils {
         List<Map<String, Object>> oneDeepLinkNoLtiFile2 = createOneDeepLinkNoLtiFile2(localUrl);
         String jwt2d = Jwts.builder()
                 .setHeaderParam(LtiStrings.TYP, LtiStrings.JWT)
-                .setHeaderParam(LtiStrings.KID, TextConstants.DEFAULT_KID)
+                .setHeaderParam(LtiStrings.KID, kid)
                 .setHeaderParam(LtiStrings.ALG, LtiStrings.RS256)
                 .setIssuer(platformDeployment.getClientId())  //Client ID
                 .setAudience(lti3Request.getIss())
@@ -177,7 +177,7 @@ public class DeepLinkUtils {
         List<Map<String, Object>> multipleDeepLink = createMultipleDeepLink(localUrl);
         String jwt3 = Jwts.builder()
                 .setHeaderParam(LtiStrings.TYP, LtiStrings.JWT)
-                .setHeaderParam(LtiStrings.KID, TextConstants.DEFAULT_KID)
+                .setHeaderParam(LtiStrings.KID, kid)
                 .setHeaderParam(LtiStrings.ALG, LtiStrings.RS256)
                 .setIssuer(platformDeployment.getClientId())  //This is our own identifier, to know that we are the issuer.
                 .setAudience(lti3Request.getIss())
@@ -202,7 +202,7 @@ public class DeepLinkUtils {
         List<Map<String, Object>> multipleDeepLinkOnlyLti = createMultipleDeepLinkOnlyLti(localUrl);
         String jwt3b = Jwts.builder()
                 .setHeaderParam(LtiStrings.TYP, LtiStrings.JWT)
-                .setHeaderParam(LtiStrings.KID, TextConstants.DEFAULT_KID)
+                .setHeaderParam(LtiStrings.KID, kid)
                 .setHeaderParam(LtiStrings.ALG, LtiStrings.RS256)
                 .setIssuer(platformDeployment.getClientId())  //This is our own identifier, to know that we are the issuer.
                 .setAudience(lti3Request.getIss())
@@ -13,10 +13,6 @@
 package net.unicon.lti.utils.lti;
 
 import com.google.common.collect.Iterables;
-import com.nimbusds.jose.JOSEException;
-import com.nimbusds.jose.jwk.AsymmetricJWK;
-import com.nimbusds.jose.jwk.JWK;
-import com.nimbusds.jose.jwk.JWKSet;
 import io.jsonwebtoken.Claims;
 import io.jsonwebtoken.Jws;
 import io.jsonwebtoken.JwsHeader;
@@ -45,10 +41,8 @@ import org.thymeleaf.util.ListUtils;
 
 import jakarta.servlet.http.HttpServletRequest;
 import java.io.IOException;
-import java.net.URL;
 import java.security.GeneralSecurityException;
 import java.security.Key;
-import java.text.ParseException;
 import java.util.*;
 
 /**
@@ -188,9 +182,11 @@ public class LTI3Request {
 
 
     /**
+     * The LTI3Request lives in the current request attributes, so there is nothing shared between threads here
+     * and no lock is needed: each servlet request is handled by a single thread.
      * @return the current LTI3Request object if there is one available, null if there isn't one and this is not a valid LTI3 based request
      */
-    public static synchronized LTI3Request getInstance(String linkId) {
+    public static LTI3Request getInstance(String linkId) {
         LTI3Request ltiRequest = null;
         try {
             ltiRequest = getInstanceOrDie(linkId);
@@ -222,6 +218,8 @@ public class LTI3Request {
             try {
                 if (ltiDataService != null) {
                     ltiRequest = new LTI3Request(req, ltiDataService, true, linkId, null);
+                    // Keep it in the request, so we only validate and store it once per request.
+                    req.setAttribute(LTI3Request.class.getName(), ltiRequest);
                 } else { //THIS SHOULD NOT HAPPEN
                     throw new IllegalStateException("Error internal, no Dataservice available: " + req);
                 }
@@ -250,23 +248,10 @@ public class LTI3Request {
                 if (aud.startsWith("[") && aud.endsWith("]")) {
                     aud = aud.substring(1, aud.length() -1);
                 }
-                PlatformDeployment platformDeployment = ltiDataService.getRepos().platformDeploymentRepository.findByIssAndClientId(claims.getIssuer(), aud).get(0);
-
-                // We are dealing with RS256 encryption, so we have some Oauth utils to manage the keys and
-                // convert them to keys from the string stored in DB. There are for sure other ways to manage this.
-                if (StringUtils.isNoneEmpty(platformDeployment.getJwksEndpoint())) {
-                    try {
-                        JWKSet publicKeys = JWKSet.load(new URL(platformDeployment.getJwksEndpoint()));
-                        JWK jwk = publicKeys.getKeyByKeyId(header.getKeyId());
-                        return ((AsymmetricJWK) jwk).toPublicKey();
-                    } catch (JOSEException | ParseException | IOException ex) {
-                        log.error("Error getting the iss public key", ex);
-                        return null;
-                    }
-                } else {
-                    log.error("The platform configuration must contain a Jwks endpoint");
-                    return null;
-                }
+                PlatformDeployment platformDeployment = ltiDataService.getPlatformDeployments().findByIssAndClientId(claims.getIssuer(), aud).get(0);
+
+                // The platform keys come from its JWK Set endpoint (cached).
+                return ltiDataService.getPlatformJwks().getPublicKey(platformDeployment, header.getKeyId());
 
             }
         });
@@ -300,7 +285,7 @@ public class LTI3Request {
         }
 
         String deploymentId = String.valueOf(jws.getBody().get(LtiStrings.LTI_DEPLOYMENT_ID));
-        List<PlatformDeployment> platformDeploymentList = ltiDataService.getRepos().platformDeploymentRepository.findByIssAndClientIdAndDeploymentId(iss, clientId, deploymentId);
+        List<PlatformDeployment> platformDeploymentList = ltiDataService.getPlatformDeployments().findByIssAndClientIdAndDeploymentId(iss, clientId, deploymentId);
         if (platformDeploymentList.size() != 1) {
             throw new IllegalStateException("PlatformDeployment does not exist or is duplicated for issuer: " + iss + ", clientId: " + clientId + ", and deploymentId: " + deploymentId);
         }
@@ -322,7 +307,7 @@ public class LTI3Request {
         }
         // We update the database in case we have new values. (New users, new resources...etc)
         // Load data from DB related with this request and update it if needed with the new values.
-        PlatformDeployment platformDeployment = ltiDataService.getRepos().platformDeploymentRepository.findByIssAndClientIdAndDeploymentId(this.iss, this.aud, ltiDeploymentId).get(0);
+        PlatformDeployment platformDeployment = platformDeploymentList.get(0);
         ltiDataService.loadLTIDataFromDB(this, linkId);
         if (update) {
             if (isLTI3Request.equals(LtiStrings.LTI_MESSAGE_TYPE_RESOURCE_LINK)) {
@@ -471,7 +456,7 @@ public class LTI3Request {
             correct = isCorrect.equals("true");
             // NOTE: This is just to hardcode some demo information.
             try {
-                deepLinkJwts = DeepLinkUtils.generateDeepLinkJWT(ltiDataService, ltiDataService.getRepos().platformDeploymentRepository.findByDeploymentId(ltiDeploymentId).get(0),
+                deepLinkJwts = DeepLinkUtils.generateDeepLinkJWT(ltiDataService.getKeyring(), ltiDataService.getPlatformDeployments().findByIssAndClientIdAndDeploymentId(iss, aud, ltiDeploymentId).get(0),
                         this, ltiDataService.getLocalUrl());
             } catch (GeneralSecurityException | IOException | NullPointerException ex) {
                 log.error("Error creating the DeepLinking Response", ex);
@@ -715,7 +700,7 @@ public class LTI3Request {
 
             }
         }
-        NonceState nonceState = ltiDataService.getRepos().nonceStateRepository.findByNonce(nonceToCheck);
+        NonceState nonceState = ltiDataService.getNonceStates().getNonce(nonceToCheck);
         if (nonceState != null) {
             return "true";
         } else {
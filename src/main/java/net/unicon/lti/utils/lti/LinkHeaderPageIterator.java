@@ -0,0 +1,139 @@
+/**
+ * Copyright 2021 Unicon (R)
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.unicon.lti.utils.lti;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.client.RestClientException;
+import org.springframework.web.client.RestTemplate;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.function.Function;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Lazily walks a paginated LTI service (AGS, NRPS) following the rel="next" link header.
+ * Only the page being consumed and the next one are held in memory: as soon as a page arrives the
+ * next one is requested in the prefetch executor, so the network call overlaps with the caller's work.
+ * Errors are thrown as RestClientException when the failing page is reached.
+ */
+public class LinkHeaderPageIterator<P, T> implements Iterator<T>, AutoCloseable {
+
+    static final Logger log = LoggerFactory.getLogger(LinkHeaderPageIterator.class);
+
+    private final RestTemplate restTemplate;
+    private final HttpEntity<?> request;
+    private final Class<P> pageType;
+    private final Function<P, Collection<T>> items;
+    private final Function<HttpHeaders, String> nextPage;
+    private final Executor prefetchExecutor;
+
+    private String firstPage;
+    private CompletableFuture<ResponseEntity<P>> next;
+    private Iterator<T> current = Collections.emptyIterator();
+
+    public LinkHeaderPageIterator(RestTemplate restTemplate, String url, HttpEntity<?> request, Class<P> pageType,
+                                  Function<P, Collection<T>> items, Function<HttpHeaders, String> nextPage,
+                                  Executor prefetchExecutor) {
+        this.restTemplate = restTemplate;
+        this.firstPage = url;
+        this.request = request;
+        this.pageType = pageType;
+        this.items = items;
+        this.nextPage = nextPage;
+        //Without an executor the next page is requested right away in the calling thread
+        this.prefetchExecutor = prefetchExecutor != null ? prefetchExecutor : Runnable::run;
+    }
+
+    public static <P, T> Stream<T> stream(RestTemplate restTemplate, String url, HttpEntity<?> request, Class<P> pageType,
+                                          Function<P, Collection<T>> items, Function<HttpHeaders, String> nextPage,
+                                          Executor prefetchExecutor) {
+        LinkHeaderPageIterator<P, T> iterator = new LinkHeaderPageIterator<>(restTemplate, url, request, pageType, items, nextPage, prefetchExecutor);
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(iterator, Spliterator.ORDERED | Spliterator.NONNULL), false)
+                .onClose(iterator::close);
+    }
+
+    @Override
+    public boolean hasNext() {
+        while (!current.hasNext()) {
+            if (firstPage != null) {
+                next = fetch(firstPage);
+                firstPage = null;
+            }
+            if (next == null) {
+                return false;
+            }
+            ResponseEntity<P> response = await(next);
+            String nextUrl = nextPage.apply(response.getHeaders());
+            log.debug("We have next page: {}", nextUrl);
+            next = nextUrl != null ? fetch(nextUrl) : null;
+            P body = response.getBody();
+            current = body != null ? items.apply(body).iterator() : Collections.emptyIterator();
+        }
+        return true;
+    }
+
+    @Override
+    public T next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        return current.next();
+    }
+
+    //Drops the page being prefetched if the caller stops before the end
+    @Override
+    public void close() {
+        if (next != null) {
+            next.cancel(true);
+            next = null;
+        }
+        firstPage = null;
+        current = Collections.emptyIterator();
+    }
+
+    private CompletableFuture<ResponseEntity<P>> fetch(String url) {
+        return CompletableFuture.supplyAsync(() -> {
+            ResponseEntity<P> response = restTemplate.exchange(url, HttpMethod.GET, request, pageType);
+            if (!response.getStatusCode().is2xxSuccessful()) {
+                throw new RestClientException("Can't get the page " + url + ", status " + response.getStatusCode());
+            }
+            return response;
+        }, prefetchExecutor);
+    }
+
+    private ResponseEntity<P> await(CompletableFuture<ResponseEntity<P>> page) {
+        try {
+            return page.join();
+        } catch (CompletionException e) {
+            next = null;
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new RestClientException("Can't get the page", e.getCause());
+        }
+    }
+}
@@ -13,19 +13,15 @@
 package net.unicon.lti.utils.lti;
 
 import io.jsonwebtoken.Jwts;
-import io.jsonwebtoken.SignatureAlgorithm;
 import net.unicon.lti.model.PlatformDeployment;
 import net.unicon.lti.model.lti.dto.LoginInitiationDTO;
-import net.unicon.lti.service.lti.LTIDataService;
-import net.unicon.lti.utils.TextConstants;
-import net.unicon.lti.utils.oauth.OAuthUtils;
+import net.unicon.lti.service.lti.InternalTokenService;
 import org.apache.commons.lang3.time.DateUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.security.GeneralSecurityException;
-import java.security.Key;
 import java.time.LocalDateTime;
 import java.time.ZoneId;
 import java.util.Date;
@@ -35,6 +31,9 @@ public class LtiOidcUtils {
 
     static final Logger log = LoggerFactory.getLogger(LtiOidcUtils.class);
 
+    //The iss of the states we sign, checked when they come back
+    public static final String STATE_ISSUER = "ltiStarter";
+
     private LtiOidcUtils() {
         throw new IllegalStateException("Utility class");
     }
@@ -43,13 +42,11 @@ public class LtiOidcUtils {
      * The state will be returned when the tool makes the final call to us, so it is useful to send information
      * to our own tool, to know about the request.
      */
-    public static String generateState(LTIDataService ltiDataService, Map<String, String> authRequestMap, LoginInitiationDTO loginInitiationDTO, String clientIdValue, String deploymentIdValue, String nonce) throws GeneralSecurityException {
+    public static String generateState(InternalTokenService internalTokenService, Map<String, String> authRequestMap, LoginInitiationDTO loginInitiationDTO, String clientIdValue, String deploymentIdValue, String nonce) throws GeneralSecurityException {
         Date date = new Date();
-        Key issPrivateKey = OAuthUtils.loadPrivateKey(ltiDataService.getOwnPrivateKey());
-        String state = Jwts.builder()
-                .setHeaderParam("kid", TextConstants.DEFAULT_KID)  // The key id used to sign this
+        String state = internalTokenService.sign(Jwts.builder()
                 .setHeaderParam("typ", "JWT") // The type
-                .setIssuer("ltiStarter")  //This is our own identifier, to know that we are the issuer.
+                .setIssuer(STATE_ISSUER)  //This is our own identifier, to know that we are the issuer.
                 .setSubject(loginInitiationDTO.getIss()) // We store here the platform issuer to check that matches with the issuer received later
                 .setAudience(clientIdValue)  //We send here the clientId to check it later.
                 .setExpiration(DateUtils.addSeconds(date, 3600)) //a java.util.Date
@@ -61,9 +58,7 @@ public class LtiOidcUtils {
                 .claim("clientId", clientIdValue)
                 .claim("ltiDeploymentId", deploymentIdValue)
                 .claim("nonce", nonce)
-                .claim("controller", "/oidc/login_initiations")
-                .signWith(SignatureAlgorithm.RS256, issPrivateKey)  //We sign it
-                .compact();
+                .claim("controller", "/oidc/login_initiations"));  //We sign it with the internal tokens key
         log.debug("State: \n {} \n", state);
         return state;
     }
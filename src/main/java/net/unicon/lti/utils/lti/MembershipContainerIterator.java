@@ -0,0 +1,214 @@
+/**
+ * Copyright 2021 Unicon (R)
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.unicon.lti.utils.lti;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import net.unicon.lti.model.membership.CourseUser;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.client.ClientHttpRequest;
+import org.springframework.http.client.ClientHttpResponse;
+import org.springframework.web.client.RestClientException;
+import org.springframework.web.client.RestTemplate;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.function.Function;
+
+/**
+ * Lazily walks the NRPS membership containers following the rel="next" link header, parsing the members of each
+ * page with the Jackson streaming parser as they come from the platform. Only the member being returned is in memory,
+ * whatever the size of the page or of the roster.
+ * The next page is requested in the prefetch executor as soon as the headers of the current one arrive, so the network
+ * call overlaps with the reading. Errors are thrown as RestClientException (the HttpStatusCodeException of the
+ * RestTemplate error handler for a bad status) when the failing page is reached.
+ */
+public class MembershipContainerIterator implements Iterator<CourseUser>, AutoCloseable {
+
+    static final Logger log = LoggerFactory.getLogger(MembershipContainerIterator.class);
+
+    private final RestTemplate restTemplate;
+    private final HttpHeaders requestHeaders;
+    private final ObjectMapper objectMapper;
+    private final Function<HttpHeaders, String> nextPage;
+    private final Executor prefetchExecutor;
+
+    private String firstPage;
+    private CompletableFuture<ClientHttpResponse> next;
+    private ClientHttpResponse response;
+    private JsonParser parser;
+    private CourseUser member;
+    private int membersInPage;
+
+    public MembershipContainerIterator(RestTemplate restTemplate, String url, HttpHeaders requestHeaders, ObjectMapper objectMapper,
+                                       Function<HttpHeaders, String> nextPage, Executor prefetchExecutor) {
+        this.restTemplate = restTemplate;
+        this.firstPage = url;
+        this.requestHeaders = requestHeaders;
+        this.objectMapper = objectMapper;
+        this.nextPage = nextPage;
+        //Without an executor the next page is requested right away in the calling thread
+        this.prefetchExecutor = prefetchExecutor != null ? prefetchExecutor : Runnable::run;
+    }
+
+    @Override
+    public boolean hasNext() {
+        try {
+            while (member == null) {
+                if (parser != null) {
+                    member = readMember();
+                    if (member != null) {
+                        break;
+                    }
+                    log.debug("We have {} users in the page", membersInPage);
+                    closePage();
+                }
+                if (firstPage != null) {
+                    next = fetch(firstPage);
+                    firstPage = null;
+                }
+                if (next == null) {
+                    return false;
+                }
+                openPage(await(next));
+            }
+            return true;
+        } catch (IOException e) {
+            close();
+            throw new RestClientException("Can't read the membership container", e);
+        }
+    }
+
+    @Override
+    public CourseUser next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        CourseUser current = member;
+        member = null;
+        return current;
+    }
+
+    //Closes the page being read and drops the one being prefetched if the caller stops before the end
+    @Override
+    public void close() {
+        if (next != null) {
+            //The request can't be cancelled once sent, its response is closed when it arrives
+            next.thenAccept(ClientHttpResponse::close);
+            next = null;
+        }
+        firstPage = null;
+        member = null;
+        closePage();
+    }
+
+    private void openPage(ClientHttpResponse page) throws IOException {
+        response = page;
+        membersInPage = 0;
+        String nextUrl = nextPage.apply(page.getHeaders());
+        log.debug("We have next page: {}", nextUrl);
+        next = nextUrl != null ? fetch(nextUrl) : null;
+        parser = objectMapper.getFactory().createParser(page.getBody());
+        if (parser.nextToken() != JsonToken.START_OBJECT) {
+            throw new IOException("The membership container is not a JSON object");
+        }
+        //Moves the parser to the members array, the other fields of the container are skipped
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.getCurrentName();
+            JsonToken value = parser.nextToken();
+            if ("members".equals(field) && value == JsonToken.START_ARRAY) {
+                return;
+            }
+            parser.skipChildren();
+        }
+        //No members in this page
+        closePage();
+        parser = null;
+    }
+
+    //The next member of the page, null at the end of the members array
+    private CourseUser readMember() throws IOException {
+        if (parser.nextToken() != JsonToken.START_OBJECT) {
+            return null;
+        }
+        membersInPage++;
+        return parser.readValueAs(CourseUser.class);
+    }
+
+    private void closePage() {
+        if (parser != null) {
+            try {
+                parser.close();
+            } catch (IOException e) {
+                log.debug("Error closing the membership parser", e);
+            }
+            parser = null;
+        }
+        if (response != null) {
+            response.close();
+            response = null;
+        }
+    }
+
+    private CompletableFuture<ClientHttpResponse> fetch(String url) {
+        return CompletableFuture.supplyAsync(() -> {
+            URI uri = URI.create(url);
+            ClientHttpResponse page = null;
+            try {
+                ClientHttpRequest request = restTemplate.getRequestFactory().createRequest(uri, HttpMethod.GET);
+                request.getHeaders().putAll(requestHeaders);
+                page = request.execute();
+                if (restTemplate.getErrorHandler().hasError(page)) {
+                    restTemplate.getErrorHandler().handleError(uri, HttpMethod.GET, page);
+                }
+                if (!page.getStatusCode().is2xxSuccessful()) {
+                    throw new RestClientException("Can't get the page " + url + ", status " + page.getStatusCode());
+                }
+                return page;
+            } catch (IOException e) {
+                closeQuietly(page);
+                throw new RestClientException("Can't get the page " + url, e);
+            } catch (RuntimeException e) {
+                closeQuietly(page);
+                throw e;
+            }
+        }, prefetchExecutor);
+    }
+
+    private ClientHttpResponse await(CompletableFuture<ClientHttpResponse> page) {
+        try {
+            return page.join();
+        } catch (CompletionException e) {
+            next = null;
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new RestClientException("Can't get the page", e.getCause());
+        }
+    }
+
+    private static void closeQuietly(ClientHttpResponse page) {
+        if (page != null) {
+            page.close();
+        }
+    }
+}
@@ -0,0 +1,86 @@
+/**
+ * Copyright 2021 Unicon (R)
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.unicon.lti.utils.lti;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.Map;
+
+/**
+ * Encrypts and authenticates (AES-GCM) a small map of values into a URL safe token, so it can travel as the OIDC
+ * state parameter and come back to us without storing anything. Anyone changing the token makes decrypt fail.
+ */
+public class StateTokenCipher {
+
+    private static final String ALGORITHM = "AES/GCM/NoPadding";
+    private static final int IV_LENGTH = 12;
+    private static final int TAG_LENGTH = 128;
+
+    private static final ObjectMapper objectMapper = new ObjectMapper();
+    private static final SecureRandom secureRandom = new SecureRandom();
+
+    private final SecretKeySpec key;
+
+    /**
+     * @param key 16, 24 or 32 bytes AES key
+     */
+    public StateTokenCipher(byte[] key) {
+        if (key == null || (key.length != 16 && key.length != 24 && key.length != 32)) {
+            throw new IllegalArgumentException("The state key must be 16, 24 or 32 bytes long");
+        }
+        this.key = new SecretKeySpec(key, "AES");
+    }
+
+    public String encrypt(Map<String, Object> values) throws GeneralSecurityException {
+        byte[] iv = new byte[IV_LENGTH];
+        secureRandom.nextBytes(iv);
+        Cipher cipher = Cipher.getInstance(ALGORITHM);
+        cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(TAG_LENGTH, iv));
+        byte[] encrypted;
+        try {
+            encrypted = cipher.doFinal(objectMapper.writeValueAsBytes(values));
+        } catch (IOException e) {
+            throw new GeneralSecurityException("Can't write the state values", e);
+        }
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(ByteBuffer.allocate(iv.length + encrypted.length).put(iv).put(encrypted).array());
+    }
+
+    public Map<String, Object> decrypt(String token) throws GeneralSecurityException {
+        byte[] bytes;
+        try {
+            bytes = Base64.getUrlDecoder().decode(token);
+        } catch (IllegalArgumentException e) {
+            throw new GeneralSecurityException("The state is not a valid token", e);
+        }
+        if (bytes.length <= IV_LENGTH) {
+            throw new GeneralSecurityException("The state is not a valid token");
+        }
+        Cipher cipher = Cipher.getInstance(ALGORITHM);
+        cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(TAG_LENGTH, bytes, 0, IV_LENGTH));
+        byte[] decrypted = cipher.doFinal(bytes, IV_LENGTH, bytes.length - IV_LENGTH);
+        try {
+            return objectMapper.readValue(decrypted, new TypeReference<Map<String, Object>>() {});
+        } catch (IOException e) {
+            throw new GeneralSecurityException("Can't read the state values", e);
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package net.unicon.lti.benchmark;
+
+import io.jsonwebtoken.Claims;
+import io.jsonwebtoken.Jws;
+import io.jsonwebtoken.JwtParser;
+import io.jsonwebtoken.Jwts;
+import io.jsonwebtoken.security.SecureDigestAlgorithm;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.security.Key;
+import java.security.KeyPair;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Signing and verifying one of our internal tokens (state, nonce state, API token) with each of the
+ * algorithms supported by lti13.internalTokens.algorithm.
+ * mvn test-compile exec:exec -Dexec.classpathScope=test -Dexec.executable=java -Dexec.args="-cp %classpath org.openjdk.jmh.Main InternalTokenBenchmark -prof gc"
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class InternalTokenBenchmark {
+
+    @Param({"RS256", "HS256", "ES256"})
+    private String algorithm;
+
+    private Key signingKey;
+    private SecureDigestAlgorithm<Key, ?> signatureAlgorithm;
+    private String token;
+    private JwtParser parser;
+
+    @Setup
+    @SuppressWarnings("unchecked")
+    public void setUp() {
+        Key verificationKey;
+        if ("HS256".equals(algorithm)) {
+            signingKey = Jwts.SIG.HS256.key().build();
+            verificationKey = signingKey;
+            signatureAlgorithm = (SecureDigestAlgorithm) Jwts.SIG.HS256;
+        } else {
+            KeyPair keyPair = "ES256".equals(algorithm) ? Jwts.SIG.ES256.keyPair().build() : Jwts.SIG.RS256.keyPair().build();
+            signingKey = keyPair.getPrivate();
+            verificationKey = keyPair.getPublic();
+            signatureAlgorithm = (SecureDigestAlgorithm) ("ES256".equals(algorithm) ? Jwts.SIG.ES256 : Jwts.SIG.RS256);
+        }
+        token = sign();
+        parser = Jwts.parser()
+                .keyLocator(header -> verificationKey)
+                .requireIssuer("ISSUER")
+                .build();
+    }
+
+    @Benchmark
+    public String sign() {
+        Date now = new Date();
+        return Jwts.builder()
+                .header().keyId("kid").and()
+                .issuer("ISSUER")
+                .audience().add("https://tool.com").and()
+                .issuedAt(now)
+                .notBefore(now)
+                .expiration(new Date(now.getTime() + 3600000))
+                .claim("userId", "user-1")
+                .signWith(signingKey, signatureAlgorithm)
+                .compact();
+    }
+
+    @Benchmark
+    public Jws<Claims> verify() {
+        return parser.parseSignedClaims(token);
+    }
+}
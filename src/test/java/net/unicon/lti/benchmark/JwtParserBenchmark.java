@@ -0,0 +1,83 @@
+package net.unicon.lti.benchmark;
+
+import io.jsonwebtoken.Claims;
+import io.jsonwebtoken.Jws;
+import io.jsonwebtoken.JwsHeader;
+import io.jsonwebtoken.JwtParser;
+import io.jsonwebtoken.Jwts;
+import io.jsonwebtoken.SigningKeyResolverAdapter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.security.Key;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.NoSuchAlgorithmException;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Validating one of our own tokens: a parser built on every call with a key resolver (as we did before)
+ * against a parser built once with the key and the expected claims.
+ * Run it with the gc profiler to see the allocations per call:
+ * mvn test-compile exec:exec -Dexec.classpathScope=test -Dexec.executable=java -Dexec.args="-cp %classpath org.openjdk.jmh.Main JwtParserBenchmark -prof gc"
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class JwtParserBenchmark {
+
+    private KeyPair keyPair;
+    private String token;
+    private JwtParser prebuiltParser;
+
+    @Setup
+    public void setUp() throws NoSuchAlgorithmException {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(2048);
+        keyPair = generator.generateKeyPair();
+        Date now = new Date();
+        token = Jwts.builder()
+                .header().keyId("kid").and()
+                .issuer("ISSUER")
+                .audience().add("https://tool.com").and()
+                .issuedAt(now)
+                .notBefore(now)
+                .expiration(new Date(now.getTime() + 3600000))
+                .claim("userId", "user-1")
+                .signWith(keyPair.getPrivate())
+                .compact();
+        prebuiltParser = Jwts.parser()
+                .verifyWith(keyPair.getPublic())
+                .requireIssuer("ISSUER")
+                .requireAudience("https://tool.com")
+                .clockSkewSeconds(5)
+                .build();
+    }
+
+    @Benchmark
+    public Jws<Claims> parserPerCall() {
+        return Jwts.parser().setSigningKeyResolver(new SigningKeyResolverAdapter() {
+            @Override
+            public Key resolveSigningKey(JwsHeader header, Claims claims) {
+                return keyPair.getPublic();
+            }
+        }).build().parseSignedClaims(token);
+    }
+
+    @Benchmark
+    public Jws<Claims> prebuiltParser() {
+        return prebuiltParser.parseSignedClaims(token);
+    }
+}
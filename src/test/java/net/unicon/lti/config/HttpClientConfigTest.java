@@ -0,0 +1,48 @@
+package net.unicon.lti.config;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.http.client.ClientHttpRequestFactory;
+import org.springframework.http.client.JdkClientHttpRequestFactory;
+import org.springframework.test.context.TestPropertySource;
+import org.springframework.test.context.junit.jupiter.SpringJUnitConfig;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.net.http.HttpClient;
+import java.time.Duration;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+@SpringJUnitConfig(HttpClientConfig.class)
+@TestPropertySource(properties = {"lti13.http.connectTimeoutMillis=1500", "lti13.http.readTimeoutMillis=20000", "lti13.jwks.readTimeoutMillis=4000"})
+public class HttpClientConfigTest {
+
+    @Autowired
+    HttpClient ltiHttpClient;
+
+    @Autowired
+    ClientHttpRequestFactory ltiClientHttpRequestFactory;
+
+    @Autowired
+    @Qualifier("ltiJwksClientHttpRequestFactory")
+    ClientHttpRequestFactory ltiJwksClientHttpRequestFactory;
+
+    @Test
+    public void testBothFactoriesShareThePooledClient() {
+        // Not wrapped in a buffering factory, the responses are streamed
+        assertInstanceOf(JdkClientHttpRequestFactory.class, ltiClientHttpRequestFactory);
+        assertInstanceOf(JdkClientHttpRequestFactory.class, ltiJwksClientHttpRequestFactory);
+        assertSame(ltiHttpClient, ReflectionTestUtils.getField(ltiClientHttpRequestFactory, "httpClient"));
+        assertSame(ltiHttpClient, ReflectionTestUtils.getField(ltiJwksClientHttpRequestFactory, "httpClient"));
+    }
+
+    @Test
+    public void testTimeoutsComeFromTheConfig() {
+        assertEquals(Duration.ofMillis(1500), ltiHttpClient.connectTimeout().orElseThrow());
+        assertEquals(Duration.ofMillis(20000), ReflectionTestUtils.getField(ltiClientHttpRequestFactory, "readTimeout"));
+        assertEquals(Duration.ofMillis(4000), ReflectionTestUtils.getField(ltiJwksClientHttpRequestFactory, "readTimeout"));
+    }
+}
@@ -2,6 +2,8 @@ package net.unicon.lti.controller.lti;
 
 import net.unicon.lti.model.PlatformDeployment;
 import net.unicon.lti.repository.PlatformDeploymentRepository;
+import net.unicon.lti.service.lti.PlatformDeploymentRegistry;
+import net.unicon.lti.service.lti.PlatformJwksService;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.mockito.InjectMocks;
@@ -35,6 +37,12 @@ public class ConfigurationControllerTest {
     @MockBean
     private PlatformDeploymentRepository platformDeploymentRepository;
 
+    @MockBean
+    private PlatformDeploymentRegistry platformDeploymentRegistry;
+
+    @MockBean
+    private PlatformJwksService platformJwksService;
+
     @Configuration
     static class ContextConfiguration {
     }
@@ -95,12 +103,15 @@ public class ConfigurationControllerTest {
         platformDeployment.setIss("https://lms.com");
         platformDeployment.setDeploymentId("deploymentId");
         platformDeployment.setClientId("clientId");
+        platformDeployment.setJwksEndpoint("https://lms.com/jwks");
         when(platformDeploymentRepository.findByIssAndClientIdAndDeploymentId("https://lms.com", "clientId", "deploymentId")).thenReturn(new ArrayList<>());
         when(platformDeploymentRepository.save(platformDeployment)).thenReturn(platformDeployment);
 
         ResponseEntity<PlatformDeployment> found = configurationController.createDeployment(platformDeployment);
         Mockito.verify(platformDeploymentRepository).findByIssAndClientIdAndDeploymentId("https://lms.com", "clientId", "deploymentId");
         Mockito.verify(platformDeploymentRepository).save(platformDeployment);
+        Mockito.verify(platformDeploymentRegistry).invalidate();
+        Mockito.verify(platformJwksService).invalidate("https://lms.com/jwks");
         assertEquals(platformDeploymentResponseEntity.getStatusCode(), found.getStatusCode());
         assertEquals(platformDeploymentResponseEntity.getBody(), found.getBody());
     }
@@ -131,6 +142,19 @@ public class ConfigurationControllerTest {
         assertEquals(platformDeploymentResponseEntity.getBody(), found.getBody());
     }
 
+    @Test
+    public void testUpdateDeploymentForgetsTheKeysOfBothJwksEndpoints() {
+        PlatformDeployment stored = new PlatformDeployment();
+        stored.setJwksEndpoint("https://lms.com/old-jwks");
+        platformDeployment.setJwksEndpoint("https://lms.com/jwks");
+        when(platformDeploymentRepository.findById(1L)).thenReturn(java.util.Optional.of(stored));
+
+        configurationController.updateDeployment(1L, platformDeployment);
+        Mockito.verify(platformDeploymentRegistry).invalidate();
+        Mockito.verify(platformJwksService).invalidate("https://lms.com/old-jwks");
+        Mockito.verify(platformJwksService).invalidate("https://lms.com/jwks");
+    }
+
     @Test
     public void testUpdateDeploymentNotFound() {
         when(platformDeploymentRepository.findById(1L)).thenReturn(java.util.Optional.ofNullable(null));
@@ -0,0 +1,106 @@
+package net.unicon.lti.controller.lti;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import net.unicon.lti.service.lti.KeyringService;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.springframework.http.HttpHeaders;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
+import org.springframework.test.web.servlet.setup.MockMvcBuilders;
+
+import java.math.BigInteger;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.interfaces.RSAPublicKey;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.mockito.Mockito.when;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.header;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+public class JWKControllerTest {
+
+    @InjectMocks
+    private JWKController jwkController = new JWKController();
+
+    @Mock
+    private KeyringService keyringService;
+
+    private MockMvc mockMvc;
+
+    private RSAPublicKey activeKey;
+    private RSAPublicKey nextKey;
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        MockitoAnnotations.openMocks(this);
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(2048);
+        activeKey = (RSAPublicKey) generator.generateKeyPair().getPublic();
+        KeyPair nextKeyPair = generator.generateKeyPair();
+        nextKey = (RSAPublicKey) nextKeyPair.getPublic();
+        Map<String, RSAPublicKey> keys = new LinkedHashMap<>();
+        keys.put("active", activeKey);
+        keys.put("next", nextKey);
+        when(keyringService.getPublishedKeys()).thenReturn(keys);
+        mockMvc = MockMvcBuilders.standaloneSetup(jwkController).build();
+    }
+
+    @Test
+    public void testAllThePublishedKeysAreServed() throws Exception {
+        MvcResult result = mockMvc.perform(get("/jwks/jwk"))
+                .andExpect(status().isOk())
+                .andExpect(header().string(HttpHeaders.CACHE_CONTROL, "max-age=3600, public"))
+                .andReturn();
+
+        JsonNode keys = new ObjectMapper().readTree(result.getResponse().getContentAsByteArray()).get("keys");
+        assertEquals(2, keys.size());
+        assertEquals("active", keys.get(0).get("kid").asText());
+        assertEquals("RSA", keys.get(0).get("kty").asText());
+        assertEquals("RS256", keys.get(0).get("alg").asText());
+        assertEquals("next", keys.get(1).get("kid").asText());
+        // No 00 prefix in the modulus (D2L)
+        byte[] modulus = Base64.getUrlDecoder().decode(keys.get(1).get("n").asText());
+        assertEquals(256, modulus.length);
+        assertEquals(nextKey.getModulus(), new BigInteger(1, modulus));
+    }
+
+    @Test
+    public void testSameETagAnswersNotModified() throws Exception {
+        MvcResult first = mockMvc.perform(get("/jwks/jwk")).andExpect(status().isOk()).andReturn();
+        String etag = first.getResponse().getHeader(HttpHeaders.ETAG);
+        assertNotNull(etag);
+
+        MvcResult second = mockMvc.perform(get("/jwks/jwk").header(HttpHeaders.IF_NONE_MATCH, etag))
+                .andExpect(status().isNotModified())
+                .andReturn();
+
+        assertEquals(0, second.getResponse().getContentLength());
+        assertArrayEquals(first.getResponse().getContentAsByteArray(), mockMvc.perform(get("/jwks/jwk")).andReturn().getResponse().getContentAsByteArray());
+    }
+
+    @Test
+    public void testNewKeySetChangesTheETag() throws Exception {
+        String etag = mockMvc.perform(get("/jwks/jwk")).andReturn().getResponse().getHeader(HttpHeaders.ETAG);
+        when(keyringService.getPublishedKeys()).thenReturn(Map.of("next", nextKey));
+
+        MvcResult result = mockMvc.perform(get("/jwks/jwk").header(HttpHeaders.IF_NONE_MATCH, etag))
+                .andExpect(status().isOk())
+                .andReturn();
+
+        assertNotEquals(etag, result.getResponse().getHeader(HttpHeaders.ETAG));
+        assertEquals(1, new ObjectMapper().readTree(result.getResponse().getContentAsByteArray()).get("keys").size());
+    }
+}
@@ -13,6 +13,8 @@ import net.unicon.lti.repository.*;
 import net.unicon.lti.service.app.APIJWTService;
 import net.unicon.lti.service.lti.LTIDataService;
 import net.unicon.lti.service.lti.LTIJWTService;
+import net.unicon.lti.service.lti.NonceStateService;
+import net.unicon.lti.service.lti.PlatformDeploymentRegistry;
 import net.unicon.lti.utils.LtiStrings;
 import net.unicon.lti.utils.TextConstants;
 import net.unicon.lti.utils.lti.LTI3Request;
@@ -49,6 +51,7 @@ import static org.junit.jupiter.api.Assertions.assertNotNull;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.junit.jupiter.api.Assertions.fail;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyBoolean;
 import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.when;
 
@@ -81,11 +84,14 @@ public class LTI3ControllerTest {
     private LtiContextRepository ltiContextRepository;
 
     @MockBean
-    private NonceStateRepository nonceStateRepository;
+    private NonceStateService nonceStateService;
 
     @MockBean
     private PlatformDeploymentRepository platformDeploymentRepository;
 
+    @Mock
+    private PlatformDeploymentRegistry platformDeploymentRegistry;
+
     @Mock
     private HttpServletRequest req;
 
@@ -128,6 +134,8 @@ public class LTI3ControllerTest {
         when(jwsClaims.getBody()).thenReturn(claims);
         when(ltijwtService.validateState(VALID_STATE)).thenReturn(jwsClaims);
         when(ltiDataService.getRepos()).thenReturn(allRepositories);
+        when(ltiDataService.getPlatformDeployments()).thenReturn(platformDeploymentRegistry);
+        when(nonceStateService.consumeNonce(NONCE)).thenReturn(true);
         lti3RequestMockedStatic.when(() -> LTI3Request.getInstance("https://tool.com/test")).thenReturn(lti3Request);
         lti3RequestMockedStatic.when(() -> LTI3Request.getInstance(null)).thenReturn(lti3Request);
     }
@@ -151,7 +159,7 @@ public class LTI3ControllerTest {
                     .toString();
             when(claims.get("expected_hash")).thenReturn(expected_hash);
             NonceState nonceState = new NonceState(NONCE, HASH_STATE, VALID_STATE, "_parent");
-            when(nonceStateRepository.findByStateHash(any(String.class))).thenReturn(nonceState);
+            when(nonceStateService.getNonceByStateHash(any(String.class))).thenReturn(nonceState);
             String response = lti3Controller.lti3checked(req, model);
 
             Mockito.verify(ltijwtService).validateState(VALID_STATE);
@@ -178,7 +186,7 @@ public class LTI3ControllerTest {
             when(ltijwtService.validateNonceState(any(String.class))).thenReturn(jwsClaims);
             when(jwsClaims.getBody()).thenReturn(claims);
             NonceState nonceState = new NonceState(NONCE, HASH_STATE, VALID_STATE, "_parent");
-            when(nonceStateRepository.findByStateHash(any(String.class))).thenReturn(nonceState);
+            when(nonceStateService.getNonceByStateHash(any(String.class))).thenReturn(nonceState);
             String response = lti3Controller.lti3checked(req, model);
 
             Mockito.verify(ltijwtService).validateNonceState(TOKEN);
@@ -198,7 +206,7 @@ public class LTI3ControllerTest {
             when(lti3Request.getAud()).thenReturn("client-id-1");
             when(lti3Request.getLtiDeploymentId()).thenReturn("bad-deployment-id");
             NonceState nonceState = new NonceState(NONCE, HASH_STATE, VALID_STATE, "_parent");
-            when(nonceStateRepository.findByStateHash(any(String.class))).thenReturn(nonceState);
+            when(nonceStateService.getNonceByStateHash(any(String.class))).thenReturn(nonceState);
 
             when(ltijwtService.validateNonceState(any(String.class))).thenReturn(jwsClaims);
             when(jwsClaims.getBody().get("expected_hash")).thenReturn(HASH_STATE);
@@ -209,7 +217,7 @@ public class LTI3ControllerTest {
             PlatformDeployment mockPlatformDeployment = new PlatformDeployment();
             mockPlatformDeployment.setOidcEndpoint("mockOidcEndpoint");
             mockPlatformDeploymentList.add(mockPlatformDeployment);
-            when(allRepositories.platformDeploymentRepository.findByIssAndClientIdAndDeploymentId("iss-1", "client-id-1", "deployment-id-1")).thenReturn(mockPlatformDeploymentList);
+            when(platformDeploymentRegistry.findByIssAndClientIdAndDeploymentId("iss-1", "client-id-1", "deployment-id-1")).thenReturn(mockPlatformDeploymentList);
             when(platformDeployment1.getOidcEndpoint()).thenReturn("https://tool.net/oidc");
             String response = lti3Controller.lti3(req, model);
 
@@ -238,7 +246,7 @@ public class LTI3ControllerTest {
             when(ltijwtService.validateNonceState(any(String.class))).thenReturn(jwsClaims);
             when(jwsClaims.getBody()).thenReturn(claims);
             NonceState nonceState = new NonceState(NONCE, HASH_STATE, VALID_STATE, "_parent");
-            when(nonceStateRepository.findByStateHash(any(String.class))).thenReturn(nonceState);
+            when(nonceStateService.getNonceByStateHash(any(String.class))).thenReturn(nonceState);
 
             KeyPairGenerator kpg = KeyPairGenerator.getInstance("RSA");
             kpg.initialize(1024);
@@ -253,6 +261,7 @@ public class LTI3ControllerTest {
             Mockito.verify(ltijwtService).validateState(VALID_STATE);
             Mockito.verify(ltiDataService).getDemoMode();
             Mockito.verify(apijwtService).buildJwt(eq(true), eq(lti3Request));
+            Mockito.verify(nonceStateService).consumeNonce(NONCE);
             assertTrue(response.contains("redirect:/app/app.html?token="));
 
         } catch (DataServiceException | ConnectionException | GeneralSecurityException | IOException e) {
@@ -260,6 +269,29 @@ public class LTI3ControllerTest {
         }
     }
 
+    @Test
+    public void testReplayedLaunchIsRejected() throws Exception {
+        when(claims.get("clientId")).thenReturn("client-id-1");
+        when(claims.get("ltiDeploymentId")).thenReturn("deployment-id-1");
+        when(lti3Request.getAud()).thenReturn("client-id-1");
+        when(lti3Request.getLtiDeploymentId()).thenReturn("deployment-id-1");
+        when(ltiDataService.getDemoMode()).thenReturn(false);
+        String expected_hash = Hashing.sha256()
+                .hashString(ID_TOKEN + HASH_STATE + NONCE, StandardCharsets.UTF_8)
+                .toString();
+        when(claims.get("expected_hash")).thenReturn(expected_hash);
+        when(req.getParameter("token")).thenReturn(TOKEN);
+        when(ltijwtService.validateNonceState(any(String.class))).thenReturn(jwsClaims);
+        when(nonceStateService.getNonceByStateHash(any(String.class))).thenReturn(new NonceState(NONCE, HASH_STATE, VALID_STATE, "_parent"));
+        // Somebody already launched with this id_token and state
+        when(nonceStateService.consumeNonce(NONCE)).thenReturn(false);
+
+        String response = lti3Controller.lti3checked(req, model);
+
+        assertEquals(TextConstants.LTI3ERROR, response);
+        Mockito.verify(apijwtService, Mockito.never()).buildJwt(anyBoolean(), any(LTI3Request.class));
+    }
+
     @Test
     public void testLTI3DemoModeOffWithoutClientIdOrDeploymentIdInState() {
         try {
@@ -278,7 +310,7 @@ public class LTI3ControllerTest {
             when(ltijwtService.validateNonceState(any(String.class))).thenReturn(jwsClaims);
             when(jwsClaims.getBody()).thenReturn(claims);
             NonceState nonceState = new NonceState(NONCE, HASH_STATE, VALID_STATE, "_parent");
-            when(nonceStateRepository.findByStateHash(any(String.class))).thenReturn(nonceState);
+            when(nonceStateService.getNonceByStateHash(any(String.class))).thenReturn(nonceState);
 
             KeyPairGenerator kpg = KeyPairGenerator.getInstance("RSA");
             kpg.initialize(1024);
@@ -320,7 +352,7 @@ public class LTI3ControllerTest {
             when(ltijwtService.validateNonceState(any(String.class))).thenReturn(jwsClaims);
             when(jwsClaims.getBody()).thenReturn(claims);
             NonceState nonceState = new NonceState(NONCE, HASH_STATE, VALID_STATE, "_parent");
-            when(nonceStateRepository.findByStateHash(any(String.class))).thenReturn(nonceState);
+            when(nonceStateService.getNonceByStateHash(any(String.class))).thenReturn(nonceState);
 
             String finalResponse = lti3Controller.lti3checked(req, model);
 
@@ -0,0 +1,79 @@
+package net.unicon.lti.database;
+
+import liquibase.database.core.H2Database;
+import liquibase.database.jvm.JdbcConnection;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class DuplicateRowsMergeChangeTest {
+
+    private Connection connection;
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        connection = DriverManager.getConnection("jdbc:h2:mem:merge;DB_CLOSE_DELAY=-1", "sa", "");
+        connection.setAutoCommit(false);
+        try (Statement statement = connection.createStatement()) {
+            statement.execute("CREATE TABLE lti_context (context_id BIGINT PRIMARY KEY, key_id BIGINT, context_key_hash VARCHAR(64))");
+            statement.execute("CREATE TABLE lti_link (link_id BIGINT PRIMARY KEY, context_id BIGINT REFERENCES lti_context (context_id))");
+            statement.execute("CREATE TABLE lti_membership (membership_id BIGINT PRIMARY KEY, context_id BIGINT REFERENCES lti_context (context_id))");
+            statement.execute("INSERT INTO lti_context VALUES (1, 1, 'a'), (2, 1, 'a'), (3, 1, 'a'), (4, 2, 'a'), (5, 1, 'b'), (6, 1, NULL), (7, 1, NULL)");
+            statement.execute("INSERT INTO lti_link VALUES (10, 2), (11, 3), (12, 4)");
+            statement.execute("INSERT INTO lti_membership VALUES (20, 1), (21, 3), (22, 7)");
+        }
+        connection.commit();
+    }
+
+    @AfterEach
+    public void tearDown() throws Exception {
+        try (Statement statement = connection.createStatement()) {
+            statement.execute("DROP TABLE lti_membership");
+            statement.execute("DROP TABLE lti_link");
+            statement.execute("DROP TABLE lti_context");
+        }
+        connection.close();
+    }
+
+    @Test
+    public void testDuplicatesAreMergedIntoTheOldestRow() throws Exception {
+        DuplicateRowsMergeChange change = new DuplicateRowsMergeChange();
+        change.setTableName("lti_context");
+        change.setIdColumn("context_id");
+        change.setUniqueColumns("key_id, context_key_hash");
+        change.setReferences("lti_link.context_id, lti_membership.context_id");
+        H2Database database = new H2Database();
+        database.setConnection(new JdbcConnection(connection));
+
+        assertTrue(change.validate(database).getErrorMessages().isEmpty());
+        change.execute(database);
+        // Running it again doesn't find anything else to merge
+        change.execute(database);
+
+        // Same hash in another deployment, another hash and the nulls are not duplicates
+        assertEquals(List.of(1L, 4L, 5L, 6L, 7L), ids("SELECT context_id FROM lti_context ORDER BY context_id"));
+        assertEquals(List.of(1L, 1L, 4L), ids("SELECT context_id FROM lti_link ORDER BY link_id"));
+        assertEquals(List.of(1L, 1L, 7L), ids("SELECT context_id FROM lti_membership ORDER BY membership_id"));
+    }
+
+    private List<Long> ids(String query) throws Exception {
+        List<Long> ids = new ArrayList<>();
+        try (Statement statement = connection.createStatement();
+             ResultSet resultSet = statement.executeQuery(query)) {
+            while (resultSet.next()) {
+                ids.add(resultSet.getLong(1));
+            }
+        }
+        return ids;
+    }
+}
@@ -0,0 +1,70 @@
+package net.unicon.lti.database;
+
+import liquibase.database.core.H2Database;
+import liquibase.database.jvm.JdbcConnection;
+import net.unicon.lti.utils.KeyDigests;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.Statement;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class KeyHashBackfillChangeTest {
+
+    private Connection connection;
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        connection = DriverManager.getConnection("jdbc:h2:mem:backfill;DB_CLOSE_DELAY=-1", "sa", "");
+        connection.setAutoCommit(false);
+        try (Statement statement = connection.createStatement()) {
+            statement.execute("CREATE TABLE lti_user (user_id BIGINT PRIMARY KEY, user_key VARCHAR(4096), user_key_hash VARCHAR(64))");
+            for (int i = 1; i <= 25; i++) {
+                statement.execute("INSERT INTO lti_user (user_id, user_key) VALUES (" + i + ", 'user-" + i + "')");
+            }
+            //Already filled rows are left alone
+            statement.execute("UPDATE lti_user SET user_key_hash = 'kept' WHERE user_id = 7");
+        }
+        connection.commit();
+    }
+
+    @AfterEach
+    public void tearDown() throws Exception {
+        try (Statement statement = connection.createStatement()) {
+            statement.execute("DROP TABLE lti_user");
+        }
+        connection.close();
+    }
+
+    @Test
+    public void testHashesAreFilledInBatches() throws Exception {
+        KeyHashBackfillChange change = new KeyHashBackfillChange();
+        change.setTableName("lti_user");
+        change.setIdColumn("user_id");
+        change.setKeyColumn("user_key");
+        change.setHashColumn("user_key_hash");
+        change.setBatchSize(10);
+        H2Database database = new H2Database();
+        database.setConnection(new JdbcConnection(connection));
+
+        assertTrue(change.validate(database).getErrorMessages().isEmpty());
+        change.execute(database);
+
+        try (Statement statement = connection.createStatement();
+             ResultSet resultSet = statement.executeQuery("SELECT user_id, user_key, user_key_hash FROM lti_user ORDER BY user_id")) {
+            int rows = 0;
+            while (resultSet.next()) {
+                rows++;
+                String expected = resultSet.getLong(1) == 7 ? "kept" : KeyDigests.sha256(resultSet.getString(2));
+                assertEquals(expected, resultSet.getString(3));
+            }
+            assertEquals(25, rows);
+        }
+    }
+}
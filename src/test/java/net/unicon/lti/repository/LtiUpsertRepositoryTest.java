@@ -0,0 +1,112 @@
+package net.unicon.lti.repository;
+
+import net.unicon.lti.model.LtiContextEntity;
+import net.unicon.lti.model.LtiMembershipEntity;
+import net.unicon.lti.model.LtiUserEntity;
+import net.unicon.lti.model.PlatformDeployment;
+import net.unicon.lti.utils.KeyDigests;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.SpringBootConfiguration;
+import org.springframework.boot.autoconfigure.domain.EntityScan;
+import org.springframework.boot.test.autoconfigure.jdbc.AutoConfigureTestDatabase;
+import org.springframework.boot.test.autoconfigure.orm.jpa.DataJpaTest;
+import org.springframework.context.annotation.Import;
+import org.springframework.data.jpa.repository.config.EnableJpaRepositories;
+import org.springframework.test.context.ActiveProfiles;
+
+import jakarta.persistence.EntityManager;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Runs the launch upserts against the schema built by Liquibase (H2 in MySQL mode, so the H2 MERGE statements).
+ */
+@DataJpaTest(properties = {
+        "spring.datasource.url=jdbc:h2:mem:upserts;DB_CLOSE_DELAY=-1;MODE=MySQL",
+        "spring.jpa.hibernate.ddl-auto=none",
+        "spring.liquibase.enabled=true"})
+@AutoConfigureTestDatabase(replace = AutoConfigureTestDatabase.Replace.NONE)
+@ActiveProfiles("test")
+public class LtiUpsertRepositoryTest {
+
+    @Autowired
+    LtiUpsertRepository ltiUpsertRepository;
+
+    @Autowired
+    PlatformDeploymentRepository platformDeploymentRepository;
+
+    @Autowired
+    EntityManager entityManager;
+
+    private PlatformDeployment platformDeployment;
+
+    @BeforeEach
+    public void setUp() {
+        platformDeployment = new PlatformDeployment();
+        platformDeployment.setIss("iss");
+        platformDeployment.setClientId("client");
+        platformDeployment.setDeploymentId("deployment");
+        platformDeployment.setOidcEndpoint("https://lms.com/oidc");
+        platformDeployment = platformDeploymentRepository.saveAndFlush(platformDeployment);
+    }
+
+    @Test
+    public void testContextIsInsertedThenUpdatedInTheSameRow() {
+        LtiUpsertRepository.Upserted inserted = ltiUpsertRepository.upsertContext(platformDeployment.getKeyId(), "context-key", KeyDigests.sha256("context-key"),
+                "Course", "https://lms.com/memberships", null, "digest-1");
+        LtiUpsertRepository.Upserted updated = ltiUpsertRepository.upsertContext(platformDeployment.getKeyId(), "context-key", KeyDigests.sha256("context-key"),
+                "Renamed course", "https://lms.com/memberships", null, "digest-2");
+
+        assertTrue(inserted.isInserted());
+        assertFalse(updated.isInserted());
+        assertEquals(inserted.getId(), updated.getId());
+        LtiContextEntity context = entityManager.find(LtiContextEntity.class, inserted.getId());
+        assertEquals("context-key", context.getContextKey());
+        assertEquals("Renamed course", context.getTitle());
+        assertEquals("digest-2", context.getClaimsDigest());
+        assertEquals(1, context.getVersion());
+    }
+
+    @Test
+    public void testUserKeepsTheValuesTheLaunchDoesNotSend() {
+        LtiUpsertRepository.Upserted inserted = ltiUpsertRepository.upsertUser(platformDeployment.getKeyId(), "user-key", KeyDigests.sha256("user-key"),
+                "Name", "user@lms.com", "42", "digest-1");
+        LtiUpsertRepository.Upserted updated = ltiUpsertRepository.upsertUser(platformDeployment.getKeyId(), "user-key", KeyDigests.sha256("user-key"),
+                null, "new@lms.com", null, "digest-2");
+
+        assertEquals(inserted.getId(), updated.getId());
+        LtiUserEntity user = entityManager.find(LtiUserEntity.class, inserted.getId());
+        assertEquals("Name", user.getDisplayName());
+        assertEquals("new@lms.com", user.getEmail());
+        assertEquals("42", user.getLmsUserId());
+        assertEquals("digest-2", user.getClaimsDigest());
+    }
+
+    @Test
+    public void testMembershipIsUniqueByContextAndUser() {
+        long contextId = ltiUpsertRepository.upsertContext(platformDeployment.getKeyId(), "context-key", KeyDigests.sha256("context-key"),
+                "Course", null, null, "digest").getId();
+        long userId = ltiUpsertRepository.upsertUser(platformDeployment.getKeyId(), "user-key", KeyDigests.sha256("user-key"),
+                "Name", null, null, "digest").getId();
+
+        LtiUpsertRepository.Upserted inserted = ltiUpsertRepository.upsertMembership(contextId, userId, 0);
+        LtiUpsertRepository.Upserted updated = ltiUpsertRepository.upsertMembership(contextId, userId, 2);
+
+        assertTrue(inserted.isInserted());
+        assertFalse(updated.isInserted());
+        assertEquals(inserted.getId(), updated.getId());
+        assertEquals(2, entityManager.find(LtiMembershipEntity.class, inserted.getId()).getRole());
+    }
+
+    //Only JPA, without the web and security configuration of the application
+    @SpringBootConfiguration
+    @EntityScan("net.unicon.lti.model")
+    @EnableJpaRepositories("net.unicon.lti.repository")
+    @Import(LtiUpsertRepository.class)
+    static class JpaOnlyConfiguration {
+    }
+}
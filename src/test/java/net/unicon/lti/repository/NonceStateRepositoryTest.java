@@ -0,0 +1,52 @@
+package net.unicon.lti.repository;
+
+import net.unicon.lti.model.lti.dto.NonceState;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.SpringBootConfiguration;
+import org.springframework.boot.autoconfigure.domain.EntityScan;
+import org.springframework.boot.test.autoconfigure.jdbc.AutoConfigureTestDatabase;
+import org.springframework.boot.test.autoconfigure.orm.jpa.DataJpaTest;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.data.jpa.repository.config.EnableJpaRepositories;
+import org.springframework.test.context.ActiveProfiles;
+
+import java.sql.Timestamp;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Runs the single statement insert and delete used to consume a nonce against the schema built by Liquibase (H2 in MySQL mode).
+ */
+@DataJpaTest(properties = {
+        "spring.datasource.url=jdbc:h2:mem:nonces;DB_CLOSE_DELAY=-1;MODE=MySQL",
+        "spring.jpa.hibernate.ddl-auto=none",
+        "spring.liquibase.enabled=true"})
+@AutoConfigureTestDatabase(replace = AutoConfigureTestDatabase.Replace.NONE)
+@ActiveProfiles("test")
+public class NonceStateRepositoryTest {
+
+    @Autowired
+    NonceStateRepository nonceStateRepository;
+
+    @Test
+    public void testSecondInsertOfANonceFailsOnThePrimaryKey() {
+        Timestamp now = new Timestamp(System.currentTimeMillis());
+
+        assertEquals(1, nonceStateRepository.insert("nonce-1", "nonce-1", "consumed", null, 42L, now));
+        assertThrows(DataIntegrityViolationException.class, () -> nonceStateRepository.insert("nonce-1", "nonce-1", "consumed", null, 42L, now));
+
+        NonceState nonceState = nonceStateRepository.findByNonce("nonce-1");
+        assertEquals("consumed", nonceState.getState());
+        assertEquals(42L, nonceState.getExpiryBucket());
+        assertEquals(1, nonceStateRepository.deleteByNonce("nonce-1"));
+        assertEquals(0, nonceStateRepository.deleteByNonce("nonce-1"));
+    }
+
+    @SpringBootConfiguration
+    @EntityScan("net.unicon.lti.model")
+    @EnableJpaRepositories("net.unicon.lti.repository")
+    static class JpaOnlyConfiguration {
+    }
+}
@@ -0,0 +1,153 @@
+package net.unicon.lti.repository;
+
+import net.unicon.lti.model.LtiContextEntity;
+import net.unicon.lti.model.LtiUserEntity;
+import net.unicon.lti.model.PlatformDeployment;
+import net.unicon.lti.service.lti.impl.LTIDataServiceImpl;
+import net.unicon.lti.utils.KeyDigests;
+import org.hibernate.resource.jdbc.spi.StatementInspector;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.SpringBootConfiguration;
+import org.springframework.boot.autoconfigure.domain.EntityScan;
+import org.springframework.boot.test.autoconfigure.jdbc.AutoConfigureTestDatabase;
+import org.springframework.boot.test.autoconfigure.orm.jpa.DataJpaTest;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.jpa.repository.config.EnableJpaRepositories;
+import org.springframework.jdbc.core.ConnectionCallback;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.test.context.ActiveProfiles;
+
+import jakarta.persistence.EntityManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Runs the queries done on every launch (the repository methods and the loadLTIDataFromDB join) against the schema built by Liquibase (H2 in MySQL mode) and checks
+ * that H2 uses an index for all of them. If someone adds a lookup without its index, or drops one, this fails.
+ */
+@DataJpaTest(properties = {
+        "spring.datasource.url=jdbc:h2:mem:queryplan;DB_CLOSE_DELAY=-1;MODE=MySQL",
+        "spring.jpa.hibernate.ddl-auto=none",
+        "spring.liquibase.enabled=true",
+        "spring.jpa.properties.hibernate.session_factory.statement_inspector=net.unicon.lti.repository.RepositoryQueryPlanTest$SqlRecorder"})
+@AutoConfigureTestDatabase(replace = AutoConfigureTestDatabase.Replace.NONE)
+@ActiveProfiles("test")
+public class RepositoryQueryPlanTest {
+
+    @Autowired
+    PlatformDeploymentRepository platformDeploymentRepository;
+
+    @Autowired
+    LtiContextRepository ltiContextRepository;
+
+    @Autowired
+    LtiUserRepository ltiUserRepository;
+
+    @Autowired
+    LtiMembershipRepository ltiMembershipRepository;
+
+    @Autowired
+    LtiLinkRepository ltiLinkRepository;
+
+    @Autowired
+    NonceStateRepository nonceStateRepository;
+
+    @Autowired
+    ApiOneUseTokenRepository apiOneUseTokenRepository;
+
+    @Autowired
+    ScoreOutboxRepository scoreOutboxRepository;
+
+    @Autowired
+    JdbcTemplate jdbcTemplate;
+
+    @Autowired
+    EntityManager entityManager;
+
+    @Test
+    public void testLaunchQueriesUseAnIndex() {
+        PlatformDeployment platformDeployment = new PlatformDeployment();
+        platformDeployment.setIss("iss");
+        platformDeployment.setClientId("client");
+        platformDeployment.setDeploymentId("deployment");
+        platformDeployment.setOidcEndpoint("https://lms.com/oidc");
+        platformDeployment = platformDeploymentRepository.saveAndFlush(platformDeployment);
+        LtiContextEntity context = ltiContextRepository.saveAndFlush(new LtiContextEntity("context-key", platformDeployment, "title", null));
+        LtiUserEntity user = ltiUserRepository.saveAndFlush(new LtiUserEntity("user-key", null, platformDeployment));
+        SqlRecorder.statements.clear();
+
+        platformDeploymentRepository.findByIssAndClientIdAndDeploymentId("iss", "client", "deployment");
+        platformDeploymentRepository.findByIssAndClientId("iss", "client");
+        platformDeploymentRepository.findByIssAndDeploymentId("iss", "deployment");
+        platformDeploymentRepository.findByIss("iss");
+        ltiContextRepository.findByContextKeyAndPlatformDeployment("context-key", platformDeployment);
+        ltiUserRepository.findByUserKeyAndPlatformDeployment("user-key", platformDeployment);
+        ltiMembershipRepository.findByUserAndContext(user, context);
+        ltiLinkRepository.findByLtiLinkIdAndToolLinkToolLinkIdAndContext("lti-link", "tool-link", context);
+        ltiLinkRepository.findByToolLinkToolLinkIdAndContext("tool-link", context);
+        nonceStateRepository.findByNonce("nonce");
+        nonceStateRepository.findByStateHash("state-hash");
+        nonceStateRepository.findNoncesInBucketsBefore(10L, PageRequest.of(0, 10));
+        apiOneUseTokenRepository.deleteByTokenHash("token-hash");
+        scoreOutboxRepository.findDueKeyIds(new Timestamp(System.currentTimeMillis()));
+        scoreOutboxRepository.findDue(1L, new Timestamp(System.currentTimeMillis()), PageRequest.of(0, 10));
+        scoreOutboxRepository.claim(1L, new Timestamp(System.currentTimeMillis()));
+        entityManager.createQuery(LTIDataServiceImpl.LOAD_LTI_DATA_QUERY)
+                .setMaxResults(1)
+                .setParameter("clientId", "client")
+                .setParameter("deploymentId", "deployment")
+                .setParameter("iss", "iss")
+                .setParameter("context", KeyDigests.sha256("context-key"))
+                .setParameter("link", "tool-link")
+                .setParameter("ltiLinkId", "lti-link")
+                .setParameter("user", KeyDigests.sha256("user-key"))
+                .getResultList();
+
+        List<String> statements = new ArrayList<>(SqlRecorder.statements);
+        assertTrue(statements.size() >= 17);
+        for (String sql : statements) {
+            String plan = explain(sql);
+            assertFalse(plan.contains(".tableScan"), "Table scan in:\n" + plan);
+        }
+    }
+
+    //H2 plans the statement without the parameter values, so the plan is the same for any value
+    private String explain(String sql) {
+        return jdbcTemplate.execute((ConnectionCallback<String>) connection -> {
+            try (PreparedStatement statement = connection.prepareStatement("EXPLAIN " + sql);
+                 ResultSet resultSet = statement.executeQuery()) {
+                StringBuilder plan = new StringBuilder();
+                while (resultSet.next()) {
+                    plan.append(resultSet.getString(1)).append('\n');
+                }
+                return plan.toString();
+            }
+        });
+    }
+
+    //Only JPA, without the web and security configuration of the application
+    @SpringBootConfiguration
+    @EntityScan("net.unicon.lti.model")
+    @EnableJpaRepositories("net.unicon.lti.repository")
+    static class JpaOnlyConfiguration {
+    }
+
+    public static class SqlRecorder implements StatementInspector {
+
+        static final List<String> statements = Collections.synchronizedList(new ArrayList<>());
+
+        @Override
+        public String inspect(String sql) {
+            statements.add(sql);
+            return sql;
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package net.unicon.lti.repository;
+
+import jakarta.persistence.EntityManagerFactory;
+import net.unicon.lti.model.ConfigEntity;
+import net.unicon.lti.model.LtiContextEntity;
+import net.unicon.lti.model.PlatformDeployment;
+import net.unicon.lti.utils.KeyDigests;
+import org.hibernate.SessionFactory;
+import org.hibernate.stat.Statistics;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.SpringBootConfiguration;
+import org.springframework.boot.autoconfigure.domain.EntityScan;
+import org.springframework.boot.test.autoconfigure.jdbc.AutoConfigureTestDatabase;
+import org.springframework.boot.test.autoconfigure.orm.jpa.DataJpaTest;
+import org.springframework.context.annotation.Import;
+import org.springframework.data.jpa.repository.config.EnableJpaRepositories;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Checks the cache regions of ehcache.xml with the second level and query caches on, as in the application.
+ * Hibernate fails to start if a cached entity or collection has no region (missing_cache_strategy=fail).
+ */
+@DataJpaTest(properties = {
+        "spring.datasource.url=jdbc:h2:mem:cache;DB_CLOSE_DELAY=-1;MODE=MySQL",
+        "spring.jpa.hibernate.ddl-auto=none",
+        "spring.liquibase.enabled=true",
+        "spring.jpa.properties.hibernate.cache.use_second_level_cache=true",
+        "spring.jpa.properties.hibernate.cache.use_query_cache=true"})
+@AutoConfigureTestDatabase(replace = AutoConfigureTestDatabase.Replace.NONE)
+@ActiveProfiles("test")
+@Transactional(propagation = Propagation.NOT_SUPPORTED)
+public class SecondLevelCacheTest {
+
+    @Autowired
+    PlatformDeploymentRepository platformDeploymentRepository;
+
+    @Autowired
+    ConfigRepository configRepository;
+
+    @Autowired
+    LtiContextRepository ltiContextRepository;
+
+    @Autowired
+    LtiUpsertRepository ltiUpsertRepository;
+
+    @Autowired
+    EntityManagerFactory entityManagerFactory;
+
+    @Autowired
+    PlatformTransactionManager transactionManager;
+
+    private Statistics statistics;
+
+    @BeforeEach
+    public void setUp() {
+        statistics = entityManagerFactory.unwrap(SessionFactory.class).getStatistics();
+        statistics.clear();
+    }
+
+    @Test
+    public void testPlatformDeploymentIsReadFromTheCache() {
+        long keyId = platformDeploymentRepository.save(platformDeployment("deployment-1")).getKeyId();
+        statistics.clear();
+
+        platformDeploymentRepository.findById(keyId);
+        platformDeploymentRepository.findById(keyId);
+
+        //Rows inserted with an identity id are cached on the first read
+        assertEquals(1, statistics.getEntityLoadCount());
+        assertEquals(1, statistics.getDomainDataRegionStatistics(PlatformDeployment.class.getName()).getHitCount());
+    }
+
+    @Test
+    public void testConfigQueryIsCached() {
+        configRepository.save(new ConfigEntity("cached.config", "value"));
+        statistics.clear();
+
+        assertEquals("value", configRepository.findByName("cached.config").getValue());
+        assertEquals("value", configRepository.findByName("cached.config").getValue());
+
+        assertEquals(1, statistics.getQueryCacheMissCount());
+        assertEquals(1, statistics.getQueryCacheHitCount());
+        assertEquals(1, statistics.getEntityLoadCount());
+    }
+
+    @Test
+    public void testUpsertedContextIsNotServedFromTheCache() {
+        long keyId = platformDeploymentRepository.save(platformDeployment("deployment-2")).getKeyId();
+        TransactionTemplate transaction = new TransactionTemplate(transactionManager);
+        long contextId = transaction.execute(status -> ltiUpsertRepository.upsertContext(keyId, "context-key", KeyDigests.sha256("context-key"),
+                "Course", null, null, "digest-1")).getId();
+        assertEquals("Course", ltiContextRepository.findById(contextId).get().getTitle());
+        assertEquals(1, statistics.getDomainDataRegionStatistics(LtiContextEntity.class.getName()).getPutCount());
+
+        transaction.execute(status -> ltiUpsertRepository.upsertContext(keyId, "context-key", KeyDigests.sha256("context-key"),
+                "Renamed course", null, null, "digest-2"));
+
+        assertEquals("Renamed course", ltiContextRepository.findById(contextId).get().getTitle());
+    }
+
+    private PlatformDeployment platformDeployment(String deploymentId) {
+        PlatformDeployment platformDeployment = new PlatformDeployment();
+        platformDeployment.setIss("iss");
+        platformDeployment.setClientId("client");
+        platformDeployment.setDeploymentId(deploymentId);
+        platformDeployment.setOidcEndpoint("https://lms.com/oidc");
+        return platformDeployment;
+    }
+
+    //Only JPA, without the web and security configuration of the application
+    @SpringBootConfiguration
+    @EntityScan("net.unicon.lti.model")
+    @EnableJpaRepositories("net.unicon.lti.repository")
+    @Import(LtiUpsertRepository.class)
+    static class JpaOnlyConfiguration {
+    }
+}
@@ -0,0 +1,145 @@
+package net.unicon.lti.service.app;
+
+import io.jsonwebtoken.Claims;
+import io.jsonwebtoken.ExpiredJwtException;
+import io.jsonwebtoken.IncorrectClaimException;
+import io.jsonwebtoken.Jws;
+import io.jsonwebtoken.Jwts;
+import io.jsonwebtoken.SignatureException;
+import net.unicon.lti.service.app.impl.APIJWTServiceImpl;
+import net.unicon.lti.service.lti.KeyringService;
+import net.unicon.lti.service.lti.LTIDataService;
+import net.unicon.lti.service.lti.impl.InternalTokenServiceImpl;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.interfaces.RSAPublicKey;
+import java.util.Collections;
+import java.util.Date;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class APIJWTServiceTest {
+
+    @InjectMocks
+    APIJWTServiceImpl apiJwtService = new APIJWTServiceImpl();
+
+    @Mock
+    KeyringService keyringService;
+
+    @Mock
+    LTIDataService ltiDataService;
+
+    @Mock
+    APIDataService apiDataService;
+
+    private InternalTokenServiceImpl internalTokenService;
+
+    private KeyPair keyPair;
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        MockitoAnnotations.openMocks(this);
+        apiJwtService.init();
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(2048);
+        keyPair = generator.generateKeyPair();
+        when(keyringService.getPrivateKey("kid")).thenReturn(keyPair.getPrivate());
+        when(keyringService.getPublicKey()).thenReturn((RSAPublicKey) keyPair.getPublic());
+        when(keyringService.getActiveKid()).thenReturn("kid");
+        internalTokenService = new InternalTokenServiceImpl();
+        ReflectionTestUtils.setField(internalTokenService, "keyringService", keyringService);
+        internalTokenService.init();
+        ReflectionTestUtils.setField(apiJwtService, "internalTokenService", internalTokenService);
+        when(ltiDataService.getLocalUrl()).thenReturn("https://tool.com");
+    }
+
+    @Test
+    public void testSameTokenIsVerifiedOnce() throws Exception {
+        String token = apiJwtService.buildJwt(false, Collections.singletonList("Learner"), 1L, "context-key", 2L, "user-1", "nonce");
+
+        Jws<Claims> first = apiJwtService.validateToken(token);
+        Jws<Claims> second = apiJwtService.validateToken(token);
+
+        assertSame(first, second);
+        assertEquals("user-1", second.getPayload().get("userId"));
+        verify(keyringService, times(1)).getPublicKey();
+    }
+
+    @Test
+    public void testOneUseTokensAreVerifiedEveryTime() throws Exception {
+        String token = apiJwtService.buildJwt(true, Collections.singletonList("Learner"), 1L, "context-key", 2L, "user-1", "nonce");
+
+        apiJwtService.validateToken(token);
+        apiJwtService.validateToken(token);
+
+        verify(keyringService, times(2)).getPublicKey();
+    }
+
+    @Test
+    public void testTamperedTokenIsNotServedFromTheCache() throws Exception {
+        String token = apiJwtService.buildJwt(false, Collections.singletonList("Learner"), 1L, "context-key", 2L, "user-1", "nonce");
+        apiJwtService.validateToken(token);
+        String signature = token.substring(token.lastIndexOf('.') + 1);
+        char changed = signature.charAt(10) == 'A' ? 'B' : 'A';
+        String tampered = token.substring(0, token.lastIndexOf('.') + 1) + signature.substring(0, 10) + changed + signature.substring(11);
+
+        assertThrows(SignatureException.class, () -> apiJwtService.validateToken(tampered));
+    }
+
+    @Test
+    public void testTokensForAnotherAudienceAreRejected() throws Exception {
+        String token = Jwts.builder()
+                .header().keyId("kid").and()
+                .issuer("ISSUER")
+                .audience().add("https://another-tool.com").and()
+                .expiration(new Date(System.currentTimeMillis() + 60000))
+                .claim("oneUse", false)
+                .signWith(keyPair.getPrivate())
+                .compact();
+
+        assertThrows(IncorrectClaimException.class, () -> apiJwtService.validateToken(token));
+    }
+
+    @Test
+    public void testParserIsRebuiltWhenTheKeyChanges() throws Exception {
+        String token = apiJwtService.buildJwt(true, Collections.singletonList("Learner"), 1L, "context-key", 2L, "user-1", "nonce");
+        apiJwtService.validateToken(token);
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(2048);
+        when(keyringService.getPublicKey()).thenReturn((RSAPublicKey) generator.generateKeyPair().getPublic());
+
+        assertThrows(SignatureException.class, () -> apiJwtService.validateToken(token));
+    }
+
+    @Test
+    public void testCachedClaimsAreNotServedAfterTheExpiration() throws Exception {
+        ReflectionTestUtils.setField(apiJwtService, "allowedClockSkewSeconds", 0L);
+        Date now = new Date();
+        String token = Jwts.builder()
+                .header().keyId("kid").and()
+                .issuer("ISSUER")
+                .audience().add("https://tool.com").and()
+                .expiration(new Date(now.getTime() + 2000))
+                .issuedAt(now)
+                .claim("oneUse", false)
+                .signWith(keyPair.getPrivate())
+                .compact();
+        apiJwtService.validateToken(token);
+
+        Thread.sleep(2100);
+
+        assertThrows(ExpiredJwtException.class, () -> apiJwtService.validateToken(token));
+    }
+}
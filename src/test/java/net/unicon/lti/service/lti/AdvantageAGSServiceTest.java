@@ -2,9 +2,16 @@ package net.unicon.lti.service.lti;
 
 import net.unicon.lti.exceptions.ConnectionException;
 import net.unicon.lti.exceptions.helper.ExceptionMessageGenerator;
+import net.unicon.lti.model.LtiContextEntity;
+import net.unicon.lti.model.PlatformDeployment;
+import net.unicon.lti.model.ags.LineItem;
+import net.unicon.lti.model.ags.LineItems;
+import net.unicon.lti.model.ags.Result;
 import net.unicon.lti.model.ags.Score;
 import net.unicon.lti.model.oauth2.LTIToken;
 import net.unicon.lti.service.lti.impl.AdvantageAGSServiceImpl;
+import net.unicon.lti.utils.AGSScope;
+import net.unicon.lti.utils.TextConstants;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.mockito.InjectMocks;
@@ -14,11 +21,21 @@ import org.springframework.http.HttpEntity;
 import org.springframework.http.HttpMethod;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
+import org.springframework.web.client.HttpClientErrorException;
 import org.springframework.web.client.RestClientException;
+import org.springframework.test.util.ReflectionTestUtils;
 import org.springframework.web.client.RestTemplate;
 
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
 import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.junit.jupiter.api.Assertions.fail;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyString;
@@ -88,4 +105,167 @@ public class AdvantageAGSServiceTest {
         verify(exceptionMessageGenerator, never()).exceptionMessage(any(String.class), any(Exception.class));
     }
 
+    @Test
+    public void testPostScoreRejectedTokenIsInvalidated() {
+        LTIToken scoresToken = new LTIToken();
+        scoresToken.setAccess_token("test-scores-token");
+        Score score = new Score();
+        PlatformDeployment platformDeployment = new PlatformDeployment();
+        LtiContextEntity context = new LtiContextEntity();
+        context.setPlatformDeployment(platformDeployment);
+        when(advantageConnectorHelper.createRestTemplate()).thenReturn(restTemplate);
+        HttpEntity<Score> httpEntity = new HttpEntity<>(score);
+        when(advantageConnectorHelper.createTokenizedRequestEntity(scoresToken, score)).thenReturn(httpEntity);
+        HttpClientErrorException unauthorized = HttpClientErrorException.create(HttpStatus.UNAUTHORIZED, "Unauthorized", null, null, null);
+        when(restTemplate.exchange(anyString(), eq(HttpMethod.POST), eq(httpEntity), eq(Void.class))).thenThrow(unauthorized);
+
+        assertThrows(ConnectionException.class, () -> advantageAGSService.postScore(scoresToken, new LTIToken(), context, "https://lms.com/line_item/456", score));
+
+        verify(advantageConnectorHelper).invalidateTokenIfRejected(platformDeployment, AGSScope.AGS_SCORES_SCOPE.getScope(), unauthorized);
+    }
+
+    @Test
+    public void testGetLineItemsFetchesResultsInParallelPerPlatformLimit() throws ConnectionException {
+        ReflectionTestUtils.setField(advantageAGSService, "resultsPerPlatform", 2);
+        PlatformDeployment platformDeployment = new PlatformDeployment();
+        platformDeployment.setIss("https://lms.com");
+        LtiContextEntity context = new LtiContextEntity("context-key", platformDeployment, "title", null, "https://lms.com/line_items", null);
+        LTIToken ltiToken = new LTIToken();
+        ltiToken.setAccess_token("test-lineitems-token");
+        LTIToken resultsToken = new LTIToken();
+        resultsToken.setAccess_token("test-results-token");
+
+        LineItem[] lineItems = new LineItem[6];
+        for (int i = 0; i < lineItems.length; i++) {
+            lineItems[i] = new LineItem();
+            lineItems[i].setId("https://lms.com/line_items/" + i);
+        }
+        HttpEntity lineItemsRequest = new HttpEntity<>("lineitems");
+        HttpEntity resultsRequest = new HttpEntity<>("results");
+        when(advantageConnectorHelper.createRestTemplate()).thenReturn(restTemplate);
+        when(advantageConnectorHelper.createTokenizedRequestEntity(ltiToken, TextConstants.ALL_LINEITEMS_TYPE)).thenReturn(lineItemsRequest);
+        when(advantageConnectorHelper.createTokenizedRequestEntity(resultsToken, TextConstants.RESULTS_TYPE)).thenReturn(resultsRequest);
+        when(restTemplate.exchange("https://lms.com/line_items", HttpMethod.GET, lineItemsRequest, LineItem[].class))
+                .thenReturn(new ResponseEntity<>(lineItems, HttpStatus.OK));
+
+        AtomicInteger inFlight = new AtomicInteger();
+        AtomicInteger maxInFlight = new AtomicInteger();
+        when(restTemplate.exchange(anyString(), eq(HttpMethod.GET), eq(resultsRequest), eq(Result[].class))).thenAnswer(invocation -> {
+            int current = inFlight.incrementAndGet();
+            maxInFlight.accumulateAndGet(current, Math::max);
+            try {
+                Thread.sleep(100);
+            } finally {
+                inFlight.decrementAndGet();
+            }
+            if (invocation.getArgument(0).equals("https://lms.com/line_items/3/results")) {
+                throw new RestClientException("platform error");
+            }
+            return new ResponseEntity<>(new Result[]{new Result()}, HttpStatus.OK);
+        });
+
+        LineItems result = advantageAGSService.getLineItems(ltiToken, context, true, resultsToken);
+
+        assertEquals(6, result.getLineItemList().size());
+        assertEquals(2, maxInFlight.get());
+        for (LineItem lineItem : result.getLineItemList()) {
+            if (lineItem.getId().endsWith("/3")) {
+                assertNull(lineItem.getResults());
+            } else {
+                assertEquals(1, lineItem.getResults().getResultList().size());
+            }
+        }
+    }
+
+    @Test
+    public void testGetLineItemsCancelsTheResultsStillRunningAfterTheTimeout() throws Exception {
+        ReflectionTestUtils.setField(advantageAGSService, "resultsPerPlatform", 2);
+        ReflectionTestUtils.setField(advantageAGSService, "resultsTimeoutSeconds", 1L);
+        PlatformDeployment platformDeployment = new PlatformDeployment();
+        platformDeployment.setIss("https://lms.com");
+        LtiContextEntity context = new LtiContextEntity("context-key", platformDeployment, "title", null, "https://lms.com/line_items", null);
+        LTIToken ltiToken = new LTIToken();
+        LTIToken resultsToken = new LTIToken();
+        resultsToken.setAccess_token("test-results-token");
+
+        LineItem[] lineItems = new LineItem[3];
+        for (int i = 0; i < lineItems.length; i++) {
+            lineItems[i] = new LineItem();
+            lineItems[i].setId("https://lms.com/line_items/" + i);
+        }
+        HttpEntity lineItemsRequest = new HttpEntity<>("lineitems");
+        HttpEntity resultsRequest = new HttpEntity<>("results");
+        when(advantageConnectorHelper.createRestTemplate()).thenReturn(restTemplate);
+        when(advantageConnectorHelper.createTokenizedRequestEntity(ltiToken, TextConstants.ALL_LINEITEMS_TYPE)).thenReturn(lineItemsRequest);
+        when(advantageConnectorHelper.createTokenizedRequestEntity(resultsToken, TextConstants.RESULTS_TYPE)).thenReturn(resultsRequest);
+        when(restTemplate.exchange("https://lms.com/line_items", HttpMethod.GET, lineItemsRequest, LineItem[].class))
+                .thenReturn(new ResponseEntity<>(lineItems, HttpStatus.OK));
+        CountDownLatch interrupted = new CountDownLatch(1);
+        when(restTemplate.exchange(anyString(), eq(HttpMethod.GET), eq(resultsRequest), eq(Result[].class))).thenAnswer(invocation -> {
+            if (invocation.getArgument(0).equals("https://lms.com/line_items/1/results")) {
+                // A platform that never answers
+                try {
+                    Thread.sleep(60000);
+                } catch (InterruptedException e) {
+                    interrupted.countDown();
+                    throw new RestClientException("interrupted");
+                }
+            }
+            return new ResponseEntity<>(new Result[]{new Result()}, HttpStatus.OK);
+        });
+
+        LineItems result = advantageAGSService.getLineItems(ltiToken, context, true, resultsToken);
+
+        assertEquals(3, result.getLineItemList().size());
+        assertEquals(1, result.getLineItemList().get(0).getResults().getResultList().size());
+        assertNull(result.getLineItemList().get(1).getResults());
+        assertTrue(interrupted.await(10, TimeUnit.SECONDS));
+        // The permits of the cancelled call are given back once it ends
+        Map<String, Semaphore> platformPermits = (Map<String, Semaphore>) ReflectionTestUtils.getField(advantageAGSService, "platformPermits");
+        assertTrue(platformPermits.get("https://lms.com").tryAcquire(2, 10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testACancelledResultsCallKeepsItsPermitUntilItEnds() throws Exception {
+        ReflectionTestUtils.setField(advantageAGSService, "resultsPerPlatform", 1);
+        ReflectionTestUtils.setField(advantageAGSService, "resultsTimeoutSeconds", 1L);
+        PlatformDeployment platformDeployment = new PlatformDeployment();
+        platformDeployment.setIss("https://lms.com");
+        LtiContextEntity context = new LtiContextEntity("context-key", platformDeployment, "title", null, "https://lms.com/line_items", null);
+        LTIToken ltiToken = new LTIToken();
+        LTIToken resultsToken = new LTIToken();
+        resultsToken.setAccess_token("test-results-token");
+
+        LineItem lineItem = new LineItem();
+        lineItem.setId("https://lms.com/line_items/0");
+        HttpEntity lineItemsRequest = new HttpEntity<>("lineitems");
+        HttpEntity resultsRequest = new HttpEntity<>("results");
+        when(advantageConnectorHelper.createRestTemplate()).thenReturn(restTemplate);
+        when(advantageConnectorHelper.createTokenizedRequestEntity(ltiToken, TextConstants.ALL_LINEITEMS_TYPE)).thenReturn(lineItemsRequest);
+        when(advantageConnectorHelper.createTokenizedRequestEntity(resultsToken, TextConstants.RESULTS_TYPE)).thenReturn(resultsRequest);
+        when(restTemplate.exchange("https://lms.com/line_items", HttpMethod.GET, lineItemsRequest, LineItem[].class))
+                .thenReturn(new ResponseEntity<>(new LineItem[]{lineItem}, HttpStatus.OK));
+        CountDownLatch platformAnswers = new CountDownLatch(1);
+        when(restTemplate.exchange(anyString(), eq(HttpMethod.GET), eq(resultsRequest), eq(Result[].class))).thenAnswer(invocation -> {
+            // A blocking read doesn't stop when the thread is interrupted
+            while (true) {
+                try {
+                    platformAnswers.await();
+                    return new ResponseEntity<>(new Result[]{new Result()}, HttpStatus.OK);
+                } catch (InterruptedException e) {
+                    // keep reading
+                }
+            }
+        });
+
+        advantageAGSService.getLineItems(ltiToken, context, true, resultsToken);
+
+        Map<String, Semaphore> platformPermits = (Map<String, Semaphore>) ReflectionTestUtils.getField(advantageAGSService, "platformPermits");
+        Semaphore permits = platformPermits.get("https://lms.com");
+        // Still calling the platform, the next request can't start another call
+        assertEquals(0, permits.availablePermits());
+        platformAnswers.countDown();
+        assertTrue(permits.tryAcquire(1, 10, TimeUnit.SECONDS));
+    }
+
 }
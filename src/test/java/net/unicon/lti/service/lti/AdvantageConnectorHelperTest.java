@@ -10,8 +10,6 @@ import net.unicon.lti.utils.AGSScope;
 import net.unicon.lti.utils.TextConstants;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
-import org.mockito.ArgumentCaptor;
-import org.mockito.Captor;
 import org.mockito.InjectMocks;
 import org.mockito.Mock;
 import org.mockito.Mockito;
@@ -21,16 +19,29 @@ import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
+import org.springframework.http.client.ClientHttpRequestFactory;
 import org.springframework.http.converter.HttpMessageConverter;
-import org.springframework.http.converter.json.MappingJackson2HttpMessageConverter;
+import org.springframework.mock.http.client.MockClientHttpRequest;
+import org.springframework.mock.http.client.MockClientHttpResponse;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.util.MultiValueMap;
+import org.springframework.web.client.HttpClientErrorException;
+import org.springframework.web.client.RestClientException;
 import org.springframework.web.client.RestTemplate;
 
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.security.GeneralSecurityException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
 import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.junit.jupiter.api.Assertions.fail;
@@ -38,6 +49,8 @@ import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyString;
 import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
@@ -55,9 +68,6 @@ public class AdvantageConnectorHelperTest {
     @Mock
     ExceptionMessageGenerator exceptionMessageGenerator;
 
-    @Captor
-    ArgumentCaptor<MappingJackson2HttpMessageConverter> converterArgumentCaptor;
-
     @BeforeEach
     public void setUp() {
         MockitoAnnotations.openMocks(this);
@@ -105,31 +115,51 @@ public class AdvantageConnectorHelperTest {
     }
 
     @Test
-    public void testGetTokenForAGSScoresInMoodleFormat() {
-        try {
-            PlatformDeployment platformDeployment = new PlatformDeployment();
-            platformDeployment.setoAuth2TokenUrl("https://lms.com/oauth2/token");
-            when(ltijwtService.generateStateOrClientAssertionJWT(platformDeployment)).thenReturn("jwt");
-            List<HttpMessageConverter<?>> messageConverters = Mockito.mock(ArrayList.class);
-            when(restTemplate.getMessageConverters()).thenReturn(messageConverters);
-            LTIToken ltiToken = new LTIToken();
-            HttpHeaders responseHeaders = new HttpHeaders();
-            responseHeaders.setContentType(MediaType.TEXT_HTML);
-            ResponseEntity<LTIToken> responseEntity = new ResponseEntity<>(ltiToken, responseHeaders, HttpStatus.OK);
-            when(restTemplate.postForEntity(anyString(), any(HttpEntity.class), eq(LTIToken.class))).thenReturn(responseEntity);
+    public void testGetTokenForAGSScoresInMoodleFormat() throws Exception {
+        // A real token client, answering like Moodle does (JSON with a text/html content type)
+        useTokenEndpointAnswering(MediaType.TEXT_HTML);
+        PlatformDeployment platformDeployment = new PlatformDeployment();
+        platformDeployment.setoAuth2TokenUrl("https://lms.com/oauth2/token");
+        when(ltijwtService.generateStateOrClientAssertionJWT(platformDeployment)).thenReturn("jwt");
 
-            LTIToken ltiTokenResponse = advantageConnectorHelper.getToken(platformDeployment, AGSScope.AGS_SCORES_SCOPE.getScope());
+        LTIToken ltiTokenResponse = advantageConnectorHelper.getToken(platformDeployment, AGSScope.AGS_SCORES_SCOPE.getScope());
 
-            verify(ltijwtService).generateStateOrClientAssertionJWT(platformDeployment);
-            verify(messageConverters).add(converterArgumentCaptor.capture());
-            MappingJackson2HttpMessageConverter converter = converterArgumentCaptor.getValue();
-            assertTrue(converter.getSupportedMediaTypes().contains(MediaType.TEXT_HTML));
-            verify(restTemplate).postForEntity(anyString(), any(HttpEntity.class), eq(LTIToken.class));
-            assertEquals(ltiTokenResponse, ltiToken);
-        } catch (Exception e) {
-            e.printStackTrace();
-            fail("Exception should not be thrown.");
+        verify(ltijwtService).generateStateOrClientAssertionJWT(platformDeployment);
+        assertEquals("moodle-token", ltiTokenResponse.getAccess_token());
+    }
+
+    @Test
+    public void testTokenClientConvertersDoNotGrow() throws Exception {
+        useTokenEndpointAnswering(MediaType.TEXT_HTML);
+        PlatformDeployment platformDeployment = new PlatformDeployment();
+        platformDeployment.setoAuth2TokenUrl("https://lms.com/oauth2/token");
+        when(ltijwtService.generateStateOrClientAssertionJWT(platformDeployment)).thenReturn("jwt");
+        AdvantageConnectorHelperImpl helper = (AdvantageConnectorHelperImpl) advantageConnectorHelper;
+
+        // The token has no expires_in, so it is not cached and every call goes to the token endpoint.
+        advantageConnectorHelper.getToken(platformDeployment, AGSScope.AGS_SCORES_SCOPE.getScope());
+        RestTemplate tokenClient = helper.getTokenRestTemplate();
+        List<HttpMessageConverter<?>> converters = new ArrayList<>(tokenClient.getMessageConverters());
+        for (int i = 0; i < 100; i++) {
+            advantageConnectorHelper.getToken(platformDeployment, AGSScope.AGS_SCORES_SCOPE.getScope());
         }
+
+        assertSame(tokenClient, helper.getTokenRestTemplate());
+        assertEquals(converters, tokenClient.getMessageConverters());
+    }
+
+    // Replaces the mocked RestTemplate with the real token client over a fake token endpoint
+    private void useTokenEndpointAnswering(MediaType contentType) {
+        byte[] body = "{\"access_token\":\"moodle-token\",\"token_type\":\"Bearer\"}".getBytes(StandardCharsets.UTF_8);
+        ClientHttpRequestFactory tokenEndpoint = (uri, httpMethod) -> {
+            MockClientHttpRequest request = new MockClientHttpRequest(httpMethod, uri);
+            MockClientHttpResponse response = new MockClientHttpResponse(body, HttpStatus.OK);
+            response.getHeaders().setContentType(contentType);
+            request.setResponse(response);
+            return request;
+        };
+        ReflectionTestUtils.setField(advantageConnectorHelper, "ltiClientHttpRequestFactory", tokenEndpoint);
+        ReflectionTestUtils.setField(advantageConnectorHelper, "tokenRestTemplate", null);
     }
 
     @Test
@@ -191,4 +221,183 @@ public class AdvantageConnectorHelperTest {
             fail("Should not throw exception.");
         }
     }
+
+    @Test
+    public void testGetTokenIsCachedPerDeploymentAndScope() throws Exception {
+        PlatformDeployment platformDeployment = new PlatformDeployment();
+        platformDeployment.setKeyId(1L);
+        platformDeployment.setoAuth2TokenUrl("https://lms.com/oauth2/token");
+        when(ltijwtService.generateStateOrClientAssertionJWT(platformDeployment)).thenReturn("jwt");
+        LTIToken ltiToken = new LTIToken("access-token", "Bearer", 3600, AGSScope.AGS_SCORES_SCOPE.getScope());
+        when(restTemplate.postForEntity(anyString(), any(HttpEntity.class), eq(LTIToken.class))).thenReturn(new ResponseEntity<>(ltiToken, HttpStatus.OK));
+
+        LTIToken first = advantageConnectorHelper.getToken(platformDeployment, AGSScope.AGS_SCORES_SCOPE.getScope());
+        LTIToken second = advantageConnectorHelper.getToken(platformDeployment, AGSScope.AGS_SCORES_SCOPE.getScope());
+        advantageConnectorHelper.getToken(platformDeployment, AGSScope.AGS_RESULTS_SCOPE.getScope());
+
+        assertEquals(ltiToken, first);
+        assertEquals(ltiToken, second);
+        // Two token requests, each one with its own client assertion
+        verify(ltijwtService, times(2)).generateStateOrClientAssertionJWT(platformDeployment);
+        verify(restTemplate, times(2)).postForEntity(anyString(), any(HttpEntity.class), eq(LTIToken.class));
+    }
+
+    @Test
+    public void testRetryWithJsonUsesTheSameClientAssertion() throws Exception {
+        PlatformDeployment platformDeployment = new PlatformDeployment();
+        platformDeployment.setKeyId(1L);
+        platformDeployment.setoAuth2TokenUrl("https://lms.com/oauth2/token");
+        when(ltijwtService.generateStateOrClientAssertionJWT(platformDeployment)).thenReturn("jwt", "jwt2");
+        LTIToken ltiToken = new LTIToken("access-token", "Bearer", 3600, AGSScope.AGS_SCORES_SCOPE.getScope());
+        List<HttpEntity<?>> requests = new ArrayList<>();
+        when(restTemplate.postForEntity(anyString(), any(HttpEntity.class), eq(LTIToken.class))).thenAnswer(invocation -> {
+            HttpEntity<?> request = invocation.getArgument(1);
+            requests.add(request);
+            if (request.getHeaders().getContentType().equals(MediaType.APPLICATION_FORM_URLENCODED)) {
+                throw new RestClientException("form not supported");
+            }
+            return new ResponseEntity<>(ltiToken, HttpStatus.OK);
+        });
+
+        assertEquals(ltiToken, advantageConnectorHelper.getToken(platformDeployment, AGSScope.AGS_SCORES_SCOPE.getScope()));
+
+        assertEquals(2, requests.size());
+        assertEquals("jwt", ((MultiValueMap<String, String>) requests.get(0).getBody()).getFirst("client_assertion"));
+        // Signed once for the whole token request
+        assertTrue(requests.get(1).getBody().toString().contains("\"client_assertion\":\"jwt\""));
+        verify(ltijwtService, times(1)).generateStateOrClientAssertionJWT(platformDeployment);
+    }
+
+    @Test
+    public void testClientAssertionIsSignedEveryTimeWithoutAReuseWindow() throws Exception {
+        ReflectionTestUtils.setField(advantageConnectorHelper, "clientAssertionReuseIssuers", new String[]{"https://lms.com"});
+        ReflectionTestUtils.setField(advantageConnectorHelper, "clientAssertionReuseSeconds", 0L);
+        PlatformDeployment platformDeployment = tokenRequests("https://lms.com");
+
+        advantageConnectorHelper.getToken(platformDeployment, AGSScope.AGS_SCORES_SCOPE.getScope());
+        advantageConnectorHelper.getToken(platformDeployment, AGSScope.AGS_RESULTS_SCOPE.getScope());
+
+        verify(ltijwtService, times(2)).generateStateOrClientAssertionJWT(platformDeployment);
+    }
+
+    @Test
+    public void testOnlyTheListedPlatformsReuseTheClientAssertion() throws Exception {
+        ReflectionTestUtils.setField(advantageConnectorHelper, "clientAssertionReuseIssuers", new String[]{"https://lenient-lms.com"});
+        PlatformDeployment lenient = tokenRequests("https://lenient-lms.com");
+        PlatformDeployment other = tokenRequests("https://lms.com");
+        other.setKeyId(2L);
+
+        advantageConnectorHelper.getToken(lenient, AGSScope.AGS_SCORES_SCOPE.getScope());
+        advantageConnectorHelper.getToken(lenient, AGSScope.AGS_RESULTS_SCOPE.getScope());
+        advantageConnectorHelper.getToken(other, AGSScope.AGS_SCORES_SCOPE.getScope());
+        advantageConnectorHelper.getToken(other, AGSScope.AGS_RESULTS_SCOPE.getScope());
+
+        verify(ltijwtService, times(1)).generateStateOrClientAssertionJWT(lenient);
+        verify(ltijwtService, times(2)).generateStateOrClientAssertionJWT(other);
+    }
+
+    private PlatformDeployment tokenRequests(String iss) throws Exception {
+        PlatformDeployment platformDeployment = new PlatformDeployment();
+        platformDeployment.setKeyId(1L);
+        platformDeployment.setIss(iss);
+        platformDeployment.setoAuth2TokenUrl(iss + "/oauth2/token");
+        when(ltijwtService.generateStateOrClientAssertionJWT(platformDeployment)).thenReturn("jwt");
+        LTIToken ltiToken = new LTIToken("access-token", "Bearer", 3600, AGSScope.AGS_SCORES_SCOPE.getScope());
+        when(restTemplate.postForEntity(anyString(), any(HttpEntity.class), eq(LTIToken.class))).thenReturn(new ResponseEntity<>(ltiToken, HttpStatus.OK));
+        return platformDeployment;
+    }
+
+    @Test
+    public void testRejectedTokenIsAskedAgain() throws Exception {
+        PlatformDeployment platformDeployment = new PlatformDeployment();
+        platformDeployment.setKeyId(1L);
+        platformDeployment.setoAuth2TokenUrl("https://lms.com/oauth2/token");
+        when(ltijwtService.generateStateOrClientAssertionJWT(platformDeployment)).thenReturn("jwt");
+        LTIToken ltiToken = new LTIToken("access-token", "Bearer", 3600, AGSScope.AGS_SCORES_SCOPE.getScope());
+        when(restTemplate.postForEntity(anyString(), any(HttpEntity.class), eq(LTIToken.class))).thenReturn(new ResponseEntity<>(ltiToken, HttpStatus.OK));
+        advantageConnectorHelper.getToken(platformDeployment, AGSScope.AGS_SCORES_SCOPE.getScope());
+        advantageConnectorHelper.getToken(platformDeployment, AGSScope.AGS_RESULTS_SCOPE.getScope());
+
+        // Other errors don't drop the token
+        assertFalse(advantageConnectorHelper.invalidateTokenIfRejected(platformDeployment, AGSScope.AGS_SCORES_SCOPE.getScope(),
+                HttpClientErrorException.create(HttpStatus.FORBIDDEN, "Forbidden", null, null, null)));
+        advantageConnectorHelper.getToken(platformDeployment, AGSScope.AGS_SCORES_SCOPE.getScope());
+        verify(restTemplate, times(2)).postForEntity(anyString(), any(HttpEntity.class), eq(LTIToken.class));
+
+        // A 401, even wrapped, does. Only for that scope
+        assertTrue(advantageConnectorHelper.invalidateTokenIfRejected(platformDeployment, AGSScope.AGS_SCORES_SCOPE.getScope(),
+                new RuntimeException(HttpClientErrorException.create(HttpStatus.UNAUTHORIZED, "Unauthorized", null, null, null))));
+        advantageConnectorHelper.getToken(platformDeployment, AGSScope.AGS_SCORES_SCOPE.getScope());
+        advantageConnectorHelper.getToken(platformDeployment, AGSScope.AGS_RESULTS_SCOPE.getScope());
+        verify(restTemplate, times(3)).postForEntity(anyString(), any(HttpEntity.class), eq(LTIToken.class));
+    }
+
+    @Test
+    public void testGetTokenWithoutExpiresInIsNotCached() throws Exception {
+        PlatformDeployment platformDeployment = new PlatformDeployment();
+        platformDeployment.setKeyId(1L);
+        platformDeployment.setoAuth2TokenUrl("https://lms.com/oauth2/token");
+        when(ltijwtService.generateStateOrClientAssertionJWT(platformDeployment)).thenReturn("jwt");
+        when(restTemplate.postForEntity(anyString(), any(HttpEntity.class), eq(LTIToken.class))).thenReturn(new ResponseEntity<>(new LTIToken(), HttpStatus.OK));
+
+        advantageConnectorHelper.getToken(platformDeployment, AGSScope.AGS_SCORES_SCOPE.getScope());
+        advantageConnectorHelper.getToken(platformDeployment, AGSScope.AGS_SCORES_SCOPE.getScope());
+
+        verify(restTemplate, times(2)).postForEntity(anyString(), any(HttpEntity.class), eq(LTIToken.class));
+    }
+
+    @Test
+    public void testConcurrentGetTokenCallsShareOneRequest() throws Exception {
+        PlatformDeployment platformDeployment = new PlatformDeployment();
+        platformDeployment.setKeyId(1L);
+        platformDeployment.setoAuth2TokenUrl("https://lms.com/oauth2/token");
+        when(ltijwtService.generateStateOrClientAssertionJWT(platformDeployment)).thenReturn("jwt");
+        CountDownLatch release = new CountDownLatch(1);
+        LTIToken ltiToken = new LTIToken("access-token", "Bearer", 3600, AGSScope.AGS_SCORES_SCOPE.getScope());
+        when(restTemplate.postForEntity(anyString(), any(HttpEntity.class), eq(LTIToken.class))).thenAnswer(invocation -> {
+            release.await();
+            return new ResponseEntity<>(ltiToken, HttpStatus.OK);
+        });
+
+        int threads = 8;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<LTIToken>> results = new ArrayList<>();
+            for (int i = 0; i < threads; i++) {
+                results.add(executor.submit(() -> advantageConnectorHelper.getToken(platformDeployment, AGSScope.AGS_SCORES_SCOPE.getScope())));
+            }
+            Thread.sleep(200);
+            release.countDown();
+            for (Future<LTIToken> result : results) {
+                assertEquals(ltiToken, result.get());
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        verify(restTemplate, times(1)).postForEntity(anyString(), any(HttpEntity.class), eq(LTIToken.class));
+    }
+
+    @Test
+    public void testGetTokenIsRefreshedInTheBackgroundBeforeItExpires() throws Exception {
+        ReflectionTestUtils.setField(advantageConnectorHelper, "expirySkewSeconds", 0L);
+        PlatformDeployment platformDeployment = new PlatformDeployment();
+        platformDeployment.setKeyId(1L);
+        platformDeployment.setoAuth2TokenUrl("https://lms.com/oauth2/token");
+        when(ltijwtService.generateStateOrClientAssertionJWT(platformDeployment)).thenReturn("jwt");
+        LTIToken oldToken = new LTIToken("old-token", "Bearer", 2, AGSScope.AGS_SCORES_SCOPE.getScope());
+        LTIToken newToken = new LTIToken("new-token", "Bearer", 3600, AGSScope.AGS_SCORES_SCOPE.getScope());
+        when(restTemplate.postForEntity(anyString(), any(HttpEntity.class), eq(LTIToken.class)))
+                .thenReturn(new ResponseEntity<>(oldToken, HttpStatus.OK))
+                .thenReturn(new ResponseEntity<>(newToken, HttpStatus.OK));
+
+        advantageConnectorHelper.getToken(platformDeployment, AGSScope.AGS_SCORES_SCOPE.getScope());
+        // The token lives 2 seconds, so after 1 second we are in the refresh window but it is still valid.
+        Thread.sleep(1100);
+        LTIToken stillValid = advantageConnectorHelper.getToken(platformDeployment, AGSScope.AGS_SCORES_SCOPE.getScope());
+
+        assertEquals(oldToken, stillValid);
+        verify(restTemplate, timeout(2000).times(2)).postForEntity(anyString(), any(HttpEntity.class), eq(LTIToken.class));
+        Thread.sleep(100);
+        assertEquals(newToken, advantageConnectorHelper.getToken(platformDeployment, AGSScope.AGS_SCORES_SCOPE.getScope()));
+    }
 }
@@ -0,0 +1,185 @@
+package net.unicon.lti.service.lti;
+
+import net.unicon.lti.exceptions.ConnectionException;
+import net.unicon.lti.exceptions.helper.ExceptionMessageGenerator;
+import net.unicon.lti.model.LtiContextEntity;
+import net.unicon.lti.model.PlatformDeployment;
+import net.unicon.lti.model.membership.CourseUser;
+import net.unicon.lti.model.membership.CourseUsers;
+import net.unicon.lti.model.oauth2.LTIToken;
+import net.unicon.lti.service.lti.impl.AdvantageMembershipServiceImpl;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.mock.http.client.MockClientHttpRequest;
+import org.springframework.mock.http.client.MockClientHttpResponse;
+import org.springframework.web.client.HttpClientErrorException;
+import org.springframework.web.client.RestClientException;
+import org.springframework.web.client.RestTemplate;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class AdvantageMembershipServiceTest {
+
+    private static final String PAGE_1 = "https://lms.com/memberships";
+    private static final String PAGE_2 = "https://lms.com/memberships?page=2";
+
+    @InjectMocks
+    AdvantageMembershipService advantageMembershipService = new AdvantageMembershipServiceImpl();
+
+    @Mock
+    ExceptionMessageGenerator exceptionMessageGenerator;
+
+    @Mock
+    AdvantageConnectorHelper advantageConnectorHelper;
+
+    private final List<String> requestedUrls = new ArrayList<>();
+
+    private LTIToken ltiToken;
+
+    private LtiContextEntity context;
+
+    @BeforeEach
+    public void setUp() {
+        MockitoAnnotations.openMocks(this);
+        ltiToken = new LTIToken();
+        ltiToken.setAccess_token("test-membership-token");
+        context = new LtiContextEntity("context-key", new PlatformDeployment(), "title", PAGE_1, null, null);
+        when(advantageConnectorHelper.createTokenizedRequestEntity(any(LTIToken.class), anyString())).thenReturn(new HttpEntity<>(new HttpHeaders()));
+        when(advantageConnectorHelper.nextPage(any(HttpHeaders.class))).thenAnswer(invocation -> {
+            HttpHeaders headers = invocation.getArgument(0);
+            return headers.getFirst("next");
+        });
+    }
+
+    @Test
+    public void testCallMembershipServiceRequestsEachPageOnce() throws ConnectionException {
+        useMembershipPages();
+
+        CourseUsers courseUsers = advantageMembershipService.callMembershipService(ltiToken, context);
+
+        assertEquals(List.of(PAGE_1, PAGE_2), requestedUrls);
+        assertEquals(3, courseUsers.getCourseUserList().size());
+        assertEquals("user-1", courseUsers.getCourseUserList().get(0).getUserId());
+        assertEquals("Second User", courseUsers.getCourseUserList().get(1).getName());
+        assertEquals("user-3", courseUsers.getCourseUserList().get(2).getUserId());
+    }
+
+    @Test
+    public void testCallMembershipServiceHandsEachUserToTheConsumer() throws ConnectionException {
+        useMembershipPages();
+        List<String> userIds = new ArrayList<>();
+
+        advantageMembershipService.callMembershipService(ltiToken, context, (CourseUser user) -> userIds.add(user.getUserId()));
+
+        assertEquals(List.of("user-1", "user-2", "user-3"), userIds);
+    }
+
+    @Test
+    public void testCallMembershipServiceRejectsMalformedContainer() {
+        when(advantageConnectorHelper.createRestTemplate()).thenReturn(new RestTemplate((uri, httpMethod) -> {
+            MockClientHttpRequest request = new MockClientHttpRequest(httpMethod, uri);
+            request.setResponse(new MockClientHttpResponse("[]".getBytes(StandardCharsets.UTF_8), HttpStatus.OK));
+            return request;
+        }));
+
+        assertThrows(ConnectionException.class, () -> advantageMembershipService.callMembershipService(ltiToken, context));
+    }
+
+    @Test
+    public void testStreamMembershipReadsThePagesLazily() {
+        useMembershipPages();
+
+        try (Stream<CourseUser> users = advantageMembershipService.streamMembership(ltiToken, context)) {
+            Iterator<CourseUser> iterator = users.iterator();
+            assertEquals("user-1", iterator.next().getUserId());
+            assertEquals("user-2", iterator.next().getUserId());
+            assertEquals("user-3", iterator.next().getUserId());
+            assertFalse(iterator.hasNext());
+        }
+        assertEquals(List.of(PAGE_1, PAGE_2), requestedUrls);
+    }
+
+    @Test
+    public void testStreamMembershipHandsTheUsersBeforeThePageIsRead() {
+        // The page breaks after the first member, the first one is already out by then
+        byte[] firstMember = "{\"members\":[{\"user_id\":\"user-1\"},".getBytes(StandardCharsets.UTF_8);
+        InputStream brokenPage = new SequenceInputStream(new ByteArrayInputStream(firstMember), new InputStream() {
+            @Override
+            public int read() throws IOException {
+                throw new IOException("connection reset");
+            }
+        });
+        when(advantageConnectorHelper.createRestTemplate()).thenReturn(new RestTemplate((uri, httpMethod) -> {
+            MockClientHttpRequest request = new MockClientHttpRequest(httpMethod, uri);
+            request.setResponse(new MockClientHttpResponse(brokenPage, HttpStatus.OK));
+            return request;
+        }));
+
+        try (Stream<CourseUser> users = advantageMembershipService.streamMembership(ltiToken, context)) {
+            Iterator<CourseUser> iterator = users.iterator();
+            assertEquals("user-1", iterator.next().getUserId());
+            assertThrows(RestClientException.class, iterator::hasNext);
+        }
+    }
+
+    @Test
+    public void testStreamMembershipInvalidatesARejectedToken() {
+        when(advantageConnectorHelper.createRestTemplate()).thenReturn(new RestTemplate((uri, httpMethod) -> {
+            MockClientHttpRequest request = new MockClientHttpRequest(httpMethod, uri);
+            request.setResponse(new MockClientHttpResponse(new byte[0], HttpStatus.UNAUTHORIZED));
+            return request;
+        }));
+
+        try (Stream<CourseUser> users = advantageMembershipService.streamMembership(ltiToken, context)) {
+            assertThrows(HttpClientErrorException.Unauthorized.class, () -> users.iterator().hasNext());
+        }
+        verify(advantageConnectorHelper).invalidateTokenIfRejected(eq(context.getPlatformDeployment()),
+                eq("https://purl.imsglobal.org/spec/lti-nrps/scope/contextmembership.readonly"), any(HttpClientErrorException.Unauthorized.class));
+    }
+
+    private void useMembershipPages() {
+        when(advantageConnectorHelper.createRestTemplate()).thenReturn(new RestTemplate((uri, httpMethod) -> {
+            assertEquals(HttpMethod.GET, httpMethod);
+            requestedUrls.add(uri.toString());
+            MockClientHttpRequest request = new MockClientHttpRequest(httpMethod, uri);
+            MockClientHttpResponse response;
+            if (uri.toString().equals(PAGE_1)) {
+                response = new MockClientHttpResponse(("{\"id\":\"" + PAGE_1 + "\",\"context\":{\"id\":\"ctx\",\"title\":\"Course\"},"
+                        + "\"members\":[{\"user_id\":\"user-1\",\"roles\":[\"Learner\"]},{\"user_id\":\"user-2\",\"name\":\"Second User\"}]}")
+                        .getBytes(StandardCharsets.UTF_8), HttpStatus.OK);
+                response.getHeaders().set("next", PAGE_2);
+            } else {
+                response = new MockClientHttpResponse("{\"members\":[{\"user_id\":\"user-3\"}],\"extra\":[1,2]}"
+                        .getBytes(StandardCharsets.UTF_8), HttpStatus.OK);
+            }
+            response.getHeaders().setContentType(MediaType.APPLICATION_JSON);
+            request.setResponse(response);
+            return request;
+        }));
+    }
+}
@@ -0,0 +1,91 @@
+package net.unicon.lti.service.lti;
+
+import net.unicon.lti.model.lti.dto.NonceState;
+import net.unicon.lti.service.lti.impl.InMemoryNonceStateStore;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.sql.Timestamp;
+import java.util.Date;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class InMemoryNonceStateStoreTest {
+
+    private InMemoryNonceStateStore nonceStateStore;
+
+    @BeforeEach
+    public void setUp() {
+        nonceStateStore = new InMemoryNonceStateStore();
+        ReflectionTestUtils.setField(nonceStateStore, "maxEntries", 100L);
+        nonceStateStore.init();
+    }
+
+    @Test
+    public void testNoncesAreFoundByNonceAndStateHash() {
+        NonceState nonceState = new NonceState("nonce-1", "state-hash-1", "state-1", "_parent");
+        nonceStateStore.save(nonceState);
+
+        assertSame(nonceState, nonceStateStore.findByNonce("nonce-1"));
+        assertSame(nonceState, nonceStateStore.findByStateHash("state-hash-1"));
+        assertNotNull(nonceState.getCreatedAt());
+        assertNull(nonceStateStore.findByNonce("nonce-2"));
+        assertNull(nonceStateStore.findByStateHash(null));
+    }
+
+    @Test
+    public void testDeletedNonceIsGoneFromBothIndexes() {
+        nonceStateStore.save(new NonceState("nonce-1", "state-hash-1", "state-1", "_parent"));
+
+        nonceStateStore.deleteByNonce("nonce-1");
+
+        assertNull(nonceStateStore.findByNonce("nonce-1"));
+        assertNull(nonceStateStore.findByStateHash("state-hash-1"));
+    }
+
+    @Test
+    public void testNonceIsOnlySavedAndDeletedOnce() {
+        assertTrue(nonceStateStore.saveIfAbsent(new NonceState("nonce-1", "state-hash-1", "state-1", "_parent")));
+        assertFalse(nonceStateStore.saveIfAbsent(new NonceState("nonce-1", "state-hash-2", "state-2", "_parent")));
+        assertEquals("state-1", nonceStateStore.findByNonce("nonce-1").getState());
+
+        assertTrue(nonceStateStore.deleteByNonce("nonce-1"));
+        assertFalse(nonceStateStore.deleteByNonce("nonce-1"));
+    }
+
+    @Test
+    public void testOldNoncesAreDeleted() {
+        NonceState old = new NonceState("nonce-old", "state-hash-old", "state-old", "_parent");
+        old.setCreatedAt(new Timestamp(System.currentTimeMillis() - 2 * 60 * 60 * 1000));
+        nonceStateStore.save(old);
+        nonceStateStore.save(new NonceState("nonce-new", "state-hash-new", "state-new", "_parent"));
+
+        nonceStateStore.deleteCreatedBefore(new Date(System.currentTimeMillis() - 60 * 60 * 1000));
+
+        assertNull(nonceStateStore.findByNonce("nonce-old"));
+        assertNull(nonceStateStore.findByStateHash("state-hash-old"));
+        assertNotNull(nonceStateStore.findByNonce("nonce-new"));
+    }
+
+    @Test
+    public void testStoreIsBounded() {
+        for (int i = 0; i < 1000; i++) {
+            nonceStateStore.save(new NonceState("nonce-" + i, "state-hash-" + i, "state-" + i, "_parent"));
+        }
+
+        int found = 0;
+        for (int i = 0; i < 1000; i++) {
+            if (nonceStateStore.findByNonce("nonce-" + i) != null) {
+                found++;
+            }
+        }
+        assertEquals(true, found <= 100, "Found " + found + " nonces");
+        assertNotNull(nonceStateStore.findByStateHash("state-hash-999"));
+    }
+}
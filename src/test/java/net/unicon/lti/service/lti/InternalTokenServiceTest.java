@@ -0,0 +1,178 @@
+package net.unicon.lti.service.lti;
+
+import io.jsonwebtoken.Claims;
+import io.jsonwebtoken.Jws;
+import io.jsonwebtoken.JwtParser;
+import io.jsonwebtoken.Jwts;
+import io.jsonwebtoken.security.SignatureException;
+import net.unicon.lti.service.lti.impl.InternalTokenServiceImpl;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.interfaces.RSAPublicKey;
+import java.util.Base64;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class InternalTokenServiceTest {
+
+    private static final String OLD_SECRET = "old:" + Base64.getEncoder().encodeToString(new byte[32]);
+    private static final String NEW_SECRET = "new:" + Base64.getEncoder().encodeToString("0123456789abcdef0123456789abcdef".getBytes());
+
+    @Mock
+    KeyringService keyringService;
+
+    private KeyPair keyPair;
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        MockitoAnnotations.openMocks(this);
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(2048);
+        keyPair = generator.generateKeyPair();
+        when(keyringService.getPrivateKey("kid")).thenReturn(keyPair.getPrivate());
+        when(keyringService.getPublicKey()).thenReturn((RSAPublicKey) keyPair.getPublic());
+        when(keyringService.getActiveKid()).thenReturn("kid");
+    }
+
+    @Test
+    public void testRS256IsTheDefault() throws Exception {
+        InternalTokenServiceImpl internalTokenService = internalTokenService(null, null);
+
+        Jws<Claims> jws = parser(internalTokenService).parseSignedClaims(internalTokenService.sign(Jwts.builder().subject("me")));
+
+        assertEquals("RS256", jws.getHeader().getAlgorithm());
+        assertEquals("kid", jws.getHeader().getKeyId());
+        assertEquals("me", jws.getPayload().getSubject());
+    }
+
+    @Test
+    public void testHS256TokensAreSignedWithTheFirstSecret() throws Exception {
+        InternalTokenServiceImpl internalTokenService = internalTokenService("HS256", NEW_SECRET + "," + OLD_SECRET);
+
+        Jws<Claims> jws = parser(internalTokenService).parseSignedClaims(internalTokenService.sign(Jwts.builder().subject("me")));
+
+        assertEquals("HS256", jws.getHeader().getAlgorithm());
+        assertEquals("new", jws.getHeader().getKeyId());
+        verify(keyringService, never()).getPrivateKey("kid");
+    }
+
+    @Test
+    public void testTokensSignedWithARotatedSecretAreStillVerified() throws Exception {
+        String token = internalTokenService("HS256", OLD_SECRET).sign(Jwts.builder().subject("me"));
+        InternalTokenServiceImpl rotated = internalTokenService("HS256", NEW_SECRET + "," + OLD_SECRET);
+
+        assertEquals("me", parser(rotated).parseSignedClaims(token).getPayload().getSubject());
+        // Once the old secret is dropped the token is no longer valid
+        assertThrows(RuntimeException.class, () -> parser(internalTokenService("HS256", NEW_SECRET)).parseSignedClaims(token));
+    }
+
+    @Test
+    public void testHS256TokenSignedWithAnotherSecretIsRejected() throws Exception {
+        String token = internalTokenService("HS256", "new:" + Base64.getEncoder().encodeToString(new byte[32])).sign(Jwts.builder().subject("me"));
+
+        assertThrows(SignatureException.class, () -> parser(internalTokenService("HS256", NEW_SECRET)).parseSignedClaims(token));
+    }
+
+    @Test
+    public void testES256TokensAreVerified() throws Exception {
+        KeyPair ecKeyPair = Jwts.SIG.ES256.keyPair().build();
+        InternalTokenServiceImpl internalTokenService = new InternalTokenServiceImpl();
+        ReflectionTestUtils.setField(internalTokenService, "keyringService", keyringService);
+        ReflectionTestUtils.setField(internalTokenService, "algorithm", "ES256");
+        ReflectionTestUtils.setField(internalTokenService, "ecPrivateKey", pem("PRIVATE KEY", ecKeyPair.getPrivate().getEncoded()));
+        ReflectionTestUtils.setField(internalTokenService, "ecPublicKey", pem("PUBLIC KEY", ecKeyPair.getPublic().getEncoded()));
+        internalTokenService.init();
+
+        Jws<Claims> jws = parser(internalTokenService).parseSignedClaims(internalTokenService.sign(Jwts.builder().subject("me")));
+
+        assertEquals("ES256", jws.getHeader().getAlgorithm());
+        assertEquals("internal-es256", jws.getHeader().getKeyId());
+    }
+
+    @Test
+    public void testRS256TokensStillWorkAfterSwitchingAlgorithm() throws Exception {
+        String token = internalTokenService(null, null).sign(Jwts.builder().subject("me"));
+
+        assertEquals("me", parser(internalTokenService("HS256", NEW_SECRET)).parseSignedClaims(token).getPayload().getSubject());
+    }
+
+    @Test
+    public void testASingleToolKeyIsVerifiedWithoutTheLocator() throws Exception {
+        when(keyringService.getPublishedKeys()).thenReturn(Map.of("kid", (RSAPublicKey) keyPair.getPublic()));
+        InternalTokenServiceImpl internalTokenService = internalTokenService(null, null);
+
+        assertSame(keyPair.getPublic(), internalTokenService.getVerificationKey());
+        String token = internalTokenService.sign(Jwts.builder().subject("me"));
+        assertEquals("me", internalTokenService.parser(internalTokenService.getVerificationKey()).build().parseSignedClaims(token).getPayload().getSubject());
+    }
+
+    @Test
+    public void testSeveralKeysNeedTheLocator() throws Exception {
+        KeyPair next = Jwts.SIG.RS256.keyPair().build();
+        when(keyringService.getPublishedKeys()).thenReturn(Map.of("kid", (RSAPublicKey) keyPair.getPublic(), "next", (RSAPublicKey) next.getPublic()));
+        assertNull(internalTokenService(null, null).getVerificationKey());
+
+        when(keyringService.getPublishedKeys()).thenReturn(Map.of("kid", (RSAPublicKey) keyPair.getPublic()));
+        InternalTokenServiceImpl hs256 = internalTokenService("HS256", NEW_SECRET);
+        assertNull(hs256.getVerificationKey());
+        String token = hs256.sign(Jwts.builder().subject("me"));
+        assertEquals("me", hs256.parser(null).build().parseSignedClaims(token).getPayload().getSubject());
+    }
+
+    @Test
+    public void testUnknownAlgorithmFailsTheStartup() {
+        InternalTokenServiceImpl internalTokenService = new InternalTokenServiceImpl();
+        ReflectionTestUtils.setField(internalTokenService, "algorithm", "none");
+
+        assertThrows(IllegalStateException.class, internalTokenService::init);
+    }
+
+    @Test
+    public void testMissingOrInvalidKeysFailTheStartup() {
+        // No random key that only this instance would know
+        assertThrows(IllegalStateException.class, () -> internalTokenService("HS256", null));
+        assertThrows(IllegalStateException.class, () -> internalTokenService("ES256", null));
+        // A malformed secret fails even if it is only used to verify
+        assertThrows(IllegalStateException.class, () -> internalTokenService("HS256", NEW_SECRET + ",old:not-base64!"));
+        assertThrows(IllegalStateException.class, () -> internalTokenService(null, "old:" + Base64.getEncoder().encodeToString(new byte[16])));
+        assertThrows(IllegalStateException.class, () -> internalTokenService("HS256", Base64.getEncoder().encodeToString(new byte[32])));
+
+        InternalTokenServiceImpl invalidEcKeys = new InternalTokenServiceImpl();
+        ReflectionTestUtils.setField(invalidEcKeys, "algorithm", "ES256");
+        ReflectionTestUtils.setField(invalidEcKeys, "ecPrivateKey", pem("PRIVATE KEY", new byte[32]));
+        ReflectionTestUtils.setField(invalidEcKeys, "ecPublicKey", pem("PUBLIC KEY", new byte[32]));
+        assertThrows(IllegalStateException.class, invalidEcKeys::init);
+    }
+
+    private InternalTokenServiceImpl internalTokenService(String algorithm, String hmacSecrets) {
+        InternalTokenServiceImpl internalTokenService = new InternalTokenServiceImpl();
+        ReflectionTestUtils.setField(internalTokenService, "keyringService", keyringService);
+        if (algorithm != null) {
+            ReflectionTestUtils.setField(internalTokenService, "algorithm", algorithm);
+        }
+        ReflectionTestUtils.setField(internalTokenService, "hmacSecrets", hmacSecrets);
+        internalTokenService.init();
+        return internalTokenService;
+    }
+
+    private static String pem(String type, byte[] encoded) {
+        return "-----BEGIN " + type + "-----\n" + Base64.getMimeEncoder().encodeToString(encoded) + "\n-----END " + type + "-----";
+    }
+
+    private JwtParser parser(InternalTokenService internalTokenService) {
+        return Jwts.parser().keyLocator(internalTokenService.getKeyLocator()).build();
+    }
+}
@@ -0,0 +1,90 @@
+package net.unicon.lti.service.lti;
+
+import net.unicon.lti.model.lti.dto.NonceState;
+import net.unicon.lti.repository.NonceStateRepository;
+import net.unicon.lti.service.lti.impl.JpaNonceStateStore;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.data.domain.Pageable;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.sql.Timestamp;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyCollection;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class JpaNonceStateStoreTest {
+
+    @InjectMocks
+    JpaNonceStateStore nonceStateStore = new JpaNonceStateStore();
+
+    @Mock
+    NonceStateRepository nonceStateRepository;
+
+    @BeforeEach
+    public void setUp() {
+        MockitoAnnotations.openMocks(this);
+        ReflectionTestUtils.setField(nonceStateStore, "deleteChunkSize", 2);
+    }
+
+    @Test
+    public void testSavedNoncesAreTaggedWithTheirBucket() {
+        NonceState nonceState = new NonceState("nonce-1", "state-hash-1", "state-1", "_parent");
+        long bucket = System.currentTimeMillis() / 300000L;
+
+        nonceStateStore.save(nonceState);
+
+        assertEquals(true, nonceState.getExpiryBucket() >= bucket && nonceState.getExpiryBucket() <= bucket + 1);
+        verify(nonceStateRepository).save(nonceState);
+    }
+
+    @Test
+    public void testOldBucketsAreDeletedInChunks() {
+        Date threshold = new Date(3600 * 1000L);
+        when(nonceStateRepository.findNoncesInBucketsBefore(eq(12L), any(Pageable.class)))
+                .thenReturn(Arrays.asList("nonce-1", "nonce-2"), Arrays.asList("nonce-3", "nonce-4"), Collections.singletonList("nonce-5"));
+        when(nonceStateRepository.deleteByNonceIn(anyCollection())).thenReturn(2, 2, 1);
+
+        nonceStateStore.deleteCreatedBefore(threshold);
+
+        verify(nonceStateRepository).deleteByNonceIn(Arrays.asList("nonce-1", "nonce-2"));
+        verify(nonceStateRepository).deleteByNonceIn(Arrays.asList("nonce-3", "nonce-4"));
+        verify(nonceStateRepository).deleteByNonceIn(Collections.singletonList("nonce-5"));
+        verify(nonceStateRepository, times(3)).findNoncesInBucketsBefore(eq(12L), any(Pageable.class));
+    }
+
+    @Test
+    public void testNothingIsDeletedWhenNoBucketIsExpired() {
+        when(nonceStateRepository.findNoncesInBucketsBefore(anyLong(), any(Pageable.class))).thenReturn(Collections.emptyList());
+
+        nonceStateStore.deleteCreatedBefore(new Date());
+
+        verify(nonceStateRepository, never()).deleteByNonceIn(anyCollection());
+    }
+
+    @Test
+    public void testNonceAlreadyStoredIsNotSavedAgain() {
+        when(nonceStateRepository.insert(eq("nonce-1"), eq("nonce-1"), eq("consumed"), any(), anyLong(), any(Timestamp.class)))
+                .thenReturn(1)
+                .thenThrow(new DataIntegrityViolationException("Duplicate entry 'nonce-1' for key 'PRIMARY'"));
+
+        assertTrue(nonceStateStore.saveIfAbsent(new NonceState("nonce-1", "nonce-1", "consumed", null)));
+        assertFalse(nonceStateStore.saveIfAbsent(new NonceState("nonce-1", "nonce-1", "consumed", null)));
+    }
+}
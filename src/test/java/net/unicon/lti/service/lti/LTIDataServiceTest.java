@@ -0,0 +1,164 @@
+package net.unicon.lti.service.lti;
+
+import net.unicon.lti.model.LtiContextEntity;
+import net.unicon.lti.model.LtiLinkEntity;
+import net.unicon.lti.model.LtiMembershipEntity;
+import net.unicon.lti.model.LtiUserEntity;
+import net.unicon.lti.model.PlatformDeployment;
+import net.unicon.lti.repository.AllRepositories;
+import net.unicon.lti.repository.LtiContextRepository;
+import net.unicon.lti.repository.LtiLinkRepository;
+import net.unicon.lti.repository.LtiMembershipRepository;
+import net.unicon.lti.repository.LtiUpsertRepository;
+import net.unicon.lti.repository.LtiUserRepository;
+import net.unicon.lti.service.lti.impl.LTIDataServiceImpl;
+import net.unicon.lti.utils.KeyDigests;
+import net.unicon.lti.utils.LtiStrings;
+import net.unicon.lti.utils.lti.LTI3Request;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import jakarta.persistence.EntityManager;
+import java.util.HashMap;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoInteractions;
+import static org.mockito.Mockito.when;
+
+public class LTIDataServiceTest {
+
+    private static final String TITLE = "Course";
+    private static final String MEMBERSHIPS_URL = "https://lms.com/memberships";
+    private static final String LINE_ITEMS = "https://lms.com/line_items";
+
+    @InjectMocks
+    LTIDataServiceImpl ltiDataService = new LTIDataServiceImpl();
+
+    @Mock
+    AllRepositories repos;
+
+    @Mock
+    LtiContextRepository contexts;
+
+    @Mock
+    LtiUserRepository users;
+
+    @Mock
+    LtiMembershipRepository members;
+
+    @Mock
+    LtiLinkRepository links;
+
+    @Mock
+    LtiUpsertRepository upserts;
+
+    @Mock
+    EntityManager entityManager;
+
+    @Mock
+    LTI3Request lti;
+
+    private PlatformDeployment platformDeployment;
+    private LtiContextEntity context;
+    private LtiUserEntity user;
+    private LtiMembershipEntity membership;
+
+    @BeforeEach
+    public void setUp() {
+        MockitoAnnotations.openMocks(this);
+        repos.contexts = contexts;
+        repos.users = users;
+        repos.members = members;
+        repos.links = links;
+        repos.upserts = upserts;
+        repos.entityManager = entityManager;
+        platformDeployment = new PlatformDeployment();
+        context = new LtiContextEntity("context-key", platformDeployment, TITLE, MEMBERSHIPS_URL, LINE_ITEMS, null);
+        context.setClaimsDigest(KeyDigests.sha256Of(TITLE, MEMBERSHIPS_URL, LINE_ITEMS));
+        user = new LtiUserEntity("user-key", null, platformDeployment);
+        user.setDisplayName("Name");
+        user.setEmail("user@lms.com");
+        user.setClaimsDigest(KeyDigests.sha256Of("Name", "user@lms.com", null));
+        membership = new LtiMembershipEntity(context, user, LtiStrings.ROLE_STUDENT);
+
+        when(lti.getKey()).thenReturn(platformDeployment);
+        when(lti.getContext()).thenReturn(context);
+        when(lti.getUser()).thenReturn(user);
+        when(lti.getMembership()).thenReturn(membership);
+        when(lti.getLink()).thenReturn(mock(LtiLinkEntity.class));
+        when(lti.getLtiContextTitle()).thenReturn(TITLE);
+        when(lti.getLtiNamesRoleServiceContextMembershipsUrl()).thenReturn(MEMBERSHIPS_URL);
+        when(lti.getLtiEndpointLineItems()).thenReturn(LINE_ITEMS);
+        when(lti.getLtiName()).thenReturn("Name");
+        when(lti.getLtiEmail()).thenReturn("user@lms.com");
+        when(lti.getLtiCustom()).thenReturn(new HashMap<>());
+        when(lti.getLtiRoles()).thenReturn(List.of("Learner"));
+        when(lti.getUserRoleNumber()).thenReturn(LtiStrings.ROLE_STUDENT);
+        when(lti.getLtiMessageType()).thenReturn(LtiStrings.LTI_MESSAGE_TYPE_RESOURCE_LINK);
+        when(lti.checkCompleteLTIRequest()).thenReturn("true");
+    }
+
+    @Test
+    public void testRepeatLaunchWithTheSameClaimsDoesNoWrites() throws Exception {
+        ltiDataService.upsertLTIDataInDB(lti, platformDeployment, "link");
+
+        verifyNoInteractions(contexts, users, members, links, upserts, entityManager);
+        verify(lti).setLoadingUpdates(0);
+    }
+
+    @Test
+    public void testChangedClaimsUpdateOnlyThatRow() throws Exception {
+        user.setUserId(7L);
+        when(lti.getLtiEmail()).thenReturn("new@lms.com");
+        String digest = KeyDigests.sha256Of("Name", "new@lms.com", null);
+        when(upserts.upsertUser(0L, "user-key", KeyDigests.sha256("user-key"), "Name", "new@lms.com", null, digest))
+                .thenReturn(new LtiUpsertRepository.Upserted(7L, false));
+
+        ltiDataService.upsertLTIDataInDB(lti, platformDeployment, "link");
+
+        verify(upserts).upsertUser(0L, "user-key", KeyDigests.sha256("user-key"), "Name", "new@lms.com", null, digest);
+        assertEquals("new@lms.com", user.getEmail());
+        assertEquals(digest, user.getClaimsDigest());
+        verify(upserts, never()).upsertContext(anyLong(), any(), any(), any(), any(), any(), any());
+        verify(upserts, never()).upsertMembership(anyLong(), anyLong(), anyInt());
+        verify(lti).setLoadingUpdates(1);
+    }
+
+    @Test
+    public void testFirstLaunchUpsertsEachRowOnce() throws Exception {
+        when(lti.getContext()).thenReturn(null);
+        when(lti.getUser()).thenReturn(null);
+        when(lti.getMembership()).thenReturn(null);
+        when(lti.getLtiDeploymentId()).thenReturn("deployment");
+        when(lti.getLtiContextId()).thenReturn("context-key");
+        when(lti.getSub()).thenReturn("user-key");
+        when(lti.makeUserRoleNum(any())).thenReturn(LtiStrings.ROLE_STUDENT);
+        when(upserts.upsertContext(anyLong(), any(), any(), any(), any(), any(), any())).thenReturn(new LtiUpsertRepository.Upserted(3L, true));
+        when(upserts.upsertUser(anyLong(), any(), any(), any(), any(), any(), any())).thenReturn(new LtiUpsertRepository.Upserted(4L, true));
+        when(upserts.upsertMembership(anyLong(), anyLong(), anyInt())).thenReturn(new LtiUpsertRepository.Upserted(5L, true));
+        //The mocked request keeps what the service sets on it
+        doAnswer(invocation -> when(lti.getContext()).thenReturn(invocation.getArgument(0))).when(lti).setContext(any());
+        doAnswer(invocation -> when(lti.getUser()).thenReturn(invocation.getArgument(0))).when(lti).setUser(any());
+
+        ltiDataService.upsertLTIDataInDB(lti, platformDeployment, "link");
+
+        verify(upserts).upsertContext(0L, "context-key", KeyDigests.sha256("context-key"), TITLE, MEMBERSHIPS_URL, LINE_ITEMS,
+                KeyDigests.sha256Of(TITLE, MEMBERSHIPS_URL, LINE_ITEMS));
+        verify(upserts).upsertUser(0L, "user-key", KeyDigests.sha256("user-key"), "Name", "user@lms.com", null,
+                KeyDigests.sha256Of("Name", "user@lms.com", null));
+        verify(upserts).upsertMembership(3L, 4L, LtiStrings.ROLE_STUDENT);
+        verifyNoInteractions(contexts, users, members);
+        verify(lti).setLoadingUpdates(3);
+    }
+}
@@ -0,0 +1,93 @@
+package net.unicon.lti.service.lti;
+
+import io.jsonwebtoken.Claims;
+import io.jsonwebtoken.IncorrectClaimException;
+import io.jsonwebtoken.Jws;
+import io.jsonwebtoken.Jwts;
+import io.jsonwebtoken.UnsupportedJwtException;
+import net.unicon.lti.model.lti.dto.LoginInitiationDTO;
+import net.unicon.lti.service.lti.impl.InternalTokenServiceImpl;
+import net.unicon.lti.service.lti.impl.LTIJWTServiceImpl;
+import net.unicon.lti.utils.lti.LtiOidcUtils;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.interfaces.RSAPublicKey;
+import java.util.Collections;
+import java.util.Date;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.Mockito.when;
+
+public class LTIJWTServiceTest {
+
+    @InjectMocks
+    LTIJWTServiceImpl ltijwtService = new LTIJWTServiceImpl();
+
+    @Mock
+    KeyringService keyringService;
+
+    private InternalTokenServiceImpl internalTokenService;
+
+    private KeyPair keyPair;
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        MockitoAnnotations.openMocks(this);
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(2048);
+        keyPair = generator.generateKeyPair();
+        when(keyringService.getPrivateKey("kid")).thenReturn(keyPair.getPrivate());
+        when(keyringService.getPublicKey()).thenReturn((RSAPublicKey) keyPair.getPublic());
+        when(keyringService.getActiveKid()).thenReturn("kid");
+        internalTokenService = new InternalTokenServiceImpl();
+        ReflectionTestUtils.setField(internalTokenService, "keyringService", keyringService);
+        internalTokenService.init();
+        ReflectionTestUtils.setField(ltijwtService, "internalTokenService", internalTokenService);
+    }
+
+    @Test
+    public void testValidateStateAcceptsOurStates() throws Exception {
+        LoginInitiationDTO loginInitiation = new LoginInitiationDTO("https://lms.com", "hint", "https://tool.com/lti3", null, "client", null, "deployment", null);
+        String state = LtiOidcUtils.generateState(internalTokenService, Collections.singletonMap("nonce", "nonce"), loginInitiation, "client", "deployment", "nonce");
+
+        Jws<Claims> claims = ltijwtService.validateState(state);
+
+        assertEquals("https://lms.com", claims.getPayload().get("original_iss"));
+    }
+
+    @Test
+    public void testValidateStateRejectsAnotherIssuer() {
+        String state = Jwts.builder()
+                .issuer("someone else")
+                .expiration(new Date(System.currentTimeMillis() + 60000))
+                .signWith(keyPair.getPrivate())
+                .compact();
+
+        assertThrows(IncorrectClaimException.class, () -> ltijwtService.validateState(state));
+    }
+
+    @Test
+    public void testValidateNonceStateAcceptsOurTokens() throws Exception {
+        String token = ltijwtService.generateStateNonceTokenJWT("hash");
+
+        assertEquals("hash", ltijwtService.validateNonceState(token).getPayload().get("expected_hash"));
+        assertThrows(IncorrectClaimException.class, () -> ltijwtService.validateState(token));
+    }
+
+    @Test
+    public void testMissingToolKeyFailsTheValidation() throws Exception {
+        String token = ltijwtService.generateStateNonceTokenJWT("hash");
+        when(keyringService.getPublicKey()).thenThrow(new GeneralSecurityException("no key"));
+
+        assertThrows(UnsupportedJwtException.class, () -> ltijwtService.validateNonceState(token));
+    }
+}
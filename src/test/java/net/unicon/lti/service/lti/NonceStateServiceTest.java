@@ -0,0 +1,167 @@
+package net.unicon.lti.service.lti;
+
+import io.jsonwebtoken.Claims;
+import io.jsonwebtoken.Jwts;
+import net.unicon.lti.model.lti.dto.LoginInitiationDTO;
+import net.unicon.lti.model.lti.dto.NonceState;
+import net.unicon.lti.service.lti.impl.InMemoryNonceStateStore;
+import net.unicon.lti.service.lti.impl.InternalTokenServiceImpl;
+import net.unicon.lti.service.lti.impl.NonceStateServiceImpl;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class NonceStateServiceTest {
+
+    private static final String NONCE = "2c5bb6a0-5d6e-4a2f-9d3e-6f0b1a7c8d9e";
+
+    @Mock
+    KeyringService keyringService;
+
+    private NonceStateServiceImpl nonceStateService;
+
+    private InMemoryNonceStateStore nonceStateStore;
+
+    private KeyPair keyPair;
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        MockitoAnnotations.openMocks(this);
+        KeyPairGenerator keyPairGenerator = KeyPairGenerator.getInstance("RSA");
+        keyPairGenerator.initialize(2048);
+        keyPair = keyPairGenerator.generateKeyPair();
+        when(keyringService.getPrivateKey("kid")).thenReturn(keyPair.getPrivate());
+        when(keyringService.getActiveKid()).thenReturn("kid");
+
+        nonceStateStore = new InMemoryNonceStateStore();
+        nonceStateStore.init();
+        InternalTokenServiceImpl internalTokenService = new InternalTokenServiceImpl();
+        ReflectionTestUtils.setField(internalTokenService, "keyringService", keyringService);
+        internalTokenService.init();
+        nonceStateService = new NonceStateServiceImpl();
+        ReflectionTestUtils.setField(nonceStateService, "nonceStateStore", nonceStateStore);
+        ReflectionTestUtils.setField(nonceStateService, "internalTokenService", internalTokenService);
+        ReflectionTestUtils.setField(nonceStateService, "stateless", true);
+        ReflectionTestUtils.setField(nonceStateService, "stateKey", Base64.getEncoder().encodeToString(new byte[32]));
+        nonceStateService.init();
+    }
+
+    @Test
+    public void testStatelessStateIsOpenedWithoutStoringAnything() throws Exception {
+        String state = nonceStateService.createStatelessState(loginInitiation(), "client-id", "deployment-id", NONCE);
+
+        assertNull(nonceStateStore.findByNonce(NONCE));
+        NonceState nonceState = nonceStateService.getNonceByStateHash(state);
+        assertNotNull(nonceState);
+        assertEquals(NONCE, nonceState.getNonce());
+        assertEquals(state, nonceState.getStateHash());
+        assertEquals("_parent", nonceState.getLtiStorageTarget());
+        Claims claims = Jwts.parser().verifyWith(keyPair.getPublic()).build().parseSignedClaims(nonceState.getState()).getPayload();
+        assertEquals(NONCE, claims.getId());
+        assertEquals("https://lms.com", claims.get("original_iss", String.class));
+        assertEquals("client-id", claims.get("clientId", String.class));
+        assertEquals("deployment-id", claims.get("ltiDeploymentId", String.class));
+        // Opened once, the rest of the launch gets the same one
+        assertSame(nonceState, nonceStateService.getNonceByStateHash(state));
+        assertSame(nonceState, nonceStateService.getNonce(NONCE));
+        verify(keyringService, times(1)).getPrivateKey("kid");
+    }
+
+    @Test
+    public void testTamperedStatelessStateIsRejected() throws Exception {
+        String state = nonceStateService.createStatelessState(loginInitiation(), "client-id", "deployment-id", NONCE);
+        //The last char can carry only padding bits, change one in the middle
+        int middle = state.length() / 2;
+        String tampered = state.substring(0, middle) + (state.charAt(middle) == 'A' ? 'B' : 'A') + state.substring(middle + 1);
+
+        assertNull(nonceStateService.getNonceByStateHash(tampered));
+        assertNull(nonceStateService.getNonceByStateHash("not-a-state"));
+        assertNull(nonceStateService.getNonce(NONCE));
+    }
+
+    @Test
+    public void testStatelessStateCanOnlyBeUsedOnce() throws Exception {
+        String state = nonceStateService.createStatelessState(loginInitiation(), "client-id", "deployment-id", NONCE);
+        assertNotNull(nonceStateService.getNonceByStateHash(state));
+
+        nonceStateService.deleteNonce(NONCE);
+
+        assertTrue(nonceStateStore.findByNonce(NONCE) != null);
+        assertFalse(nonceStateService.consumeNonce(NONCE));
+        assertNull(nonceStateService.getNonceByStateHash(state));
+        assertNull(nonceStateService.getNonce(NONCE));
+    }
+
+    @Test
+    public void testConcurrentReplaysOnlyConsumeTheNonceOnce() throws Exception {
+        String state = nonceStateService.createStatelessState(loginInitiation(), "client-id", "deployment-id", NONCE);
+        assertNotNull(nonceStateService.getNonceByStateHash(state));
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<Boolean>> launches = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            launches.add(executor.submit(() -> {
+                start.await();
+                return nonceStateService.consumeNonce(NONCE);
+            }));
+        }
+
+        start.countDown();
+        int accepted = 0;
+        for (Future<Boolean> launch : launches) {
+            accepted += launch.get(10, TimeUnit.SECONDS) ? 1 : 0;
+        }
+        executor.shutdown();
+
+        assertEquals(1, accepted);
+        assertNull(nonceStateService.getNonceByStateHash(state));
+    }
+
+    @Test
+    public void testExpiredStatelessStateIsRejected() throws Exception {
+        ReflectionTestUtils.setField(nonceStateService, "ttlSeconds", -1L);
+        String state = nonceStateService.createStatelessState(loginInitiation(), "client-id", "deployment-id", NONCE);
+
+        assertNull(nonceStateService.getNonceByStateHash(state));
+    }
+
+    @Test
+    public void testStatelessWithoutAStateKeyFailsTheStartup() {
+        NonceStateServiceImpl withoutKey = new NonceStateServiceImpl();
+        ReflectionTestUtils.setField(withoutKey, "stateless", true);
+        assertThrows(IllegalStateException.class, withoutKey::init);
+
+        // 20 bytes is not an AES key
+        ReflectionTestUtils.setField(withoutKey, "stateKey", Base64.getEncoder().encodeToString(new byte[20]));
+        assertThrows(IllegalStateException.class, withoutKey::init);
+    }
+
+    private LoginInitiationDTO loginInitiation() {
+        return new LoginInitiationDTO("https://lms.com", "login-hint", "https://tool.com/lti3", "message-hint",
+                "client-id", null, "deployment-id", "_parent");
+    }
+}
@@ -0,0 +1,120 @@
+package net.unicon.lti.service.lti;
+
+import net.unicon.lti.model.PlatformDeployment;
+import net.unicon.lti.repository.PlatformDeploymentRepository;
+import net.unicon.lti.service.lti.impl.PlatformDeploymentRegistryImpl;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.springframework.data.domain.Sort;
+
+import java.sql.Timestamp;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class PlatformDeploymentRegistryTest {
+
+    private static final String ISS = "https://lms.com";
+
+    @InjectMocks
+    PlatformDeploymentRegistry platformDeploymentRegistry = new PlatformDeploymentRegistryImpl();
+
+    @Mock
+    PlatformDeploymentRepository platformDeploymentRepository;
+
+    private PlatformDeployment first;
+    private PlatformDeployment second;
+    private PlatformDeployment withoutDeploymentId;
+
+    private long versions = 2;
+
+    @BeforeEach
+    public void setUp() {
+        MockitoAnnotations.openMocks(this);
+        first = deployment(1L, "client-1", "deployment-1");
+        second = deployment(2L, "client-1", "deployment-2");
+        withoutDeploymentId = deployment(3L, "client-2", null);
+        when(platformDeploymentRepository.findAll(any(Sort.class))).thenReturn(Arrays.asList(first, second, withoutDeploymentId));
+        when(platformDeploymentRepository.findDeploymentsVersion()).thenAnswer(invocation -> new PlatformDeploymentRepository.DeploymentsVersion() {
+            public long getCount() {
+                return 3;
+            }
+
+            public long getVersions() {
+                return versions;
+            }
+
+            public Timestamp getLastUpdate() {
+                return new Timestamp(1000L);
+            }
+        });
+    }
+
+    @Test
+    public void testLookupsUseTheLoadedDeployments() {
+        assertEquals(Arrays.asList(first, second, withoutDeploymentId), platformDeploymentRegistry.findByIss(ISS));
+        assertEquals(Arrays.asList(first, second), platformDeploymentRegistry.findByIssAndClientId(ISS, "client-1"));
+        assertEquals(List.of(second), platformDeploymentRegistry.findByIssAndDeploymentId(ISS, "deployment-2"));
+        assertEquals(List.of(first), platformDeploymentRegistry.findByIssAndClientIdAndDeploymentId(ISS, "client-1", "deployment-1"));
+        assertEquals(List.of(withoutDeploymentId), platformDeploymentRegistry.findByIssAndClientIdAndDeploymentId(ISS, "client-2", null));
+        assertTrue(platformDeploymentRegistry.findByIssAndClientIdAndDeploymentId(ISS, "client-2", "null").isEmpty());
+        assertTrue(platformDeploymentRegistry.findByIss("https://other.com").isEmpty());
+
+        verify(platformDeploymentRepository, times(1)).findAll(any(Sort.class));
+    }
+
+    @Test
+    public void testChangingAReturnedDeploymentDoesNotChangeTheRegistry() {
+        PlatformDeployment returned = platformDeploymentRegistry.findByIssAndClientIdAndDeploymentId(ISS, "client-1", "deployment-1").get(0);
+        assertNotSame(first, returned);
+        assertNull(returned.getContexts());
+        returned.setJwksEndpoint("https://attacker.com/jwks");
+
+        assertEquals("https://lms.com/jwks", platformDeploymentRegistry.findByIssAndClientIdAndDeploymentId(ISS, "client-1", "deployment-1").get(0).getJwksEndpoint());
+        assertEquals("https://lms.com/jwks", first.getJwksEndpoint());
+    }
+
+    @Test
+    public void testInvalidateReloadsOnTheNextLookup() {
+        platformDeploymentRegistry.findByIss(ISS);
+        platformDeploymentRegistry.invalidate();
+        platformDeploymentRegistry.findByIss(ISS);
+
+        verify(platformDeploymentRepository, times(2)).findAll(any(Sort.class));
+    }
+
+    @Test
+    public void testVersionChangeReloadsTheDeployments() {
+        platformDeploymentRegistry.findByIss(ISS);
+        platformDeploymentRegistry.checkVersion();
+        platformDeploymentRegistry.findByIss(ISS);
+        verify(platformDeploymentRepository, times(1)).findAll(any(Sort.class));
+
+        //Another instance updated a deployment
+        versions = 3;
+        platformDeploymentRegistry.checkVersion();
+        platformDeploymentRegistry.findByIss(ISS);
+        verify(platformDeploymentRepository, times(2)).findAll(any(Sort.class));
+    }
+
+    private PlatformDeployment deployment(long keyId, String clientId, String deploymentId) {
+        PlatformDeployment platformDeployment = new PlatformDeployment();
+        platformDeployment.setKeyId(keyId);
+        platformDeployment.setIss(ISS);
+        platformDeployment.setClientId(clientId);
+        platformDeployment.setDeploymentId(deploymentId);
+        platformDeployment.setJwksEndpoint("https://lms.com/jwks");
+        return platformDeployment;
+    }
+}
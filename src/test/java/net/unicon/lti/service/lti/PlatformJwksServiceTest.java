@@ -0,0 +1,156 @@
+package net.unicon.lti.service.lti;
+
+import com.nimbusds.jose.JOSEException;
+import com.nimbusds.jose.jwk.JWK;
+import com.nimbusds.jose.jwk.JWKSet;
+import com.nimbusds.jose.jwk.RSAKey;
+import com.nimbusds.jose.jwk.gen.RSAKeyGenerator;
+import net.unicon.lti.model.PlatformDeployment;
+import net.unicon.lti.service.lti.impl.PlatformJwksServiceImpl;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.web.client.ResourceAccessException;
+import org.springframework.web.client.RestTemplate;
+
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class PlatformJwksServiceTest {
+    private static final String JWKS_ENDPOINT = "https://platform-lms.com/jwks";
+
+    @InjectMocks
+    private PlatformJwksServiceImpl platformJwksService = new PlatformJwksServiceImpl();
+
+    @Mock
+    private RestTemplate restTemplate;
+
+    @Mock
+    private PlatformDeployment platformDeployment;
+
+    private RSAKey key1;
+    private RSAKey key2;
+
+    @BeforeEach
+    public void setUp() throws JOSEException {
+        MockitoAnnotations.openMocks(this);
+        when(platformDeployment.getJwksEndpoint()).thenReturn(JWKS_ENDPOINT);
+        key1 = new RSAKeyGenerator(2048).keyID("kid-1").generate();
+        key2 = new RSAKeyGenerator(2048).keyID("kid-2").generate();
+    }
+
+    private ResponseEntity<String> jwksResponse(String cacheControl, RSAKey... keys) {
+        List<JWK> publicKeys = new ArrayList<>();
+        for (RSAKey key : keys) {
+            publicKeys.add(key.toPublicJWK());
+        }
+        HttpHeaders headers = new HttpHeaders();
+        if (cacheControl != null) {
+            headers.setCacheControl(cacheControl);
+        }
+        return new ResponseEntity<>(new JWKSet(publicKeys).toString(), headers, HttpStatus.OK);
+    }
+
+    @Test
+    public void testKeysAreCached() throws JOSEException {
+        when(restTemplate.getForEntity(eq(JWKS_ENDPOINT), eq(String.class))).thenReturn(jwksResponse("max-age=600", key1));
+
+        PublicKey first = platformJwksService.getPublicKey(platformDeployment, "kid-1");
+        PublicKey second = platformJwksService.getPublicKey(platformDeployment, "kid-1");
+
+        assertEquals(key1.toPublicKey(), first);
+        assertEquals(key1.toPublicKey(), second);
+        verify(restTemplate, times(1)).getForEntity(eq(JWKS_ENDPOINT), eq(String.class));
+    }
+
+    @Test
+    public void testUnknownKidRefreshesWhenAllowed() throws JOSEException {
+        ReflectionTestUtils.setField(platformJwksService, "minRefreshSeconds", 0L);
+        when(restTemplate.getForEntity(eq(JWKS_ENDPOINT), eq(String.class)))
+                .thenReturn(jwksResponse("max-age=600", key1))
+                .thenReturn(jwksResponse("max-age=600", key1, key2));
+
+        platformJwksService.getPublicKey(platformDeployment, "kid-1");
+        PublicKey rotated = platformJwksService.getPublicKey(platformDeployment, "kid-2");
+
+        assertEquals(key2.toPublicKey(), rotated);
+        verify(restTemplate, times(2)).getForEntity(eq(JWKS_ENDPOINT), eq(String.class));
+    }
+
+    @Test
+    public void testUnknownKidRefreshIsRateLimited() {
+        when(restTemplate.getForEntity(eq(JWKS_ENDPOINT), eq(String.class))).thenReturn(jwksResponse("max-age=600", key1));
+
+        platformJwksService.getPublicKey(platformDeployment, "kid-1");
+        assertNull(platformJwksService.getPublicKey(platformDeployment, "unknown-kid"));
+        assertNull(platformJwksService.getPublicKey(platformDeployment, "unknown-kid"));
+
+        verify(restTemplate, times(1)).getForEntity(eq(JWKS_ENDPOINT), eq(String.class));
+    }
+
+    @Test
+    public void testStaleKeysAreServedWhenThePlatformIsDown() throws JOSEException {
+        ReflectionTestUtils.setField(platformJwksService, "minRefreshSeconds", 0L);
+        when(restTemplate.getForEntity(eq(JWKS_ENDPOINT), eq(String.class)))
+                .thenReturn(jwksResponse("max-age=0", key1))
+                .thenThrow(new ResourceAccessException("Connection refused"));
+
+        platformJwksService.getPublicKey(platformDeployment, "kid-1");
+        PublicKey stale = platformJwksService.getPublicKey(platformDeployment, "kid-1");
+
+        assertEquals(key1.toPublicKey(), stale);
+        verify(restTemplate, times(2)).getForEntity(eq(JWKS_ENDPOINT), eq(String.class));
+    }
+
+    @Test
+    public void testConcurrentFetchesAreCollapsed() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        when(restTemplate.getForEntity(eq(JWKS_ENDPOINT), eq(String.class))).thenAnswer(invocation -> {
+            release.await();
+            return jwksResponse("max-age=600", key1);
+        });
+
+        int threads = 8;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<PublicKey>> results = new ArrayList<>();
+            for (int i = 0; i < threads; i++) {
+                results.add(executor.submit(() -> platformJwksService.getPublicKey(platformDeployment, "kid-1")));
+            }
+            Thread.sleep(200);
+            release.countDown();
+            for (Future<PublicKey> result : results) {
+                assertNotNull(result.get());
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        verify(restTemplate, times(1)).getForEntity(eq(JWKS_ENDPOINT), eq(String.class));
+    }
+
+    @Test
+    public void testNoJwksEndpoint() {
+        when(platformDeployment.getJwksEndpoint()).thenReturn(null);
+
+        assertNull(platformJwksService.getPublicKey(platformDeployment, "kid-1"));
+    }
+}
@@ -0,0 +1,255 @@
+package net.unicon.lti.service.lti;
+
+import com.google.common.util.concurrent.MoreExecutors;
+import net.unicon.lti.model.PlatformDeployment;
+import net.unicon.lti.model.ScoreOutboxEntity;
+import net.unicon.lti.model.ags.Score;
+import net.unicon.lti.model.oauth2.LTIToken;
+import net.unicon.lti.repository.PlatformDeploymentRepository;
+import net.unicon.lti.repository.ScoreOutboxRepository;
+import net.unicon.lti.service.lti.impl.ScoreOutboxServiceImpl;
+import net.unicon.lti.utils.AGSScope;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.springframework.data.domain.Pageable;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.web.client.HttpClientErrorException;
+import org.springframework.web.client.ResourceAccessException;
+
+import java.sql.Timestamp;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Optional;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class ScoreOutboxServiceTest {
+
+    private static final String LINE_ITEM = "https://lms.com/line_items/1";
+
+    @InjectMocks
+    ScoreOutboxServiceImpl scoreOutboxService = new ScoreOutboxServiceImpl();
+
+    @Mock
+    ScoreOutboxRepository scoreOutboxRepository;
+
+    @Mock
+    PlatformDeploymentRepository platformDeploymentRepository;
+
+    @Mock
+    AdvantageAGSService advantageAGSService;
+
+    @Mock
+    AdvantageConnectorHelper advantageConnectorHelper;
+
+    private PlatformDeployment platformDeployment;
+
+    private LTIToken scoresToken;
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        MockitoAnnotations.openMocks(this);
+        //Run the workers in the calling thread
+        ReflectionTestUtils.setField(scoreOutboxService, "workerExecutor", MoreExecutors.newDirectExecutorService());
+        platformDeployment = new PlatformDeployment();
+        platformDeployment.setKeyId(1L);
+        platformDeployment.setIss("https://lms.com");
+        scoresToken = new LTIToken();
+        scoresToken.setAccess_token("test-scores-token");
+        when(platformDeploymentRepository.findById(1L)).thenReturn(Optional.of(platformDeployment));
+        when(scoreOutboxRepository.countByStatusIn(any())).thenReturn(1L);
+        when(scoreOutboxRepository.findDueKeyIds(any(Timestamp.class))).thenReturn(Collections.singletonList(1L));
+        when(scoreOutboxRepository.claim(anyLong(), any(Timestamp.class))).thenReturn(1);
+        when(advantageAGSService.getToken("scores", platformDeployment)).thenReturn(scoresToken);
+    }
+
+    @Test
+    public void testEnqueueStoresTheScoreWithoutCallingThePlatform() throws Exception {
+        Score score = new Score();
+        score.setUserId("user-1");
+        score.setScoreGiven("7");
+        when(scoreOutboxRepository.save(any(ScoreOutboxEntity.class))).thenAnswer(invocation -> invocation.getArgument(0));
+
+        ScoreOutboxEntity entry = scoreOutboxService.enqueue(platformDeployment, LINE_ITEM, score);
+
+        assertEquals(1L, entry.getKeyId());
+        assertEquals(LINE_ITEM, entry.getLineItemId());
+        assertEquals(ScoreOutboxEntity.PENDING, entry.getStatus());
+        assertTrue(entry.getScore().contains("\"userId\":\"user-1\""));
+        assertEquals(1, scoreOutboxService.getQueueDepth());
+        verify(advantageAGSService, never()).postScore(any(LTIToken.class), anyString(), any(Score.class));
+    }
+
+    @Test
+    public void testSentScoresAreRemovedFromTheOutbox() throws Exception {
+        ScoreOutboxEntity entry = entry(10L, 0);
+        when(scoreOutboxRepository.findDue(eq(1L), any(Timestamp.class), any(Pageable.class))).thenReturn(Collections.singletonList(entry), Collections.emptyList());
+        when(advantageAGSService.postScore(eq(scoresToken), eq(LINE_ITEM), any(Score.class))).thenReturn(new ResponseEntity<>(HttpStatus.OK));
+
+        assertEquals(1, scoreOutboxService.sendDueScores());
+
+        verify(scoreOutboxRepository).claim(eq(10L), any(Timestamp.class));
+        verify(scoreOutboxRepository).deleteById(10L);
+    }
+
+    @Test
+    public void testFailedScoresAreRetriedWithBackoff() throws Exception {
+        ScoreOutboxEntity entry = entry(10L, 2);
+        when(scoreOutboxRepository.findDue(eq(1L), any(Timestamp.class), any(Pageable.class))).thenReturn(Collections.singletonList(entry), Collections.emptyList());
+        when(advantageAGSService.postScore(eq(scoresToken), eq(LINE_ITEM), any(Score.class))).thenThrow(new ResourceAccessException("timeout"));
+
+        long before = System.currentTimeMillis();
+        scoreOutboxService.sendDueScores();
+
+        ArgumentCaptor<Timestamp> nextAttempt = ArgumentCaptor.forClass(Timestamp.class);
+        verify(scoreOutboxRepository).retryLater(eq(10L), eq(3), nextAttempt.capture(), anyString());
+        // Third attempt: 5s * 2^2 plus up to 20% jitter
+        long delay = nextAttempt.getValue().getTime() - before;
+        assertTrue(delay >= 20000 && delay <= 25000, "Unexpected backoff " + delay);
+        verify(scoreOutboxRepository, never()).deleteById(anyLong());
+    }
+
+    @Test
+    public void testScoresRejectedByThePlatformAreNotRetried() throws Exception {
+        ScoreOutboxEntity entry = entry(10L, 0);
+        when(scoreOutboxRepository.findDue(eq(1L), any(Timestamp.class), any(Pageable.class))).thenReturn(Collections.singletonList(entry), Collections.emptyList());
+        when(advantageAGSService.postScore(eq(scoresToken), eq(LINE_ITEM), any(Score.class)))
+                .thenThrow(HttpClientErrorException.create(HttpStatus.BAD_REQUEST, "Bad Request", new HttpHeaders(), null, null));
+
+        scoreOutboxService.sendDueScores();
+
+        verify(scoreOutboxRepository).markFailed(eq(10L), eq(1), anyString());
+        verify(scoreOutboxRepository, never()).retryLater(anyLong(), anyInt(), any(Timestamp.class), anyString());
+    }
+
+    @Test
+    public void testRejectedTokenIsDroppedBeforeTheRetry() throws Exception {
+        ScoreOutboxEntity entry = entry(10L, 0);
+        when(scoreOutboxRepository.findDue(eq(1L), any(Timestamp.class), any(Pageable.class))).thenReturn(Collections.singletonList(entry), Collections.emptyList());
+        when(advantageAGSService.postScore(eq(scoresToken), eq(LINE_ITEM), any(Score.class)))
+                .thenThrow(HttpClientErrorException.create(HttpStatus.UNAUTHORIZED, "Unauthorized", new HttpHeaders(), null, null));
+
+        scoreOutboxService.sendDueScores();
+
+        verify(advantageConnectorHelper).invalidateToken(platformDeployment, AGSScope.AGS_SCORES_SCOPE.getScope());
+        verify(scoreOutboxRepository).retryLater(eq(10L), eq(1), any(Timestamp.class), anyString());
+        verify(scoreOutboxRepository, never()).markFailed(anyLong(), anyInt(), anyString());
+    }
+
+    @Test
+    public void testPlatformIsPausedWhenItAsksToSlowDown() throws Exception {
+        HttpHeaders headers = new HttpHeaders();
+        headers.set(HttpHeaders.RETRY_AFTER, "120");
+        ScoreOutboxEntity first = entry(10L, 0);
+        ScoreOutboxEntity second = entry(11L, 0);
+        second.setLineItemId("https://lms.com/line_items/2");
+        when(scoreOutboxRepository.findDue(eq(1L), any(Timestamp.class), any(Pageable.class))).thenReturn(Arrays.asList(first, second), Collections.emptyList());
+        when(advantageAGSService.postScore(eq(scoresToken), eq(LINE_ITEM), any(Score.class)))
+                .thenThrow(HttpClientErrorException.create(HttpStatus.TOO_MANY_REQUESTS, "Too Many Requests", headers, null, null));
+
+        assertEquals(1, scoreOutboxService.sendDueScores());
+
+        ArgumentCaptor<Timestamp> nextAttempt = ArgumentCaptor.forClass(Timestamp.class);
+        verify(scoreOutboxRepository).retryLater(eq(10L), eq(1), nextAttempt.capture(), anyString());
+        assertTrue(nextAttempt.getValue().getTime() >= System.currentTimeMillis() + 100000);
+        // The second score is for the same platform, it waits until the pause is over
+        verify(scoreOutboxRepository, times(1)).claim(anyLong(), any(Timestamp.class));
+    }
+
+    @Test
+    public void testUnknownDeploymentFailsTheScore() {
+        ScoreOutboxEntity entry = entry(10L, 0);
+        entry.setKeyId(2L);
+        when(scoreOutboxRepository.findDueKeyIds(any(Timestamp.class))).thenReturn(Collections.singletonList(2L));
+        when(platformDeploymentRepository.findById(2L)).thenReturn(Optional.empty());
+        when(scoreOutboxRepository.findDue(eq(2L), any(Timestamp.class), any(Pageable.class))).thenReturn(Collections.singletonList(entry));
+
+        assertEquals(0, scoreOutboxService.sendDueScores());
+
+        verify(scoreOutboxRepository).markFailed(eq(10L), eq(0), anyString());
+        verify(scoreOutboxRepository, never()).claim(anyLong(), any(Timestamp.class));
+    }
+
+    @Test
+    public void testWorkersKeepSendingWithoutWaitingForTheNextRun() throws Exception {
+        ExecutorService workers = Executors.newFixedThreadPool(8);
+        ReflectionTestUtils.setField(scoreOutboxService, "workerExecutor", workers);
+        AtomicLong nextId = new AtomicLong(100);
+        //A burst of 50 scores, 4 in flight at most
+        when(scoreOutboxRepository.findDue(eq(1L), any(Timestamp.class), any(Pageable.class))).thenAnswer(invocation ->
+                nextId.get() < 150 ? Collections.singletonList(entry(nextId.get(), 0)) : Collections.emptyList());
+        when(scoreOutboxRepository.claim(anyLong(), any(Timestamp.class))).thenAnswer(invocation ->
+                nextId.compareAndSet(invocation.getArgument(0), (long) invocation.getArgument(0) + 1) ? 1 : 0);
+        AtomicInteger inFlight = new AtomicInteger();
+        AtomicInteger maxInFlight = new AtomicInteger();
+        CountDownLatch sent = new CountDownLatch(50);
+        when(advantageAGSService.postScore(eq(scoresToken), eq(LINE_ITEM), any(Score.class))).thenAnswer(invocation -> {
+            maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+            Thread.sleep(5);
+            inFlight.decrementAndGet();
+            sent.countDown();
+            return new ResponseEntity<>(HttpStatus.OK);
+        });
+
+        try {
+            scoreOutboxService.sendDueScores();
+
+            // A single run of the scheduler sends them all
+            assertTrue(sent.await(10, TimeUnit.SECONDS));
+            assertTrue(maxInFlight.get() <= 4, "Too many scores in flight " + maxInFlight.get());
+            verify(scoreOutboxRepository, times(1)).findDueKeyIds(any(Timestamp.class));
+        } finally {
+            workers.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testABurstOfOnePlatformDoesNotDelayTheOthers() throws Exception {
+        PlatformDeployment other = new PlatformDeployment();
+        other.setKeyId(2L);
+        other.setIss("https://other-lms.com");
+        when(platformDeploymentRepository.findById(2L)).thenReturn(Optional.of(other));
+        when(advantageAGSService.getToken("scores", other)).thenReturn(scoresToken);
+        when(scoreOutboxRepository.findDueKeyIds(any(Timestamp.class))).thenReturn(Arrays.asList(1L, 2L));
+        ScoreOutboxEntity otherEntry = entry(500L, 0);
+        otherEntry.setKeyId(2L);
+        when(scoreOutboxRepository.findDue(eq(1L), any(Timestamp.class), any(Pageable.class))).thenReturn(Arrays.asList(entry(10L, 0), entry(11L, 0)), Collections.emptyList());
+        when(scoreOutboxRepository.findDue(eq(2L), any(Timestamp.class), any(Pageable.class))).thenReturn(Collections.singletonList(otherEntry), Collections.emptyList());
+        when(advantageAGSService.postScore(eq(scoresToken), eq(LINE_ITEM), any(Score.class))).thenReturn(new ResponseEntity<>(HttpStatus.OK));
+
+        scoreOutboxService.sendDueScores();
+
+        verify(scoreOutboxRepository).deleteById(10L);
+        verify(scoreOutboxRepository).deleteById(500L);
+    }
+
+    private ScoreOutboxEntity entry(long id, int attempts) {
+        ScoreOutboxEntity entry = new ScoreOutboxEntity(1L, LINE_ITEM, "{\"userId\":\"user-1\",\"scoreGiven\":\"7\"}");
+        entry.setScoreOutboxId(id);
+        entry.setAttempts(attempts);
+        return entry;
+    }
+}
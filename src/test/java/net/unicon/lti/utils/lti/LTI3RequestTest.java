@@ -3,12 +3,14 @@ package net.unicon.lti.utils.lti;
 import com.google.common.collect.Iterables;
 import io.jsonwebtoken.Claims;
 import io.jsonwebtoken.Jws;
+import net.unicon.lti.config.ApplicationConfig;
 import net.unicon.lti.model.PlatformDeployment;
 import net.unicon.lti.model.lti.dto.NonceState;
 import net.unicon.lti.repository.AllRepositories;
-import net.unicon.lti.repository.NonceStateRepository;
-import net.unicon.lti.repository.PlatformDeploymentRepository;
 import net.unicon.lti.service.lti.LTIDataService;
+import net.unicon.lti.service.lti.NonceStateService;
+import net.unicon.lti.service.lti.PlatformDeploymentRegistry;
+import net.unicon.lti.service.lti.impl.LTIDataServiceImpl;
 import net.unicon.lti.utils.LtiStrings;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.BeforeEach;
@@ -16,13 +18,27 @@ import org.junit.jupiter.api.Test;
 import org.mockito.InjectMocks;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
+import org.springframework.context.ApplicationContext;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.mock.web.MockHttpServletRequest;
 import org.springframework.mock.web.MockHttpSession;
+import org.springframework.web.context.request.RequestContextHolder;
+import org.springframework.web.context.request.ServletRequestAttributes;
 
 import jakarta.servlet.http.HttpServletRequest;
 import java.util.*;
+import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.*;
@@ -43,10 +59,10 @@ public class LTI3RequestTest {
     private AllRepositories allRepositories;
 
     @Mock
-    private PlatformDeploymentRepository platformDeploymentRepository;
+    private PlatformDeploymentRegistry platformDeploymentRegistry;
 
     @Mock
-    private NonceStateRepository nonceStateRepository;
+    private NonceStateService nonceStateService;
 
     @Mock
     private HttpServletRequest req;
@@ -74,6 +90,8 @@ public class LTI3RequestTest {
         MockitoAnnotations.openMocks(this);
         platformDeploymentList = Arrays.asList(platformDeployment);
         when(ltiDataService.getRepos()).thenReturn(allRepositories);
+        when(ltiDataService.getNonceStates()).thenReturn(nonceStateService);
+        when(ltiDataService.getPlatformDeployments()).thenReturn(platformDeploymentRegistry);
         when(jwsClaims.getBody()).thenReturn(claims);
         when(req.getSession()).thenReturn(mockHttpSession);
         when(req.getParameter("id_token")).thenReturn(ID_TOKEN);
@@ -115,7 +133,7 @@ public class LTI3RequestTest {
     @Test
     public void testLTI3RequestWithoutDeployment() {
         when(req.getParameter("cookies")).thenReturn("false");
-        when(platformDeploymentRepository.findByIssAndClientIdAndDeploymentId(any(String.class), any(String.class), any(String.class))).thenReturn(new ArrayList<>());
+        when(platformDeploymentRegistry.findByIssAndClientIdAndDeploymentId(any(String.class), any(String.class), any(String.class))).thenReturn(new ArrayList<>());
         when(claims.getIssuer()).thenReturn(SAMPLE_ISS);
         when(claims.getAudience()).thenReturn(SAMPLE_CLIENT_ID_SET);
         when(claims.get(eq(LtiStrings.LTI_DEPLOYMENT_ID))).thenReturn(SAMPLE_DEPLOYMENT_ID);
@@ -124,14 +142,14 @@ public class LTI3RequestTest {
                 IllegalStateException.class,
                 () -> {new LTI3Request(req, ltiDataService, false, "1234", jwsClaims);}
         );
-        verify(platformDeploymentRepository).findByIssAndClientIdAndDeploymentId(any(String.class), any(String.class), any(String.class));
+        verify(platformDeploymentRegistry).findByIssAndClientIdAndDeploymentId(any(String.class), any(String.class), any(String.class));
         assertEquals("PlatformDeployment does not exist or is duplicated for issuer: https://platform-lms.com, clientId: sample-client-id, and deploymentId: sample-deployment-id", exception.getMessage());
     }
 
     @Test
     public void testLTI3RequestWithDuplicateDeployment() {
         when(req.getParameter("cookies")).thenReturn("false");
-        when(platformDeploymentRepository.findByIssAndClientIdAndDeploymentId(any(String.class), any(String.class), any(String.class))).thenReturn(Arrays.asList(platformDeployment, platformDeployment));
+        when(platformDeploymentRegistry.findByIssAndClientIdAndDeploymentId(any(String.class), any(String.class), any(String.class))).thenReturn(Arrays.asList(platformDeployment, platformDeployment));
         when(claims.getIssuer()).thenReturn(SAMPLE_ISS);
         when(claims.getAudience()).thenReturn(SAMPLE_CLIENT_ID_SET);
         when(claims.get(eq(LtiStrings.LTI_DEPLOYMENT_ID))).thenReturn(SAMPLE_DEPLOYMENT_ID);
@@ -140,14 +158,14 @@ public class LTI3RequestTest {
                 IllegalStateException.class,
                 () -> {new LTI3Request(req, ltiDataService, false, "1234", jwsClaims);}
         );
-        verify(platformDeploymentRepository).findByIssAndClientIdAndDeploymentId(any(String.class), any(String.class), any(String.class));
+        verify(platformDeploymentRegistry).findByIssAndClientIdAndDeploymentId(any(String.class), any(String.class), any(String.class));
         assertEquals("PlatformDeployment does not exist or is duplicated for issuer: https://platform-lms.com, clientId: sample-client-id, and deploymentId: sample-deployment-id", exception.getMessage());
     }
 
     @Test
     public void testLTI3RequestWithInvalidMessageType() {
         when(req.getParameter("cookies")).thenReturn("false");
-        when(platformDeploymentRepository.findByIssAndClientIdAndDeploymentId(any(String.class), any(String.class), any(String.class))).thenReturn(platformDeploymentList);
+        when(platformDeploymentRegistry.findByIssAndClientIdAndDeploymentId(any(String.class), any(String.class), any(String.class))).thenReturn(platformDeploymentList);
         when(claims.getIssuer()).thenReturn(SAMPLE_ISS);
         when(claims.getAudience()).thenReturn(SAMPLE_CLIENT_ID_SET);
         when(claims.get(eq(LtiStrings.LTI_DEPLOYMENT_ID))).thenReturn(SAMPLE_DEPLOYMENT_ID);
@@ -156,7 +174,7 @@ public class LTI3RequestTest {
                 IllegalStateException.class,
                 () -> {new LTI3Request(req, ltiDataService, false, "1234", jwsClaims);}
         );
-        verify(platformDeploymentRepository).findByIssAndClientIdAndDeploymentId(any(String.class), any(String.class), any(String.class));
+        verify(platformDeploymentRegistry).findByIssAndClientIdAndDeploymentId(any(String.class), any(String.class), any(String.class));
         verify(claims).get(eq(LtiStrings.LTI_VERSION), eq(String.class));
         verify(claims).get(eq(LtiStrings.LTI_MESSAGE_TYPE), eq(String.class));
         assertEquals("Request is not a valid LTI3 request: LTI Message Type = null. ", exception.getMessage());
@@ -165,7 +183,7 @@ public class LTI3RequestTest {
     @Test
     public void testLTI3RequestWithMissingNonce() {
         when(req.getParameter("cookies")).thenReturn("true");
-        when(platformDeploymentRepository.findByIssAndClientIdAndDeploymentId(any(String.class), any(String.class), any(String.class))).thenReturn(platformDeploymentList);
+        when(platformDeploymentRegistry.findByIssAndClientIdAndDeploymentId(any(String.class), any(String.class), any(String.class))).thenReturn(platformDeploymentList);
         when(claims.getIssuer()).thenReturn(SAMPLE_ISS);
         when(claims.getAudience()).thenReturn(SAMPLE_CLIENT_ID_SET);
         when(claims.get(eq(LtiStrings.LTI_DEPLOYMENT_ID))).thenReturn(SAMPLE_DEPLOYMENT_ID);
@@ -177,7 +195,7 @@ public class LTI3RequestTest {
                 IllegalStateException.class,
                 () -> {new LTI3Request(req, ltiDataService, false, "1234", jwsClaims);}
         );
-        verify(platformDeploymentRepository).findByIssAndClientIdAndDeploymentId(any(String.class), any(String.class), any(String.class));
+        verify(platformDeploymentRegistry).findByIssAndClientIdAndDeploymentId(any(String.class), any(String.class), any(String.class));
         verify(claims).get(eq(LtiStrings.LTI_VERSION), eq(String.class));
         verify(claims).get(eq(LtiStrings.LTI_MESSAGE_TYPE), eq(String.class));
         verify(claims).get(eq(LtiStrings.LTI_NONCE), eq(String.class));
@@ -188,7 +206,7 @@ public class LTI3RequestTest {
     public void testLTI3RequestWithMissingNonceCookieless() {
 
         when(req.getParameter("cookies")).thenReturn("false");
-        when(platformDeploymentRepository.findByIssAndClientIdAndDeploymentId(any(String.class), any(String.class), any(String.class))).thenReturn(platformDeploymentList);
+        when(platformDeploymentRegistry.findByIssAndClientIdAndDeploymentId(any(String.class), any(String.class), any(String.class))).thenReturn(platformDeploymentList);
         when(claims.getIssuer()).thenReturn(SAMPLE_ISS);
         when(claims.getAudience()).thenReturn(SAMPLE_CLIENT_ID_SET);
         when(claims.get(eq(LtiStrings.LTI_DEPLOYMENT_ID))).thenReturn(SAMPLE_DEPLOYMENT_ID);
@@ -200,7 +218,7 @@ public class LTI3RequestTest {
                 IllegalStateException.class,
                 () -> {new LTI3Request(req, ltiDataService, false, "1234", jwsClaims);}
         );
-        verify(platformDeploymentRepository).findByIssAndClientIdAndDeploymentId(any(String.class), any(String.class), any(String.class));
+        verify(platformDeploymentRegistry).findByIssAndClientIdAndDeploymentId(any(String.class), any(String.class), any(String.class));
         verify(claims).get(eq(LtiStrings.LTI_VERSION), eq(String.class));
         verify(claims).get(eq(LtiStrings.LTI_MESSAGE_TYPE), eq(String.class));
         verify(claims).get(eq(LtiStrings.LTI_NONCE), eq(String.class));
@@ -210,7 +228,7 @@ public class LTI3RequestTest {
     @Test
     public void testLTI3RequestWithValidNonce() {
         when(req.getParameter("cookies")).thenReturn("false");
-        when(platformDeploymentRepository.findByIssAndClientIdAndDeploymentId(any(String.class), any(String.class), any(String.class))).thenReturn(platformDeploymentList);
+        when(platformDeploymentRegistry.findByIssAndClientIdAndDeploymentId(any(String.class), any(String.class), any(String.class))).thenReturn(platformDeploymentList);
         when(claims.getIssuer()).thenReturn(SAMPLE_ISS);
         when(claims.getAudience()).thenReturn(SAMPLE_CLIENT_ID_SET);
         when(claims.containsKey(eq(LtiStrings.LTI_DEPLOYMENT_ID))).thenReturn(true);
@@ -223,10 +241,10 @@ public class LTI3RequestTest {
         mockHttpSession.setAttribute("lti_nonce", Arrays.asList("5d04cb12f45df6ee373c42a1ca4cdbe08e2bfa8e5f7c662aca3f6560687fdc47"));
         when(claims.get(eq(LtiStrings.LTI_NONCE), eq(String.class))).thenReturn("5d04cb12f45df6ee373c42a1ca4cdbe08e2bfa8e5f7c662aca3f6560687fdc47");
         NonceState nonceState = new NonceState("5d04cb12f45df6ee373c42a1ca4cdbe08e2bfa8e5f7c662aca3f6560687fdc47", "HASH_STATE", "VALID_STATE", "_parent");
-        when(nonceStateRepository.findByNonce("5d04cb12f45df6ee373c42a1ca4cdbe08e2bfa8e5f7c662aca3f6560687fdc47")).thenReturn(nonceState);
+        when(nonceStateService.getNonce("5d04cb12f45df6ee373c42a1ca4cdbe08e2bfa8e5f7c662aca3f6560687fdc47")).thenReturn(nonceState);
         try{
             LTI3Request request = new LTI3Request(req, ltiDataService, false, "1234", jwsClaims);
-            verify(platformDeploymentRepository,times(2)).findByIssAndClientIdAndDeploymentId(any(String.class), any(String.class), any(String.class));
+            verify(platformDeploymentRegistry).findByIssAndClientIdAndDeploymentId(any(String.class), any(String.class), any(String.class));
             verify(claims).get(eq(LtiStrings.LTI_VERSION), eq(String.class));
             verify(claims, times(2)).get(eq(LtiStrings.LTI_MESSAGE_TYPE), eq(String.class));
             verify(claims).get(eq(LtiStrings.LTI_NONCE), eq(String.class));
@@ -238,7 +256,7 @@ public class LTI3RequestTest {
     @Test
     public void testLTI3RequestWithInvalidNonce() {
         when(req.getParameter("cookies")).thenReturn("true");
-        when(platformDeploymentRepository.findByIssAndClientIdAndDeploymentId(any(String.class), any(String.class), any(String.class))).thenReturn(platformDeploymentList);
+        when(platformDeploymentRegistry.findByIssAndClientIdAndDeploymentId(any(String.class), any(String.class), any(String.class))).thenReturn(platformDeploymentList);
         when(claims.getIssuer()).thenReturn(SAMPLE_ISS);
         when(claims.getAudience()).thenReturn(SAMPLE_CLIENT_ID_SET);
         when(claims.getSubject()).thenReturn(SAMPLE_USER);
@@ -250,12 +268,12 @@ public class LTI3RequestTest {
         when(claims.get(eq(LtiStrings.LTI_MESSAGE_TYPE))).thenReturn(LtiStrings.LTI_MESSAGE_TYPE_RESOURCE_LINK);
         mockHttpSession.setAttribute("lti_nonce", Arrays.asList("5d04cb12f45df6ee373c42a1ca4cdbe08e2bfa8e5f7c662aca3f6560687fdc47"));
         NonceState nonceState = new NonceState("5d04cb12f45df6ee373c42a1ca4cdbe08e2bfa8e5f7c662aca3f6560687fdc47", "HASH_STATE", "VALID_STATE", "_parent");
-        when(nonceStateRepository.findByNonce("5d04cb12f45df6ee373c42a1ca4cdbe08e2bfa8e5f7c662aca3f6560687fdc47")).thenReturn(nonceState);
+        when(nonceStateService.getNonce("5d04cb12f45df6ee373c42a1ca4cdbe08e2bfa8e5f7c662aca3f6560687fdc47")).thenReturn(nonceState);
         when(claims.get(eq(LtiStrings.LTI_NONCE), eq(String.class))).thenReturn("ba5938df7756a32ca3a4f89c40d88ff742651bc3ff417f6a4b7443f6f1e6a16c");
 
         IllegalStateException exception = Assertions.assertThrows(IllegalStateException.class, () -> {new LTI3Request(req, ltiDataService, false, "1234", jwsClaims);});
 
-        verify(platformDeploymentRepository).findByIssAndClientIdAndDeploymentId(any(String.class), any(String.class), any(String.class));
+        verify(platformDeploymentRegistry).findByIssAndClientIdAndDeploymentId(any(String.class), any(String.class), any(String.class));
         verify(claims).get(eq(LtiStrings.LTI_VERSION), eq(String.class));
         verify(claims).get(eq(LtiStrings.LTI_MESSAGE_TYPE), eq(String.class));
         verify(claims).get(eq(LtiStrings.LTI_NONCE), eq(String.class));
@@ -266,7 +284,7 @@ public class LTI3RequestTest {
     @Test
     public void testLTI3RequestWithInvalidNonceCookieless() {
         when(req.getParameter("cookies")).thenReturn("false");
-        when(platformDeploymentRepository.findByIssAndClientIdAndDeploymentId(any(String.class), any(String.class), any(String.class))).thenReturn(platformDeploymentList);
+        when(platformDeploymentRegistry.findByIssAndClientIdAndDeploymentId(any(String.class), any(String.class), any(String.class))).thenReturn(platformDeploymentList);
         when(claims.getIssuer()).thenReturn(SAMPLE_ISS);
         when(claims.getAudience()).thenReturn(SAMPLE_CLIENT_ID_SET);
         when(claims.containsKey(eq(LtiStrings.LTI_DEPLOYMENT_ID))).thenReturn(true);
@@ -277,16 +295,105 @@ public class LTI3RequestTest {
         when(claims.get(eq(LtiStrings.LTI_MESSAGE_TYPE))).thenReturn(LtiStrings.LTI_MESSAGE_TYPE_RESOURCE_LINK);
         mockHttpSession.setAttribute("lti_nonce", Arrays.asList("5d04cb12f45df6ee373c42a1ca4cdbe08e2bfa8e5f7c662aca3f6560687fdc47"));
         NonceState nonceState = new NonceState("5d04cb12f45df6ee373c42a1ca4cdbe08e2bfa8e5f7c662aca3f6560687fdc47", "HASH_STATE", "VALID_STATE", "_parent");
-        when(nonceStateRepository.findByNonce("5d04cb12f45df6ee373c42a1ca4cdbe08e2bfa8e5f7c662aca3f6560687fdc47")).thenReturn(nonceState);
+        when(nonceStateService.getNonce("5d04cb12f45df6ee373c42a1ca4cdbe08e2bfa8e5f7c662aca3f6560687fdc47")).thenReturn(nonceState);
         when(claims.get(eq(LtiStrings.LTI_NONCE), eq(String.class))).thenReturn("ba5938df7756a32ca3a4f89c40d88ff742651bc3ff417f6a4b7443f6f1e6a16c");
 
         IllegalStateException exception = Assertions.assertThrows(IllegalStateException.class, () -> {new LTI3Request(req, ltiDataService, false, "1234", jwsClaims);});
 
-        verify(platformDeploymentRepository).findByIssAndClientIdAndDeploymentId(any(String.class), any(String.class), any(String.class));
+        verify(platformDeploymentRegistry).findByIssAndClientIdAndDeploymentId(any(String.class), any(String.class), any(String.class));
         verify(claims).get(eq(LtiStrings.LTI_VERSION), eq(String.class));
         verify(claims).get(eq(LtiStrings.LTI_MESSAGE_TYPE), eq(String.class));
         verify(claims).get(eq(LtiStrings.LTI_NONCE), eq(String.class));
         assertEquals("Nonce error: Nonce not found in the database.", exception.getMessage());
 
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testGetInstanceDoesNotSerializeConcurrentRequests() throws Exception {
+        // Every thread waits in getAttribute until all of them are there. With a global lock only one thread
+        // could get that far and the barrier would break.
+        int threads = 8;
+        CyclicBarrier barrier = new CyclicBarrier(threads);
+        List<LTI3Request> expected = new ArrayList<>();
+        List<Callable<LTI3Request>> calls = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            LTI3Request lti3Request = mock(LTI3Request.class);
+            expected.add(lti3Request);
+            MockHttpServletRequest request = new MockHttpServletRequest() {
+                @Override
+                public Object getAttribute(String name) {
+                    awaitAll(barrier);
+                    return super.getAttribute(name);
+                }
+            };
+            request.setAttribute(LTI3Request.class.getName(), lti3Request);
+            calls.add(inRequest(request));
+        }
+
+        assertEquals(expected, runTogether(calls));
+    }
+
+    @Test
+    public void testGetInstanceBuildsConcurrentRequestsInParallel() throws Exception {
+        // Same as above, but nothing is in the request yet so every thread goes through the constructor
+        int threads = 8;
+        CyclicBarrier barrier = new CyclicBarrier(threads);
+        ApplicationContext applicationContext = mock(ApplicationContext.class);
+        when(applicationContext.getBean(LTIDataServiceImpl.class)).thenReturn(mock(LTIDataServiceImpl.class));
+        new ApplicationConfig().setApplicationContext(applicationContext);
+        try {
+            List<Callable<LTI3Request>> calls = new ArrayList<>();
+            for (int i = 0; i < threads; i++) {
+                MockHttpServletRequest request = new MockHttpServletRequest() {
+                    @Override
+                    public String getParameter(String name) {
+                        if ("cookies".equals(name)) {
+                            awaitAll(barrier);
+                        }
+                        return super.getParameter(name);
+                    }
+                };
+                calls.add(inRequest(request));
+            }
+
+            // There is no id_token, so all the threads get through the constructor and fail after the barrier
+            assertEquals(Collections.nCopies(threads, null), runTogether(calls));
+            assertFalse(barrier.isBroken());
+        } finally {
+            new ApplicationConfig().setApplicationContext(null);
+        }
+    }
+
+    private static Callable<LTI3Request> inRequest(MockHttpServletRequest request) {
+        return () -> {
+            RequestContextHolder.setRequestAttributes(new ServletRequestAttributes(request));
+            try {
+                return LTI3Request.getInstance(null);
+            } finally {
+                RequestContextHolder.resetRequestAttributes();
+            }
+        };
+    }
+
+    private static List<LTI3Request> runTogether(List<Callable<LTI3Request>> calls) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(calls.size());
+        try {
+            List<LTI3Request> results = new ArrayList<>();
+            for (Future<LTI3Request> result : executor.invokeAll(calls)) {
+                results.add(result.get());
+            }
+            return results;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static void awaitAll(CyclicBarrier barrier) {
+        try {
+            // The timeout only matters when the calls are serialized, then the test fails instead of hanging
+            barrier.await(30, TimeUnit.SECONDS);
+        } catch (InterruptedException | BrokenBarrierException | TimeoutException e) {
+            throw new IllegalStateException("The calls did not run at the same time", e);
+        }
+    }
+}
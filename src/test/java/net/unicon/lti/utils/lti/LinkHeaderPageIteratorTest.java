@@ -0,0 +1,107 @@
+package net.unicon.lti.utils.lti;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.client.RestClientException;
+import org.springframework.web.client.RestTemplate;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class LinkHeaderPageIteratorTest {
+
+    private static final String PAGE_1 = "https://lms.com/line_items";
+    private static final String PAGE_2 = "https://lms.com/line_items?page=2";
+    private static final String PAGE_3 = "https://lms.com/line_items?page=3";
+
+    @Mock
+    RestTemplate restTemplate;
+
+    private final HttpEntity<String> request = new HttpEntity<>("request");
+
+    private ExecutorService executor;
+
+    @BeforeEach
+    public void setUp() {
+        MockitoAnnotations.openMocks(this);
+        executor = Executors.newSingleThreadExecutor();
+    }
+
+    @AfterEach
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void testStreamWalksAllThePagesInOrder() {
+        mockPage(PAGE_1, PAGE_2, "a", "b");
+        mockPage(PAGE_2, PAGE_3, "c");
+        mockPage(PAGE_3, null, "d", "e");
+
+        try (Stream<String> stream = stream()) {
+            assertEquals(Arrays.asList("a", "b", "c", "d", "e"), stream.collect(Collectors.toList()));
+        }
+    }
+
+    @Test
+    public void testNextPageIsPrefetchedWhileTheCurrentOneIsConsumed() {
+        mockPage(PAGE_1, PAGE_2, "a", "b");
+        mockPage(PAGE_2, PAGE_3, "c");
+        mockPage(PAGE_3, null, "d");
+
+        try (Stream<String> stream = stream()) {
+            verify(restTemplate, never()).exchange(anyString(), any(HttpMethod.class), any(HttpEntity.class), any(Class.class));
+            Iterator<String> iterator = stream.iterator();
+            assertEquals("a", iterator.next());
+            // Page 2 is requested before we are done with page 1, page 3 waits until page 2 arrives
+            verify(restTemplate, timeout(1000)).exchange(PAGE_2, HttpMethod.GET, request, String[].class);
+            verify(restTemplate, never()).exchange(PAGE_3, HttpMethod.GET, request, String[].class);
+        }
+    }
+
+    @Test
+    public void testFailingPageIsThrownWhenReached() {
+        mockPage(PAGE_1, PAGE_2, "a");
+        when(restTemplate.exchange(PAGE_2, HttpMethod.GET, request, String[].class)).thenThrow(new RestClientException("platform error"));
+
+        try (Stream<String> stream = stream()) {
+            Iterator<String> iterator = stream.iterator();
+            assertEquals("a", iterator.next());
+            assertThrows(RestClientException.class, iterator::hasNext);
+        }
+    }
+
+    private Stream<String> stream() {
+        return LinkHeaderPageIterator.stream(restTemplate, PAGE_1, request, String[].class, Arrays::asList,
+                headers -> headers.getFirst("next"), executor);
+    }
+
+    private void mockPage(String url, String next, String... items) {
+        HttpHeaders headers = new HttpHeaders();
+        if (next != null) {
+            headers.set("next", next);
+        }
+        when(restTemplate.exchange(url, HttpMethod.GET, request, String[].class)).thenReturn(new ResponseEntity<>(items, headers, HttpStatus.OK));
+    }
+}